@@ -0,0 +1,331 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of chunk-insert
+ *
+ * chunk-insert is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * chunk-insert is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.inserts;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Whole runs of chunk-insert against a throwaway local PostgreSQL
+ * <p>
+ * A database cluster is made with initdb in a temporary directory and
+ * started on a free port. For each schema a source table is generated, and
+ * it is copied to a target table with every combination of mode and commit
+ * interval. The results (rows/s, peak heap and WAL generated) are printed as
+ * a table and stored in target/end-to-end-results.properties.
+ * <p>
+ * If a baseline file exists, a run that is more than the tolerance slower
+ * than the baseline fails the benchmark.
+ * <p>
+ * Run with: mvn -P end-to-end verify, configured by the system properties:
+ * <ul>
+ * <li>benchmark.rows number of rows in the source tables (default 1000000)
+ * <li>benchmark.schemas comma separated: ints, text, mixed (default ints,mixed)
+ * <li>benchmark.modes comma separated modes (default insert,multi-row,copy,server)
+ * <li>benchmark.commits comma separated commit intervals (default 1000,10000)
+ * <li>benchmark.baseline baseline file (default src/benchmark/baseline.properties)
+ * <li>benchmark.tolerance allowed slowdown as a fraction (default 0.2)
+ * <li>benchmark.update-baseline write the results as the new baseline
+ * <li>benchmark.pg-bin directory of initdb/pg_ctl (default from pg_config or PATH)
+ * </ul>
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+public class EndToEndBenchmark {
+
+    private static final String[][] SCHEMAS = {
+        {"ints", "i::BIGINT AS id, (i % 1000)::INT AS a, (i * 7)::INT AS b, (i * 11)::BIGINT AS c"},
+        {"text", "i::BIGINT AS id, repeat(md5(i::TEXT), 4) AS t1, md5(i::TEXT) AS t2"},
+        {"mixed", "i::BIGINT AS id, (i / 100.0)::NUMERIC(12,2) AS n, md5(i::TEXT) AS t," +
+                  " TIMESTAMPTZ '2020-01-01' + i * INTERVAL '1 second' AS ts, i % 2 = 0 AS b," +
+                  " jsonb_build_object('i', i) AS j, CASE WHEN i % 10 = 0 THEN NULL ELSE i END AS maybe"}
+    };
+
+    private final long rowCount = Long.getLong("benchmark.rows", 1_000_000L);
+    private final List<String> schemas = list("benchmark.schemas", "ints,mixed");
+    private final List<String> modes = list("benchmark.modes", "insert,multi-row,copy,server");
+    private final List<String> commits = list("benchmark.commits", "1000,10000");
+    private final Path baselineFile = Paths.get(System.getProperty("benchmark.baseline", "src/benchmark/baseline.properties"));
+    private final double tolerance = Double.parseDouble(System.getProperty("benchmark.tolerance", "0.2"));
+    private final boolean updateBaseline = Boolean.getBoolean("benchmark.update-baseline");
+
+    private Path dataDir;
+    private String pgBin;
+    private int port;
+
+    public static void main(String[] args) throws Exception {
+        System.exit(new EndToEndBenchmark().run());
+    }
+
+    private int run() throws Exception {
+        pgBin = findPgBin();
+        dataDir = Files.createTempDirectory("chunk-insert-benchmark");
+        try {
+            startDatabase();
+            List<Result> results = new ArrayList<>();
+            for (String schema : schemas) {
+                createSource(schema);
+                for (String mode : modes) {
+                    for (String commit : commits) {
+                        results.add(runOne(schema, mode, commit));
+                    }
+                }
+            }
+            printResults(results);
+            return compareWithBaseline(results) ? 0 : 1;
+        } finally {
+            stopDatabase();
+            deleteRecursively(dataDir);
+        }
+    }
+
+    private Result runOne(String schema, String mode, String commit) throws Exception {
+        try (Connection connection = connect() ;
+             Statement stmt = connection.createStatement()) {
+            stmt.execute("TRUNCATE dst");
+            stmt.execute("CHECKPOINT");
+            String lsn = queryString(stmt, "SELECT pg_current_wal_lsn()");
+
+            System.gc();
+            List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP) {
+                    pool.resetPeakUsage();
+                    heapPools.add(pool);
+                }
+            }
+
+            String columns = columnsOf(stmt);
+            List<String> args = new ArrayList<>(Arrays.asList(
+                    "-q", "-d", url(), "--mode", mode, "--commit", commit,
+                    "INSERT INTO dst (" + columns + ") SELECT " + columns + " FROM src"));
+            if (mode.equals("server"))
+                args.addAll(0, Arrays.asList("--key", "id"));
+            long start = System.nanoTime();
+            new ChunkInsert().run(new Arguments(args.toArray(new String[0])));
+            long nanos = Long.max(1, System.nanoTime() - start);
+
+            long peakHeap = 0;
+            for (MemoryPoolMXBean pool : heapPools) {
+                peakHeap += pool.getPeakUsage().getUsed();
+            }
+            long walBytes = Long.parseLong(queryString(stmt, "SELECT pg_wal_lsn_diff(pg_current_wal_lsn(), '" + lsn + "')::BIGINT"));
+            long copied = Long.parseLong(queryString(stmt, "SELECT COUNT(*) FROM dst"));
+            if (copied != rowCount)
+                throw new IllegalStateException(schema + "/" + mode + "/" + commit + " copied " + copied + " of " + rowCount + " rows");
+            return new Result(schema + "." + mode + "." + commit, rowCount * 1e9 / nanos, peakHeap, walBytes, nanos);
+        }
+    }
+
+    private void createSource(String schema) throws SQLException {
+        String select = Stream.of(SCHEMAS)
+                .filter(s -> s[0].equals(schema))
+                .map(s -> s[1])
+                .findAny()
+                .orElseThrow(() -> new IllegalArgumentException("Unknown schema: " + schema));
+        System.out.println("Generating " + rowCount + " rows of " + schema);
+        try (Connection connection = connect() ;
+             Statement stmt = connection.createStatement()) {
+            stmt.execute("DROP TABLE IF EXISTS src");
+            stmt.execute("DROP TABLE IF EXISTS dst");
+            stmt.execute("CREATE TABLE src AS SELECT " + select + " FROM generate_series(1, " + rowCount + ") AS i");
+            stmt.execute("CREATE TABLE dst (LIKE src)");
+            stmt.execute("VACUUM ANALYZE src");
+        }
+    }
+
+    private void printResults(List<Result> results) {
+        System.out.println();
+        System.out.println(String.format(Locale.ROOT, "%-30s %12s %12s %14s %10s", "run", "rows/s", "peak heap MB", "WAL MB", "seconds"));
+        for (Result result : results) {
+            System.out.println(String.format(Locale.ROOT, "%-30s %12.0f %12.1f %14.1f %10.2f",
+                                             result.name, result.rowsPerSecond, result.peakHeap / 1048576.0,
+                                             result.walBytes / 1048576.0, result.nanos / 1e9));
+        }
+        System.out.println();
+    }
+
+    /**
+     * Store results and check them against the baseline
+     *
+     * @param results the runs
+     * @return false if a run is slower than the baseline allows
+     * @throws IOException If files cannot be read or written
+     */
+    private boolean compareWithBaseline(List<Result> results) throws IOException {
+        Properties current = new Properties();
+        for (Result result : results) {
+            current.setProperty(result.name, String.format(Locale.ROOT, "%.0f", result.rowsPerSecond));
+        }
+        Path resultFile = Paths.get("target", "end-to-end-results.properties");
+        Files.createDirectories(resultFile.getParent());
+        store(current, resultFile);
+        if (updateBaseline) {
+            store(current, baselineFile);
+            System.out.println("Baseline written to " + baselineFile);
+            return true;
+        }
+        if (!Files.exists(baselineFile)) {
+            System.out.println("No baseline in " + baselineFile + " (use -Dbenchmark.update-baseline=true to make one)");
+            return true;
+        }
+        Properties baseline = new Properties();
+        try (InputStream is = Files.newInputStream(baselineFile)) {
+            baseline.load(is);
+        }
+        boolean ok = true;
+        for (Result result : results) {
+            String expected = baseline.getProperty(result.name);
+            if (expected == null)
+                continue;
+            double minimum = Double.parseDouble(expected) * (1 - tolerance);
+            if (result.rowsPerSecond < minimum) {
+                System.out.println(String.format(Locale.ROOT, "REGRESSION: %s %.0f rows/s, baseline %s rows/s", result.name, result.rowsPerSecond, expected));
+                ok = false;
+            }
+        }
+        return ok;
+    }
+
+    private static void store(Properties properties, Path file) throws IOException {
+        try (OutputStream os = Files.newOutputStream(file)) {
+            properties.store(os, "chunk-insert end-to-end rows/s");
+        }
+    }
+
+    private void startDatabase() throws IOException, InterruptedException, SQLException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        Path data = dataDir.resolve("data");
+        exec(pgBin + "initdb", "-D", data.toString(), "-U", "postgres", "--auth=trust", "--encoding=UTF8", "--no-locale");
+        exec(pgBin + "pg_ctl", "-D", data.toString(), "-l", dataDir.resolve("postgres.log").toString(), "-w",
+             "-o", "-p " + port + " -k " + dataDir + " -c listen_addresses=localhost", "start");
+        try (Connection connection = DriverManager.getConnection("jdbc:postgresql://localhost:" + port + "/postgres", "postgres", "") ;
+             Statement stmt = connection.createStatement()) {
+            stmt.execute("CREATE DATABASE bench");
+        }
+    }
+
+    private void stopDatabase() {
+        try {
+            Path data = dataDir.resolve("data");
+            if (Files.exists(data.resolve("postmaster.pid")))
+                exec(pgBin + "pg_ctl", "-D", data.toString(), "-m", "fast", "-w", "stop");
+        } catch (IOException | InterruptedException ex) {
+            System.err.println("Cannot stop database: " + ex.getMessage());
+        }
+    }
+
+    private static String findPgBin() {
+        String pgBin = System.getProperty("benchmark.pg-bin", "");
+        if (pgBin.isEmpty()) {
+            try {
+                Process process = new ProcessBuilder("pg_config", "--bindir").redirectErrorStream(true).start();
+                String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8).trim();
+                if (process.waitFor() == 0)
+                    pgBin = output;
+            } catch (IOException | InterruptedException ex) {
+                System.out.println("No pg_config, using initdb/pg_ctl from PATH");
+            }
+        }
+        if (pgBin.isEmpty())
+            return "";
+        return pgBin.endsWith("/") ? pgBin : pgBin + "/";
+    }
+
+    private void exec(String... command) throws IOException, InterruptedException {
+        Process process = new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.appendTo(dataDir.resolve("commands.log").toFile()))
+                .start();
+        if (!process.waitFor(5, TimeUnit.MINUTES) || process.exitValue() != 0)
+            throw new IllegalStateException("Command failed: " + String.join(" ", command) + " see " + dataDir.resolve("commands.log"));
+    }
+
+    private String url() {
+        return "postgres:@localhost:" + port + "/bench";
+    }
+
+    private Connection connect() throws SQLException {
+        return DriverManager.getConnection("jdbc:postgresql://localhost:" + port + "/bench", "postgres", "");
+    }
+
+    private static String columnsOf(Statement stmt) throws SQLException {
+        return queryString(stmt, "SELECT string_agg(attname, ', ' ORDER BY attnum) FROM pg_attribute WHERE attrelid = 'src'::regclass AND attnum > 0 AND NOT attisdropped");
+    }
+
+    private static String queryString(Statement stmt, String sql) throws SQLException {
+        try (ResultSet resultSet = stmt.executeQuery(sql)) {
+            resultSet.next();
+            return resultSet.getString(1);
+        }
+    }
+
+    private static List<String> list(String property, String defaultValue) {
+        return Arrays.asList(System.getProperty(property, defaultValue).split("\\s*,\\s*"));
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    private static final class Result {
+
+        private final String name;
+        private final double rowsPerSecond;
+        private final long peakHeap;
+        private final long walBytes;
+        private final long nanos;
+
+        private Result(String name, double rowsPerSecond, long peakHeap, long walBytes, long nanos) {
+            this.name = name;
+            this.rowsPerSecond = rowsPerSecond;
+            this.peakHeap = peakHeap;
+            this.walBytes = walBytes;
+            this.nanos = nanos;
+        }
+    }
+}
@@ -0,0 +1,342 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of chunk-insert
+ *
+ * chunk-insert is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * chunk-insert is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.inserts;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The per row work of moving values from the select to the target
+ * <p>
+ * Rows are read from an in-memory result set into a chunk, and bound to a
+ * prepared statement that discards them or encoded for binary COPY. All
+ * benchmarks report time per row.
+ * <p>
+ * Run with: mvn -P benchmark verify (add -Djmh.args="..." for JMH options,
+ * default is -prof gc)
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChunkBenchmark {
+
+    private static final int ROWS = 1000;
+
+    /**
+     * Column mix:
+     * <ul>
+     * <li>ints: 4 x int4 and 2 x int8
+     * <li>text: 1 x int4 and 3 x 200 character text
+     * <li>numeric: 1 x int4 and 3 x numeric(12,2)
+     * <li>nulls: 1 x int4, int8, text and numeric where every other is null
+     * <li>wide: 120 columns of int4, int8, float8, bool, text and numeric in
+     * turn
+     * </ul>
+     */
+    @Param({"ints", "text", "numeric", "nulls", "wide"})
+    public String columns;
+
+    private List<ColumnType> types;
+    private Object[][] data;
+    private InMemoryResultSet resultSet;
+    private Chunk chunk;
+    private DiscardingStatement stmt;
+    private ByteArrayOutputStream bytes;
+    private DataOutputStream out;
+
+    @Setup(Level.Trial)
+    public void setup() throws SQLException {
+        types = new ArrayList<>();
+        List<Object[]> rows = new ArrayList<>(ROWS);
+        for (int row = 0 ; row < ROWS ; row++) {
+            rows.add(row(row));
+        }
+        data = rows.toArray(new Object[ROWS][]);
+        resultSet = new InMemoryResultSet(data);
+        chunk = new Chunk(types, ROWS);
+        while (resultSet.next()) {
+            chunk.read(resultSet);
+        }
+        stmt = new DiscardingStatement();
+        bytes = new ByteArrayOutputStream(1024 * 1024);
+        out = new DataOutputStream(bytes);
+    }
+
+    private Object[] row(int row) {
+        String text = "x".repeat(200);
+        BigDecimal numeric = BigDecimal.valueOf(row * 1_000_003L, 2);
+        boolean first = row == 0;
+        switch (columns) {
+            case "ints":
+                if (first)
+                    types.addAll(Arrays.asList(ColumnType.INT4, ColumnType.INT4, ColumnType.INT4, ColumnType.INT4, ColumnType.INT8, ColumnType.INT8));
+                return new Object[] {row, row + 1, row + 2, row + 3, row * 7L, row * 11L};
+            case "text":
+                if (first)
+                    types.addAll(Arrays.asList(ColumnType.INT4, ColumnType.TEXT, ColumnType.TEXT, ColumnType.TEXT));
+                return new Object[] {row, text, text, text};
+            case "numeric":
+                if (first)
+                    types.addAll(Arrays.asList(ColumnType.INT4, ColumnType.NUMERIC, ColumnType.NUMERIC, ColumnType.NUMERIC));
+                return new Object[] {row, numeric, numeric, numeric};
+            case "nulls":
+                if (first)
+                    types.addAll(Arrays.asList(ColumnType.INT4, ColumnType.INT8, ColumnType.TEXT, ColumnType.NUMERIC));
+                if (row % 2 == 0)
+                    return new Object[] {row, null, null, null};
+                return new Object[] {row, row * 7L, text, numeric};
+            case "wide":
+                List<ColumnType> wide = Arrays.asList(ColumnType.INT4, ColumnType.INT8, ColumnType.FLOAT8, ColumnType.BOOL, ColumnType.TEXT, ColumnType.NUMERIC);
+                Object[] values = {row, row * 7L, row * 0.5, row % 3 == 0, "x".repeat(20), numeric};
+                Object[] wideRow = new Object[120];
+                for (int column = 0 ; column < wideRow.length ; column++) {
+                    if (first)
+                        types.add(wide.get(column % wide.size()));
+                    wideRow[column] = values[column % values.length];
+                }
+                return wideRow;
+            default:
+                throw new IllegalArgumentException("Unknown column mix: " + columns);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public Chunk read() throws SQLException {
+        resultSet.reset();
+        Chunk target = new Chunk(types, ROWS);
+        while (resultSet.next()) {
+            target.read(resultSet);
+        }
+        return target;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public long bind() throws SQLException {
+        stmt.sink = 0;
+        for (int row = 0 ; row < ROWS ; row++) {
+            chunk.bind(stmt, 1, row);
+            stmt.addBatch();
+        }
+        return stmt.sink;
+    }
+
+    /**
+     * Binding through the column base class, as it was done before
+     * {@link RowCopier}, for comparison
+     *
+     * @return sum of the bound values
+     * @throws SQLException not thrown
+     */
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public long bindPerColumn() throws SQLException {
+        stmt.sink = 0;
+        int columnCount = chunk.columnCount();
+        for (int row = 0 ; row < ROWS ; row++) {
+            for (int column = 0 ; column < columnCount ; column++) {
+                chunk.column(column).bind(stmt, column + 1, row);
+            }
+            stmt.addBatch();
+        }
+        return stmt.sink;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public int encode() throws IOException {
+        bytes.reset();
+        int columnCount = chunk.columnCount();
+        for (int row = 0 ; row < ROWS ; row++) {
+            out.writeShort(columnCount);
+            for (int column = 0 ; column < columnCount ; column++) {
+                chunk.column(column).encode(out, row);
+            }
+        }
+        return bytes.size();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void readAndBind(Blackhole blackhole) throws SQLException {
+        blackhole.consume(read());
+        blackhole.consume(bind());
+    }
+
+    /**
+     * Result set over rows of objects, values are returned as the type the
+     * getter asks for
+     */
+    private static final class InMemoryResultSet extends ResultSetAdapter {
+
+        private final Object[][] rows;
+        private int row;
+        private boolean wasNull;
+
+        private InMemoryResultSet(Object[][] rows) {
+            this.rows = rows;
+            this.row = -1;
+        }
+
+        private void reset() {
+            row = -1;
+        }
+
+        private Object value(int index) {
+            Object value = rows[row][index - 1];
+            wasNull = value == null;
+            return value;
+        }
+
+        @Override
+        public boolean next() {
+            return ++row < rows.length;
+        }
+
+        @Override
+        public boolean wasNull() {
+            return wasNull;
+        }
+
+        @Override
+        public int getInt(int index) {
+            Object value = value(index);
+            return value == null ? 0 : ((Number) value).intValue();
+        }
+
+        @Override
+        public long getLong(int index) {
+            Object value = value(index);
+            return value == null ? 0 : ((Number) value).longValue();
+        }
+
+        @Override
+        public double getDouble(int index) {
+            Object value = value(index);
+            return value == null ? 0 : ((Number) value).doubleValue();
+        }
+
+        @Override
+        public boolean getBoolean(int index) {
+            Object value = value(index);
+            return value != null && (Boolean) value;
+        }
+
+        @Override
+        public String getString(int index) {
+            return (String) value(index);
+        }
+
+        @Override
+        public BigDecimal getBigDecimal(int index) {
+            return (BigDecimal) value(index);
+        }
+
+        @Override
+        public Object getObject(int index) {
+            return value(index);
+        }
+
+        @Override
+        public <T> T getObject(int index, Class<T> type) {
+            return type.cast(value(index));
+        }
+    }
+
+    /**
+     * Prepared statement that only sums up something from the parameters, so
+     * binding isn't optimized away
+     */
+    private static final class DiscardingStatement extends PreparedStatementAdapter {
+
+        private long sink;
+
+        @Override
+        public void addBatch() {
+            sink++;
+        }
+
+        @Override
+        public void setNull(int parameter, int sqlType) {
+            sink += sqlType;
+        }
+
+        @Override
+        public void setInt(int parameter, int value) {
+            sink += value;
+        }
+
+        @Override
+        public void setLong(int parameter, long value) {
+            sink += value;
+        }
+
+        @Override
+        public void setDouble(int parameter, double value) {
+            sink += (long) value;
+        }
+
+        @Override
+        public void setBoolean(int parameter, boolean value) {
+            sink += value ? 1 : 0;
+        }
+
+        @Override
+        public void setString(int parameter, String value) {
+            sink += value.length();
+        }
+
+        @Override
+        public void setBigDecimal(int parameter, BigDecimal value) {
+            sink += value.scale();
+        }
+
+        @Override
+        public void setObject(int parameter, Object value) {
+            sink += value.hashCode();
+        }
+    }
+}
@@ -0,0 +1,548 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of chunk-insert
+ *
+ * chunk-insert is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * chunk-insert is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.inserts;
+
+import java.io.InputStream;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.net.URL;
+import java.sql.Array;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.NClob;
+import java.sql.ParameterMetaData;
+import java.sql.PreparedStatement;
+import java.sql.Ref;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.RowId;
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.sql.SQLXML;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.Calendar;
+
+/**
+ * PreparedStatement where every method throws UnsupportedOperationException
+ * <p>
+ * Generated from the interface, extend and override what is needed
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+@SuppressWarnings("deprecation")
+abstract class PreparedStatementAdapter implements PreparedStatement {
+
+    @Override
+    public void addBatch() throws SQLException {
+        throw new UnsupportedOperationException("addBatch");
+    }
+
+    @Override
+    public void addBatch(String arg0) throws SQLException {
+        throw new UnsupportedOperationException("addBatch");
+    }
+
+    @Override
+    public void cancel() throws SQLException {
+        throw new UnsupportedOperationException("cancel");
+    }
+
+    @Override
+    public void clearBatch() throws SQLException {
+        throw new UnsupportedOperationException("clearBatch");
+    }
+
+    @Override
+    public void clearParameters() throws SQLException {
+        throw new UnsupportedOperationException("clearParameters");
+    }
+
+    @Override
+    public void clearWarnings() throws SQLException {
+        throw new UnsupportedOperationException("clearWarnings");
+    }
+
+    @Override
+    public void close() throws SQLException {
+        throw new UnsupportedOperationException("close");
+    }
+
+    @Override
+    public void closeOnCompletion() throws SQLException {
+        throw new UnsupportedOperationException("closeOnCompletion");
+    }
+
+    @Override
+    public boolean execute() throws SQLException {
+        throw new UnsupportedOperationException("execute");
+    }
+
+    @Override
+    public boolean execute(String arg0, int[] arg1) throws SQLException {
+        throw new UnsupportedOperationException("execute");
+    }
+
+    @Override
+    public boolean execute(String arg0, String[] arg1) throws SQLException {
+        throw new UnsupportedOperationException("execute");
+    }
+
+    @Override
+    public boolean execute(String arg0, int arg1) throws SQLException {
+        throw new UnsupportedOperationException("execute");
+    }
+
+    @Override
+    public boolean execute(String arg0) throws SQLException {
+        throw new UnsupportedOperationException("execute");
+    }
+
+    @Override
+    public int[] executeBatch() throws SQLException {
+        throw new UnsupportedOperationException("executeBatch");
+    }
+
+    @Override
+    public ResultSet executeQuery() throws SQLException {
+        throw new UnsupportedOperationException("executeQuery");
+    }
+
+    @Override
+    public ResultSet executeQuery(String arg0) throws SQLException {
+        throw new UnsupportedOperationException("executeQuery");
+    }
+
+    @Override
+    public int executeUpdate() throws SQLException {
+        throw new UnsupportedOperationException("executeUpdate");
+    }
+
+    @Override
+    public int executeUpdate(String arg0, int[] arg1) throws SQLException {
+        throw new UnsupportedOperationException("executeUpdate");
+    }
+
+    @Override
+    public int executeUpdate(String arg0, String[] arg1) throws SQLException {
+        throw new UnsupportedOperationException("executeUpdate");
+    }
+
+    @Override
+    public int executeUpdate(String arg0, int arg1) throws SQLException {
+        throw new UnsupportedOperationException("executeUpdate");
+    }
+
+    @Override
+    public int executeUpdate(String arg0) throws SQLException {
+        throw new UnsupportedOperationException("executeUpdate");
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        throw new UnsupportedOperationException("getConnection");
+    }
+
+    @Override
+    public int getFetchDirection() throws SQLException {
+        throw new UnsupportedOperationException("getFetchDirection");
+    }
+
+    @Override
+    public int getFetchSize() throws SQLException {
+        throw new UnsupportedOperationException("getFetchSize");
+    }
+
+    @Override
+    public ResultSet getGeneratedKeys() throws SQLException {
+        throw new UnsupportedOperationException("getGeneratedKeys");
+    }
+
+    @Override
+    public int getMaxFieldSize() throws SQLException {
+        throw new UnsupportedOperationException("getMaxFieldSize");
+    }
+
+    @Override
+    public int getMaxRows() throws SQLException {
+        throw new UnsupportedOperationException("getMaxRows");
+    }
+
+    @Override
+    public ResultSetMetaData getMetaData() throws SQLException {
+        throw new UnsupportedOperationException("getMetaData");
+    }
+
+    @Override
+    public boolean getMoreResults() throws SQLException {
+        throw new UnsupportedOperationException("getMoreResults");
+    }
+
+    @Override
+    public boolean getMoreResults(int arg0) throws SQLException {
+        throw new UnsupportedOperationException("getMoreResults");
+    }
+
+    @Override
+    public ParameterMetaData getParameterMetaData() throws SQLException {
+        throw new UnsupportedOperationException("getParameterMetaData");
+    }
+
+    @Override
+    public int getQueryTimeout() throws SQLException {
+        throw new UnsupportedOperationException("getQueryTimeout");
+    }
+
+    @Override
+    public ResultSet getResultSet() throws SQLException {
+        throw new UnsupportedOperationException("getResultSet");
+    }
+
+    @Override
+    public int getResultSetConcurrency() throws SQLException {
+        throw new UnsupportedOperationException("getResultSetConcurrency");
+    }
+
+    @Override
+    public int getResultSetHoldability() throws SQLException {
+        throw new UnsupportedOperationException("getResultSetHoldability");
+    }
+
+    @Override
+    public int getResultSetType() throws SQLException {
+        throw new UnsupportedOperationException("getResultSetType");
+    }
+
+    @Override
+    public int getUpdateCount() throws SQLException {
+        throw new UnsupportedOperationException("getUpdateCount");
+    }
+
+    @Override
+    public SQLWarning getWarnings() throws SQLException {
+        throw new UnsupportedOperationException("getWarnings");
+    }
+
+    @Override
+    public boolean isCloseOnCompletion() throws SQLException {
+        throw new UnsupportedOperationException("isCloseOnCompletion");
+    }
+
+    @Override
+    public boolean isClosed() throws SQLException {
+        throw new UnsupportedOperationException("isClosed");
+    }
+
+    @Override
+    public boolean isPoolable() throws SQLException {
+        throw new UnsupportedOperationException("isPoolable");
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> arg0) throws SQLException {
+        throw new UnsupportedOperationException("isWrapperFor");
+    }
+
+    @Override
+    public void setArray(int arg0, Array arg1) throws SQLException {
+        throw new UnsupportedOperationException("setArray");
+    }
+
+    @Override
+    public void setAsciiStream(int arg0, InputStream arg1, int arg2) throws SQLException {
+        throw new UnsupportedOperationException("setAsciiStream");
+    }
+
+    @Override
+    public void setAsciiStream(int arg0, InputStream arg1, long arg2) throws SQLException {
+        throw new UnsupportedOperationException("setAsciiStream");
+    }
+
+    @Override
+    public void setAsciiStream(int arg0, InputStream arg1) throws SQLException {
+        throw new UnsupportedOperationException("setAsciiStream");
+    }
+
+    @Override
+    public void setBigDecimal(int arg0, BigDecimal arg1) throws SQLException {
+        throw new UnsupportedOperationException("setBigDecimal");
+    }
+
+    @Override
+    public void setBinaryStream(int arg0, InputStream arg1, int arg2) throws SQLException {
+        throw new UnsupportedOperationException("setBinaryStream");
+    }
+
+    @Override
+    public void setBinaryStream(int arg0, InputStream arg1, long arg2) throws SQLException {
+        throw new UnsupportedOperationException("setBinaryStream");
+    }
+
+    @Override
+    public void setBinaryStream(int arg0, InputStream arg1) throws SQLException {
+        throw new UnsupportedOperationException("setBinaryStream");
+    }
+
+    @Override
+    public void setBlob(int arg0, InputStream arg1, long arg2) throws SQLException {
+        throw new UnsupportedOperationException("setBlob");
+    }
+
+    @Override
+    public void setBlob(int arg0, InputStream arg1) throws SQLException {
+        throw new UnsupportedOperationException("setBlob");
+    }
+
+    @Override
+    public void setBlob(int arg0, Blob arg1) throws SQLException {
+        throw new UnsupportedOperationException("setBlob");
+    }
+
+    @Override
+    public void setBoolean(int arg0, boolean arg1) throws SQLException {
+        throw new UnsupportedOperationException("setBoolean");
+    }
+
+    @Override
+    public void setByte(int arg0, byte arg1) throws SQLException {
+        throw new UnsupportedOperationException("setByte");
+    }
+
+    @Override
+    public void setBytes(int arg0, byte[] arg1) throws SQLException {
+        throw new UnsupportedOperationException("setBytes");
+    }
+
+    @Override
+    public void setCharacterStream(int arg0, Reader arg1, int arg2) throws SQLException {
+        throw new UnsupportedOperationException("setCharacterStream");
+    }
+
+    @Override
+    public void setCharacterStream(int arg0, Reader arg1, long arg2) throws SQLException {
+        throw new UnsupportedOperationException("setCharacterStream");
+    }
+
+    @Override
+    public void setCharacterStream(int arg0, Reader arg1) throws SQLException {
+        throw new UnsupportedOperationException("setCharacterStream");
+    }
+
+    @Override
+    public void setClob(int arg0, Reader arg1, long arg2) throws SQLException {
+        throw new UnsupportedOperationException("setClob");
+    }
+
+    @Override
+    public void setClob(int arg0, Reader arg1) throws SQLException {
+        throw new UnsupportedOperationException("setClob");
+    }
+
+    @Override
+    public void setClob(int arg0, Clob arg1) throws SQLException {
+        throw new UnsupportedOperationException("setClob");
+    }
+
+    @Override
+    public void setCursorName(String arg0) throws SQLException {
+        throw new UnsupportedOperationException("setCursorName");
+    }
+
+    @Override
+    public void setDate(int arg0, Date arg1, Calendar arg2) throws SQLException {
+        throw new UnsupportedOperationException("setDate");
+    }
+
+    @Override
+    public void setDate(int arg0, Date arg1) throws SQLException {
+        throw new UnsupportedOperationException("setDate");
+    }
+
+    @Override
+    public void setDouble(int arg0, double arg1) throws SQLException {
+        throw new UnsupportedOperationException("setDouble");
+    }
+
+    @Override
+    public void setEscapeProcessing(boolean arg0) throws SQLException {
+        throw new UnsupportedOperationException("setEscapeProcessing");
+    }
+
+    @Override
+    public void setFetchDirection(int arg0) throws SQLException {
+        throw new UnsupportedOperationException("setFetchDirection");
+    }
+
+    @Override
+    public void setFetchSize(int arg0) throws SQLException {
+        throw new UnsupportedOperationException("setFetchSize");
+    }
+
+    @Override
+    public void setFloat(int arg0, float arg1) throws SQLException {
+        throw new UnsupportedOperationException("setFloat");
+    }
+
+    @Override
+    public void setInt(int arg0, int arg1) throws SQLException {
+        throw new UnsupportedOperationException("setInt");
+    }
+
+    @Override
+    public void setLong(int arg0, long arg1) throws SQLException {
+        throw new UnsupportedOperationException("setLong");
+    }
+
+    @Override
+    public void setMaxFieldSize(int arg0) throws SQLException {
+        throw new UnsupportedOperationException("setMaxFieldSize");
+    }
+
+    @Override
+    public void setMaxRows(int arg0) throws SQLException {
+        throw new UnsupportedOperationException("setMaxRows");
+    }
+
+    @Override
+    public void setNCharacterStream(int arg0, Reader arg1, long arg2) throws SQLException {
+        throw new UnsupportedOperationException("setNCharacterStream");
+    }
+
+    @Override
+    public void setNCharacterStream(int arg0, Reader arg1) throws SQLException {
+        throw new UnsupportedOperationException("setNCharacterStream");
+    }
+
+    @Override
+    public void setNClob(int arg0, Reader arg1, long arg2) throws SQLException {
+        throw new UnsupportedOperationException("setNClob");
+    }
+
+    @Override
+    public void setNClob(int arg0, Reader arg1) throws SQLException {
+        throw new UnsupportedOperationException("setNClob");
+    }
+
+    @Override
+    public void setNClob(int arg0, NClob arg1) throws SQLException {
+        throw new UnsupportedOperationException("setNClob");
+    }
+
+    @Override
+    public void setNString(int arg0, String arg1) throws SQLException {
+        throw new UnsupportedOperationException("setNString");
+    }
+
+    @Override
+    public void setNull(int arg0, int arg1, String arg2) throws SQLException {
+        throw new UnsupportedOperationException("setNull");
+    }
+
+    @Override
+    public void setNull(int arg0, int arg1) throws SQLException {
+        throw new UnsupportedOperationException("setNull");
+    }
+
+    @Override
+    public void setObject(int arg0, Object arg1, int arg2, int arg3) throws SQLException {
+        throw new UnsupportedOperationException("setObject");
+    }
+
+    @Override
+    public void setObject(int arg0, Object arg1, int arg2) throws SQLException {
+        throw new UnsupportedOperationException("setObject");
+    }
+
+    @Override
+    public void setObject(int arg0, Object arg1) throws SQLException {
+        throw new UnsupportedOperationException("setObject");
+    }
+
+    @Override
+    public void setPoolable(boolean arg0) throws SQLException {
+        throw new UnsupportedOperationException("setPoolable");
+    }
+
+    @Override
+    public void setQueryTimeout(int arg0) throws SQLException {
+        throw new UnsupportedOperationException("setQueryTimeout");
+    }
+
+    @Override
+    public void setRef(int arg0, Ref arg1) throws SQLException {
+        throw new UnsupportedOperationException("setRef");
+    }
+
+    @Override
+    public void setRowId(int arg0, RowId arg1) throws SQLException {
+        throw new UnsupportedOperationException("setRowId");
+    }
+
+    @Override
+    public void setSQLXML(int arg0, SQLXML arg1) throws SQLException {
+        throw new UnsupportedOperationException("setSQLXML");
+    }
+
+    @Override
+    public void setShort(int arg0, short arg1) throws SQLException {
+        throw new UnsupportedOperationException("setShort");
+    }
+
+    @Override
+    public void setString(int arg0, String arg1) throws SQLException {
+        throw new UnsupportedOperationException("setString");
+    }
+
+    @Override
+    public void setTime(int arg0, Time arg1, Calendar arg2) throws SQLException {
+        throw new UnsupportedOperationException("setTime");
+    }
+
+    @Override
+    public void setTime(int arg0, Time arg1) throws SQLException {
+        throw new UnsupportedOperationException("setTime");
+    }
+
+    @Override
+    public void setTimestamp(int arg0, Timestamp arg1, Calendar arg2) throws SQLException {
+        throw new UnsupportedOperationException("setTimestamp");
+    }
+
+    @Override
+    public void setTimestamp(int arg0, Timestamp arg1) throws SQLException {
+        throw new UnsupportedOperationException("setTimestamp");
+    }
+
+    @Override
+    public void setURL(int arg0, URL arg1) throws SQLException {
+        throw new UnsupportedOperationException("setURL");
+    }
+
+    @Override
+    public void setUnicodeStream(int arg0, InputStream arg1, int arg2) throws SQLException {
+        throw new UnsupportedOperationException("setUnicodeStream");
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> arg0) throws SQLException {
+        throw new UnsupportedOperationException("unwrap");
+    }
+}
@@ -0,0 +1,1007 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of chunk-insert
+ *
+ * chunk-insert is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * chunk-insert is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.inserts;
+
+import java.io.InputStream;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.net.URL;
+import java.sql.Array;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.Date;
+import java.sql.NClob;
+import java.sql.Ref;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.RowId;
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.sql.SQLXML;
+import java.sql.Statement;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.Calendar;
+import java.util.Map;
+
+/**
+ * ResultSet where every method throws UnsupportedOperationException
+ * <p>
+ * Generated from the interface, extend and override what is needed
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+@SuppressWarnings("deprecation")
+abstract class ResultSetAdapter implements ResultSet {
+
+    @Override
+    public boolean absolute(int arg0) throws SQLException {
+        throw new UnsupportedOperationException("absolute");
+    }
+
+    @Override
+    public void afterLast() throws SQLException {
+        throw new UnsupportedOperationException("afterLast");
+    }
+
+    @Override
+    public void beforeFirst() throws SQLException {
+        throw new UnsupportedOperationException("beforeFirst");
+    }
+
+    @Override
+    public void cancelRowUpdates() throws SQLException {
+        throw new UnsupportedOperationException("cancelRowUpdates");
+    }
+
+    @Override
+    public void clearWarnings() throws SQLException {
+        throw new UnsupportedOperationException("clearWarnings");
+    }
+
+    @Override
+    public void close() throws SQLException {
+        throw new UnsupportedOperationException("close");
+    }
+
+    @Override
+    public void deleteRow() throws SQLException {
+        throw new UnsupportedOperationException("deleteRow");
+    }
+
+    @Override
+    public int findColumn(String arg0) throws SQLException {
+        throw new UnsupportedOperationException("findColumn");
+    }
+
+    @Override
+    public boolean first() throws SQLException {
+        throw new UnsupportedOperationException("first");
+    }
+
+    @Override
+    public Array getArray(String arg0) throws SQLException {
+        throw new UnsupportedOperationException("getArray");
+    }
+
+    @Override
+    public Array getArray(int arg0) throws SQLException {
+        throw new UnsupportedOperationException("getArray");
+    }
+
+    @Override
+    public InputStream getAsciiStream(String arg0) throws SQLException {
+        throw new UnsupportedOperationException("getAsciiStream");
+    }
+
+    @Override
+    public InputStream getAsciiStream(int arg0) throws SQLException {
+        throw new UnsupportedOperationException("getAsciiStream");
+    }
+
+    @Override
+    public BigDecimal getBigDecimal(String arg0, int arg1) throws SQLException {
+        throw new UnsupportedOperationException("getBigDecimal");
+    }
+
+    @Override
+    public BigDecimal getBigDecimal(String arg0) throws SQLException {
+        throw new UnsupportedOperationException("getBigDecimal");
+    }
+
+    @Override
+    public BigDecimal getBigDecimal(int arg0, int arg1) throws SQLException {
+        throw new UnsupportedOperationException("getBigDecimal");
+    }
+
+    @Override
+    public BigDecimal getBigDecimal(int arg0) throws SQLException {
+        throw new UnsupportedOperationException("getBigDecimal");
+    }
+
+    @Override
+    public InputStream getBinaryStream(String arg0) throws SQLException {
+        throw new UnsupportedOperationException("getBinaryStream");
+    }
+
+    @Override
+    public InputStream getBinaryStream(int arg0) throws SQLException {
+        throw new UnsupportedOperationException("getBinaryStream");
+    }
+
+    @Override
+    public Blob getBlob(String arg0) throws SQLException {
+        throw new UnsupportedOperationException("getBlob");
+    }
+
+    @Override
+    public Blob getBlob(int arg0) throws SQLException {
+        throw new UnsupportedOperationException("getBlob");
+    }
+
+    @Override
+    public boolean getBoolean(String arg0) throws SQLException {
+        throw new UnsupportedOperationException("getBoolean");
+    }
+
+    @Override
+    public boolean getBoolean(int arg0) throws SQLException {
+        throw new UnsupportedOperationException("getBoolean");
+    }
+
+    @Override
+    public byte getByte(String arg0) throws SQLException {
+        throw new UnsupportedOperationException("getByte");
+    }
+
+    @Override
+    public byte getByte(int arg0) throws SQLException {
+        throw new UnsupportedOperationException("getByte");
+    }
+
+    @Override
+    public byte[] getBytes(String arg0) throws SQLException {
+        throw new UnsupportedOperationException("getBytes");
+    }
+
+    @Override
+    public byte[] getBytes(int arg0) throws SQLException {
+        throw new UnsupportedOperationException("getBytes");
+    }
+
+    @Override
+    public Reader getCharacterStream(String arg0) throws SQLException {
+        throw new UnsupportedOperationException("getCharacterStream");
+    }
+
+    @Override
+    public Reader getCharacterStream(int arg0) throws SQLException {
+        throw new UnsupportedOperationException("getCharacterStream");
+    }
+
+    @Override
+    public Clob getClob(String arg0) throws SQLException {
+        throw new UnsupportedOperationException("getClob");
+    }
+
+    @Override
+    public Clob getClob(int arg0) throws SQLException {
+        throw new UnsupportedOperationException("getClob");
+    }
+
+    @Override
+    public int getConcurrency() throws SQLException {
+        throw new UnsupportedOperationException("getConcurrency");
+    }
+
+    @Override
+    public String getCursorName() throws SQLException {
+        throw new UnsupportedOperationException("getCursorName");
+    }
+
+    @Override
+    public Date getDate(String arg0, Calendar arg1) throws SQLException {
+        throw new UnsupportedOperationException("getDate");
+    }
+
+    @Override
+    public Date getDate(String arg0) throws SQLException {
+        throw new UnsupportedOperationException("getDate");
+    }
+
+    @Override
+    public Date getDate(int arg0, Calendar arg1) throws SQLException {
+        throw new UnsupportedOperationException("getDate");
+    }
+
+    @Override
+    public Date getDate(int arg0) throws SQLException {
+        throw new UnsupportedOperationException("getDate");
+    }
+
+    @Override
+    public double getDouble(String arg0) throws SQLException {
+        throw new UnsupportedOperationException("getDouble");
+    }
+
+    @Override
+    public double getDouble(int arg0) throws SQLException {
+        throw new UnsupportedOperationException("getDouble");
+    }
+
+    @Override
+    public int getFetchDirection() throws SQLException {
+        throw new UnsupportedOperationException("getFetchDirection");
+    }
+
+    @Override
+    public int getFetchSize() throws SQLException {
+        throw new UnsupportedOperationException("getFetchSize");
+    }
+
+    @Override
+    public float getFloat(String arg0) throws SQLException {
+        throw new UnsupportedOperationException("getFloat");
+    }
+
+    @Override
+    public float getFloat(int arg0) throws SQLException {
+        throw new UnsupportedOperationException("getFloat");
+    }
+
+    @Override
+    public int getHoldability() throws SQLException {
+        throw new UnsupportedOperationException("getHoldability");
+    }
+
+    @Override
+    public int getInt(String arg0) throws SQLException {
+        throw new UnsupportedOperationException("getInt");
+    }
+
+    @Override
+    public int getInt(int arg0) throws SQLException {
+        throw new UnsupportedOperationException("getInt");
+    }
+
+    @Override
+    public long getLong(String arg0) throws SQLException {
+        throw new UnsupportedOperationException("getLong");
+    }
+
+    @Override
+    public long getLong(int arg0) throws SQLException {
+        throw new UnsupportedOperationException("getLong");
+    }
+
+    @Override
+    public ResultSetMetaData getMetaData() throws SQLException {
+        throw new UnsupportedOperationException("getMetaData");
+    }
+
+    @Override
+    public Reader getNCharacterStream(String arg0) throws SQLException {
+        throw new UnsupportedOperationException("getNCharacterStream");
+    }
+
+    @Override
+    public Reader getNCharacterStream(int arg0) throws SQLException {
+        throw new UnsupportedOperationException("getNCharacterStream");
+    }
+
+    @Override
+    public NClob getNClob(String arg0) throws SQLException {
+        throw new UnsupportedOperationException("getNClob");
+    }
+
+    @Override
+    public NClob getNClob(int arg0) throws SQLException {
+        throw new UnsupportedOperationException("getNClob");
+    }
+
+    @Override
+    public String getNString(String arg0) throws SQLException {
+        throw new UnsupportedOperationException("getNString");
+    }
+
+    @Override
+    public String getNString(int arg0) throws SQLException {
+        throw new UnsupportedOperationException("getNString");
+    }
+
+    @Override
+    public <T> T getObject(String arg0, Class<T> arg1) throws SQLException {
+        throw new UnsupportedOperationException("getObject");
+    }
+
+    @Override
+    public Object getObject(String arg0, Map<String, Class<?>> arg1) throws SQLException {
+        throw new UnsupportedOperationException("getObject");
+    }
+
+    @Override
+    public Object getObject(String arg0) throws SQLException {
+        throw new UnsupportedOperationException("getObject");
+    }
+
+    @Override
+    public <T> T getObject(int arg0, Class<T> arg1) throws SQLException {
+        throw new UnsupportedOperationException("getObject");
+    }
+
+    @Override
+    public Object getObject(int arg0, Map<String, Class<?>> arg1) throws SQLException {
+        throw new UnsupportedOperationException("getObject");
+    }
+
+    @Override
+    public Object getObject(int arg0) throws SQLException {
+        throw new UnsupportedOperationException("getObject");
+    }
+
+    @Override
+    public Ref getRef(String arg0) throws SQLException {
+        throw new UnsupportedOperationException("getRef");
+    }
+
+    @Override
+    public Ref getRef(int arg0) throws SQLException {
+        throw new UnsupportedOperationException("getRef");
+    }
+
+    @Override
+    public int getRow() throws SQLException {
+        throw new UnsupportedOperationException("getRow");
+    }
+
+    @Override
+    public RowId getRowId(String arg0) throws SQLException {
+        throw new UnsupportedOperationException("getRowId");
+    }
+
+    @Override
+    public RowId getRowId(int arg0) throws SQLException {
+        throw new UnsupportedOperationException("getRowId");
+    }
+
+    @Override
+    public SQLXML getSQLXML(String arg0) throws SQLException {
+        throw new UnsupportedOperationException("getSQLXML");
+    }
+
+    @Override
+    public SQLXML getSQLXML(int arg0) throws SQLException {
+        throw new UnsupportedOperationException("getSQLXML");
+    }
+
+    @Override
+    public short getShort(String arg0) throws SQLException {
+        throw new UnsupportedOperationException("getShort");
+    }
+
+    @Override
+    public short getShort(int arg0) throws SQLException {
+        throw new UnsupportedOperationException("getShort");
+    }
+
+    @Override
+    public Statement getStatement() throws SQLException {
+        throw new UnsupportedOperationException("getStatement");
+    }
+
+    @Override
+    public String getString(String arg0) throws SQLException {
+        throw new UnsupportedOperationException("getString");
+    }
+
+    @Override
+    public String getString(int arg0) throws SQLException {
+        throw new UnsupportedOperationException("getString");
+    }
+
+    @Override
+    public Time getTime(String arg0, Calendar arg1) throws SQLException {
+        throw new UnsupportedOperationException("getTime");
+    }
+
+    @Override
+    public Time getTime(String arg0) throws SQLException {
+        throw new UnsupportedOperationException("getTime");
+    }
+
+    @Override
+    public Time getTime(int arg0, Calendar arg1) throws SQLException {
+        throw new UnsupportedOperationException("getTime");
+    }
+
+    @Override
+    public Time getTime(int arg0) throws SQLException {
+        throw new UnsupportedOperationException("getTime");
+    }
+
+    @Override
+    public Timestamp getTimestamp(String arg0, Calendar arg1) throws SQLException {
+        throw new UnsupportedOperationException("getTimestamp");
+    }
+
+    @Override
+    public Timestamp getTimestamp(String arg0) throws SQLException {
+        throw new UnsupportedOperationException("getTimestamp");
+    }
+
+    @Override
+    public Timestamp getTimestamp(int arg0, Calendar arg1) throws SQLException {
+        throw new UnsupportedOperationException("getTimestamp");
+    }
+
+    @Override
+    public Timestamp getTimestamp(int arg0) throws SQLException {
+        throw new UnsupportedOperationException("getTimestamp");
+    }
+
+    @Override
+    public int getType() throws SQLException {
+        throw new UnsupportedOperationException("getType");
+    }
+
+    @Override
+    public URL getURL(String arg0) throws SQLException {
+        throw new UnsupportedOperationException("getURL");
+    }
+
+    @Override
+    public URL getURL(int arg0) throws SQLException {
+        throw new UnsupportedOperationException("getURL");
+    }
+
+    @Override
+    public InputStream getUnicodeStream(String arg0) throws SQLException {
+        throw new UnsupportedOperationException("getUnicodeStream");
+    }
+
+    @Override
+    public InputStream getUnicodeStream(int arg0) throws SQLException {
+        throw new UnsupportedOperationException("getUnicodeStream");
+    }
+
+    @Override
+    public SQLWarning getWarnings() throws SQLException {
+        throw new UnsupportedOperationException("getWarnings");
+    }
+
+    @Override
+    public void insertRow() throws SQLException {
+        throw new UnsupportedOperationException("insertRow");
+    }
+
+    @Override
+    public boolean isAfterLast() throws SQLException {
+        throw new UnsupportedOperationException("isAfterLast");
+    }
+
+    @Override
+    public boolean isBeforeFirst() throws SQLException {
+        throw new UnsupportedOperationException("isBeforeFirst");
+    }
+
+    @Override
+    public boolean isClosed() throws SQLException {
+        throw new UnsupportedOperationException("isClosed");
+    }
+
+    @Override
+    public boolean isFirst() throws SQLException {
+        throw new UnsupportedOperationException("isFirst");
+    }
+
+    @Override
+    public boolean isLast() throws SQLException {
+        throw new UnsupportedOperationException("isLast");
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> arg0) throws SQLException {
+        throw new UnsupportedOperationException("isWrapperFor");
+    }
+
+    @Override
+    public boolean last() throws SQLException {
+        throw new UnsupportedOperationException("last");
+    }
+
+    @Override
+    public void moveToCurrentRow() throws SQLException {
+        throw new UnsupportedOperationException("moveToCurrentRow");
+    }
+
+    @Override
+    public void moveToInsertRow() throws SQLException {
+        throw new UnsupportedOperationException("moveToInsertRow");
+    }
+
+    @Override
+    public boolean next() throws SQLException {
+        throw new UnsupportedOperationException("next");
+    }
+
+    @Override
+    public boolean previous() throws SQLException {
+        throw new UnsupportedOperationException("previous");
+    }
+
+    @Override
+    public void refreshRow() throws SQLException {
+        throw new UnsupportedOperationException("refreshRow");
+    }
+
+    @Override
+    public boolean relative(int arg0) throws SQLException {
+        throw new UnsupportedOperationException("relative");
+    }
+
+    @Override
+    public boolean rowDeleted() throws SQLException {
+        throw new UnsupportedOperationException("rowDeleted");
+    }
+
+    @Override
+    public boolean rowInserted() throws SQLException {
+        throw new UnsupportedOperationException("rowInserted");
+    }
+
+    @Override
+    public boolean rowUpdated() throws SQLException {
+        throw new UnsupportedOperationException("rowUpdated");
+    }
+
+    @Override
+    public void setFetchDirection(int arg0) throws SQLException {
+        throw new UnsupportedOperationException("setFetchDirection");
+    }
+
+    @Override
+    public void setFetchSize(int arg0) throws SQLException {
+        throw new UnsupportedOperationException("setFetchSize");
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> arg0) throws SQLException {
+        throw new UnsupportedOperationException("unwrap");
+    }
+
+    @Override
+    public void updateArray(String arg0, Array arg1) throws SQLException {
+        throw new UnsupportedOperationException("updateArray");
+    }
+
+    @Override
+    public void updateArray(int arg0, Array arg1) throws SQLException {
+        throw new UnsupportedOperationException("updateArray");
+    }
+
+    @Override
+    public void updateAsciiStream(String arg0, InputStream arg1, int arg2) throws SQLException {
+        throw new UnsupportedOperationException("updateAsciiStream");
+    }
+
+    @Override
+    public void updateAsciiStream(String arg0, InputStream arg1, long arg2) throws SQLException {
+        throw new UnsupportedOperationException("updateAsciiStream");
+    }
+
+    @Override
+    public void updateAsciiStream(String arg0, InputStream arg1) throws SQLException {
+        throw new UnsupportedOperationException("updateAsciiStream");
+    }
+
+    @Override
+    public void updateAsciiStream(int arg0, InputStream arg1, int arg2) throws SQLException {
+        throw new UnsupportedOperationException("updateAsciiStream");
+    }
+
+    @Override
+    public void updateAsciiStream(int arg0, InputStream arg1, long arg2) throws SQLException {
+        throw new UnsupportedOperationException("updateAsciiStream");
+    }
+
+    @Override
+    public void updateAsciiStream(int arg0, InputStream arg1) throws SQLException {
+        throw new UnsupportedOperationException("updateAsciiStream");
+    }
+
+    @Override
+    public void updateBigDecimal(String arg0, BigDecimal arg1) throws SQLException {
+        throw new UnsupportedOperationException("updateBigDecimal");
+    }
+
+    @Override
+    public void updateBigDecimal(int arg0, BigDecimal arg1) throws SQLException {
+        throw new UnsupportedOperationException("updateBigDecimal");
+    }
+
+    @Override
+    public void updateBinaryStream(String arg0, InputStream arg1, int arg2) throws SQLException {
+        throw new UnsupportedOperationException("updateBinaryStream");
+    }
+
+    @Override
+    public void updateBinaryStream(String arg0, InputStream arg1, long arg2) throws SQLException {
+        throw new UnsupportedOperationException("updateBinaryStream");
+    }
+
+    @Override
+    public void updateBinaryStream(String arg0, InputStream arg1) throws SQLException {
+        throw new UnsupportedOperationException("updateBinaryStream");
+    }
+
+    @Override
+    public void updateBinaryStream(int arg0, InputStream arg1, int arg2) throws SQLException {
+        throw new UnsupportedOperationException("updateBinaryStream");
+    }
+
+    @Override
+    public void updateBinaryStream(int arg0, InputStream arg1, long arg2) throws SQLException {
+        throw new UnsupportedOperationException("updateBinaryStream");
+    }
+
+    @Override
+    public void updateBinaryStream(int arg0, InputStream arg1) throws SQLException {
+        throw new UnsupportedOperationException("updateBinaryStream");
+    }
+
+    @Override
+    public void updateBlob(String arg0, InputStream arg1, long arg2) throws SQLException {
+        throw new UnsupportedOperationException("updateBlob");
+    }
+
+    @Override
+    public void updateBlob(String arg0, InputStream arg1) throws SQLException {
+        throw new UnsupportedOperationException("updateBlob");
+    }
+
+    @Override
+    public void updateBlob(String arg0, Blob arg1) throws SQLException {
+        throw new UnsupportedOperationException("updateBlob");
+    }
+
+    @Override
+    public void updateBlob(int arg0, InputStream arg1, long arg2) throws SQLException {
+        throw new UnsupportedOperationException("updateBlob");
+    }
+
+    @Override
+    public void updateBlob(int arg0, InputStream arg1) throws SQLException {
+        throw new UnsupportedOperationException("updateBlob");
+    }
+
+    @Override
+    public void updateBlob(int arg0, Blob arg1) throws SQLException {
+        throw new UnsupportedOperationException("updateBlob");
+    }
+
+    @Override
+    public void updateBoolean(String arg0, boolean arg1) throws SQLException {
+        throw new UnsupportedOperationException("updateBoolean");
+    }
+
+    @Override
+    public void updateBoolean(int arg0, boolean arg1) throws SQLException {
+        throw new UnsupportedOperationException("updateBoolean");
+    }
+
+    @Override
+    public void updateByte(String arg0, byte arg1) throws SQLException {
+        throw new UnsupportedOperationException("updateByte");
+    }
+
+    @Override
+    public void updateByte(int arg0, byte arg1) throws SQLException {
+        throw new UnsupportedOperationException("updateByte");
+    }
+
+    @Override
+    public void updateBytes(String arg0, byte[] arg1) throws SQLException {
+        throw new UnsupportedOperationException("updateBytes");
+    }
+
+    @Override
+    public void updateBytes(int arg0, byte[] arg1) throws SQLException {
+        throw new UnsupportedOperationException("updateBytes");
+    }
+
+    @Override
+    public void updateCharacterStream(String arg0, Reader arg1, int arg2) throws SQLException {
+        throw new UnsupportedOperationException("updateCharacterStream");
+    }
+
+    @Override
+    public void updateCharacterStream(String arg0, Reader arg1, long arg2) throws SQLException {
+        throw new UnsupportedOperationException("updateCharacterStream");
+    }
+
+    @Override
+    public void updateCharacterStream(String arg0, Reader arg1) throws SQLException {
+        throw new UnsupportedOperationException("updateCharacterStream");
+    }
+
+    @Override
+    public void updateCharacterStream(int arg0, Reader arg1, int arg2) throws SQLException {
+        throw new UnsupportedOperationException("updateCharacterStream");
+    }
+
+    @Override
+    public void updateCharacterStream(int arg0, Reader arg1, long arg2) throws SQLException {
+        throw new UnsupportedOperationException("updateCharacterStream");
+    }
+
+    @Override
+    public void updateCharacterStream(int arg0, Reader arg1) throws SQLException {
+        throw new UnsupportedOperationException("updateCharacterStream");
+    }
+
+    @Override
+    public void updateClob(String arg0, Reader arg1, long arg2) throws SQLException {
+        throw new UnsupportedOperationException("updateClob");
+    }
+
+    @Override
+    public void updateClob(String arg0, Reader arg1) throws SQLException {
+        throw new UnsupportedOperationException("updateClob");
+    }
+
+    @Override
+    public void updateClob(String arg0, Clob arg1) throws SQLException {
+        throw new UnsupportedOperationException("updateClob");
+    }
+
+    @Override
+    public void updateClob(int arg0, Reader arg1, long arg2) throws SQLException {
+        throw new UnsupportedOperationException("updateClob");
+    }
+
+    @Override
+    public void updateClob(int arg0, Reader arg1) throws SQLException {
+        throw new UnsupportedOperationException("updateClob");
+    }
+
+    @Override
+    public void updateClob(int arg0, Clob arg1) throws SQLException {
+        throw new UnsupportedOperationException("updateClob");
+    }
+
+    @Override
+    public void updateDate(String arg0, Date arg1) throws SQLException {
+        throw new UnsupportedOperationException("updateDate");
+    }
+
+    @Override
+    public void updateDate(int arg0, Date arg1) throws SQLException {
+        throw new UnsupportedOperationException("updateDate");
+    }
+
+    @Override
+    public void updateDouble(String arg0, double arg1) throws SQLException {
+        throw new UnsupportedOperationException("updateDouble");
+    }
+
+    @Override
+    public void updateDouble(int arg0, double arg1) throws SQLException {
+        throw new UnsupportedOperationException("updateDouble");
+    }
+
+    @Override
+    public void updateFloat(String arg0, float arg1) throws SQLException {
+        throw new UnsupportedOperationException("updateFloat");
+    }
+
+    @Override
+    public void updateFloat(int arg0, float arg1) throws SQLException {
+        throw new UnsupportedOperationException("updateFloat");
+    }
+
+    @Override
+    public void updateInt(String arg0, int arg1) throws SQLException {
+        throw new UnsupportedOperationException("updateInt");
+    }
+
+    @Override
+    public void updateInt(int arg0, int arg1) throws SQLException {
+        throw new UnsupportedOperationException("updateInt");
+    }
+
+    @Override
+    public void updateLong(String arg0, long arg1) throws SQLException {
+        throw new UnsupportedOperationException("updateLong");
+    }
+
+    @Override
+    public void updateLong(int arg0, long arg1) throws SQLException {
+        throw new UnsupportedOperationException("updateLong");
+    }
+
+    @Override
+    public void updateNCharacterStream(String arg0, Reader arg1, long arg2) throws SQLException {
+        throw new UnsupportedOperationException("updateNCharacterStream");
+    }
+
+    @Override
+    public void updateNCharacterStream(String arg0, Reader arg1) throws SQLException {
+        throw new UnsupportedOperationException("updateNCharacterStream");
+    }
+
+    @Override
+    public void updateNCharacterStream(int arg0, Reader arg1, long arg2) throws SQLException {
+        throw new UnsupportedOperationException("updateNCharacterStream");
+    }
+
+    @Override
+    public void updateNCharacterStream(int arg0, Reader arg1) throws SQLException {
+        throw new UnsupportedOperationException("updateNCharacterStream");
+    }
+
+    @Override
+    public void updateNClob(String arg0, Reader arg1, long arg2) throws SQLException {
+        throw new UnsupportedOperationException("updateNClob");
+    }
+
+    @Override
+    public void updateNClob(String arg0, Reader arg1) throws SQLException {
+        throw new UnsupportedOperationException("updateNClob");
+    }
+
+    @Override
+    public void updateNClob(String arg0, NClob arg1) throws SQLException {
+        throw new UnsupportedOperationException("updateNClob");
+    }
+
+    @Override
+    public void updateNClob(int arg0, Reader arg1, long arg2) throws SQLException {
+        throw new UnsupportedOperationException("updateNClob");
+    }
+
+    @Override
+    public void updateNClob(int arg0, Reader arg1) throws SQLException {
+        throw new UnsupportedOperationException("updateNClob");
+    }
+
+    @Override
+    public void updateNClob(int arg0, NClob arg1) throws SQLException {
+        throw new UnsupportedOperationException("updateNClob");
+    }
+
+    @Override
+    public void updateNString(String arg0, String arg1) throws SQLException {
+        throw new UnsupportedOperationException("updateNString");
+    }
+
+    @Override
+    public void updateNString(int arg0, String arg1) throws SQLException {
+        throw new UnsupportedOperationException("updateNString");
+    }
+
+    @Override
+    public void updateNull(String arg0) throws SQLException {
+        throw new UnsupportedOperationException("updateNull");
+    }
+
+    @Override
+    public void updateNull(int arg0) throws SQLException {
+        throw new UnsupportedOperationException("updateNull");
+    }
+
+    @Override
+    public void updateObject(String arg0, Object arg1, int arg2) throws SQLException {
+        throw new UnsupportedOperationException("updateObject");
+    }
+
+    @Override
+    public void updateObject(String arg0, Object arg1) throws SQLException {
+        throw new UnsupportedOperationException("updateObject");
+    }
+
+    @Override
+    public void updateObject(int arg0, Object arg1, int arg2) throws SQLException {
+        throw new UnsupportedOperationException("updateObject");
+    }
+
+    @Override
+    public void updateObject(int arg0, Object arg1) throws SQLException {
+        throw new UnsupportedOperationException("updateObject");
+    }
+
+    @Override
+    public void updateRef(String arg0, Ref arg1) throws SQLException {
+        throw new UnsupportedOperationException("updateRef");
+    }
+
+    @Override
+    public void updateRef(int arg0, Ref arg1) throws SQLException {
+        throw new UnsupportedOperationException("updateRef");
+    }
+
+    @Override
+    public void updateRow() throws SQLException {
+        throw new UnsupportedOperationException("updateRow");
+    }
+
+    @Override
+    public void updateRowId(String arg0, RowId arg1) throws SQLException {
+        throw new UnsupportedOperationException("updateRowId");
+    }
+
+    @Override
+    public void updateRowId(int arg0, RowId arg1) throws SQLException {
+        throw new UnsupportedOperationException("updateRowId");
+    }
+
+    @Override
+    public void updateSQLXML(String arg0, SQLXML arg1) throws SQLException {
+        throw new UnsupportedOperationException("updateSQLXML");
+    }
+
+    @Override
+    public void updateSQLXML(int arg0, SQLXML arg1) throws SQLException {
+        throw new UnsupportedOperationException("updateSQLXML");
+    }
+
+    @Override
+    public void updateShort(String arg0, short arg1) throws SQLException {
+        throw new UnsupportedOperationException("updateShort");
+    }
+
+    @Override
+    public void updateShort(int arg0, short arg1) throws SQLException {
+        throw new UnsupportedOperationException("updateShort");
+    }
+
+    @Override
+    public void updateString(String arg0, String arg1) throws SQLException {
+        throw new UnsupportedOperationException("updateString");
+    }
+
+    @Override
+    public void updateString(int arg0, String arg1) throws SQLException {
+        throw new UnsupportedOperationException("updateString");
+    }
+
+    @Override
+    public void updateTime(String arg0, Time arg1) throws SQLException {
+        throw new UnsupportedOperationException("updateTime");
+    }
+
+    @Override
+    public void updateTime(int arg0, Time arg1) throws SQLException {
+        throw new UnsupportedOperationException("updateTime");
+    }
+
+    @Override
+    public void updateTimestamp(String arg0, Timestamp arg1) throws SQLException {
+        throw new UnsupportedOperationException("updateTimestamp");
+    }
+
+    @Override
+    public void updateTimestamp(int arg0, Timestamp arg1) throws SQLException {
+        throw new UnsupportedOperationException("updateTimestamp");
+    }
+
+    @Override
+    public boolean wasNull() throws SQLException {
+        throw new UnsupportedOperationException("wasNull");
+    }
+}
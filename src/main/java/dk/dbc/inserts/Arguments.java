@@ -28,8 +28,12 @@ import java.io.PrintWriter;
 import java.io.Writer;
 import java.net.URISyntaxException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
 import java.util.stream.Stream;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.DefaultParser;
@@ -55,6 +59,45 @@ public final class Arguments {
     private final Option vacuum;
     private final Option db;
     private final Option quiet;
+    private final Option mode;
+    private final Option readAhead;
+    private final Option parallel;
+    private final Option splitBy;
+    private final Option rowsPerStatement;
+    private final Option key;
+    private final Option checkpoint;
+    private final Option resume;
+    private final Option targetCommitMs;
+    private final Option minCommit;
+    private final Option maxCommit;
+    private final Option maintenance;
+    private final Option metricsFile;
+    private final Option metricsInterval;
+    private final Option maxRowsPerSec;
+    private final Option maxBytesPerSec;
+    private final Option maxReplicaLag;
+    private final Option replica;
+    private final Option deferIndexes;
+    private final Option maintenanceWorkMem;
+    private final Option staging;
+    private final Option onConflict;
+    private final Option onConflictAction;
+    private final Option rejectFile;
+    private final Option maxRejects;
+    private final Option sourceDb;
+    private final Option fromFile;
+    private final Option format;
+    private final Option header;
+    private final Option spool;
+    private final Option replay;
+    private final Option jobs;
+    private final Option maxConnections;
+    private final Option routePartitions;
+    private final Option fetchSize;
+    private final Option plan;
+    private final Option planWrite;
+    private final Option skipExisting;
+    private final Option rewriteBatchedInserts;
 
     private CommandLine commandLine;
     private String sql;
@@ -89,6 +132,224 @@ public final class Arguments {
                         .argName("N")
                         .desc("Vaccuum after N chunks")
                         .build())
+                .addOption(this.mode = Option.builder("m")
+                        .longOpt("mode")
+                        .hasArg()
+                        .argName("MODE")
+                        .desc("How rows are written: insert (default), multi-row, copy or server")
+                        .build())
+                .addOption(this.key = Option.builder("k")
+                        .longOpt("key")
+                        .hasArg()
+                        .argName("COLUMN")
+                        .desc("Column of the select to make chunks by for --mode server (rows where it is null are inserted in one chunk, and it should be indexed in the source table)")
+                        .build())
+                .addOption(this.rowsPerStatement = Option.builder()
+                        .longOpt("rows-per-statement")
+                        .hasArg()
+                        .argName("N")
+                        .desc("Number of rows in each statement for --mode multi-row (default 100)")
+                        .build())
+                .addOption(this.rewriteBatchedInserts = Option.builder()
+                        .longOpt("rewrite-batched-inserts")
+                        .desc("Let the JDBC driver rewrite batched inserts to multi-row statements")
+                        .build())
+                .addOption(this.readAhead = Option.builder()
+                        .longOpt("read-ahead")
+                        .hasArg()
+                        .argName("N")
+                        .desc("Number of chunks the select may be ahead of the insert (default 2)")
+                        .build())
+                .addOption(this.fetchSize = Option.builder()
+                        .longOpt("fetch-size")
+                        .hasArg()
+                        .argName("N")
+                        .desc("Number of rows fetched from the select at a time (default the commit size, at most 10000)")
+                        .build())
+                .addOption(this.parallel = Option.builder("p")
+                        .longOpt("parallel")
+                        .hasArg()
+                        .argName("N")
+                        .desc("Split the select into ranges, and load using N workers (default 1)")
+                        .build())
+                .addOption(this.splitBy = Option.builder()
+                        .longOpt("split-by")
+                        .hasArg()
+                        .argName("COLUMN")
+                        .desc("Integer column of the select to split ranges by (default is by disk block of single table select)")
+                        .build())
+                .addOption(this.checkpoint = Option.builder()
+                        .longOpt("checkpoint")
+                        .hasArg()
+                        .argName("FILE")
+                        .desc("Record the last committed --key value of each range in FILE (a crash right after a commit makes resume write that chunk again)")
+                        .build())
+                .addOption(this.resume = Option.builder()
+                        .longOpt("resume")
+                        .desc("Continue after the values recorded in the --checkpoint file")
+                        .build())
+                .addOption(this.targetCommitMs = Option.builder()
+                        .longOpt("target-commit-ms")
+                        .hasArg()
+                        .argName("MS")
+                        .desc("Adjust the commit interval so writing and committing a chunk takes about MS milliseconds")
+                        .build())
+                .addOption(this.minCommit = Option.builder()
+                        .longOpt("min-commit")
+                        .hasArg()
+                        .argName("N")
+                        .desc("Lowest commit interval for --target-commit-ms (default 100)")
+                        .build())
+                .addOption(this.maxCommit = Option.builder()
+                        .longOpt("max-commit")
+                        .hasArg()
+                        .argName("N")
+                        .desc("Highest commit interval for --target-commit-ms (default 100000)")
+                        .build())
+                .addOption(this.maintenance = Option.builder()
+                        .longOpt("maintenance")
+                        .hasArg()
+                        .argName("SECONDS")
+                        .desc("Check table statistics every SECONDS and vacuum/analyze in the background when needed")
+                        .build())
+                .addOption(this.metricsFile = Option.builder()
+                        .longOpt("metrics-file")
+                        .hasArg()
+                        .argName("FILE")
+                        .desc("Write timing and throughput to FILE periodically, as JSON if it ends in .json otherwise in Prometheus text format")
+                        .build())
+                .addOption(this.metricsInterval = Option.builder()
+                        .longOpt("metrics-interval")
+                        .hasArg()
+                        .argName("SECONDS")
+                        .desc("How often --metrics-file is written (default 10)")
+                        .build())
+                .addOption(this.maxRowsPerSec = Option.builder()
+                        .longOpt("max-rows-per-sec")
+                        .hasArg()
+                        .argName("N")
+                        .desc("Limit the rate of rows written")
+                        .build())
+                .addOption(this.maxBytesPerSec = Option.builder()
+                        .longOpt("max-bytes-per-sec")
+                        .hasArg()
+                        .argName("N")
+                        .desc("Limit the rate of (approximate) bytes written, not for --mode server")
+                        .build())
+                .addOption(this.maxReplicaLag = Option.builder()
+                        .longOpt("max-replica-lag")
+                        .hasArg()
+                        .argName("SECONDS")
+                        .desc("Pause between commits while replicas lag more than SECONDS behind")
+                        .build())
+                .addOption(this.replica = Option.builder()
+                        .longOpt("replica")
+                        .hasArg()
+                        .argName("DB")
+                        .desc("Replica to check lag on (default is all replicas in pg_stat_replication of the database)")
+                        .build())
+                .addOption(this.deferIndexes = Option.builder()
+                        .longOpt("defer-indexes")
+                        .desc("Drop secondary (not unique or constraint) indexes of the target table while loading, and rebuild them afterwards, --parallel at a time (the definitions are kept in --checkpoint, so they are rebuilt when resuming)")
+                        .build())
+                .addOption(this.maintenanceWorkMem = Option.builder()
+                        .longOpt("maintenance-work-mem")
+                        .hasArg()
+                        .argName("SIZE")
+                        .desc("maintenance_work_mem when rebuilding indexes, like 1GB, used by each index that is rebuilt at a time (default is database setting)")
+                        .build())
+                .addOption(this.staging = Option.builder()
+                        .longOpt("staging")
+                        .desc("Load into an UNLOGGED copy of the target table, and replace the target with it when done (the current rows of the target are not kept). Targets that are referenced by foreign keys or views, or have triggers, row level security or column privileges are refused")
+                        .build())
+                .addOption(this.onConflict = Option.builder()
+                        .longOpt("on-conflict")
+                        .hasArg()
+                        .argName("COLUMNS")
+                        .desc("Comma separated columns of a unique key, rows with the same key are deduplicated in each chunk (last wins)")
+                        .build())
+                .addOption(this.onConflictAction = Option.builder()
+                        .longOpt("on-conflict-action")
+                        .hasArg()
+                        .argName("ACTION")
+                        .desc("What to do when a row exists for --on-conflict: do-nothing (default) or do-update")
+                        .build())
+                .addOption(this.skipExisting = Option.builder()
+                        .longOpt("skip-existing")
+                        .hasArg()
+                        .argName("COLUMNS")
+                        .desc("Comma separated key columns, the keys of the target are read first, and rows with a key that exists are not sent")
+                        .build())
+                .addOption(this.rejectFile = Option.builder()
+                        .longOpt("reject-file")
+                        .hasArg()
+                        .argName("FILE")
+                        .desc("When a chunk fails, isolate the failing rows and append them with the error to FILE as JSON lines, and load the rest")
+                        .build())
+                .addOption(this.maxRejects = Option.builder()
+                        .longOpt("max-rejects")
+                        .hasArg()
+                        .argName("N")
+                        .desc("Fail when more than N rows are rejected (default 1000)")
+                        .build())
+                .addOption(this.sourceDb = Option.builder()
+                        .longOpt("source-database")
+                        .hasArg()
+                        .argName("DB")
+                        .desc("Database url to select from (default is --database)")
+                        .build())
+                .addOption(this.fromFile = Option.builder()
+                        .longOpt("from-file")
+                        .hasArg()
+                        .argName("FILE")
+                        .desc("Load rows from FILE (gzip compressed if it ends with .gz) instead of a select, the sql statement is then 'INSERT INTO xxx (...)'")
+                        .build())
+                .addOption(this.format = Option.builder()
+                        .longOpt("format")
+                        .hasArg()
+                        .argName("FORMAT")
+                        .desc("Format of --from-file: csv, tsv or jsonl (default from the file name)")
+                        .build())
+                .addOption(this.header = Option.builder()
+                        .longOpt("header")
+                        .desc("Skip the first line of a csv or tsv --from-file")
+                        .build())
+                .addOption(this.spool = Option.builder()
+                        .longOpt("spool")
+                        .hasArg()
+                        .argName("DIR")
+                        .desc("Write the rows of the select to compressed chunk files in DIR instead of the target table, to be loaded later with --replay")
+                        .build())
+                .addOption(this.replay = Option.builder()
+                        .longOpt("replay")
+                        .hasArg()
+                        .argName("DIR")
+                        .desc("Load the chunk files of a --spool directory using COPY, a transaction per file, the sql statement is then 'INSERT INTO xxx (...)'")
+                        .build())
+                .addOption(this.jobs = Option.builder()
+                        .longOpt("jobs")
+                        .hasArg()
+                        .argName("FILE")
+                        .desc("Run the jobs of a manifest (properties with NAME.sql, NAME.commit, NAME.vacuum, NAME.after and NAME.options) instead of a sql statement, the other options are defaults for every job (except file and directory options, they are per job)")
+                        .build())
+                .addOption(this.maxConnections = Option.builder()
+                        .longOpt("max-connections")
+                        .hasArg()
+                        .argName("N")
+                        .desc("Number of connections to the target database --jobs can use at a time, counted from the options of each job (default 10)")
+                        .build())
+                .addOption(this.routePartitions = Option.builder()
+                        .longOpt("route-partitions")
+                        .desc("When the target is partitioned by RANGE or LIST on one column, write rows directly into the partitions they belong to")
+                        .build())
+                .addOption(this.plan = Option.builder()
+                        .longOpt("plan")
+                        .desc("Explain the select, look at the target table and read a sample of rows, and print the recommended mode, commit and fetch size and an estimated duration instead of loading. Nothing is written to the target")
+                        .build())
+                .addOption(this.planWrite = Option.builder()
+                        .longOpt("plan-write")
+                        .desc("With --plan, also write the sample rows into the target and roll back, to estimate the time of writing. Triggers fire, sequences advance and locks are taken as when loading")
+                        .build())
                 .addOption(this.db = Option.builder("d")
                         .longOpt("database")
                         .hasArg()
@@ -107,6 +368,10 @@ public final class Arguments {
         return getOpt(db, null);
     }
 
+    public String getSourceDb() {
+        return getOpt(sourceDb, getDb());
+    }
+
     public int getCommit() {
         return Integer.parseUnsignedInt(getOpt(commit, "5000"));
     }
@@ -115,6 +380,185 @@ public final class Arguments {
         return Integer.parseUnsignedInt(getOpt(vacuum, "0"));
     }
 
+    public int getReadAhead() {
+        return Integer.parseUnsignedInt(getOpt(readAhead, "2"));
+    }
+
+    public int getFetchSize() {
+        return Integer.parseUnsignedInt(getOpt(fetchSize, "0"));
+    }
+
+    public int getParallel() {
+        return Integer.parseUnsignedInt(getOpt(parallel, "1"));
+    }
+
+    public int getTargetCommitMs() {
+        return Integer.parseUnsignedInt(getOpt(targetCommitMs, "0"));
+    }
+
+    public int getMinCommit() {
+        return Integer.parseUnsignedInt(getOpt(minCommit, String.valueOf(Integer.min(getCommit(), 100))));
+    }
+
+    public int getMaxCommit() {
+        return Integer.parseUnsignedInt(getOpt(maxCommit, String.valueOf(Integer.max(getCommit(), 100000))));
+    }
+
+    public String getFromFile() {
+        return getOpt(fromFile, null);
+    }
+
+    FileSource.Format getFormat() {
+        String name = getOpt(format, null);
+        if (name == null) {
+            name = getFromFile().replaceFirst("\\.gz$", "");
+            name = name.substring(name.lastIndexOf('.') + 1);
+        }
+        return FileSource.Format.of(name);
+    }
+
+    public boolean isHeader() {
+        return commandLine.hasOption(header.getLongOpt());
+    }
+
+    public String getSpool() {
+        return getOpt(spool, null);
+    }
+
+    public String getReplay() {
+        return getOpt(replay, null);
+    }
+
+    public String getJobs() {
+        return getOpt(jobs, null);
+    }
+
+    public int getMaxConnections() {
+        return Integer.parseUnsignedInt(getOpt(maxConnections, "10"));
+    }
+
+    /**
+     * The options given, except those for running jobs, as command line
+     * arguments
+     *
+     * @return list of arguments
+     */
+    List<String> getJobDefaults() {
+        ArrayList<String> args = new ArrayList<>();
+        for (Option option : commandLine.getOptions()) {
+            if (option.getLongOpt() != null &&
+                (option.getLongOpt().equals(jobs.getLongOpt()) || option.getLongOpt().equals(maxConnections.getLongOpt())))
+                continue;
+            args.add(option.getLongOpt() == null ? "-" + option.getOpt() : "--" + option.getLongOpt());
+            if (option.hasArg())
+                args.add(option.getValue());
+        }
+        return args;
+    }
+
+    public boolean isRoutePartitions() {
+        return commandLine.hasOption(routePartitions.getLongOpt());
+    }
+
+    public boolean isPlan() {
+        return commandLine.hasOption(plan.getLongOpt());
+    }
+
+    public boolean isPlanWrite() {
+        return commandLine.hasOption(planWrite.getLongOpt());
+    }
+
+    public int getMaintenance() {
+        return Integer.parseUnsignedInt(getOpt(maintenance, "0"));
+    }
+
+    public String getMetricsFile() {
+        return getOpt(metricsFile, null);
+    }
+
+    public int getMetricsInterval() {
+        return Integer.parseUnsignedInt(getOpt(metricsInterval, "10"));
+    }
+
+    public long getMaxRowsPerSec() {
+        return Long.parseUnsignedLong(getOpt(maxRowsPerSec, "0"));
+    }
+
+    public long getMaxBytesPerSec() {
+        return Long.parseUnsignedLong(getOpt(maxBytesPerSec, "0"));
+    }
+
+    public int getMaxReplicaLag() {
+        return Integer.parseUnsignedInt(getOpt(maxReplicaLag, "0"));
+    }
+
+    public String getReplica() {
+        return getOpt(replica, null);
+    }
+
+    public boolean isDeferIndexes() {
+        return commandLine.hasOption(deferIndexes.getLongOpt());
+    }
+
+    public String getMaintenanceWorkMem() {
+        return getOpt(maintenanceWorkMem, null);
+    }
+
+    public boolean isStaging() {
+        return commandLine.hasOption(staging.getLongOpt());
+    }
+
+    OnConflict getOnConflict() {
+        String columns = getOpt(onConflict, null);
+        if (columns == null)
+            return null;
+        return new OnConflict(Arrays.asList(columns.split("\\s*,\\s*")),
+                              OnConflict.Action.of(getOpt(onConflictAction, "do-nothing")));
+    }
+
+    public List<String> getSkipExisting() {
+        String columns = getOpt(skipExisting, null);
+        if (columns == null)
+            return null;
+        return Arrays.asList(columns.split("\\s*,\\s*"));
+    }
+
+    public String getRejectFile() {
+        return getOpt(rejectFile, null);
+    }
+
+    public int getMaxRejects() {
+        return Integer.parseUnsignedInt(getOpt(maxRejects, "1000"));
+    }
+
+    public String getSplitBy() {
+        return getOpt(splitBy, null);
+    }
+
+    public int getRowsPerStatement() {
+        return Integer.parseUnsignedInt(getOpt(rowsPerStatement, "100"));
+    }
+
+    public boolean isRewriteBatchedInserts() {
+        return commandLine.hasOption(rewriteBatchedInserts.getLongOpt());
+    }
+
+    public String getKey() {
+        return getOpt(key, null);
+    }
+
+    public String getCheckpoint() {
+        return getOpt(checkpoint, null);
+    }
+
+    public boolean isResume() {
+        return commandLine.hasOption(resume.getLongOpt());
+    }
+
+    public Mode getMode() {
+        return Mode.of(getOpt(mode, "insert"));
+    }
+
     public String getSql() {
         return sql;
     }
@@ -124,10 +568,12 @@ public final class Arguments {
     }
 
     private void addPositionalArguments() {
-        options.addOption(positionalArgument(true, "SQL", "sql statement of the type 'INSERT INTO xxx (...) SELECT ...'"));
+        options.addOption(positionalArgument(true, "SQL", "sql statement of the type 'INSERT INTO xxx (...) SELECT ...' (without SELECT for --from-file)"));
     }
 
     private void acquirePositionalArguments(Iterator<String> args, Stream.Builder<String> missing) {
+        if (commandLine.hasOption(jobs.getLongOpt()))
+            return;
         if (args.hasNext())
             this.sql = args.next();
         else
@@ -146,7 +592,7 @@ public final class Arguments {
             acquirePositionalArguments(extra, missing);
 
             if (extra.hasNext())
-                throw usage("Too many arguments");
+                throw usage(getJobs() == null ? "Too many arguments" : "--jobs cannot have a sql statement");
 
             String missingRequired = missing.build()
                     .collect(joining(", "))
@@ -155,12 +601,113 @@ public final class Arguments {
             if (!missingRequired.isEmpty())
                 throw usage("Missing required options: " + missingRequired);
 
+            validatePositive(commit, this::getCommit);
+            validatePositive(readAhead, this::getReadAhead);
+            if (commandLine.hasOption(fetchSize.getLongOpt()))
+                validatePositive(fetchSize, this::getFetchSize);
+            validatePositive(parallel, this::getParallel);
+            validatePositive(rowsPerStatement, this::getRowsPerStatement);
+            if (commandLine.hasOption(targetCommitMs.getLongOpt()))
+                validatePositive(targetCommitMs, this::getTargetCommitMs);
+            if (commandLine.hasOption(maintenance.getLongOpt()))
+                validatePositive(maintenance, this::getMaintenance);
+            validatePositive(metricsInterval, this::getMetricsInterval);
+            validatePositive(maxConnections, this::getMaxConnections);
+            if (commandLine.hasOption(maxRowsPerSec.getLongOpt()))
+                validatePositive(maxRowsPerSec, this::getMaxRowsPerSec);
+            if (commandLine.hasOption(maxBytesPerSec.getLongOpt()))
+                validatePositive(maxBytesPerSec, this::getMaxBytesPerSec);
+            if (commandLine.hasOption(maxReplicaLag.getLongOpt()))
+                validatePositive(maxReplicaLag, this::getMaxReplicaLag);
+            String memory = getMaintenanceWorkMem();
+            if (memory != null && !memory.matches("[1-9][0-9]*\\s*(?:[kMGT]B)?"))
+                throw usage("'" + memory + "' is not a valid size for maintenance-work-mem");
+            String conflictColumns = getOpt(onConflict, null);
+            if (conflictColumns != null && !conflictColumns.matches("[0-9a-zA-Z_]+(?:\\s*,\\s*[0-9a-zA-Z_]+)*"))
+                throw usage("'" + conflictColumns + "' is not a valid column list for on-conflict");
+            String skipColumns = getOpt(skipExisting, null);
+            if (skipColumns != null && !skipColumns.matches("[0-9a-zA-Z_]+(?:\\s*,\\s*[0-9a-zA-Z_]+)*"))
+                throw usage("'" + skipColumns + "' is not a valid column list for skip-existing");
             try {
-                if (getCommit() == 0)
-                    throw usage("0 is not a valid number for commit");
+                getOnConflict();
+            } catch (IllegalArgumentException ex) {
+                throw usage("'" + getOpt(onConflictAction, "") + "' is not a valid on-conflict-action");
+            }
+            if (getOpt(onConflictAction, null) != null && conflictColumns == null)
+                throw usage("--on-conflict-action requires --on-conflict");
+            if (conflictColumns != null && getMode() == Mode.COPY)
+                throw usage("--on-conflict cannot be used with --mode copy");
+            try {
+                getMaxRejects();
             } catch (NumberFormatException ex) {
-                throw usage("'" + getOpt(commit, "") + "' is not a valid number for commit");
+                throw usage("'" + getOpt(maxRejects, "") + "' is not a valid number for max-rejects");
+            }
+            if (getOpt(maxRejects, null) != null && getRejectFile() == null)
+                throw usage("--max-rejects requires --reject-file");
+            if (getReplica() != null && getMaxReplicaLag() == 0)
+                throw usage("--replica requires --max-replica-lag");
+            validatePositive(minCommit, this::getMinCommit);
+            validatePositive(maxCommit, this::getMaxCommit);
+            if (getMinCommit() > getCommit() || getCommit() > getMaxCommit())
+                throw usage("--commit should be between --min-commit and --max-commit");
+            validateColumn(splitBy);
+            validateColumn(key);
+
+            try {
+                getMode();
+            } catch (IllegalArgumentException ex) {
+                throw usage("'" + getOpt(mode, "") + "' is not a valid mode");
             }
+            if (getMode() == Mode.SERVER && getKey() == null)
+                throw usage("--mode server requires --key");
+            if (getCheckpoint() != null && getKey() == null)
+                throw usage("--checkpoint requires --key");
+            if (isResume() && getCheckpoint() == null)
+                throw usage("--resume requires --checkpoint");
+            if (getMode() == Mode.SERVER && !getSourceDb().equals(getDb()))
+                throw usage("--mode server requires --source-database to be the same as --database");
+            if (getFromFile() != null) {
+                try {
+                    getFormat();
+                } catch (IllegalArgumentException ex) {
+                    throw usage("'" + getOpt(format, getFromFile()) + "' is not a known format, use --format csv, tsv or jsonl");
+                }
+                if (isHeader() && getFormat() == FileSource.Format.JSONL)
+                    throw usage("--header cannot be used with jsonl");
+                if (getMode() == Mode.SERVER)
+                    throw usage("--from-file cannot be used with --mode server");
+                if (getCheckpoint() != null || getSplitBy() != null || getParallel() != 1 || getOpt(sourceDb, null) != null)
+                    throw usage("--from-file cannot be used with --checkpoint, --split-by, --parallel or --source-database");
+            } else if (getOpt(format, null) != null || isHeader()) {
+                throw usage("--format and --header require --from-file");
+            }
+            if (getSpool() != null) {
+                if (getReplay() != null || getFromFile() != null || getMode() == Mode.SERVER)
+                    throw usage("--spool cannot be used with --replay, --from-file or --mode server");
+                if (isStaging() || isDeferIndexes() || getCheckpoint() != null || getMaintenance() != 0 ||
+                    getOnConflict() != null || getRejectFile() != null)
+                    throw usage("--spool doesn't write to the target, so --staging, --defer-indexes, --checkpoint, --maintenance, --on-conflict and --reject-file cannot be used");
+            }
+            if (getReplay() != null) {
+                if (getFromFile() != null || getMode() == Mode.SERVER)
+                    throw usage("--replay cannot be used with --from-file or --mode server");
+                if (getCheckpoint() != null || getSplitBy() != null || getOpt(sourceDb, null) != null ||
+                    getOnConflict() != null || getRejectFile() != null)
+                    throw usage("--replay loads using COPY, so --checkpoint, --split-by, --source-database, --on-conflict and --reject-file cannot be used");
+            }
+            if (isRoutePartitions() && (getMode() == Mode.SERVER || getSpool() != null || getReplay() != null))
+                throw usage("--route-partitions cannot be used with --mode server, --spool or --replay");
+            if (getJobs() != null && (getCheckpoint() != null || getRejectFile() != null || getSpool() != null ||
+                                      getReplay() != null || getFromFile() != null || getMetricsFile() != null))
+                throw usage("--checkpoint, --reject-file, --spool, --replay, --from-file and --metrics-file would be shared by all jobs, set them in NAME.options of each job");
+            if (isPlan() && (getFromFile() != null || getReplay() != null || getSpool() != null || getJobs() != null))
+                throw usage("--plan cannot be used with --from-file, --replay, --spool or --jobs");
+            if (isPlanWrite() && !isPlan())
+                throw usage("--plan-write can only be used with --plan");
+            if (skipColumns != null && (getMode() == Mode.SERVER || getSpool() != null || getReplay() != null || isStaging()))
+                throw usage("--skip-existing cannot be used with --mode server, --spool, --replay or --staging");
+            if (getMode() == Mode.SERVER && getRejectFile() != null)
+                throw usage("--reject-file cannot be used with --mode server");
 
         } catch (ParseException ex) {
             throw usage(ex.getMessage());
@@ -168,6 +715,25 @@ public final class Arguments {
         return this;
     }
 
+    private void validatePositive(Option option, IntSupplier value) throws ExitException {
+        validatePositive(option, (LongSupplier) value::getAsInt);
+    }
+
+    private void validatePositive(Option option, LongSupplier value) throws ExitException {
+        try {
+            if (value.getAsLong() == 0)
+                throw usage("0 is not a valid number for " + option.getLongOpt());
+        } catch (NumberFormatException ex) {
+            throw usage("'" + getOpt(option, "") + "' is not a valid number for " + option.getLongOpt());
+        }
+    }
+
+    private void validateColumn(Option option) throws ExitException {
+        String column = getOpt(option, null);
+        if (column != null && !column.matches("[0-9a-zA-Z_]+"))
+            throw usage("'" + column + "' is not a valid column for " + option.getLongOpt());
+    }
+
     private void setupLogLevel(String... packages) throws ExitException {
         boolean v = commandLine.hasOption(verbose.getOpt());
         boolean q = commandLine.hasOption(quiet.getOpt());
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of chunk-insert
+ *
+ * chunk-insert is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * chunk-insert is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.inserts;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Write rows as a batched prepared statement with a number of rows per
+ * statement
+ * <p>
+ * With more than one row per statement, a chunk is sent as batched statements
+ * of that many rows, and a statement with the remaining rows. This reduces the
+ * number of statements the server has to execute. The number of rows per
+ * statement is limited by the number of parameters a statement can have.
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+class BatchInsertWriter implements RowWriter {
+
+    private static final Logger log = LoggerFactory.getLogger(BatchInsertWriter.class);
+
+    static final int MAX_PARAMETERS = 32767;
+
+    private final Connection connection;
+    private final String insert;
+    private final String onConflict;
+    private final int columnCount;
+    private final int rowsPerStatement;
+    private final PreparedStatement pstmt;
+    private final HashMap<Integer, PreparedStatement> tailStatements;
+
+    /**
+     * Create a writer
+     *
+     * @param connection       database connection
+     * @param insert           'INSERT INTO table (columns)' part of statement
+     * @param columnCount      number of columns
+     * @param rowsPerStatement wanted number of rows per statement (is capped
+     *                         by the parameter limit)
+     * @param onConflict       ON CONFLICT clause or empty string
+     * @throws SQLException If the statement cannot be prepared
+     */
+    BatchInsertWriter(Connection connection, String insert, int columnCount, int rowsPerStatement, String onConflict) throws SQLException {
+        this.connection = connection;
+        this.insert = insert;
+        this.onConflict = onConflict;
+        this.columnCount = columnCount;
+        this.rowsPerStatement = Integer.max(1, Integer.min(rowsPerStatement, MAX_PARAMETERS / columnCount));
+        if (this.rowsPerStatement != rowsPerStatement)
+            log.info("Using {} rows per statement", this.rowsPerStatement);
+        String insertStmt = makeInsert(insert, columnCount, this.rowsPerStatement, onConflict);
+        log.debug("insert = {}", insertStmt);
+        this.pstmt = connection.prepareStatement(insertStmt);
+        this.tailStatements = new HashMap<>();
+    }
+
+    @Override
+    public void write(Chunk chunk) throws SQLException {
+        int statements = chunk.size() / rowsPerStatement;
+        int tail = chunk.size() % rowsPerStatement;
+        int row = 0;
+        for (int i = 0 ; i < statements ; i++) {
+            row = bindRows(pstmt, chunk, row, rowsPerStatement);
+            pstmt.addBatch();
+        }
+        if (statements != 0)
+            pstmt.executeBatch();
+        if (tail != 0) {
+            PreparedStatement tailStmt = tailStatement(tail);
+            bindRows(tailStmt, chunk, row, tail);
+            tailStmt.executeUpdate();
+        }
+    }
+
+    @Override
+    public void close() throws SQLException {
+        for (PreparedStatement tailStmt : tailStatements.values()) {
+            tailStmt.close();
+        }
+        pstmt.close();
+    }
+
+    /**
+     * Bind a number of rows to a statement
+     *
+     * @param stmt  statement with parameters for count rows
+     * @param chunk where to take rows from
+     * @param row   first row to bind
+     * @param count number of rows to bind
+     * @return the row after the last bound row
+     * @throws SQLException If a value cannot be bound
+     */
+    private int bindRows(PreparedStatement stmt, Chunk chunk, int row, int count) throws SQLException {
+        int parameter = 1;
+        for (int end = row + count ; row < end ; row++) {
+            chunk.bind(stmt, parameter, row);
+            parameter += columnCount;
+        }
+        return row;
+    }
+
+    /**
+     * Get a statement for the rows that doesn't fill a full statement
+     * <p>
+     * Typically there's only one or two sizes (commit size and the last
+     * chunk) so these are cached
+     *
+     * @param rows number of rows
+     * @return statement
+     * @throws SQLException If the statement cannot be prepared
+     */
+    private PreparedStatement tailStatement(int rows) throws SQLException {
+        PreparedStatement tailStmt = tailStatements.get(rows);
+        if (tailStmt == null) {
+            String insertStmt = makeInsert(insert, columnCount, rows, onConflict);
+            log.debug("insert = {}", insertStmt);
+            tailStmt = connection.prepareStatement(insertStmt);
+            tailStatements.put(rows, tailStmt);
+        }
+        return tailStmt;
+    }
+
+    static String makeInsert(String insert, int columnCount, int rows, String onConflict) {
+        StringBuilder sb = new StringBuilder(insert)
+                .append(" VALUES");
+        for (int row = 0 ; row < rows ; row++) {
+            if (row != 0)
+                sb.append(", ");
+            sb.append("(");
+            for (int i = 0 ; i < columnCount ; i++) {
+                if (i != 0)
+                    sb.append(", ");
+                sb.append("?");
+            }
+            sb.append(")");
+        }
+        return sb.append(onConflict).toString();
+    }
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of chunk-insert
+ *
+ * chunk-insert is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * chunk-insert is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.inserts;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.UUID;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+import org.postgresql.copy.CopyManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Write rows using COPY ... FROM STDIN (FORMAT BINARY)
+ * <p>
+ * Each chunk is a separate COPY operation, which is ended before the chunk
+ * is committed, so commit/rollback works as for inserts.
+ * <p>
+ * Binary COPY requires the values to be encoded exactly as the target columns
+ * types, so the select column types has to match the target column types.
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+class BinaryCopyWriter implements RowWriter {
+
+    private static final Logger log = LoggerFactory.getLogger(BinaryCopyWriter.class);
+
+    static final byte[] HEADER = {
+        'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xff, '\r', '\n', 0, // Signature
+        0, 0, 0, 0, // Flags
+        0, 0, 0, 0 // Header extension length
+    };
+    private static final int SEND_SIZE = 64 * 1024;
+
+    private static final long POSTGRES_EPOCH_DAY = LocalDate.of(2000, 1, 1).toEpochDay();
+    private static final long POSTGRES_EPOCH_SECOND = LocalDateTime.of(2000, 1, 1, 0, 0).toEpochSecond(ZoneOffset.UTC);
+
+    private final CopyManager copyManager;
+    private final String copySql;
+    private final Buffer buffer;
+    private final DataOutputStream out;
+
+    /**
+     * Byte buffer that allows access to the content without copying
+     */
+    private static class Buffer extends ByteArrayOutputStream {
+
+        Buffer(int size) {
+            super(size);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+    }
+
+    BinaryCopyWriter(Connection connection, String table, List<String> columns, List<ColumnType> types, ResultSetMetaData metaData) throws SQLException {
+        this.copyManager = connection.unwrap(PGConnection.class).getCopyAPI();
+        this.copySql = "COPY " + table + " (" + String.join(", ", columns) + ") FROM STDIN (FORMAT BINARY)";
+        log.debug("copy = {}", copySql);
+        validateTypes(connection, table, columns, types, metaData);
+        this.buffer = new Buffer(SEND_SIZE * 2);
+        this.out = new DataOutputStream(buffer);
+    }
+
+    @Override
+    public void write(Chunk chunk) throws SQLException, IOException {
+        CopyIn copyIn = copyManager.copyIn(copySql);
+        try {
+            buffer.reset();
+            out.write(HEADER);
+            int columnCount = chunk.columnCount();
+            for (int row = 0 ; row < chunk.size() ; row++) {
+                out.writeShort(columnCount);
+                for (int column = 0 ; column < columnCount ; column++) {
+                    chunk.column(column).encode(out, row);
+                }
+                if (buffer.size() >= SEND_SIZE)
+                    send(copyIn);
+            }
+            out.writeShort(-1);
+            send(copyIn);
+            copyIn.endCopy();
+        } finally {
+            if (copyIn.isActive())
+                copyIn.cancelCopy();
+        }
+    }
+
+    @Override
+    public void close() throws SQLException {
+    }
+
+    private void send(CopyIn copyIn) throws SQLException, IOException {
+        out.flush();
+        copyIn.writeToCopy(buffer.array(), 0, buffer.size());
+        buffer.reset();
+    }
+
+    /**
+     * Ensure every column can be encoded, and that select and target types
+     * match
+     *
+     * @param connection database connection
+     * @param table      target table
+     * @param columns    target columns
+     * @param types      column types of the select
+     * @param metaData   select statement column data
+     * @throws SQLException If the target cannot be inspected
+     */
+    private static void validateTypes(Connection connection, String table, List<String> columns, List<ColumnType> types, ResultSetMetaData metaData) throws SQLException {
+        int columnCount = metaData.getColumnCount();
+        if (columnCount != columns.size())
+            throw new IllegalStateException("Select has " + columnCount + " columns, insert has " + columns.size());
+        try (Statement stmt = connection.createStatement() ;
+             ResultSet resultSet = stmt.executeQuery("SELECT " + String.join(", ", columns) + " FROM " + table + " WHERE false")) {
+            ResultSetMetaData target = resultSet.getMetaData();
+            for (int column = 1 ; column <= columnCount ; column++) {
+                String columnName = columns.get(column - 1);
+                String typeName = canonicalTypeName(metaData.getColumnTypeName(column));
+                String targetTypeName = canonicalTypeName(target.getColumnTypeName(column));
+                if (!typeName.equals(targetTypeName))
+                    throw new IllegalStateException("Column " + columnName + " is " + targetTypeName + " but select gives " + typeName + " - cast it in the select or use --mode insert");
+                ColumnType type = types.get(column - 1);
+                if (!type.isBinaryCopy() || !type.isTypeName(typeName))
+                    throw new IllegalStateException("Column " + columnName + " of type " + typeName + " is not supported by --mode copy");
+            }
+        }
+    }
+
+    static String canonicalTypeName(String typeName) {
+        switch (typeName) {
+            case "smallserial":
+                return "int2";
+            case "serial":
+                return "int4";
+            case "bigserial":
+                return "int8";
+            default:
+                return typeName;
+        }
+    }
+
+    static void encodeText(String value, DataOutputStream out) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static void encodeJsonb(String value, DataOutputStream out) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length + 1);
+        out.writeByte(1); // jsonb version
+        out.write(bytes);
+    }
+
+    static void encodeBytes(byte[] value, DataOutputStream out) throws IOException {
+        out.writeInt(value.length);
+        out.write(value);
+    }
+
+    static void encodeUuid(UUID value, DataOutputStream out) throws IOException {
+        out.writeInt(16);
+        out.writeLong(value.getMostSignificantBits());
+        out.writeLong(value.getLeastSignificantBits());
+    }
+
+    static void encodeDate(LocalDate value, DataOutputStream out) throws IOException {
+        out.writeInt(4);
+        out.writeInt(postgresDate(value));
+    }
+
+    static void encodeTime(LocalTime value, DataOutputStream out) throws IOException {
+        out.writeInt(8);
+        out.writeLong(value.toNanoOfDay() / 1_000);
+    }
+
+    static void encodeTimestamp(LocalDateTime value, DataOutputStream out) throws IOException {
+        out.writeInt(8);
+        out.writeLong(postgresTimestamp(value));
+    }
+
+    static void encodeTimestamptz(OffsetDateTime value, DataOutputStream out) throws IOException {
+        out.writeInt(8);
+        out.writeLong(postgresTimestamp(value));
+    }
+
+    /**
+     * Days since 2000-01-01, infinity as int min/max
+     *
+     * @param date date
+     * @return postgres binary representation
+     */
+    static int postgresDate(LocalDate date) {
+        if (date.equals(LocalDate.MAX))
+            return Integer.MAX_VALUE;
+        if (date.equals(LocalDate.MIN))
+            return Integer.MIN_VALUE;
+        return Math.toIntExact(date.toEpochDay() - POSTGRES_EPOCH_DAY);
+    }
+
+    /**
+     * Microseconds since 2000-01-01 00:00:00, infinity as long min/max
+     *
+     * @param timestamp timestamp without time zone
+     * @return postgres binary representation
+     */
+    static long postgresTimestamp(LocalDateTime timestamp) {
+        if (timestamp.equals(LocalDateTime.MAX))
+            return Long.MAX_VALUE;
+        if (timestamp.equals(LocalDateTime.MIN))
+            return Long.MIN_VALUE;
+        return (timestamp.toEpochSecond(ZoneOffset.UTC) - POSTGRES_EPOCH_SECOND) * 1_000_000L +
+               timestamp.getNano() / 1_000;
+    }
+
+    /**
+     * Microseconds since 2000-01-01 00:00:00 UTC, infinity as long min/max
+     *
+     * @param timestamp timestamp with time zone
+     * @return postgres binary representation
+     */
+    static long postgresTimestamp(OffsetDateTime timestamp) {
+        if (timestamp.equals(OffsetDateTime.MAX))
+            return Long.MAX_VALUE;
+        if (timestamp.equals(OffsetDateTime.MIN))
+            return Long.MIN_VALUE;
+        return (timestamp.toEpochSecond() - POSTGRES_EPOCH_SECOND) * 1_000_000L +
+               timestamp.getNano() / 1_000;
+    }
+
+    /**
+     * Encode a numeric as length + postgres binary numeric
+     * <p>
+     * The format is: ndigits, weight, sign, dscale followed by ndigits base
+     * 10000 digits, all as 16 bit values
+     *
+     * @param value number
+     * @param out   where to write
+     * @throws IOException if the output cannot be written
+     */
+    static void encodeNumeric(BigDecimal value, DataOutputStream out) throws IOException {
+        int dscale = Integer.max(value.scale(), 0);
+        String plain = value.abs().setScale(dscale).toPlainString();
+        int dot = plain.indexOf('.');
+        String integerPart = dot < 0 ? plain : plain.substring(0, dot);
+        String fractionPart = dot < 0 ? "" : plain.substring(dot + 1);
+        int integerPad = (4 - integerPart.length() % 4) % 4;
+        int fractionPad = (4 - fractionPart.length() % 4) % 4;
+        String digits = "0".repeat(integerPad) + integerPart + fractionPart + "0".repeat(fractionPad);
+        int integerGroups = (integerPad + integerPart.length()) / 4;
+
+        int groupCount = digits.length() / 4;
+        int first = 0;
+        while (first < groupCount && isZeroGroup(digits, first)) {
+            first++;
+        }
+        int last = groupCount;
+        while (last > first && isZeroGroup(digits, last - 1)) {
+            last--;
+        }
+        int ndigits = last - first;
+        int weight = ndigits == 0 ? 0 : integerGroups - 1 - first;
+
+        out.writeInt(8 + 2 * ndigits);
+        out.writeShort(ndigits);
+        out.writeShort(weight);
+        out.writeShort(value.signum() < 0 ? 0x4000 : 0x0000);
+        out.writeShort(dscale);
+        for (int i = first ; i < last ; i++) {
+            out.writeShort(Integer.parseInt(digits, 4 * i, 4 * i + 4, 10));
+        }
+    }
+
+    private static boolean isZeroGroup(String digits, int group) {
+        for (int i = 4 * group ; i < 4 * group + 4 ; i++) {
+            if (digits.charAt(i) != '0')
+                return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of chunk-insert
+ *
+ * chunk-insert is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * chunk-insert is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.inserts;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Progress of a run, so it can be resumed after a crash
+ * <p>
+ * The file holds the select of each range, and for each range the last
+ * committed key value or that the range is done. It is rewritten (to a
+ * temporary file that is synced and renamed, and then the directory is
+ * synced, so the rename survives a power loss) every time a chunk is
+ * committed. It also holds the definitions of the indexes that are dropped
+ * while loading (see {@link DeferredIndexes}), so they are rebuilt when
+ * resuming.
+ * <p>
+ * The file is written after the commit, so a crash between the two leaves
+ * the previous key in the file, and that chunk is written again on resume.
+ * Use a unique key in the target (and --on-conflict) when rows must not be
+ * duplicated.
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+class Checkpoint {
+
+    private final Path file;
+    private final List<String> selects;
+    private final String[] keys;
+    private final boolean[] done;
+    private final Map<String, String> indexes;
+
+    private Checkpoint(Path file, List<String> selects) {
+        this.file = file;
+        this.selects = selects;
+        this.keys = new String[selects.size()];
+        this.done = new boolean[selects.size()];
+        this.indexes = new LinkedHashMap<>();
+    }
+
+    /**
+     * Start a new checkpoint file
+     *
+     * @param file    where to store the checkpoint
+     * @param selects the selects of the ranges
+     * @return checkpoint with no progress
+     * @throws IOException If the file cannot be written
+     */
+    static Checkpoint create(Path file, List<String> selects) throws IOException {
+        Checkpoint checkpoint = new Checkpoint(file, selects);
+        checkpoint.save();
+        return checkpoint;
+    }
+
+    /**
+     * Read a checkpoint file
+     *
+     * @param file where the checkpoint is stored
+     * @return checkpoint with the recorded progress
+     * @throws IOException If the file cannot be read
+     */
+    static Checkpoint load(Path file) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream is = Files.newInputStream(file)) {
+            properties.load(is);
+        }
+        try {
+            int ranges = Integer.parseUnsignedInt(properties.getProperty("ranges"));
+            ArrayList<String> selects = new ArrayList<>(ranges);
+            for (int i = 0 ; i < ranges ; i++) {
+                String select = properties.getProperty("range." + i + ".select");
+                if (select == null)
+                    throw new IllegalStateException("Checkpoint file " + file + " has no select for range " + i);
+                selects.add(select);
+            }
+            Checkpoint checkpoint = new Checkpoint(file, selects);
+            for (int i = 0 ; i < ranges ; i++) {
+                checkpoint.keys[i] = properties.getProperty("range." + i + ".key");
+                checkpoint.done[i] = Boolean.parseBoolean(properties.getProperty("range." + i + ".done"));
+            }
+            int indexes = Integer.parseUnsignedInt(properties.getProperty("indexes", "0"));
+            for (int i = 0 ; i < indexes ; i++) {
+                String name = properties.getProperty("index." + i + ".name");
+                String definition = properties.getProperty("index." + i + ".definition");
+                if (name == null || definition == null)
+                    throw new IllegalStateException("Checkpoint file " + file + " has no definition for index " + i);
+                checkpoint.indexes.put(name, definition);
+            }
+            return checkpoint;
+        } catch (NumberFormatException ex) {
+            throw new IllegalStateException("Checkpoint file " + file + " is not valid", ex);
+        }
+    }
+
+    List<String> getSelects() {
+        return selects;
+    }
+
+    /**
+     * Last committed key value of a range
+     *
+     * @param range range number (0 based)
+     * @return key value as text or null if nothing is committed
+     */
+    synchronized String getKey(int range) {
+        return keys[range];
+    }
+
+    synchronized boolean isDone(int range) {
+        return done[range];
+    }
+
+    /**
+     * Record that rows up to (and including) a key has been committed
+     *
+     * @param range range number (0 based)
+     * @param key   key value as text
+     * @throws IOException If the file cannot be written
+     */
+    synchronized void committed(int range, String key) throws IOException {
+        keys[range] = key;
+        save();
+    }
+
+    /**
+     * Record that all rows of a range has been committed
+     *
+     * @param range range number (0 based)
+     * @throws IOException If the file cannot be written
+     */
+    synchronized void completed(int range) throws IOException {
+        done[range] = true;
+        save();
+    }
+
+    /**
+     * Definitions of the dropped indexes
+     *
+     * @return index name to CREATE INDEX statement
+     */
+    synchronized Map<String, String> getIndexes() {
+        return new LinkedHashMap<>(indexes);
+    }
+
+    /**
+     * Record the indexes that are dropped and has to be rebuilt
+     *
+     * @param definitions index name to CREATE INDEX statement (empty when
+     *                    they are rebuilt)
+     * @throws IOException If the file cannot be written
+     */
+    synchronized void indexes(Map<String, String> definitions) throws IOException {
+        indexes.clear();
+        indexes.putAll(definitions);
+        save();
+    }
+
+    /**
+     * Record that an index has been rebuilt
+     *
+     * @param name index name
+     * @throws IOException If the file cannot be written
+     */
+    synchronized void indexBuilt(String name) throws IOException {
+        if (indexes.remove(name) != null)
+            save();
+    }
+
+    private void save() throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("ranges", String.valueOf(selects.size()));
+        for (int i = 0 ; i < selects.size() ; i++) {
+            properties.setProperty("range." + i + ".select", selects.get(i));
+            if (keys[i] != null)
+                properties.setProperty("range." + i + ".key", keys[i]);
+            if (done[i])
+                properties.setProperty("range." + i + ".done", "true");
+        }
+        if (!indexes.isEmpty()) {
+            properties.setProperty("indexes", String.valueOf(indexes.size()));
+            int i = 0;
+            for (Map.Entry<String, String> entry : indexes.entrySet()) {
+                properties.setProperty("index." + i + ".name", entry.getKey());
+                properties.setProperty("index." + i + ".definition", entry.getValue());
+                i++;
+            }
+        }
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            OutputStream os = Channels.newOutputStream(channel);
+            properties.store(os, "chunk-insert checkpoint");
+            os.flush();
+            channel.force(true);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory();
+    }
+
+    private void syncDirectory() throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toAbsolutePath().getParent(), StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+}
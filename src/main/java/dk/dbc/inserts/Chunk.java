@@ -0,0 +1,315 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of chunk-insert
+ *
+ * chunk-insert is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * chunk-insert is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.inserts;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.DateTimeException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * A number of rows extracted from the select, that are committed together
+ * <p>
+ * Values are stored column by column, see {@link Column}
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+final class Chunk {
+
+    private final List<ColumnType> types;
+    private final Column[] columns;
+    private final RowCopier copier;
+    private final int capacity;
+    private int size;
+    private int requested;
+
+    Chunk(List<ColumnType> types, int capacity) {
+        this.types = types;
+        this.columns = new Column[types.size()];
+        for (int column = 0 ; column < columns.length ; column++) {
+            columns[column] = types.get(column).newColumn(capacity);
+        }
+        this.copier = RowCopier.of(types);
+        this.capacity = capacity;
+        this.size = 0;
+        this.requested = -1;
+    }
+
+    /**
+     * Append the current row of a result set
+     *
+     * @param resultSet result set positioned at a row
+     * @throws SQLException If a value cannot be read
+     */
+    void read(ResultSet resultSet) throws SQLException {
+        copier.read(resultSet, this, size);
+        size++;
+    }
+
+    /**
+     * Append a row of text values
+     *
+     * @param text   characters containing the values
+     * @param begins index of the first character of each value, -1 for null
+     * @param ends   index after the last character of each value
+     * @throws IllegalArgumentException If a value cannot be parsed
+     */
+    void parse(CharSequence text, int[] begins, int[] ends) {
+        for (int column = 0 ; column < columns.length ; column++) {
+            try {
+                if (begins[column] < 0)
+                    columns[column].setNull(size);
+                else
+                    columns[column].parse(text, begins[column], ends[column], size);
+            } catch (IllegalArgumentException | DateTimeException ex) {
+                throw new IllegalArgumentException("column " + (column + 1) + ": " + ex.getMessage(), ex);
+            }
+        }
+        size++;
+    }
+
+    /**
+     * Copy a range of rows to a new chunk
+     *
+     * @param from first row (inclusive)
+     * @param to   last row (exclusive)
+     * @return chunk with the rows
+     */
+    Chunk slice(int from, int to) {
+        Chunk slice = new Chunk(types, to - from);
+        for (int column = 0 ; column < columns.length ; column++) {
+            for (int row = from ; row < to ; row++) {
+                columns[column].copyTo(row, slice.columns[column], row - from);
+            }
+        }
+        slice.size = to - from;
+        return slice;
+    }
+
+    /**
+     * Copy some rows to a new chunk
+     *
+     * @param rows  row numbers
+     * @param count number of row numbers to use
+     * @return chunk with the rows
+     */
+    Chunk subset(int[] rows, int count) {
+        Chunk subset = new Chunk(types, count);
+        for (int column = 0 ; column < columns.length ; column++) {
+            for (int i = 0 ; i < count ; i++) {
+                columns[column].copyTo(rows[i], subset.columns[column], i);
+            }
+        }
+        subset.size = count;
+        return subset;
+    }
+
+    /**
+     * Copy the rows of this and another chunk to a new chunk
+     *
+     * @param other chunk with the same column types
+     * @return chunk with the rows of this followed by the rows of other
+     */
+    Chunk concat(Chunk other) {
+        Chunk concat = new Chunk(types, size + other.size);
+        for (int column = 0 ; column < columns.length ; column++) {
+            for (int row = 0 ; row < size ; row++) {
+                columns[column].copyTo(row, concat.columns[column], row);
+            }
+            for (int row = 0 ; row < other.size ; row++) {
+                other.columns[column].copyTo(row, concat.columns[column], size + row);
+            }
+        }
+        concat.size = size + other.size;
+        return concat;
+    }
+
+    /**
+     * Remove rows from the end
+     *
+     * @param size number of rows to keep
+     */
+    void truncate(int size) {
+        this.size = size;
+    }
+
+    /**
+     * Find where the rows with the same value in a column as the last row
+     * begin
+     *
+     * @param column column number (0 based)
+     * @return first row of the group ending with the last row
+     */
+    int lastGroup(int column) {
+        Object last = keyValue(columns[column].get(size - 1));
+        int row = size - 1;
+        while (row > 0 && Objects.equals(keyValue(columns[column].get(row - 1)), last)) {
+            row--;
+        }
+        return row;
+    }
+
+    /**
+     * Get the values of a column
+     *
+     * @param column column number (0 based)
+     * @return column values
+     */
+    Column column(int column) {
+        return columns[column];
+    }
+
+    /**
+     * Set the values of a row as statement parameters
+     *
+     * @param stmt      statement
+     * @param parameter parameter index (1 based) of the first column
+     * @param row       row number
+     * @throws SQLException If a value cannot be set
+     */
+    void bind(PreparedStatement stmt, int parameter, int row) throws SQLException {
+        copier.bind(stmt, parameter, this, row);
+    }
+
+    /**
+     * Remove rows with the same key, keeping the last of them
+     * <p>
+     * Rows with a null in the key are kept, they never conflict.
+     *
+     * @param key column numbers (0 based) of the key
+     * @return number of rows removed
+     */
+    int deduplicate(int[] key) {
+        HashSet<List<Object>> seen = new HashSet<>();
+        boolean[] keep = new boolean[size];
+        int kept = 0;
+        for (int row = size - 1 ; row >= 0 ; row--) {
+            List<Object> values = new ArrayList<>(key.length);
+            boolean hasNull = false;
+            for (int column : key) {
+                hasNull |= columns[column].isNull(row);
+                values.add(keyValue(columns[column].get(row)));
+            }
+            if (hasNull || seen.add(values)) {
+                keep[row] = true;
+                kept++;
+            }
+        }
+        if (kept == size)
+            return 0;
+        return retain(keep);
+    }
+
+    /**
+     * Remove rows, keeping the order of the remaining
+     *
+     * @param keep which rows to keep
+     * @return number of rows removed
+     */
+    int retain(boolean[] keep) {
+        int to = 0;
+        for (int row = 0 ; row < size ; row++) {
+            if (keep[row]) {
+                if (to != row) {
+                    for (Column column : columns) {
+                        column.move(row, to);
+                    }
+                }
+                to++;
+            }
+        }
+        int removed = size - to;
+        size = to;
+        return removed;
+    }
+
+    /**
+     * Remove all rows, so the chunk can be reused
+     */
+    void clear() {
+        size = 0;
+    }
+
+    /**
+     * Value as it compares in the database
+     *
+     * @param value column value
+     * @return object with equals/hashCode matching database equality
+     */
+    static Object keyValue(Object value) {
+        if (value instanceof byte[])
+            return ByteBuffer.wrap((byte[]) value);
+        if (value instanceof BigDecimal)
+            return ((BigDecimal) value).stripTrailingZeros();
+        return value;
+    }
+
+    /**
+     * Approximate size of the values
+     *
+     * @return number of bytes
+     */
+    long bytes() {
+        long bytes = 0;
+        for (Column column : columns) {
+            for (int row = 0 ; row < size ; row++) {
+                bytes += column.size(row);
+            }
+        }
+        return bytes;
+    }
+
+    int columnCount() {
+        return columns.length;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Number of rows read from the source for this chunk, for sizing chunks
+     * <p>
+     * That is the number of rows, unless rows have been moved between chunks
+     * (see {@link KeyGroups}).
+     *
+     * @return row count
+     */
+    int getRequested() {
+        return requested < 0 ? size : requested;
+    }
+
+    void setRequested(int requested) {
+        this.requested = requested;
+    }
+
+    boolean isFull() {
+        return size == capacity;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+}
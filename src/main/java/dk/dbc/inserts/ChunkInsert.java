@@ -18,20 +18,35 @@
  */
 package dk.dbc.inserts;
 
-import dk.dbc.ReThrowException;
 import dk.dbc.ExitException;
-import java.math.BigDecimal;
+import dk.dbc.ReThrowException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import javax.sql.DataSource;
+import org.postgresql.PGConnection;
 import org.postgresql.ds.PGSimpleDataSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -46,20 +61,40 @@ public class ChunkInsert {
 
     private static final Pattern POSTGRES_URL_REGEX = Pattern.compile("(?:postgres(?:ql)?://)?(?:([^:@]+)(?::([^@]*))@)?([^:/]+)(?::([1-9][0-9]*))?/(.+)");
 
-    private static final Pattern SQL_PATTERN = Pattern.compile("\\s*(insert\\s+into\\s+([.0-9a-z_]+)\\s*(?:\\(\\s*[.0-9a-z_]+(?:\\s*,\\s*[.0-9a-z_]+)*\\s*\\))\\s+)(select\\s+.*)", Pattern.CASE_INSENSITIVE);
+    private static final int RANGES_PER_WORKER = 4;
+
+    private static final int SAMPLE_ROWS = 10_000;
+    private static final int SAMPLE_TIMEOUT_SECONDS = 60;
+
+    private static final Pattern SQL_PATTERN = Pattern.compile("\\s*(insert\\s+into\\s+([.0-9a-z_]+)\\s*(?:\\(\\s*([.0-9a-z_]+(?:\\s*,\\s*[.0-9a-z_]+)*)\\s*\\))\\s*)(select\\s+.*)?", Pattern.CASE_INSENSITIVE);
+
+    private Arguments arguments;
+    private DataSource dataSource;
+    private DataSource sourceDataSource;
+    private String insert;
+    private String table;
+    private List<String> columns;
+    private final AtomicLong rows = new AtomicLong();
+    private final AtomicInteger commits = new AtomicInteger();
+    private Checkpoint checkpoint;
+    private CommitSizeController commitSize;
+    private Metrics metrics;
+    private Throttle throttle;
+    private int[] conflictKey;
+    private String conflictClause;
+    private Rejects rejects;
+    private Spool spool;
+    private ExistingKeys existingKeys;
+    private volatile boolean aborted = false;
 
     private void vacuumAnalyze(DataSource dataSource, String table) throws SQLException {
         log.info("Vacuuming");
+        long start = System.nanoTime();
         try (Connection connection = dataSource.getConnection();
              Statement stmt = connection.createStatement()) {
             stmt.execute("VACUUM ANALYZE " + table);
         }
-    }
-
-    @FunctionalInterface
-    private interface ValueMapper {
-
-        void map(PreparedStatement stmt, ResultSet resultSet);
+        metrics.vacuum.record(System.nanoTime() - start);
     }
 
     /**
@@ -71,161 +106,817 @@ public class ChunkInsert {
     public void run(Arguments arguments) throws Exception {
 
         String sql = arguments.getSql();
-        int commit = arguments.getCommit();
-        boolean dryRun = arguments.isDryRun();
         Matcher matcher = SQL_PATTERN.matcher(sql);
         if (!matcher.matches())
             throw arguments.usage("`" + sql + "' is not a valid sql statement for this command");
-        String insert = matcher.group(1);
-        String table = matcher.group(2);
-        String select = matcher.group(3);
+        this.arguments = arguments;
+        this.insert = matcher.group(1);
+        this.table = matcher.group(2);
+        this.columns = Arrays.asList(matcher.group(3).split("\\s*,\\s*"));
+        String select = matcher.group(4);
+        boolean selecting = arguments.getFromFile() == null && arguments.getReplay() == null;
+        if (selecting && select == null)
+            throw arguments.usage("`" + sql + "' has no select, and neither --from-file nor --replay is given");
+        if (!selecting && select != null)
+            throw arguments.usage("`" + sql + "' cannot have a select with --from-file or --replay");
         log.debug("select = {}", select);
+        OnConflict onConflict = arguments.getOnConflict();
+        if (onConflict == null) {
+            this.conflictClause = "";
+        } else {
+            try {
+                this.conflictKey = onConflict.keyColumns(columns);
+            } catch (IllegalArgumentException ex) {
+                throw arguments.usage(ex.getMessage());
+            }
+            this.conflictClause = onConflict.clause(columns);
+            log.debug("on conflict = {}", conflictClause);
+        }
+        int[] existingKey = null;
+        if (arguments.getSkipExisting() != null) {
+            try {
+                existingKey = ExistingKeys.keyColumns(arguments.getSkipExisting(), columns);
+            } catch (IllegalArgumentException ex) {
+                throw arguments.usage(ex.getMessage());
+            }
+        }
+
+        this.dataSource = makeDataSource(arguments, arguments.getDb());
+        if (arguments.getSourceDb().equals(arguments.getDb())) {
+            this.sourceDataSource = dataSource;
+        } else {
+            log.info("Selecting from {}", arguments.getSourceDb());
+            this.sourceDataSource = makeDataSource(arguments, arguments.getSourceDb());
+        }
+        if (arguments.isPlan()) {
+            plan(select);
+            return;
+        }
+        if (arguments.getTargetCommitMs() == 0) {
+            this.commitSize = CommitSizeController.fixed(arguments.getCommit());
+        } else {
+            log.info("Commit interval between {} and {} targeting {} ms", arguments.getMinCommit(), arguments.getMaxCommit(), arguments.getTargetCommitMs());
+            this.commitSize = new CommitSizeController(arguments.getTargetCommitMs(), arguments.getCommit(), arguments.getMinCommit(), arguments.getMaxCommit());
+        }
+        this.metrics = new Metrics();
+        if (arguments.getMetricsFile() != null)
+            metrics.writePeriodically(Paths.get(arguments.getMetricsFile()), TimeUnit.SECONDS.toMillis(arguments.getMetricsInterval()));
+        long start = System.nanoTime();
+        int parallel = arguments.getParallel();
+        Path checkpointFile = null;
+        List<String> selects = null;
+        boolean resumed = false;
+        if (arguments.getCheckpoint() != null) {
+            if (arguments.isDryRun()) {
+                log.warn("Dry run - no checkpoint is recorded");
+            } else {
+                checkpointFile = Paths.get(arguments.getCheckpoint());
+                if (Files.exists(checkpointFile)) {
+                    if (!arguments.isResume())
+                        throw arguments.usage("Checkpoint file " + checkpointFile + " exists, use --resume");
+                    log.info("Resuming from {}", checkpointFile);
+                    this.checkpoint = Checkpoint.load(checkpointFile);
+                    selects = checkpoint.getSelects();
+                    resumed = true;
+                }
+            }
+        }
+        if (selects == null && select != null) {
+            selects = split(select, parallel);
+            if (checkpointFile != null)
+                this.checkpoint = Checkpoint.create(checkpointFile, selects);
+        }
+        if (arguments.getSpool() != null)
+            this.spool = Spool.create(Paths.get(arguments.getSpool()));
+        if (existingKey != null) {
+            try (Connection connection = dataSource.getConnection()) {
+                this.existingKeys = ExistingKeys.load(connection, table, arguments.getSkipExisting(), existingKey);
+            }
+        }
+        StagingTable staging = null;
+        if (arguments.isStaging()) {
+            if (arguments.isDryRun()) {
+                log.info("Dry run - not using a staging table");
+            } else {
+                staging = StagingTable.create(dataSource, table, resumed, arguments.getMaintenanceWorkMem(), arguments.getParallel(), checkpoint);
+                this.table = staging.getName();
+                this.insert = "INSERT INTO " + table + " (" + String.join(", ", columns) + ") ";
+            }
+        }
+        this.throttle = makeThrottle();
+        this.rejects = makeRejects();
+        try (DeferredIndexes deferredIndexes = makeDeferredIndexes() ;
+             Metrics closeMetrics = metrics ;
+             MaintenanceScheduler maintenance = makeMaintenanceScheduler() ;
+             Throttle closeThrottle = throttle ;
+             Rejects closeRejects = rejects) {
+            if (arguments.getReplay() != null)
+                replay(Paths.get(arguments.getReplay()), parallel);
+            else if (select == null)
+                loadFile(Paths.get(arguments.getFromFile()));
+            else if (selects.size() == 1)
+                load(0, selects.get(0));
+            else
+                loadParallel(selects, parallel, this::load);
+        }
+        if (spool != null && !aborted)
+            spool.finish();
+        if (staging != null && !aborted)
+            staging.swap();
+        if (checkpointFile != null && !aborted) {
+            log.debug("Removing checkpoint file {}", checkpointFile);
+            Files.delete(checkpointFile);
+        }
+        if (existingKeys != null)
+            log.info("Skipped {} rows that exist in {}", existingKeys.getSkipped(), table);
+        long duration = Long.max(1, System.nanoTime() - start);
+        log.info("Done - {} rows at {} rows/s", rows.get(), rows.get() * 1_000_000_000L / duration);
+        metrics.log();
+    }
+
+    /**
+     * Print how the load should be run, instead of loading
+     *
+     * @param select the select statement
+     * @throws Exception If the select cannot be planned
+     */
+    private void plan(String select) throws Exception {
+        boolean server = arguments.getKey() != null && sourceDataSource == dataSource &&
+                         arguments.getRejectFile() == null && !arguments.isRoutePartitions();
+        Planner planner;
+        try (Connection source = sourceDataSource.getConnection() ;
+             Connection target = dataSource.getConnection()) {
+            planner = Planner.of(source, target, select, table, columns, arguments.getParallel(), conflictKey != null, server);
+        }
+        Planner.Sample sample = null;
+        try {
+            sample = sample(select, planner, arguments.isPlanWrite());
+        } catch (SQLException ex) {
+            log.warn("Cannot sample the select: {}", ex.getMessage());
+        }
+        System.out.print(planner.report(sample));
+    }
 
-        DataSource dataSource = makeDataSource(arguments);
-        int fetchSize = Integer.min(commit, 10000);
-        try (Connection connectionSelect = dataSource.getConnection()) {
+    /**
+     * Time reading the first rows of the select, and if asked for writing
+     * them into the target (rolled back)
+     * <p>
+     * Writing is only done when asked for, since triggers fire, sequences
+     * advance and locks are taken in the target, even though the rows are
+     * rolled back.
+     *
+     * @param select  the select statement
+     * @param planner the chosen mode, commit and fetch size
+     * @param write   if the rows should be written too
+     * @return timing
+     * @throws Exception If reading or writing fails
+     */
+    private Planner.Sample sample(String select, Planner planner, boolean write) throws Exception {
+        int count = Integer.min(planner.getCommit(), SAMPLE_ROWS);
+        String limited = "SELECT * FROM (" + select + ") AS src LIMIT " + count;
+        if (write && planner.getMode() == Mode.SERVER) {
+            try (Connection connection = dataSource.getConnection() ;
+                 Statement stmt = connection.createStatement()) {
+                connection.setAutoCommit(false);
+                stmt.setQueryTimeout(SAMPLE_TIMEOUT_SECONDS);
+                long start = System.nanoTime();
+                try {
+                    int inserted = stmt.executeUpdate(insert + limited);
+                    return new Planner.Sample(inserted, 0, System.nanoTime() - start);
+                } finally {
+                    connection.rollback();
+                }
+            }
+        }
+        try (Connection connectionSelect = sourceDataSource.getConnection()) {
             connectionSelect.setAutoCommit(false);
             try (Statement stmt = connectionSelect.createStatement()) {
-                stmt.setFetchSize(fetchSize);
-                try (ResultSet resultSet = stmt.executeQuery(select)) {
-                    resultSet.setFetchSize(fetchSize);
+                stmt.setQueryTimeout(SAMPLE_TIMEOUT_SECONDS);
+                stmt.setFetchSize(planner.getFetchSize());
+                long start = System.nanoTime();
+                try (ResultSet resultSet = stmt.executeQuery(limited)) {
                     ResultSetMetaData metaData = resultSet.getMetaData();
-                    int columnCount = metaData.getColumnCount();
-                    String insertStmt = makeInsert(insert, columnCount);
-                    List<ValueMapper> mapperList = makeMapperList(metaData);
-                    log.debug("insert = {}", insertStmt);
+                    List<ColumnType> types = ColumnType.of(metaData);
+                    Chunk chunk = new Chunk(types, count);
+                    while (resultSet.next()) {
+                        chunk.read(resultSet);
+                    }
+                    long read = System.nanoTime() - start;
+                    if (!write)
+                        return new Planner.Sample(chunk.size(), read, -1);
                     try (Connection connectionInsert = dataSource.getConnection()) {
                         connectionInsert.setAutoCommit(false);
-                        try (PreparedStatement pstmt = connectionInsert.prepareStatement(insertStmt)) {
-                            int row = 0;
-                            int commitCount = 0;
-                            while (resultSet.next()) {
-                                mapperList.forEach(m -> m.map(pstmt, resultSet));
-                                pstmt.addBatch();
-                                if (++row % commit == 0) {
-                                    pstmt.executeBatch();
-                                    if (dryRun) {
-                                        log.info("Row: {} - rolling back", row);
-                                        connectionInsert.rollback();
-                                    } else {
-                                        log.info("Row: {} - committing", row);
-                                        connectionInsert.commit();
-                                        if (++commitCount == arguments.getVacuum())
-                                            vacuumAnalyze(dataSource, table);
-                                    }
-                                }
+                        try (RowWriter writer = makeRowWriter(planner.getMode(), connectionInsert, types, metaData)) {
+                            long writeStart = System.nanoTime();
+                            if (!chunk.isEmpty())
+                                writer.write(chunk);
+                            return new Planner.Sample(chunk.size(), read, System.nanoTime() - writeStart);
+                        } finally {
+                            connectionInsert.rollback();
+                        }
+                    }
+                }
+            }
+        }
+    }
 
+    /**
+     * Number of rows loaded
+     *
+     * @return row count
+     */
+    public long getRows() {
+        return rows.get();
+    }
+
+    /**
+     * Find the table a sql statement inserts into
+     *
+     * @param sql 'INSERT INTO xxx (...) SELECT ...' statement
+     * @return table name (lower case) or null if not a valid statement
+     */
+    static String targetTable(String sql) {
+        Matcher matcher = SQL_PATTERN.matcher(sql);
+        if (!matcher.matches())
+            return null;
+        return matcher.group(2).toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Split the select into ranges if running in parallel or --split-by is
+     * given
+     *
+     * @param select   the select statement
+     * @param parallel number of workers
+     * @return list of select statements
+     * @throws SQLException If the ranges cannot be computed
+     */
+    private List<String> split(String select, int parallel) throws SQLException {
+        if (parallel == 1 && arguments.getSplitBy() == null)
+            return List.of(select);
+        try (Connection connection = sourceDataSource.getConnection()) {
+            if (arguments.getSplitBy() == null)
+                return SelectSplitter.byBlocks(connection, select, parallel * RANGES_PER_WORKER);
+            else
+                return SelectSplitter.byKey(connection, select, arguments.getSplitBy(), parallel * RANGES_PER_WORKER);
+        }
+    }
+
+    /**
+     * Load a range (a select or a spooled file)
+     */
+    @FunctionalInterface
+    private interface RangeLoader {
+
+        void load(int range, String select) throws Exception;
+    }
+
+    /**
+     * Run a number of selects using a pool of workers
+     * <p>
+     * If one select fails, the others are stopped at the next chunk
+     *
+     * @param selects  the select statements
+     * @param parallel number of workers
+     * @param loader   how to load a select
+     * @throws Exception The first failure if any select failed
+     */
+    private void loadParallel(List<String> selects, int parallel, RangeLoader loader) throws Exception {
+        log.info("Loading {} ranges using {} workers", selects.size(), parallel);
+        ExecutorService executor = Executors.newFixedThreadPool(parallel);
+        try {
+            List<Future<?>> futures = new ArrayList<>(selects.size());
+            for (int i = 0 ; i < selects.size() ; i++) {
+                int range = i;
+                String select = selects.get(i);
+                futures.add(executor.submit(() -> {
+                    if (aborted)
+                        return;
+                    try {
+                        ReThrowException.wrap(() -> loader.load(range, select));
+                    } catch (RuntimeException | Error ex) {
+                        aborted = true; // Stop the other ranges now, not when this future is reached
+                        throw ex;
+                    }
+                }));
+            }
+            Exception failure = null;
+            int failed = 0;
+            for (int i = 0 ; i < futures.size() ; i++) {
+                try {
+                    futures.get(i).get();
+                } catch (ExecutionException ex) {
+                    aborted = true;
+                    failed++;
+                    log.error("Range {} failed: {}", i + 1, ex.getCause().getMessage());
+                    log.debug("Range {} failed: {}", i + 1, selects.get(i), ex.getCause());
+                    if (failure == null && ex.getCause() instanceof Exception)
+                        failure = (Exception) ex.getCause();
+                }
+            }
+            if (failed != 0) {
+                log.error("{} of {} ranges failed", failed, selects.size());
+                if (failure != null)
+                    throw failure;
+                throw new IllegalStateException("Loading failed");
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Copy all rows from a select to the target table
+     * <p>
+     * When checkpointing, the select is ordered by the key, and continues
+     * after the last committed key of the range
+     *
+     * @param range  range number (0 based)
+     * @param select the select statement
+     * @throws Exception If something fails
+     */
+    private void load(int range, String select) throws Exception {
+        String lower = null;
+        if (checkpoint != null) {
+            if (checkpoint.isDone(range)) {
+                log.info("Range {} is already done", range + 1);
+                return;
+            }
+            lower = checkpoint.getKey(range);
+            if (lower != null)
+                log.info("Range {} continues after {}", range + 1, lower);
+        }
+        if (arguments.getMode() == Mode.SERVER) {
+            loadServerSide(range, select, lower);
+            return;
+        }
+        String key = arguments.getKey();
+        if (checkpoint != null)
+            select = "SELECT * FROM (" + select + ") AS src" +
+                     (lower == null ? "" : " WHERE " + key + " > ?") +
+                     " ORDER BY " + key;
+        int fetchSize = fetchSize(commitSize.size());
+        try (Connection connectionSelect = sourceDataSource.getConnection()) {
+            connectionSelect.setAutoCommit(false);
+            try (PreparedStatement stmt = connectionSelect.prepareStatement(select)) {
+                stmt.setFetchSize(fetchSize);
+                if (lower != null)
+                    stmt.setObject(1, lower, Types.OTHER);
+                try (ResultSet resultSet = stmt.executeQuery()) {
+                    resultSet.setFetchSize(fetchSize);
+                    ResultSetMetaData metaData = resultSet.getMetaData();
+                    List<ColumnType> types = ColumnType.of(metaData);
+                    int keyIndex = checkpoint == null ? -1 : keyIndex(metaData, types, key);
+                    if (spool != null) {
+                        spool.columns(metaData, types);
+                        try (ChunkProducer producer = new ChunkProducer(stmt, resultSet, types, commitSize::size, this::fetchSize, arguments.getReadAhead(), metrics)) {
+                            spoolChunks(producer);
+                        }
+                    } else {
+                        try (Connection connectionInsert = dataSource.getConnection()) {
+                            connectionInsert.setAutoCommit(false);
+                            try (RowWriter writer = makeRowWriter(arguments.getMode(), connectionInsert, types, metaData) ;
+                                 ChunkProducer producer = new ChunkProducer(stmt, resultSet, types, commitSize::size, this::fetchSize, arguments.getReadAhead(), metrics)) {
+                                // Rows with the same key must be committed together, resume skips past the key
+                                KeyGroups.Chunks chunks = keyIndex < 0 ? producer::take : new KeyGroups(producer::take, keyIndex)::take;
+                                writeChunks(range, chunks, connectionInsert, writer, keyIndex);
                             }
-                            if (row % commit != 0) {
-                                pstmt.executeBatch();
-                                if (dryRun) {
-                                    log.info("Row: {} - rolling back", row);
-                                    connectionInsert.rollback();
-                                } else {
-                                    log.info("Row: {} - committing", row);
-                                    connectionInsert.commit();
-                                    if (++commitCount == arguments.getVacuum())
-                                        vacuumAnalyze(dataSource, table);
-                                }
-                            }
-                            log.info("Done");
                         }
                     }
                 }
             }
         }
+        if (checkpoint != null && !aborted)
+            checkpoint.completed(range);
     }
 
     /**
-     * Generate result set to prepared statement mappers
+     * Number of rows to fetch from the select at a time
      *
-     * @param metaData Data about the select statement
-     * @return list of mappers
-     * @throws SQLException If data is invalid
+     * @param chunkSize number of rows in a chunk
+     * @return --fetch-size if given, otherwise following the chunk size
      */
-    private List<ValueMapper> makeMapperList(ResultSetMetaData metaData) throws SQLException {
-        int columnCount = metaData.getColumnCount();
-        ArrayList<ValueMapper> list = new ArrayList<>(columnCount);
-        for (int i = 1 ; i <= columnCount ; i++) {
-            final int column = i;
-            String columnName = metaData.getColumnName(column);
-            String columnClassName = metaData.getColumnClassName(column);
-            log.debug("columnName = {}; columnClassName = {}", columnName, columnClassName);
-            switch (columnClassName) {
-                case "java.math.BigDecimal":
-                    list.add((stmt, resultSet) -> ReThrowException.wrap(() -> {
-                        BigDecimal value = resultSet.getBigDecimal(column);
-                        if (resultSet.wasNull())
-                            stmt.setNull(column, java.sql.Types.DECIMAL);
-                        else
-                            stmt.setBigDecimal(column, value);
-                    }));
-                    break;
-                case "java.lang.String":
-                    list.add((stmt, resultSet) -> ReThrowException.wrap(() -> {
-                        String value = resultSet.getString(column);
-                        if (resultSet.wasNull())
-                            stmt.setNull(column, java.sql.Types.VARCHAR);
-                        else
-                            stmt.setString(column, value);
-                    }));
-                    break;
-                case "java.lang.Int":
-                    list.add((stmt, resultSet) -> ReThrowException.wrap(() -> {
-                        Integer value = resultSet.getInt(column);
-                        if (resultSet.wasNull())
-                            stmt.setNull(column, java.sql.Types.INTEGER);
-                        else
-                            stmt.setInt(column, value);
-                    }));
-                    break;
-                case "java.lang.Long":
-                    list.add((stmt, resultSet) -> ReThrowException.wrap(() -> {
-                        Long value = resultSet.getLong(column);
-                        if (resultSet.wasNull())
-                            stmt.setNull(column, java.sql.Types.BIGINT);
-                        else
-                            stmt.setLong(column, value);
-                    }));
-                    break;
-                case "java.lang.Boolean":
-                    list.add((stmt, resultSet) -> ReThrowException.wrap(() -> {
-                        Boolean value = resultSet.getBoolean(column);
-                        if (resultSet.wasNull())
-                            stmt.setNull(column, java.sql.Types.BOOLEAN);
-                        else
-                            stmt.setBoolean(column, value);
-                    }));
-                    break;
-                default:
-                    log.error("columnName: {}, type: {} using generic (slow) mapper", columnName, columnClassName);
-                    list.add((stmt, resultSet) -> ReThrowException.wrap(() -> {
-                        Object value = resultSet.getObject(column);
-                        if (resultSet.wasNull())
-                            stmt.setNull(column, java.sql.Types.OTHER);
-                        else
-                            stmt.setObject(column, value);
-                    }));
+    private int fetchSize(int chunkSize) {
+        int fetchSize = arguments.getFetchSize();
+        return fetchSize == 0 ? ChunkProducer.fetchSize(chunkSize) : fetchSize;
+    }
+
+    /**
+     * Write chunks to the spool directory until there are no more, or
+     * spooling is aborted
+     *
+     * @param producer where to take chunks from
+     * @throws Exception If something fails
+     */
+    private void spoolChunks(ChunkProducer producer) throws Exception {
+        for (Chunk chunk = producer.take() ; chunk != null && !aborted ; chunk = producer.take()) {
+            long chunkStart = System.nanoTime();
+            spool.write(chunk);
+            metrics.write.record(System.nanoTime() - chunkStart);
+            long chunkBytes = chunk.bytes();
+            metrics.written(chunk.size(), chunkBytes);
+            log.info("Row: {} - spooled", rows.addAndGet(chunk.size()));
+            if (throttle != null)
+                throttle.pace(chunk.size(), chunkBytes);
+        }
+    }
+
+    /**
+     * Copy the files of a spool directory to the target table
+     *
+     * @param dir      the spool directory
+     * @param parallel number of workers
+     * @throws Exception If something fails
+     */
+    private void replay(Path dir, int parallel) throws Exception {
+        Spool replay = Spool.load(dir);
+        try (Connection connection = dataSource.getConnection()) {
+            replay.validate(connection, table, columns);
+        }
+        List<String> files = replay.getFiles();
+        RangeLoader loader = (index, name) -> replayFile(replay, index, name);
+        if (parallel == 1 || files.size() <= 1) {
+            for (int i = 0 ; i < files.size() && !aborted ; i++) {
+                loader.load(i, files.get(i));
+            }
+        } else {
+            loadParallel(files, parallel, loader);
+        }
+    }
+
+    /**
+     * Copy a spooled file to the target table in a transaction of its own
+     *
+     * @param replay the spool
+     * @param index  file number in the manifest (0 based)
+     * @param name   file name
+     * @throws Exception If something fails
+     */
+    private void replayFile(Spool replay, int index, String name) throws Exception {
+        if (replay.isDone(name)) {
+            log.info("{} is already loaded", name);
+            return;
+        }
+        String copySql = "COPY " + table + " (" + String.join(", ", columns) + ") FROM STDIN (FORMAT BINARY)";
+        try (Connection connection = dataSource.getConnection() ;
+             InputStream is = replay.open(name)) {
+            connection.setAutoCommit(false);
+            long chunkStart = System.nanoTime();
+            long count = connection.unwrap(PGConnection.class).getCopyAPI().copyIn(copySql, is, 64 * 1024);
+            long written = System.nanoTime();
+            if (count != replay.getRows(index))
+                throw new IllegalStateException(name + " has " + count + " rows, expected " + replay.getRows(index));
+            metrics.write.record(written - chunkStart);
+            metrics.written(count, 0);
+            long row = rows.addAndGet(count);
+            boolean committed = endChunk(connection, arguments.isDryRun(), row);
+            metrics.commit.record(System.nanoTime() - written);
+            if (throttle != null)
+                throttle.pace(count, 0);
+            if (committed) {
+                replay.done(name);
+                if (commits.incrementAndGet() == arguments.getVacuum())
+                    vacuumAnalyze(dataSource, table);
+            }
+        }
+    }
+
+    /**
+     * Copy all rows from a file to the target table
+     * <p>
+     * The file fields are parsed into the types of the target columns
+     *
+     * @param file the file
+     * @throws Exception If something fails
+     */
+    private void loadFile(Path file) throws Exception {
+        log.info("Loading {} as {}", file, arguments.getFormat());
+        try (Connection connectionInsert = dataSource.getConnection()) {
+            connectionInsert.setAutoCommit(false);
+            try (Statement stmt = connectionInsert.createStatement() ;
+                 ResultSet resultSet = stmt.executeQuery("SELECT " + String.join(", ", columns) + " FROM " + table + " LIMIT 0")) {
+                ResultSetMetaData metaData = resultSet.getMetaData();
+                List<ColumnType> types = ColumnType.ofText(metaData);
+                try (FileSource source = FileSource.open(file, arguments.getFormat(), arguments.isHeader(), columns) ;
+                     RowWriter writer = makeRowWriter(arguments.getMode(), connectionInsert, types, metaData) ;
+                     ChunkProducer producer = new ChunkProducer(source, types, commitSize::size, arguments.getReadAhead(), metrics)) {
+                    writeChunks(0, producer::take, connectionInsert, writer, -1);
+                }
+            }
+        }
+    }
+
+    /**
+     * Write and commit chunks until there are no more, or loading is aborted
+     *
+     * @param range            range number (0 based) for checkpointing
+     * @param chunks           where to take chunks from
+     * @param connectionInsert connection the rows are written to
+     * @param writer           how the rows are written
+     * @param keyIndex         column number (0 based) of the checkpoint key or
+     *                         -1 if not checkpointing
+     * @throws Exception If something fails
+     */
+    private void writeChunks(int range, KeyGroups.Chunks chunks, Connection connectionInsert, RowWriter writer, int keyIndex) throws Exception {
+        boolean dryRun = arguments.isDryRun();
+        for (Chunk chunk = chunks.take() ; chunk != null && !aborted ; chunk = chunks.take()) {
+            // Nulls are ordered last, so only the last row needs checking
+            if (keyIndex >= 0 && chunk.column(keyIndex).isNull(chunk.size() - 1))
+                throw new IllegalStateException("Cannot checkpoint rows where " + arguments.getKey() + " is null");
+            // Skipping can remove the last row, so its key is taken first
+            String lastKey = keyIndex < 0 ? null : String.valueOf(chunk.column(keyIndex).get(chunk.size() - 1));
+            int requested = chunk.getRequested();
+            if (existingKeys != null) {
+                int skipped = existingKeys.skip(connectionInsert, chunk);
+                if (skipped != 0)
+                    log.debug("Skipped {} existing rows from chunk", skipped);
+            }
+            if (conflictKey != null) {
+                int removed = chunk.deduplicate(conflictKey);
+                if (removed != 0)
+                    log.debug("Removed {} duplicate rows from chunk", removed);
+            }
+            long chunkStart = System.nanoTime();
+            int rejected = 0;
+            if (rejects == null)
+                writer.write(chunk);
+            else
+                rejected = rejects.write(connectionInsert, writer, chunk);
+            long written = System.nanoTime();
+            metrics.write.record(written - chunkStart);
+            long chunkBytes = chunk.bytes();
+            metrics.written(chunk.size() - rejected, chunkBytes);
+            long row = rows.addAndGet(chunk.size() - rejected);
+            boolean committed = endChunk(connectionInsert, dryRun, row);
+            long chunkEnd = System.nanoTime();
+            metrics.commit.record(chunkEnd - written);
+            commitSize.update(requested, chunkEnd - chunkStart);
+            if (throttle != null)
+                throttle.pace(chunk.size(), chunkBytes);
+            if (committed) {
+                if (checkpoint != null)
+                    checkpoint.committed(range, lastKey);
+                if (commits.incrementAndGet() == arguments.getVacuum())
+                    vacuumAnalyze(dataSource, table);
+            }
+        }
+    }
+
+    /**
+     * Find the key column in the select output
+     *
+     * @param metaData select statement column data
+     * @param types    column types
+     * @param key      name of key column
+     * @return column number (0 based)
+     * @throws SQLException If the meta data cannot be accessed
+     */
+    private static int keyIndex(ResultSetMetaData metaData, List<ColumnType> types, String key) throws SQLException {
+        for (int column = 1 ; column <= metaData.getColumnCount() ; column++) {
+            if (metaData.getColumnLabel(column).equalsIgnoreCase(key)) {
+                ColumnType type = types.get(column - 1);
+                if (type == ColumnType.BYTEA || type == ColumnType.ARRAY)
+                    throw new IllegalStateException("Cannot checkpoint by " + key + ", it is of type " + type);
+                return column - 1;
+            }
+        }
+        throw new IllegalStateException("Cannot checkpoint by " + key + ", it is not in the select");
+    }
+
+    /**
+     * Copy all rows from a select to the target table using INSERT ... SELECT
+     * <p>
+     * Chunks are key ranges, where the upper bound of a range is the key of
+     * the commit'th row after the lower bound. Rows with null key are inserted
+     * last as a chunk of its own, regardless of how many there are.
+     * <p>
+     * Finding an upper bound runs the select ordered by the key from the
+     * lower bound. That is cheap when the select is a plain select from a
+     * table with an index on the key, as the bound is pushed into the select.
+     * Otherwise (aggregates, joins, sorts on other columns) every chunk runs
+     * the whole select, and the total cost grows with the square of the
+     * number of rows; use a larger --commit or a client side mode then. The
+     * bounds are found without the DISTINCT ON of --on-conflict, so it does
+     * not stop the bound from being pushed down.
+     * <p>
+     * Key values are handled as text, and left for the database to cast to
+     * the type of the key.
+     *
+     * @param range  range number (0 based)
+     * @param select the select statement
+     * @param lower  key to continue after or null for from the start
+     * @throws SQLException         If something fails
+     * @throws IOException          If the checkpoint cannot be written
+     * @throws InterruptedException If interrupted while throttled
+     */
+    private void loadServerSide(int range, String select, String lower) throws SQLException, IOException, InterruptedException {
+        boolean dryRun = arguments.isDryRun();
+        String key = arguments.getKey();
+        String source = "SELECT " + distinctOn() + "* FROM (" + select + ") AS src";
+        // Duplicates only make ranges insert fewer rows than the commit size, so
+        // the bounds are taken from the select as is
+        String keys = "SELECT * FROM (" + select + ") AS src";
+        try (Connection connection = dataSource.getConnection()) {
+            connection.setAutoCommit(false);
+            for (;;) {
+                int requested = commitSize.size();
+                String upper = nextUpperKey(connection, keys, key, lower, requested);
+                boolean full = upper != null;
+                if (!full)
+                    upper = lastKey(connection, keys, key, lower);
+                if (upper == null || aborted)
                     break;
+                String where = (lower == null ? "" : key + " > ? AND ") + key + " <= ?";
+                long chunkStart = System.nanoTime();
+                long count = executeInsert(connection, insert + source + " WHERE " + where + conflictClause, lower, upper);
+                long written = System.nanoTime();
+                metrics.write.record(written - chunkStart);
+                metrics.written(count, 0);
+                log.debug("Key range ({}, {}] - {} rows", lower, upper, count);
+                long row = rows.addAndGet(count);
+                boolean committed = endChunk(connection, dryRun, row);
+                long chunkEnd = System.nanoTime();
+                metrics.commit.record(chunkEnd - written);
+                // Rows removed by DISTINCT ON or ON CONFLICT are covered too
+                commitSize.update(full ? requested : (int) Long.min(count, Integer.MAX_VALUE), chunkEnd - chunkStart);
+                if (throttle != null)
+                    throttle.pace(count, 0);
+                if (committed) {
+                    if (checkpoint != null)
+                        checkpoint.committed(range, upper);
+                    if (commits.incrementAndGet() == arguments.getVacuum())
+                        vacuumAnalyze(dataSource, table);
+                }
+                lower = upper;
+            }
+            if (!aborted) {
+                long count = executeInsert(connection, insert + source + " WHERE " + key + " IS NULL" + conflictClause, null, null);
+                if (count != 0) {
+                    metrics.written(count, 0);
+                    log.debug("Null key - {} rows", count);
+                    long row = rows.addAndGet(count);
+                    if (endChunk(connection, dryRun, row) &&
+                        commits.incrementAndGet() == arguments.getVacuum())
+                        vacuumAnalyze(dataSource, table);
+                }
+                if (checkpoint != null)
+                    checkpoint.completed(range);
             }
         }
-        return list;
     }
 
-    private String makeInsert(String insert, int columnCount) {
-        StringBuilder sb = new StringBuilder(insert)
-                .append(" VALUES(");
-        for (int i = 0 ; i < columnCount ; i++) {
+    /**
+     * Deduplicate by the conflict key in server mode, there is no order so
+     * which of the duplicates is kept is arbitrary
+     *
+     * @return DISTINCT ON clause with the select column numbers or empty
+     *         string
+     */
+    private String distinctOn() {
+        if (conflictKey == null)
+            return "";
+        StringBuilder sb = new StringBuilder("DISTINCT ON (");
+        for (int i = 0 ; i < conflictKey.length ; i++) {
             if (i != 0)
                 sb.append(", ");
-            sb.append("?");
+            sb.append(conflictKey[i] + 1);
+        }
+        return sb.append(") ").toString();
+    }
+
+    /**
+     * Find the key of the row count rows after the lower bound
+     *
+     * @param connection database connection
+     * @param source     select statement
+     * @param key        key column
+     * @param lower      lower bound (exclusive) or null for none
+     * @param count      number of rows
+     * @return key value or null if there are less than count rows
+     * @throws SQLException If the query fails
+     */
+    private static String nextUpperKey(Connection connection, String source, String key, String lower, int count) throws SQLException {
+        return queryKey(connection, "SELECT " + key + keysAfter(source, key, lower) + " ORDER BY " + key + " OFFSET " + (count - 1) + " LIMIT 1", lower);
+    }
+
+    /**
+     * Find the largest key after the lower bound
+     *
+     * @param connection database connection
+     * @param source     select statement
+     * @param key        key column
+     * @param lower      lower bound (exclusive) or null for none
+     * @return key value or null if there are no rows
+     * @throws SQLException If the query fails
+     */
+    private static String lastKey(Connection connection, String source, String key, String lower) throws SQLException {
+        return queryKey(connection, "SELECT " + key + keysAfter(source, key, lower) + " ORDER BY " + key + " DESC LIMIT 1", lower);
+    }
+
+    private static String keysAfter(String source, String key, String lower) {
+        return " FROM (" + source + ") AS keys" +
+               (lower == null ? " WHERE " + key + " IS NOT NULL" : " WHERE " + key + " > ?");
+    }
+
+    private static String queryKey(Connection connection, String sql, String lower) throws SQLException {
+        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+            if (lower != null)
+                stmt.setObject(1, lower, Types.OTHER);
+            try (ResultSet resultSet = stmt.executeQuery()) {
+                if (resultSet.next())
+                    return resultSet.getString(1);
+                return null;
+            }
+        }
+    }
+
+    private static long executeInsert(Connection connection, String sql, String lower, String upper) throws SQLException {
+        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+            int parameter = 1;
+            if (lower != null)
+                stmt.setObject(parameter++, lower, Types.OTHER);
+            if (upper != null)
+                stmt.setObject(parameter++, upper, Types.OTHER);
+            return stmt.executeLargeUpdate();
+        }
+    }
+
+    /**
+     * Commit (or rollback if dry-run) rows sent to the database
+     *
+     * @param connection the connection rows are written to
+     * @param dryRun     if rollback should be used instead of commit
+     * @param row        number of rows processed for logging
+     * @return if the chunk was committed
+     * @throws SQLException If the database rejects the rows
+     */
+    private static boolean endChunk(Connection connection, boolean dryRun, long row) throws SQLException {
+        if (dryRun) {
+            log.info("Row: {} - rolling back", row);
+            connection.rollback();
+            return false;
+        } else {
+            log.info("Row: {} - committing", row);
+            connection.commit();
+            return true;
+        }
+    }
+
+    private MaintenanceScheduler makeMaintenanceScheduler() {
+        int seconds = arguments.getMaintenance();
+        if (seconds == 0)
+            return null;
+        log.info("Checking if {} needs vacuum/analyze every {} seconds", table, seconds);
+        return new MaintenanceScheduler(dataSource, table, TimeUnit.SECONDS.toMillis(seconds), metrics);
+    }
+
+    private DeferredIndexes makeDeferredIndexes() throws SQLException, IOException {
+        if (!arguments.isDeferIndexes() || arguments.isStaging())
+            return null;
+        if (arguments.isDryRun()) {
+            log.info("Dry run - indexes are left untouched");
+            return null;
+        }
+        return DeferredIndexes.drop(dataSource, table, arguments.getMaintenanceWorkMem(), arguments.getParallel(), checkpoint);
+    }
+
+    private Throttle makeThrottle() {
+        if (arguments.getMaxRowsPerSec() == 0 && arguments.getMaxBytesPerSec() == 0 && arguments.getMaxReplicaLag() == 0)
+            return null;
+        DataSource replica = arguments.getReplica() == null ? null : makeDataSource(arguments, arguments.getReplica());
+        return new Throttle(arguments.getMaxRowsPerSec(), arguments.getMaxBytesPerSec(), arguments.getMaxReplicaLag(), dataSource, replica);
+    }
+
+    private Rejects makeRejects() throws IOException {
+        if (arguments.getRejectFile() == null)
+            return null;
+        log.info("Rejected rows are written to {}", arguments.getRejectFile());
+        return new Rejects(Paths.get(arguments.getRejectFile()), arguments.getMaxRejects(), columns);
+    }
+
+    private RowWriter makeRowWriter(Mode mode, Connection connection, List<ColumnType> types, ResultSetMetaData metaData) throws SQLException {
+        if (arguments.isRoutePartitions()) {
+            PartitionRouter router = PartitionRouter.of(connection, table, columns, types);
+            if (router != null)
+                return new PartitionWriter(router, target -> makeRowWriter(mode, connection, types, metaData, target), table);
+        }
+        return makeRowWriter(mode, connection, types, metaData, table);
+    }
+
+    private RowWriter makeRowWriter(Mode mode, Connection connection, List<ColumnType> types, ResultSetMetaData metaData, String target) throws SQLException {
+        String targetInsert = target.equals(table) ? insert : "INSERT INTO " + target + " (" + String.join(", ", columns) + ") ";
+        switch (mode) {
+            case COPY:
+                return new BinaryCopyWriter(connection, target, columns, types, metaData);
+            case MULTI_ROW:
+                return new BatchInsertWriter(connection, targetInsert, types.size(), arguments.getRowsPerStatement(), conflictClause);
+            case INSERT:
+            default:
+                return new BatchInsertWriter(connection, targetInsert, types.size(), 1, conflictClause);
         }
-        sb.append(")");
-        return sb.toString();
     }
 
-    private static DataSource makeDataSource(Arguments arguments) throws ExitException {
-        String url = arguments.getDb();
+    private static DataSource makeDataSource(Arguments arguments, String url) throws ExitException {
         PGSimpleDataSource ds = new PGSimpleDataSource();
 
         Matcher matcher = POSTGRES_URL_REGEX.matcher(url);
@@ -243,6 +934,8 @@ public class ChunkInsert {
             if (port != null)
                 ds.setPortNumbers(new int[] {Integer.parseUnsignedInt(port)});
             ds.setDatabaseName(base);
+            if (arguments.isRewriteBatchedInserts())
+                ds.setReWriteBatchedInserts(true);
             return ds;
         } else {
             throw arguments.usage(url + " is not a valid database connection");
@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of chunk-insert
+ *
+ * chunk-insert is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * chunk-insert is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.inserts;
+
+import dk.dbc.ReThrowException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.IntSupplier;
+import java.util.function.IntUnaryOperator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Read chunks from a result set (or another source of rows) in a separate
+ * thread
+ * <p>
+ * Chunks are handed over through a bounded queue, so the select is never
+ * more than read-ahead chunks ahead of the insert. If reading fails, the
+ * exception (or error, like running out of memory) is thrown from
+ * {@link #take()} in the consuming thread.
+ * <p>
+ * The chunk size is looked up for every chunk, so it can be adjusted while
+ * reading. The fetch size of the result set follows it.
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+class ChunkProducer implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(ChunkProducer.class);
+
+    private static final Chunk END = new Chunk(List.of(), 0);
+
+    /**
+     * Where rows are read from
+     */
+    interface Source {
+
+        /**
+         * Move to the next row
+         *
+         * @return if there is a row
+         * @throws Exception If reading fails
+         */
+        boolean next() throws Exception;
+
+        /**
+         * Append the current row to a chunk
+         *
+         * @param chunk where to put the values
+         * @throws Exception If the values cannot be read
+         */
+        void read(Chunk chunk) throws Exception;
+
+        /**
+         * The chunk size has changed
+         *
+         * @param chunkSize number of rows in a chunk
+         * @throws Exception If the source cannot be adjusted
+         */
+        default void resize(int chunkSize) throws Exception {
+        }
+
+        /**
+         * Abort a read that doesn't respond to interrupt
+         *
+         * @throws SQLException If the read cannot be aborted
+         */
+        default void cancel() throws SQLException {
+        }
+    }
+
+    private final Source source;
+    private final List<ColumnType> types;
+    private final IntSupplier chunkSize;
+    private final Metrics metrics;
+    private final BlockingQueue<Chunk> queue;
+    private final Thread thread;
+    private volatile Throwable failure;
+    private boolean done;
+
+    /**
+     * Start reading
+     *
+     * @param stmt      statement that produced the result set (for
+     *                  cancellation)
+     * @param resultSet where to read from
+     * @param types     type of each column
+     * @param chunkSize number of rows in the next chunk
+     * @param readAhead number of chunks that can be queued
+     * @param metrics   where to record fetch and mapping time
+     */
+    ChunkProducer(Statement stmt, ResultSet resultSet, List<ColumnType> types, IntSupplier chunkSize, int readAhead, Metrics metrics) {
+        this(stmt, resultSet, types, chunkSize, ChunkProducer::fetchSize, readAhead, metrics);
+    }
+
+    /**
+     * Start reading
+     *
+     * @param stmt      statement that produced the result set (for
+     *                  cancellation)
+     * @param resultSet where to read from
+     * @param types     type of each column
+     * @param chunkSize number of rows in the next chunk
+     * @param fetchSize fetch size for a chunk size
+     * @param readAhead number of chunks that can be queued
+     * @param metrics   where to record fetch and mapping time
+     */
+    ChunkProducer(Statement stmt, ResultSet resultSet, List<ColumnType> types, IntSupplier chunkSize, IntUnaryOperator fetchSize, int readAhead, Metrics metrics) {
+        this(new Source() {
+            @Override
+            public boolean next() throws SQLException {
+                return resultSet.next();
+            }
+
+            @Override
+            public void read(Chunk chunk) throws SQLException {
+                chunk.read(resultSet);
+            }
+
+            @Override
+            public void resize(int chunkSize) throws SQLException {
+                resultSet.setFetchSize(fetchSize.applyAsInt(chunkSize));
+            }
+
+            @Override
+            public void cancel() throws SQLException {
+                stmt.cancel();
+            }
+        }, types, chunkSize, readAhead, metrics);
+    }
+
+    /**
+     * Start reading
+     *
+     * @param source    where to read from
+     * @param types     type of each column
+     * @param chunkSize number of rows in the next chunk
+     * @param readAhead number of chunks that can be queued
+     * @param metrics   where to record fetch and mapping time
+     */
+    ChunkProducer(Source source, List<ColumnType> types, IntSupplier chunkSize, int readAhead, Metrics metrics) {
+        this.source = source;
+        this.types = types;
+        this.chunkSize = chunkSize;
+        this.metrics = metrics;
+        this.queue = new ArrayBlockingQueue<>(readAhead);
+        this.failure = null;
+        this.done = false;
+        this.thread = new Thread(this::produce, "chunk-producer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Get the next chunk
+     *
+     * @return chunk or null if no more rows
+     * @throws InterruptedException If interrupted while waiting
+     * @throws RuntimeException     (often {@link ReThrowException}) If reading
+     *                              failed
+     * @throws Error                If the reading thread failed with an error
+     */
+    Chunk take() throws InterruptedException {
+        if (done)
+            return null;
+        Chunk chunk = queue.take();
+        if (chunk == END) {
+            done = true;
+            if (failure instanceof Error)
+                throw (Error) failure;
+            if (failure != null)
+                throw (RuntimeException) failure;
+            return null;
+        }
+        return chunk;
+    }
+
+    @Override
+    public void close() throws InterruptedException, SQLException {
+        if (thread.isAlive()) {
+            log.debug("Stopping chunk producer");
+            thread.interrupt();
+            thread.join(1_000L);
+            if (thread.isAlive()) {
+                source.cancel();
+                thread.join();
+            }
+        }
+    }
+
+    /**
+     * Number of rows to fetch from the database at a time
+     *
+     * @param chunkSize number of rows in a chunk
+     * @return fetch size
+     */
+    static int fetchSize(int chunkSize) {
+        return Integer.min(chunkSize, 10000);
+    }
+
+    private void produce() {
+        try {
+            ReThrowException.wrap(() -> {
+                int size = chunkSize.getAsInt();
+                Chunk chunk = new Chunk(types, size);
+                long fetchNanos = 0;
+                long mappingNanos = 0;
+                for (;;) {
+                    long before = System.nanoTime();
+                    boolean hasRow = source.next();
+                    long fetched = System.nanoTime();
+                    fetchNanos += fetched - before;
+                    if (!hasRow)
+                        break;
+                    source.read(chunk);
+                    mappingNanos += System.nanoTime() - fetched;
+                    if (chunk.isFull()) {
+                        metrics.fetch.record(fetchNanos);
+                        metrics.mapping.record(mappingNanos);
+                        fetchNanos = 0;
+                        mappingNanos = 0;
+                        queue.put(chunk);
+                        int nextSize = chunkSize.getAsInt();
+                        if (nextSize != size) {
+                            size = nextSize;
+                            source.resize(size);
+                        }
+                        chunk = new Chunk(types, size);
+                    }
+                }
+                if (!chunk.isEmpty()) {
+                    metrics.fetch.record(fetchNanos);
+                    metrics.mapping.record(mappingNanos);
+                    queue.put(chunk);
+                }
+                queue.put(END);
+            });
+        } catch (RuntimeException | Error ex) {
+            // Clear before logging, to free the queued chunks if out of memory
+            queue.clear();
+            failure = ex;
+            queue.offer(END);
+            log.debug("Chunk producer failed: {}", ex.getMessage());
+        }
+    }
+}
@@ -0,0 +1,833 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of chunk-insert
+ *
+ * chunk-insert is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * chunk-insert is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.inserts;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+
+/**
+ * The values of one column in a chunk
+ * <p>
+ * Primitive types are stored in primitive arrays, so no values are boxed
+ * between reading from the select and writing to the target.
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+abstract class Column {
+
+    // Powers of ten that are exact in a double and a float
+    private static final double[] DOUBLE_POWERS = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    private static final float[] FLOAT_POWERS = {
+        1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f
+    };
+
+    protected final boolean[] nulls;
+
+    protected Column(int capacity) {
+        this.nulls = new boolean[capacity];
+    }
+
+    /**
+     * Store a value from the current row of a result set
+     *
+     * @param resultSet result set positioned at a row
+     * @param index     column index in result set (1 based)
+     * @param row       where to store the value
+     * @throws SQLException If the value cannot be read
+     */
+    abstract void read(ResultSet resultSet, int index, int row) throws SQLException;
+
+    /**
+     * Store a value parsed from text (a field of a file)
+     *
+     * @param text  characters containing the value
+     * @param begin index of the first character of the value
+     * @param end   index after the last character of the value
+     * @param row   where to store the value
+     * @throws IllegalArgumentException If the text is not a valid value
+     */
+    abstract void parse(CharSequence text, int begin, int end, int row);
+
+    /**
+     * Store a null value
+     *
+     * @param row where to store the value
+     */
+    void setNull(int row) {
+        nulls[row] = true;
+    }
+
+    /**
+     * Set a value as a statement parameter
+     *
+     * @param stmt      statement
+     * @param parameter parameter index (1 based)
+     * @param row       which value
+     * @throws SQLException If the value cannot be set
+     */
+    abstract void bind(PreparedStatement stmt, int parameter, int row) throws SQLException;
+
+    /**
+     * Write a value as length + postgres binary representation (binary COPY)
+     *
+     * @param out where to write
+     * @param row which value
+     * @throws IOException If the value cannot be written
+     */
+    abstract void encode(DataOutputStream out, int row) throws IOException;
+
+    /**
+     * Get a value as an object (boxed)
+     *
+     * @param row which value
+     * @return value or null
+     */
+    abstract Object get(int row);
+
+    /**
+     * If the values are integers, that can be taken with {@link #getLong}
+     *
+     * @return if an int2, int4 or int8 column
+     */
+    boolean isInteger() {
+        return false;
+    }
+
+    /**
+     * Get an integer value without boxing
+     *
+     * @param row which value (not null)
+     * @return value
+     * @throws UnsupportedOperationException If not an integer column
+     */
+    long getLong(int row) {
+        throw new UnsupportedOperationException("Not an integer column");
+    }
+
+    /**
+     * Copy a value within the column
+     *
+     * @param from source row
+     * @param to   destination row
+     */
+    abstract void move(int from, int to);
+
+    /**
+     * Copy a value to another column of the same type
+     *
+     * @param row       source row
+     * @param target    destination column
+     * @param targetRow destination row
+     */
+    abstract void copyTo(int row, Column target, int targetRow);
+
+    /**
+     * Approximate size of a value as sent to the database
+     *
+     * @param row which value
+     * @return number of bytes (0 for null)
+     */
+    abstract int size(int row);
+
+    boolean isNull(int row) {
+        return nulls[row];
+    }
+
+    /**
+     * Parse a double without making a String
+     * <p>
+     * A decimal of at most 15 significant digits and a power of ten up to 22
+     * is computed as digits times (or divided by) the power of ten, which are
+     * both exact, so the result is correctly rounded (Clinger's fast path).
+     * Other values (more digits, larger exponents, Infinity, NaN) are parsed
+     * by {@link Double#parseDouble(String)}.
+     *
+     * @param text  characters containing the value
+     * @param begin index of the first character of the value
+     * @param end   index after the last character of the value
+     * @return value
+     * @throws NumberFormatException If the text is not a number
+     */
+    static double parseDouble(CharSequence text, int begin, int end) {
+        double value = decimal(text, begin, end, 15, 22, false);
+        if (Double.isNaN(value))
+            return Double.parseDouble(text.subSequence(begin, end).toString());
+        return value;
+    }
+
+    /**
+     * Parse a float without making a String
+     * <p>
+     * As {@link #parseDouble(CharSequence, int, int)}, with at most 7
+     * significant digits and a power of ten up to 10, computed in float.
+     *
+     * @param text  characters containing the value
+     * @param begin index of the first character of the value
+     * @param end   index after the last character of the value
+     * @return value
+     * @throws NumberFormatException If the text is not a number
+     */
+    static float parseFloat(CharSequence text, int begin, int end) {
+        double value = decimal(text, begin, end, 7, 10, true);
+        if (Double.isNaN(value))
+            return Float.parseFloat(text.subSequence(begin, end).toString());
+        return (float) value;
+    }
+
+    /**
+     * Compute a plain decimal ([+-]digits[.digits][(e|E)[+-]digits]) if it
+     * can be done exactly
+     *
+     * @param text      characters containing the value
+     * @param begin     index of the first character of the value
+     * @param end       index after the last character of the value
+     * @param maxDigits max significant digits
+     * @param maxPower  max power of ten
+     * @param single    if the value should be computed as a float
+     * @return value or NaN if it has to be parsed otherwise
+     */
+    private static double decimal(CharSequence text, int begin, int end, int maxDigits, int maxPower, boolean single) {
+        int i = begin;
+        boolean negative = false;
+        if (i < end && (text.charAt(i) == '-' || text.charAt(i) == '+'))
+            negative = text.charAt(i++) == '-';
+        long digits = 0;
+        int significant = 0;
+        int exponent = 0;
+        boolean any = false;
+        boolean point = false;
+        for (; i < end ; i++) {
+            char c = text.charAt(i);
+            if (c >= '0' && c <= '9') {
+                any = true;
+                if (digits != 0 || c != '0') {
+                    if (++significant > maxDigits)
+                        return Double.NaN;
+                    digits = digits * 10 + (c - '0');
+                }
+                if (point)
+                    exponent--;
+            } else if (c == '.' && !point) {
+                point = true;
+            } else {
+                break;
+            }
+        }
+        if (!any)
+            return Double.NaN;
+        if (i < end) {
+            char c = text.charAt(i++);
+            if (c != 'e' && c != 'E')
+                return Double.NaN;
+            boolean negativeExponent = false;
+            if (i < end && (text.charAt(i) == '-' || text.charAt(i) == '+'))
+                negativeExponent = text.charAt(i++) == '-';
+            if (i == end)
+                return Double.NaN;
+            int power = 0;
+            for (; i < end ; i++) {
+                c = text.charAt(i);
+                if (c < '0' || c > '9' || power > 1000)
+                    return Double.NaN;
+                power = power * 10 + (c - '0');
+            }
+            exponent += negativeExponent ? -power : power;
+        }
+        if (digits == 0)
+            return negative ? -0.0 : 0.0;
+        if (exponent < -maxPower || exponent > maxPower)
+            return Double.NaN;
+        double value;
+        if (single)
+            value = exponent < 0 ? (float) digits / FLOAT_POWERS[-exponent] : (float) digits * FLOAT_POWERS[exponent];
+        else
+            value = exponent < 0 ? digits / DOUBLE_POWERS[-exponent] : digits * DOUBLE_POWERS[exponent];
+        return negative ? -value : value;
+    }
+
+    static final class ShortColumn extends Column {
+
+        private final short[] values;
+
+        ShortColumn(int capacity) {
+            super(capacity);
+            this.values = new short[capacity];
+        }
+
+        @Override
+        void read(ResultSet resultSet, int index, int row) throws SQLException {
+            values[row] = resultSet.getShort(index);
+            nulls[row] = resultSet.wasNull();
+        }
+
+        @Override
+        void parse(CharSequence text, int begin, int end, int row) {
+            int value = Integer.parseInt(text, begin, end, 10);
+            if (value < Short.MIN_VALUE || value > Short.MAX_VALUE)
+                throw new NumberFormatException("Value out of range for int2: " + value);
+            values[row] = (short) value;
+            nulls[row] = false;
+        }
+
+        @Override
+        void bind(PreparedStatement stmt, int parameter, int row) throws SQLException {
+            if (nulls[row])
+                stmt.setNull(parameter, Types.SMALLINT);
+            else
+                stmt.setShort(parameter, values[row]);
+        }
+
+        @Override
+        void encode(DataOutputStream out, int row) throws IOException {
+            if (nulls[row]) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(2);
+                out.writeShort(values[row]);
+            }
+        }
+
+        @Override
+        void move(int from, int to) {
+            values[to] = values[from];
+            nulls[to] = nulls[from];
+        }
+
+        @Override
+        void copyTo(int row, Column target, int targetRow) {
+            ShortColumn other = (ShortColumn) target;
+            other.values[targetRow] = values[row];
+            other.nulls[targetRow] = nulls[row];
+        }
+
+        @Override
+        int size(int row) {
+            return nulls[row] ? 0 : 2;
+        }
+
+        @Override
+        Object get(int row) {
+            return nulls[row] ? null : values[row];
+        }
+
+        @Override
+        boolean isInteger() {
+            return true;
+        }
+
+        @Override
+        long getLong(int row) {
+            return values[row];
+        }
+    }
+
+    static final class IntColumn extends Column {
+
+        private final int[] values;
+
+        IntColumn(int capacity) {
+            super(capacity);
+            this.values = new int[capacity];
+        }
+
+        @Override
+        void read(ResultSet resultSet, int index, int row) throws SQLException {
+            values[row] = resultSet.getInt(index);
+            nulls[row] = resultSet.wasNull();
+        }
+
+        @Override
+        void parse(CharSequence text, int begin, int end, int row) {
+            values[row] = Integer.parseInt(text, begin, end, 10);
+            nulls[row] = false;
+        }
+
+        @Override
+        void bind(PreparedStatement stmt, int parameter, int row) throws SQLException {
+            if (nulls[row])
+                stmt.setNull(parameter, Types.INTEGER);
+            else
+                stmt.setInt(parameter, values[row]);
+        }
+
+        @Override
+        void encode(DataOutputStream out, int row) throws IOException {
+            if (nulls[row]) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(4);
+                out.writeInt(values[row]);
+            }
+        }
+
+        @Override
+        void move(int from, int to) {
+            values[to] = values[from];
+            nulls[to] = nulls[from];
+        }
+
+        @Override
+        void copyTo(int row, Column target, int targetRow) {
+            IntColumn other = (IntColumn) target;
+            other.values[targetRow] = values[row];
+            other.nulls[targetRow] = nulls[row];
+        }
+
+        @Override
+        int size(int row) {
+            return nulls[row] ? 0 : 4;
+        }
+
+        @Override
+        Object get(int row) {
+            return nulls[row] ? null : values[row];
+        }
+
+        @Override
+        boolean isInteger() {
+            return true;
+        }
+
+        @Override
+        long getLong(int row) {
+            return values[row];
+        }
+    }
+
+    static final class LongColumn extends Column {
+
+        private final long[] values;
+
+        LongColumn(int capacity) {
+            super(capacity);
+            this.values = new long[capacity];
+        }
+
+        @Override
+        void read(ResultSet resultSet, int index, int row) throws SQLException {
+            values[row] = resultSet.getLong(index);
+            nulls[row] = resultSet.wasNull();
+        }
+
+        @Override
+        void parse(CharSequence text, int begin, int end, int row) {
+            values[row] = Long.parseLong(text, begin, end, 10);
+            nulls[row] = false;
+        }
+
+        @Override
+        void bind(PreparedStatement stmt, int parameter, int row) throws SQLException {
+            if (nulls[row])
+                stmt.setNull(parameter, Types.BIGINT);
+            else
+                stmt.setLong(parameter, values[row]);
+        }
+
+        @Override
+        void encode(DataOutputStream out, int row) throws IOException {
+            if (nulls[row]) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(8);
+                out.writeLong(values[row]);
+            }
+        }
+
+        @Override
+        void move(int from, int to) {
+            values[to] = values[from];
+            nulls[to] = nulls[from];
+        }
+
+        @Override
+        void copyTo(int row, Column target, int targetRow) {
+            LongColumn other = (LongColumn) target;
+            other.values[targetRow] = values[row];
+            other.nulls[targetRow] = nulls[row];
+        }
+
+        @Override
+        int size(int row) {
+            return nulls[row] ? 0 : 8;
+        }
+
+        @Override
+        Object get(int row) {
+            return nulls[row] ? null : values[row];
+        }
+
+        @Override
+        boolean isInteger() {
+            return true;
+        }
+
+        @Override
+        long getLong(int row) {
+            return values[row];
+        }
+    }
+
+    static final class FloatColumn extends Column {
+
+        private final float[] values;
+
+        FloatColumn(int capacity) {
+            super(capacity);
+            this.values = new float[capacity];
+        }
+
+        @Override
+        void read(ResultSet resultSet, int index, int row) throws SQLException {
+            values[row] = resultSet.getFloat(index);
+            nulls[row] = resultSet.wasNull();
+        }
+
+        @Override
+        void parse(CharSequence text, int begin, int end, int row) {
+            values[row] = parseFloat(text, begin, end);
+            nulls[row] = false;
+        }
+
+        @Override
+        void bind(PreparedStatement stmt, int parameter, int row) throws SQLException {
+            if (nulls[row])
+                stmt.setNull(parameter, Types.REAL);
+            else
+                stmt.setFloat(parameter, values[row]);
+        }
+
+        @Override
+        void encode(DataOutputStream out, int row) throws IOException {
+            if (nulls[row]) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(4);
+                out.writeFloat(values[row]);
+            }
+        }
+
+        @Override
+        void move(int from, int to) {
+            values[to] = values[from];
+            nulls[to] = nulls[from];
+        }
+
+        @Override
+        void copyTo(int row, Column target, int targetRow) {
+            FloatColumn other = (FloatColumn) target;
+            other.values[targetRow] = values[row];
+            other.nulls[targetRow] = nulls[row];
+        }
+
+        @Override
+        int size(int row) {
+            return nulls[row] ? 0 : 4;
+        }
+
+        @Override
+        Object get(int row) {
+            return nulls[row] ? null : values[row];
+        }
+    }
+
+    static final class DoubleColumn extends Column {
+
+        private final double[] values;
+
+        DoubleColumn(int capacity) {
+            super(capacity);
+            this.values = new double[capacity];
+        }
+
+        @Override
+        void read(ResultSet resultSet, int index, int row) throws SQLException {
+            values[row] = resultSet.getDouble(index);
+            nulls[row] = resultSet.wasNull();
+        }
+
+        @Override
+        void parse(CharSequence text, int begin, int end, int row) {
+            values[row] = parseDouble(text, begin, end);
+            nulls[row] = false;
+        }
+
+        @Override
+        void bind(PreparedStatement stmt, int parameter, int row) throws SQLException {
+            if (nulls[row])
+                stmt.setNull(parameter, Types.DOUBLE);
+            else
+                stmt.setDouble(parameter, values[row]);
+        }
+
+        @Override
+        void encode(DataOutputStream out, int row) throws IOException {
+            if (nulls[row]) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(8);
+                out.writeDouble(values[row]);
+            }
+        }
+
+        @Override
+        void move(int from, int to) {
+            values[to] = values[from];
+            nulls[to] = nulls[from];
+        }
+
+        @Override
+        void copyTo(int row, Column target, int targetRow) {
+            DoubleColumn other = (DoubleColumn) target;
+            other.values[targetRow] = values[row];
+            other.nulls[targetRow] = nulls[row];
+        }
+
+        @Override
+        int size(int row) {
+            return nulls[row] ? 0 : 8;
+        }
+
+        @Override
+        Object get(int row) {
+            return nulls[row] ? null : values[row];
+        }
+    }
+
+    static final class BooleanColumn extends Column {
+
+        private static final String[] TRUE = {"true", "yes", "on", "1"};
+        private static final String[] FALSE = {"false", "no", "off", "0"};
+
+        private final boolean[] values;
+
+        BooleanColumn(int capacity) {
+            super(capacity);
+            this.values = new boolean[capacity];
+        }
+
+        @Override
+        void read(ResultSet resultSet, int index, int row) throws SQLException {
+            values[row] = resultSet.getBoolean(index);
+            nulls[row] = resultSet.wasNull();
+        }
+
+        @Override
+        void parse(CharSequence text, int begin, int end, int row) {
+            values[row] = parseBoolean(text, begin, end);
+            nulls[row] = false;
+        }
+
+        @Override
+        void bind(PreparedStatement stmt, int parameter, int row) throws SQLException {
+            if (nulls[row])
+                stmt.setNull(parameter, Types.BOOLEAN);
+            else
+                stmt.setBoolean(parameter, values[row]);
+        }
+
+        @Override
+        void encode(DataOutputStream out, int row) throws IOException {
+            if (nulls[row]) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(1);
+                out.writeByte(values[row] ? 1 : 0);
+            }
+        }
+
+        @Override
+        void move(int from, int to) {
+            values[to] = values[from];
+            nulls[to] = nulls[from];
+        }
+
+        @Override
+        void copyTo(int row, Column target, int targetRow) {
+            BooleanColumn other = (BooleanColumn) target;
+            other.values[targetRow] = values[row];
+            other.nulls[targetRow] = nulls[row];
+        }
+
+        @Override
+        int size(int row) {
+            return nulls[row] ? 0 : 1;
+        }
+
+        @Override
+        Object get(int row) {
+            return nulls[row] ? null : values[row];
+        }
+
+        /**
+         * Parse a boolean as postgres does (case insensitive true, yes, on, 1
+         * or false, no, off, 0 and unique prefixes of these)
+         *
+         * @param text  characters containing the value
+         * @param begin index of the first character of the value
+         * @param end   index after the last character of the value
+         * @return the value
+         */
+        static boolean parseBoolean(CharSequence text, int begin, int end) {
+            for (String word : TRUE) {
+                if (isPrefix(text, begin, end, word))
+                    return true;
+            }
+            for (String word : FALSE) {
+                if (isPrefix(text, begin, end, word))
+                    return false;
+            }
+            throw new IllegalArgumentException("Invalid boolean: " + text.subSequence(begin, end));
+        }
+
+        private static boolean isPrefix(CharSequence text, int begin, int end, String word) {
+            if (begin == end || end - begin > word.length())
+                return false;
+            for (int i = begin ; i < end ; i++) {
+                if (Character.toLowerCase(text.charAt(i)) != word.charAt(i - begin))
+                    return false;
+            }
+            // "o" is ambiguous (on/off)
+            return end - begin > 1 || word.charAt(0) != 'o';
+        }
+    }
+
+    /**
+     * Column of values that are objects anyway (strings, numerics, dates...)
+     *
+     * @param <T> value type
+     */
+    static final class ObjectColumn<T> extends Column {
+
+        @FunctionalInterface
+        interface Reader<T> {
+
+            T read(ResultSet resultSet, int index) throws SQLException;
+        }
+
+        @FunctionalInterface
+        interface Binder<T> {
+
+            void bind(PreparedStatement stmt, int parameter, T value) throws SQLException;
+        }
+
+        @FunctionalInterface
+        interface Encoder<T> {
+
+            void encode(T value, DataOutputStream out) throws IOException;
+        }
+
+        @FunctionalInterface
+        interface Parser<T> {
+
+            T parse(String text);
+        }
+
+        private final Reader<T> reader;
+        private final Binder<T> binder;
+        private final Encoder<T> encoder;
+        private final Parser<T> parser;
+        private final int sqlType;
+        private final Object[] values;
+
+        ObjectColumn(int capacity, Reader<T> reader, Binder<T> binder, Encoder<T> encoder, Parser<T> parser, int sqlType) {
+            super(capacity);
+            this.reader = reader;
+            this.binder = binder;
+            this.encoder = encoder;
+            this.parser = parser;
+            this.sqlType = sqlType;
+            this.values = new Object[capacity];
+        }
+
+        @Override
+        void read(ResultSet resultSet, int index, int row) throws SQLException {
+            T value = reader.read(resultSet, index);
+            values[row] = value;
+            nulls[row] = value == null;
+        }
+
+        @Override
+        void parse(CharSequence text, int begin, int end, int row) {
+            if (parser == null)
+                throw new IllegalArgumentException("Cannot parse values of this type");
+            values[row] = parser.parse(text.subSequence(begin, end).toString());
+            nulls[row] = false;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        void bind(PreparedStatement stmt, int parameter, int row) throws SQLException {
+            if (nulls[row])
+                stmt.setNull(parameter, sqlType);
+            else
+                binder.bind(stmt, parameter, (T) values[row]);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        void encode(DataOutputStream out, int row) throws IOException {
+            if (nulls[row])
+                out.writeInt(-1);
+            else
+                encoder.encode((T) values[row], out);
+        }
+
+        @Override
+        void move(int from, int to) {
+            values[to] = values[from];
+            nulls[to] = nulls[from];
+        }
+
+        @Override
+        void copyTo(int row, Column target, int targetRow) {
+            ObjectColumn<?> other = (ObjectColumn<?>) target;
+            other.values[targetRow] = values[row];
+            other.nulls[targetRow] = nulls[row];
+        }
+
+        @Override
+        int size(int row) {
+            Object value = values[row];
+            if (value == null)
+                return 0;
+            if (value instanceof String)
+                return ((String) value).length();
+            if (value instanceof byte[])
+                return ((byte[]) value).length;
+            if (value instanceof BigDecimal)
+                return 8 + ((BigDecimal) value).precision() / 2;
+            if (value instanceof java.util.UUID)
+                return 16;
+            return 8;
+        }
+
+        @Override
+        Object get(int row) {
+            return values[row];
+        }
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of chunk-insert
+ *
+ * chunk-insert is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * chunk-insert is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.inserts;
+
+import java.math.BigDecimal;
+import java.sql.Array;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntFunction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * How values of a column are read, bound and encoded
+ * <p>
+ * Types are registered by postgres type name (as reported by
+ * {@link ResultSetMetaData#getColumnTypeName(int)}) and by JDBC type. Lookup
+ * is by type name first, then by JDBC type, and if neither matches the
+ * generic (slow) getObject/setObject type is used.
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+final class ColumnType {
+
+    private static final Logger log = LoggerFactory.getLogger(ColumnType.class);
+
+    // Postgres output format, ISO 8601 is accepted too
+    private static final DateTimeFormatter TIMESTAMP_FORMAT = new DateTimeFormatterBuilder()
+            .append(DateTimeFormatter.ISO_LOCAL_DATE)
+            .optionalStart().appendLiteral('T').optionalEnd()
+            .optionalStart().appendLiteral(' ').optionalEnd()
+            .append(DateTimeFormatter.ISO_LOCAL_TIME)
+            .toFormatter();
+    private static final DateTimeFormatter TIMESTAMPTZ_FORMAT = new DateTimeFormatterBuilder()
+            .append(TIMESTAMP_FORMAT)
+            .appendOffset("+HH:mm", "Z")
+            .toFormatter();
+
+    private static final Map<String, ColumnType> BY_TYPE_NAME = new ConcurrentHashMap<>();
+    private static final Map<Integer, ColumnType> BY_JDBC_TYPE = new ConcurrentHashMap<>();
+
+    static final ColumnType INT2 = register(new ColumnType("int2", Column.ShortColumn::new, true),
+                                            "int2", "smallserial");
+    static final ColumnType INT4 = register(new ColumnType("int4", Column.IntColumn::new, true),
+                                            "int4", "serial");
+    static final ColumnType INT8 = register(new ColumnType("int8", Column.LongColumn::new, true),
+                                            "int8", "bigserial");
+    static final ColumnType FLOAT4 = register(new ColumnType("float4", Column.FloatColumn::new, true),
+                                              "float4");
+    static final ColumnType FLOAT8 = register(new ColumnType("float8", Column.DoubleColumn::new, true),
+                                              "float8");
+    static final ColumnType BOOL = register(new ColumnType("bool", Column.BooleanColumn::new, true),
+                                            "bool");
+    static final ColumnType NUMERIC = register(new ColumnType("numeric", capacity -> new Column.ObjectColumn<BigDecimal>(
+                                               capacity, ResultSet::getBigDecimal, PreparedStatement::setBigDecimal, BinaryCopyWriter::encodeNumeric, BigDecimal::new, Types.NUMERIC), true),
+                                               "numeric");
+    static final ColumnType TEXT = register(new ColumnType("text", capacity -> new Column.ObjectColumn<String>(
+                                            capacity, ResultSet::getString, PreparedStatement::setString, BinaryCopyWriter::encodeText, text -> text, Types.VARCHAR), true),
+                                            "text", "varchar", "bpchar", "name");
+    static final ColumnType JSON = register(new ColumnType("json", capacity -> new Column.ObjectColumn<String>(
+                                            capacity, ResultSet::getString, ColumnType::setOther, BinaryCopyWriter::encodeText, text -> text, Types.OTHER), true),
+                                            "json");
+    static final ColumnType JSONB = register(new ColumnType("jsonb", capacity -> new Column.ObjectColumn<String>(
+                                             capacity, ResultSet::getString, ColumnType::setOther, BinaryCopyWriter::encodeJsonb, text -> text, Types.OTHER), true),
+                                             "jsonb");
+    static final ColumnType BYTEA = register(new ColumnType("bytea", capacity -> new Column.ObjectColumn<byte[]>(
+                                             capacity, ResultSet::getBytes, PreparedStatement::setBytes, BinaryCopyWriter::encodeBytes, ColumnType::parseBytea, Types.BINARY), true),
+                                             "bytea");
+    static final ColumnType UUID = register(new ColumnType("uuid", capacity -> new Column.ObjectColumn<java.util.UUID>(
+                                            capacity, (resultSet, index) -> resultSet.getObject(index, java.util.UUID.class), PreparedStatement::setObject, BinaryCopyWriter::encodeUuid, java.util.UUID::fromString, Types.OTHER), true),
+                                            "uuid");
+    static final ColumnType DATE = register(new ColumnType("date", capacity -> new Column.ObjectColumn<LocalDate>(
+                                            capacity, (resultSet, index) -> resultSet.getObject(index, LocalDate.class), PreparedStatement::setObject, BinaryCopyWriter::encodeDate, LocalDate::parse, Types.DATE), true),
+                                            "date");
+    static final ColumnType TIME = register(new ColumnType("time", capacity -> new Column.ObjectColumn<LocalTime>(
+                                            capacity, (resultSet, index) -> resultSet.getObject(index, LocalTime.class), PreparedStatement::setObject, BinaryCopyWriter::encodeTime, LocalTime::parse, Types.TIME), true),
+                                            "time");
+    static final ColumnType TIMESTAMP = register(new ColumnType("timestamp", capacity -> new Column.ObjectColumn<LocalDateTime>(
+                                                 capacity, (resultSet, index) -> resultSet.getObject(index, LocalDateTime.class), PreparedStatement::setObject, BinaryCopyWriter::encodeTimestamp, text -> LocalDateTime.parse(text, TIMESTAMP_FORMAT), Types.TIMESTAMP), true),
+                                                 "timestamp");
+    static final ColumnType TIMESTAMPTZ = register(new ColumnType("timestamptz", capacity -> new Column.ObjectColumn<OffsetDateTime>(
+                                                   capacity, (resultSet, index) -> resultSet.getObject(index, OffsetDateTime.class), PreparedStatement::setObject, BinaryCopyWriter::encodeTimestamptz, text -> OffsetDateTime.parse(text, TIMESTAMPTZ_FORMAT), Types.TIMESTAMP_WITH_TIMEZONE), true),
+                                                   "timestamptz");
+    static final ColumnType ARRAY = register(new ColumnType("array", capacity -> new Column.ObjectColumn<Array>(
+                                             capacity, ResultSet::getArray, PreparedStatement::setArray, null, null, Types.ARRAY), false));
+    static final ColumnType GENERIC = new ColumnType("generic", capacity -> new Column.ObjectColumn<Object>(
+                                                     capacity, ResultSet::getObject, PreparedStatement::setObject, null, null, Types.OTHER), false);
+
+    /**
+     * Values from text of a type that has no parser, left for the database to
+     * convert
+     */
+    static final ColumnType UNTYPED = new ColumnType("untyped", capacity -> new Column.ObjectColumn<String>(
+                                                     capacity, ResultSet::getString, ColumnType::setOther, null, text -> text, Types.OTHER), false);
+
+    static {
+        registerJdbcType(Types.SMALLINT, INT2);
+        registerJdbcType(Types.INTEGER, INT4);
+        registerJdbcType(Types.BIGINT, INT8);
+        registerJdbcType(Types.REAL, FLOAT4);
+        // Types.DOUBLE and Types.BIT are left out, money and bit(n) are reported as those
+        registerJdbcType(Types.BOOLEAN, BOOL);
+        registerJdbcType(Types.NUMERIC, NUMERIC);
+        registerJdbcType(Types.DECIMAL, NUMERIC);
+        registerJdbcType(Types.CHAR, TEXT);
+        registerJdbcType(Types.VARCHAR, TEXT);
+        registerJdbcType(Types.LONGVARCHAR, TEXT);
+        registerJdbcType(Types.BINARY, BYTEA);
+        registerJdbcType(Types.VARBINARY, BYTEA);
+        registerJdbcType(Types.LONGVARBINARY, BYTEA);
+        registerJdbcType(Types.DATE, DATE);
+        registerJdbcType(Types.TIME, TIME);
+        registerJdbcType(Types.TIMESTAMP, TIMESTAMP);
+        registerJdbcType(Types.TIMESTAMP_WITH_TIMEZONE, TIMESTAMPTZ);
+        registerJdbcType(Types.ARRAY, ARRAY);
+    }
+
+    private final String name;
+    private final IntFunction<Column> factory;
+    private final boolean binaryCopy;
+
+    /**
+     * Define a column type
+     *
+     * @param name       name for logging
+     * @param factory    make a column with a given capacity
+     * @param binaryCopy if the column can encode values for binary COPY
+     */
+    ColumnType(String name, IntFunction<Column> factory, boolean binaryCopy) {
+        this.name = name;
+        this.factory = factory;
+        this.binaryCopy = binaryCopy;
+    }
+
+    /**
+     * Register a type for a number of postgres type names
+     *
+     * @param type      the column type
+     * @param typeNames postgres names of the type
+     * @return the column type
+     */
+    static ColumnType register(ColumnType type, String... typeNames) {
+        for (String typeName : typeNames) {
+            BY_TYPE_NAME.put(typeName, type);
+        }
+        return type;
+    }
+
+    /**
+     * Register a type for a JDBC type, used when the postgres type name is
+     * unknown
+     *
+     * @param jdbcType JDBC type from {@link Types}
+     * @param type     the column type
+     */
+    static void registerJdbcType(int jdbcType, ColumnType type) {
+        BY_JDBC_TYPE.put(jdbcType, type);
+    }
+
+    /**
+     * Find the column type of a select column
+     *
+     * @param metaData select statement column data
+     * @param column   column index (1 based)
+     * @return column type, {@link #GENERIC} if none matched
+     * @throws SQLException If the meta data cannot be accessed
+     */
+    static ColumnType of(ResultSetMetaData metaData, int column) throws SQLException {
+        ColumnType type = BY_TYPE_NAME.get(metaData.getColumnTypeName(column));
+        if (type == null)
+            type = BY_JDBC_TYPE.getOrDefault(metaData.getColumnType(column), GENERIC);
+        return type;
+    }
+
+    /**
+     * Find the column types of a select statement and log them
+     *
+     * @param metaData select statement column data
+     * @return column type for each column
+     * @throws SQLException If the meta data cannot be accessed
+     */
+    static List<ColumnType> of(ResultSetMetaData metaData) throws SQLException {
+        int columnCount = metaData.getColumnCount();
+        ArrayList<ColumnType> types = new ArrayList<>(columnCount);
+        StringBuilder summary = new StringBuilder();
+        for (int column = 1 ; column <= columnCount ; column++) {
+            String columnName = metaData.getColumnName(column);
+            String typeName = metaData.getColumnTypeName(column);
+            ColumnType type = of(metaData, column);
+            if (type == GENERIC)
+                log.error("columnName: {}, type: {} using generic (slow) mapper", columnName, typeName);
+            types.add(type);
+            if (column != 1)
+                summary.append(", ");
+            summary.append(columnName).append('=').append(type.name);
+            if (!type.name.equals(typeName))
+                summary.append('(').append(typeName).append(')');
+        }
+        log.info("Column mappers: {}", summary);
+        return types;
+    }
+
+    /**
+     * Find the column types to parse text values into
+     * <p>
+     * Types that cannot be parsed are sent as text of unspecified type
+     *
+     * @param metaData target columns
+     * @return column type for each column
+     * @throws SQLException If the meta data cannot be accessed
+     */
+    static List<ColumnType> ofText(ResultSetMetaData metaData) throws SQLException {
+        List<ColumnType> types = of(metaData);
+        types.replaceAll(type -> type == ARRAY || type == GENERIC ? UNTYPED : type);
+        return types;
+    }
+
+    /**
+     * Postgres type name registered for this type
+     *
+     * @param typeName postgres type name
+     * @return if a column of the type name would be this type
+     */
+    boolean isTypeName(String typeName) {
+        return BY_TYPE_NAME.get(typeName) == this;
+    }
+
+    Column newColumn(int capacity) {
+        return factory.apply(capacity);
+    }
+
+    boolean isBinaryCopy() {
+        return binaryCopy;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    /**
+     * Parse bytea in hex format (\x...)
+     *
+     * @param text hex representation
+     * @return bytes
+     */
+    static byte[] parseBytea(String text) {
+        if (!text.startsWith("\\x") || text.length() % 2 != 0)
+            throw new IllegalArgumentException("Invalid bytea (expected \\x followed by hex digits)");
+        byte[] bytes = new byte[text.length() / 2 - 1];
+        for (int i = 0 ; i < bytes.length ; i++) {
+            int high = Character.digit(text.charAt(2 + i * 2), 16);
+            int low = Character.digit(text.charAt(3 + i * 2), 16);
+            if (high < 0 || low < 0)
+                throw new IllegalArgumentException("Invalid bytea (expected \\x followed by hex digits)");
+            bytes[i] = (byte) (high << 4 | low);
+        }
+        return bytes;
+    }
+
+    private static void setOther(PreparedStatement stmt, int parameter, String value) throws SQLException {
+        stmt.setObject(parameter, value, Types.OTHER);
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of chunk-insert
+ *
+ * chunk-insert is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * chunk-insert is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.inserts;
+
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Adjust the number of rows per commit to hit a target commit duration
+ * <p>
+ * Additive increase, multiplicative decrease: When a chunk is written and
+ * committed faster than the target, the size grows by a tenth of the initial
+ * size. When it is slower, the size is halved. The size is kept within the
+ * bounds. Chunks larger than the current size (read before a decrease) are
+ * judged by their time per row.
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+class CommitSizeController {
+
+    private static final Logger log = LoggerFactory.getLogger(CommitSizeController.class);
+
+    private final long targetNanos;
+    private final int min;
+    private final int max;
+    private final int increment;
+    private volatile int size;
+
+    /**
+     * Make a controller
+     *
+     * @param targetMs target duration of writing and committing a chunk
+     * @param initial  initial number of rows in a chunk
+     * @param min      lowest number of rows in a chunk
+     * @param max      highest number of rows in a chunk
+     */
+    CommitSizeController(long targetMs, int initial, int min, int max) {
+        this.targetNanos = TimeUnit.MILLISECONDS.toNanos(targetMs);
+        this.min = min;
+        this.max = max;
+        this.increment = Integer.max(1, initial / 10);
+        this.size = initial;
+    }
+
+    /**
+     * A controller that never changes the size
+     *
+     * @param size number of rows in a chunk
+     * @return controller
+     */
+    static CommitSizeController fixed(int size) {
+        return new CommitSizeController(0, size, size, size);
+    }
+
+    /**
+     * Number of rows in the next chunk
+     *
+     * @return chunk size
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Register how long a chunk took to write and commit
+     * <p>
+     * The rows are those read (or key values covered) for the chunk, not
+     * those written, so rows that are removed as duplicates, skipped or
+     * moved to another chunk do not make it look short.
+     *
+     * @param rows  number of source rows the chunk was read for
+     * @param nanos duration
+     */
+    synchronized void update(int rows, long nanos) {
+        if (min == max)
+            return;
+        int current = size;
+        // Chunks in the read-ahead queue can be from before a decrease, their
+        // time is scaled to the current size
+        long scaled = rows > current ? nanos * current / rows : nanos;
+        int next;
+        if (scaled > targetNanos)
+            next = Integer.max(min, current / 2);
+        else if (rows != current)
+            return; // A short (last) or an old chunk says nothing about growing
+        else
+            next = (int) Long.min(max, (long) current + increment);
+        if (next != current) {
+            log.info("Commit size {} -> {} ({} ms for {} rows)", current, next, TimeUnit.NANOSECONDS.toMillis(nanos), rows);
+            size = next;
+        }
+    }
+}
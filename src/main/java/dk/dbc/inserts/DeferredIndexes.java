@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of chunk-insert
+ *
+ * chunk-insert is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * chunk-insert is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.inserts;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import javax.sql.DataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Secondary indexes of the target table, that are dropped while loading and
+ * rebuilt afterwards
+ * <p>
+ * Only indexes that do not back a constraint and are not unique are
+ * dropped, so keys are still enforced while loading. The indexes are rebuilt
+ * when closed, each on its own connection, a limited number in parallel.
+ * <p>
+ * The definitions are recorded in the checkpoint before the indexes are
+ * dropped, so they are rebuilt when resuming after a crash. Each is removed
+ * from the checkpoint when it has been rebuilt, and they are rebuilt with IF
+ * NOT EXISTS, so a partial rebuild can be resumed. An index on a partitioned
+ * table is rebuilt on all partitions.
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+class DeferredIndexes implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(DeferredIndexes.class);
+
+    private static final String INDEXES = "SELECT i.indexrelid::regclass::TEXT, pg_get_indexdef(i.indexrelid)" +
+                                          " FROM pg_index i" +
+                                          " WHERE i.indrelid = ?::regclass AND NOT i.indisunique" +
+                                          " AND NOT EXISTS (SELECT 1 FROM pg_constraint c WHERE c.conindid = i.indexrelid)" +
+                                          // Partition of an index on the parent, it is dropped with that
+                                          " AND NOT EXISTS (SELECT 1 FROM pg_inherits h WHERE h.inhrelid = i.indexrelid)";
+
+    private final DataSource dataSource;
+    private final String maintenanceWorkMem;
+    private final int parallel;
+    private final Checkpoint checkpoint;
+    private final Map<String, String> definitions;
+
+    private DeferredIndexes(DataSource dataSource, String maintenanceWorkMem, int parallel, Checkpoint checkpoint, Map<String, String> definitions) {
+        this.dataSource = dataSource;
+        this.maintenanceWorkMem = maintenanceWorkMem;
+        this.parallel = parallel;
+        this.checkpoint = checkpoint;
+        this.definitions = definitions;
+    }
+
+    /**
+     * Drop the secondary indexes of a table
+     * <p>
+     * The definitions are logged, and recorded in the checkpoint if there is
+     * one. The indexes recorded in the checkpoint by an earlier run are
+     * rebuilt too.
+     *
+     * @param dataSource         where to connect to
+     * @param table              the target table
+     * @param maintenanceWorkMem maintenance_work_mem for rebuilding or null
+     *                           for the database default
+     * @param parallel           how many indexes to rebuild at a time (each
+     *                           uses a connection and maintenance_work_mem)
+     * @param checkpoint         where to record the definitions or null
+     * @return the dropped indexes
+     * @throws SQLException If the indexes cannot be dropped
+     * @throws IOException  If the checkpoint cannot be written
+     */
+    static DeferredIndexes drop(DataSource dataSource, String table, String maintenanceWorkMem, int parallel, Checkpoint checkpoint) throws SQLException, IOException {
+        Map<String, String> definitions = new LinkedHashMap<>();
+        if (checkpoint != null)
+            definitions.putAll(checkpoint.getIndexes());
+        if (!definitions.isEmpty())
+            log.info("{} indexes dropped by an earlier run are rebuilt when done", definitions.size());
+        List<String> dropping = new ArrayList<>();
+        try (Connection connection = dataSource.getConnection()) {
+            connection.setAutoCommit(false);
+            try (PreparedStatement stmt = connection.prepareStatement(INDEXES)) {
+                stmt.setString(1, table);
+                try (ResultSet resultSet = stmt.executeQuery()) {
+                    while (resultSet.next()) {
+                        String name = resultSet.getString(1);
+                        definitions.put(name, definition(resultSet.getString(2)));
+                        dropping.add(name);
+                    }
+                }
+            }
+            if (checkpoint != null && !dropping.isEmpty())
+                checkpoint.indexes(definitions);
+            try (Statement stmt = connection.createStatement()) {
+                for (String name : dropping) {
+                    log.info("Dropping index: {}", definitions.get(name));
+                    stmt.execute("DROP INDEX " + name);
+                }
+            }
+            connection.commit();
+        }
+        if (definitions.isEmpty())
+            log.info("No secondary indexes on {}", table);
+        return new DeferredIndexes(dataSource, maintenanceWorkMem, parallel, checkpoint, definitions);
+    }
+
+    /**
+     * Make a definition from pg_get_indexdef() build the index on all
+     * partitions, unless it exists
+     * <p>
+     * For a partitioned table the index is defined ON ONLY the parent, which
+     * would make an invalid index with no partitions.
+     *
+     * @param definition CREATE INDEX statement
+     * @return CREATE INDEX IF NOT EXISTS statement without ONLY
+     */
+    static String definition(String definition) {
+        return definition.replaceFirst("^CREATE INDEX ", "CREATE INDEX IF NOT EXISTS ")
+                .replaceFirst(" ON ONLY ", " ON ");
+    }
+
+    /**
+     * Rebuild the dropped indexes
+     *
+     * @throws Exception The first failure if an index could not be built
+     */
+    @Override
+    public void close() throws Exception {
+        if (definitions.isEmpty())
+            return;
+        int threads = Integer.min(parallel, definitions.size());
+        log.info("Rebuilding {} indexes, {} at a time", definitions.size(), threads);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>(definitions.size());
+            for (Map.Entry<String, String> entry : definitions.entrySet()) {
+                futures.add(executor.submit(() -> {
+                    build(entry.getValue());
+                    if (checkpoint != null)
+                        checkpoint.indexBuilt(entry.getKey());
+                    return null;
+                }));
+            }
+            Exception failure = null;
+            int i = 0;
+            for (String definition : definitions.values()) {
+                try {
+                    futures.get(i++).get();
+                } catch (ExecutionException ex) {
+                    log.error("Could not rebuild index: {}: {}", definition, ex.getCause().getMessage());
+                    if (failure == null && ex.getCause() instanceof Exception)
+                        failure = (Exception) ex.getCause();
+                }
+            }
+            if (failure != null)
+                throw failure;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void build(String definition) throws SQLException {
+        long start = System.nanoTime();
+        try (Connection connection = dataSource.getConnection() ;
+             Statement stmt = connection.createStatement()) {
+            connection.setAutoCommit(true);
+            if (maintenanceWorkMem != null)
+                stmt.execute("SET maintenance_work_mem = '" + maintenanceWorkMem + "'");
+            stmt.execute(definition);
+        }
+        log.info("Rebuilt index in {} s: {}", TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start), definition);
+    }
+}
@@ -0,0 +1,317 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of chunk-insert
+ *
+ * chunk-insert is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * chunk-insert is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.inserts;
+
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The keys of the rows already in the target table, so rows that exist can
+ * be skipped before they are sent
+ * <p>
+ * The keys are kept as 64 bit numbers in a {@link LongHashSet}. A single
+ * integer key column is stored as is, so a hit is certain. Other keys are
+ * stored as a hash of the values, and rows that hit are looked up in the
+ * target, with one statement for the hits of a chunk, before they are
+ * skipped.
+ * <p>
+ * Rows with a null in the key are never skipped. Rows added to the target
+ * after the keys are read are not known.
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+final class ExistingKeys {
+
+    private static final Logger log = LoggerFactory.getLogger(ExistingKeys.class);
+
+    private static final int FETCH_SIZE = 10_000;
+
+    private final String table;
+    private final List<String> keyColumns;
+    private final int[] key;
+    private final boolean integerKey;
+    private final LongHashSet fingerprints;
+    private final AtomicLong skipped;
+
+    ExistingKeys(String table, List<String> keyColumns, int[] key, boolean integerKey, LongHashSet fingerprints) {
+        this.table = table;
+        this.keyColumns = keyColumns;
+        this.key = key;
+        this.integerKey = integerKey;
+        this.fingerprints = fingerprints;
+        this.skipped = new AtomicLong();
+    }
+
+    /**
+     * Find the key columns among the inserted columns
+     *
+     * @param keyColumns the key columns
+     * @param columns    the columns that are inserted
+     * @return column number (0 based) of each key column
+     * @throws IllegalArgumentException If a key column isn't inserted
+     */
+    static int[] keyColumns(List<String> keyColumns, List<String> columns) {
+        int[] key = new int[keyColumns.size()];
+        for (int i = 0 ; i < key.length ; i++) {
+            key[i] = -1;
+            for (int column = 0 ; column < columns.size() ; column++) {
+                if (columns.get(column).equalsIgnoreCase(keyColumns.get(i)))
+                    key[i] = column;
+            }
+            if (key[i] == -1)
+                throw new IllegalArgumentException("Key column " + keyColumns.get(i) + " is not in the column list");
+        }
+        return key;
+    }
+
+    /**
+     * Read the keys of the target table
+     *
+     * @param connection connection to the database of the target
+     * @param table      the target table
+     * @param keyColumns the key columns
+     * @param key        column number (0 based) of each key column among the
+     *                   inserted columns
+     * @return the keys
+     * @throws SQLException If the keys cannot be read
+     */
+    static ExistingKeys load(Connection connection, String table, List<String> keyColumns, int[] key) throws SQLException {
+        long start = System.nanoTime();
+        long estimate = 0;
+        try (PreparedStatement stmt = connection.prepareStatement("SELECT reltuples::BIGINT FROM pg_class WHERE oid = ?::regclass")) {
+            stmt.setString(1, table);
+            try (ResultSet resultSet = stmt.executeQuery()) {
+                if (resultSet.next())
+                    estimate = resultSet.getLong(1);
+            }
+        }
+        LongHashSet fingerprints = new LongHashSet(estimate);
+        boolean integerKey;
+        connection.setAutoCommit(false); // Otherwise the fetch size is ignored
+        try (Statement stmt = connection.createStatement()) {
+            stmt.setFetchSize(FETCH_SIZE);
+            try (ResultSet resultSet = stmt.executeQuery("SELECT " + String.join(", ", keyColumns) + " FROM " + table)) {
+                List<ColumnType> types = ColumnType.of(resultSet.getMetaData());
+                integerKey = types.size() == 1 && types.get(0).newColumn(0).isInteger();
+                int[] all = new int[types.size()];
+                for (int i = 0 ; i < all.length ; i++) {
+                    all[i] = i;
+                }
+                Chunk chunk = new Chunk(types, FETCH_SIZE);
+                while (resultSet.next()) {
+                    chunk.read(resultSet);
+                    if (chunk.isFull()) {
+                        add(fingerprints, chunk, all);
+                        chunk.clear();
+                    }
+                }
+                add(fingerprints, chunk, all);
+            }
+        } finally {
+            connection.rollback();
+        }
+        log.info("Read {} keys of {} in {} ms ({} MB)", fingerprints.size(), table,
+                 (System.nanoTime() - start) / 1_000_000, fingerprints.bytes() >> 20);
+        return new ExistingKeys(table, keyColumns, key, integerKey, fingerprints);
+    }
+
+    /**
+     * Remove the rows that exist in the target from a chunk
+     *
+     * @param connection connection to the database of the target (for
+     *                   looking up rows with a hash key)
+     * @param chunk      the rows
+     * @return number of rows removed
+     * @throws SQLException If rows cannot be looked up
+     */
+    int skip(Connection connection, Chunk chunk) throws SQLException {
+        boolean exact = integerKey && chunk.column(key[0]).isInteger();
+        boolean[] keep = new boolean[chunk.size()];
+        int[] candidates = new int[chunk.size()];
+        int count = 0;
+        for (int row = 0 ; row < chunk.size() ; row++) {
+            if (hasNull(chunk, key, row) || !fingerprints.contains(fingerprint(chunk, key, row)))
+                keep[row] = true;
+            else if (!exact)
+                candidates[count++] = row;
+        }
+        int perStatement = BatchInsertWriter.MAX_PARAMETERS / key.length;
+        for (int offset = 0 ; offset < count ; offset += perStatement) {
+            recheck(connection, chunk, candidates, offset, Integer.min(count, offset + perStatement), keep);
+        }
+        int removed = chunk.retain(keep);
+        skipped.addAndGet(removed);
+        return removed;
+    }
+
+    /**
+     * Number of rows removed
+     *
+     * @return row count
+     */
+    long getSkipped() {
+        return skipped.get();
+    }
+
+    /**
+     * Look up rows in the target, and keep those that are not found
+     *
+     * @param connection connection to the database of the target
+     * @param chunk      the rows
+     * @param candidates row numbers where the hash is known
+     * @param from       first candidate to look up
+     * @param to         last candidate (exclusive)
+     * @param keep       rows to keep
+     * @throws SQLException If the rows cannot be looked up
+     */
+    private void recheck(Connection connection, Chunk chunk, int[] candidates, int from, int to, boolean[] keep) throws SQLException {
+        String tuple = "(" + String.join(", ", Collections.nCopies(key.length, "?")) + ")";
+        StringBuilder sql = new StringBuilder("SELECT ")
+                .append(String.join(", ", keyColumns))
+                .append(" FROM ").append(table)
+                .append(" WHERE (").append(String.join(", ", keyColumns)).append(") IN (");
+        for (int i = from ; i < to ; i++) {
+            if (i != from)
+                sql.append(", ");
+            sql.append(tuple);
+        }
+        sql.append(")");
+        HashSet<List<Object>> found = new HashSet<>();
+        try (PreparedStatement stmt = connection.prepareStatement(sql.toString())) {
+            int parameter = 1;
+            for (int i = from ; i < to ; i++) {
+                for (int column : key) {
+                    chunk.column(column).bind(stmt, parameter++, candidates[i]);
+                }
+            }
+            try (ResultSet resultSet = stmt.executeQuery()) {
+                List<ColumnType> types = ColumnType.of(resultSet.getMetaData());
+                int[] all = new int[types.size()];
+                for (int i = 0 ; i < all.length ; i++) {
+                    all[i] = i;
+                }
+                Chunk rows = new Chunk(types, 1);
+                while (resultSet.next()) {
+                    rows.clear();
+                    rows.read(resultSet);
+                    found.add(values(rows, all, 0));
+                }
+            }
+        }
+        for (int i = from ; i < to ; i++) {
+            keep[candidates[i]] = !found.contains(values(chunk, key, candidates[i]));
+        }
+    }
+
+    private static void add(LongHashSet fingerprints, Chunk chunk, int[] key) {
+        for (int row = 0 ; row < chunk.size() ; row++) {
+            if (!hasNull(chunk, key, row))
+                fingerprints.add(fingerprint(chunk, key, row));
+        }
+    }
+
+    private static boolean hasNull(Chunk chunk, int[] key, int row) {
+        for (int column : key) {
+            if (chunk.column(column).isNull(row))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * The key of a row as a number, the value of a single integer column, or
+     * a hash of the values
+     *
+     * @param chunk the rows
+     * @param key   column numbers (0 based) of the key
+     * @param row   which row (no nulls in the key)
+     * @return number
+     */
+    static long fingerprint(Chunk chunk, int[] key, int row) {
+        if (key.length == 1 && chunk.column(key[0]).isInteger())
+            return chunk.column(key[0]).getLong(row);
+        long hash = 0;
+        for (int column : key) {
+            hash = hash * 31 + hash(normalize(chunk.column(column).get(row)));
+        }
+        return mix(hash);
+    }
+
+    private static List<Object> values(Chunk chunk, int[] key, int row) {
+        List<Object> values = new ArrayList<>(key.length);
+        for (int column : key) {
+            values.add(normalize(chunk.column(column).get(row)));
+        }
+        return values;
+    }
+
+    /**
+     * Value as it compares in the database, with all integers as long, so
+     * int4 and int8 columns match
+     *
+     * @param value column value
+     * @return object with equals/hashCode matching database equality
+     */
+    private static Object normalize(Object value) {
+        if (value instanceof Integer || value instanceof Short)
+            return ((Number) value).longValue();
+        return Chunk.keyValue(value);
+    }
+
+    /**
+     * 64 bit hash of a normalized value (FNV-1a of the bytes or text)
+     *
+     * @param value the value
+     * @return hash
+     */
+    private static long hash(Object value) {
+        if (value instanceof Long)
+            return mix((Long) value);
+        long hash = 0xcbf29ce484222325L;
+        if (value instanceof ByteBuffer) {
+            ByteBuffer bytes = (ByteBuffer) value;
+            for (int i = bytes.position() ; i < bytes.limit() ; i++) {
+                hash = (hash ^ (bytes.get(i) & 0xff)) * 0x100000001b3L;
+            }
+        } else {
+            String text = value.toString();
+            for (int i = 0 ; i < text.length() ; i++) {
+                hash = (hash ^ text.charAt(i)) * 0x100000001b3L;
+            }
+        }
+        return hash;
+    }
+
+    private static long mix(long value) {
+        value = (value ^ value >>> 30) * 0xbf58476d1ce4e5b9L;
+        value = (value ^ value >>> 27) * 0x94d049bb133111ebL;
+        return value ^ value >>> 31;
+    }
+}
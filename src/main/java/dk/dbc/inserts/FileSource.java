@@ -0,0 +1,526 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of chunk-insert
+ *
+ * chunk-insert is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * chunk-insert is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.inserts;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Read rows from a CSV, TSV or JSON lines file
+ * <p>
+ * The file is read through a large buffer, and the fields of a record are
+ * unescaped into one character array, which the columns parse their values
+ * from. Integer and floating point columns parse straight from the array, so
+ * no String is made for them (except floating point values with many digits
+ * or large exponents, see {@link Column#parseDouble}). Other types, NUMERIC
+ * included, are parsed from a String.
+ * <p>
+ * Fields are mapped to the target columns: by position for CSV and TSV, and
+ * by name for JSON lines (other keys are ignored, missing keys are null).
+ * Files ending in .gz are decompressed.
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+class FileSource implements ChunkProducer.Source, AutoCloseable {
+
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    /**
+     * Supported file formats
+     */
+    enum Format {
+        /**
+         * Comma separated values (RFC 4180), unquoted empty fields are null
+         * (as COPY ... CSV)
+         */
+        CSV,
+        /**
+         * Tab separated values with backslash escapes and \N for null (as
+         * COPY ... TEXT)
+         */
+        TSV,
+        /**
+         * One JSON object per line
+         */
+        JSONL;
+
+        /**
+         * Lookup format from command line name
+         *
+         * @param name name of format (case insensitive)
+         * @return format
+         * @throws IllegalArgumentException if name is not a known format
+         */
+        static Format of(String name) {
+            return valueOf(name.toUpperCase(Locale.ROOT));
+        }
+    }
+
+    private final String name;
+    private final Reader reader;
+    private final Format format;
+    private final List<String> columns;
+    private final char[] buffer;
+    private int position;
+    private int limit;
+    private char[] record;
+    private CharBuffer text;
+    private int length;
+    private final int[] begins;
+    private final int[] ends;
+    private long recordNumber;
+
+    FileSource(String name, Reader reader, Format format, List<String> columns) {
+        this.name = name;
+        this.reader = reader;
+        this.format = format;
+        this.columns = columns;
+        this.buffer = new char[BUFFER_SIZE];
+        this.position = 0;
+        this.limit = 0;
+        this.record = new char[4096];
+        this.text = CharBuffer.wrap(record);
+        this.length = 0;
+        this.begins = new int[columns.size()];
+        this.ends = new int[columns.size()];
+        this.recordNumber = 0;
+    }
+
+    /**
+     * Open a file
+     *
+     * @param file    file to read (gzip compressed if it ends with .gz)
+     * @param format  file format
+     * @param header  if the first record should be skipped
+     * @param columns target column names
+     * @return source
+     * @throws IOException If the file cannot be read
+     */
+    static FileSource open(Path file, Format format, boolean header, List<String> columns) throws IOException {
+        InputStream in = Files.newInputStream(file);
+        try {
+            if (file.getFileName().toString().endsWith(".gz"))
+                in = new GZIPInputStream(in, BUFFER_SIZE);
+            FileSource source = new FileSource(file.toString(), new InputStreamReader(in, StandardCharsets.UTF_8), format, columns);
+            if (header)
+                source.skip();
+            return source;
+        } catch (IOException | RuntimeException ex) {
+            in.close();
+            throw ex;
+        }
+    }
+
+    @Override
+    public boolean next() throws IOException {
+        recordNumber++;
+        length = 0;
+        Arrays.fill(begins, -1);
+        Arrays.fill(ends, -1);
+        switch (format) {
+            case CSV:
+                return nextCsv();
+            case TSV:
+                return nextTsv();
+            case JSONL:
+            default:
+                return nextJson();
+        }
+    }
+
+    @Override
+    public void read(Chunk chunk) {
+        try {
+            chunk.parse(text, begins, ends);
+        } catch (IllegalArgumentException ex) {
+            throw error(ex.getMessage());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    private void skip() throws IOException {
+        if (next())
+            return;
+        throw error("expected a header");
+    }
+
+    private boolean nextCsv() throws IOException {
+        int c = read();
+        if (c < 0)
+            return false;
+        int field = 0;
+        for (;;) {
+            int begin = length;
+            boolean quoted = false;
+            while (c >= 0 && c != ',' && c != '\n' && c != '\r') {
+                if (c == '"') {
+                    quoted = true;
+                    for (c = read() ; ; c = read()) {
+                        if (c < 0)
+                            throw error("unterminated quoted field");
+                        if (c == '"') {
+                            if (peek() != '"')
+                                break;
+                            read();
+                        }
+                        append((char) c);
+                    }
+                } else {
+                    append((char) c);
+                }
+                c = read();
+            }
+            if (quoted || length != begin)
+                field(field, begin);
+            field++;
+            if (c != ',')
+                break;
+            c = read();
+        }
+        if (c == '\r' && peek() == '\n')
+            read();
+        checkFieldCount(field);
+        return true;
+    }
+
+    private boolean nextTsv() throws IOException {
+        int c = read();
+        if (c < 0)
+            return false;
+        int field = 0;
+        for (;;) {
+            int begin = length;
+            boolean isNull = false;
+            while (c >= 0 && c != '\t' && c != '\n') {
+                if (c == '\r' && peek() == '\n') {
+                    c = read();
+                    break;
+                }
+                if (c == '\\') {
+                    c = read();
+                    switch (c) {
+                        case 'N':
+                            isNull = true;
+                            break;
+                        case 'b':
+                            append('\b');
+                            break;
+                        case 'f':
+                            append('\f');
+                            break;
+                        case 'n':
+                            append('\n');
+                            break;
+                        case 'r':
+                            append('\r');
+                            break;
+                        case 't':
+                            append('\t');
+                            break;
+                        case 'v':
+                            append('\u000b');
+                            break;
+                        case -1:
+                            throw error("backslash at end of file");
+                        default:
+                            append((char) c);
+                    }
+                } else {
+                    append((char) c);
+                }
+                c = read();
+            }
+            if (!isNull)
+                field(field, begin);
+            field++;
+            if (c != '\t')
+                break;
+            c = read();
+        }
+        checkFieldCount(field);
+        return true;
+    }
+
+    private boolean nextJson() throws IOException {
+        int c = skipWhitespace();
+        while (c == '\n' || c == '\r') {
+            c = skipWhitespace();
+        }
+        if (c < 0)
+            return false;
+        if (c != '{')
+            throw error("expected a JSON object");
+        c = skipWhitespace();
+        if (c != '}') {
+            for (;;) {
+                if (c != '"')
+                    throw error("expected a key");
+                int key = length;
+                jsonString();
+                int field = columnOf(key);
+                length = key;
+                if (skipWhitespace() != ':')
+                    throw error("expected ':'");
+                int begin = length;
+                if (jsonValue(skipWhitespace()) && field >= 0)
+                    field(field, begin);
+                else
+                    length = begin;
+                c = skipWhitespace();
+                if (c == '}')
+                    break;
+                if (c != ',')
+                    throw error("expected ',' or '}'");
+                c = skipWhitespace();
+            }
+        }
+        c = skipWhitespace();
+        if (c == '\r')
+            c = read();
+        if (c >= 0 && c != '\n')
+            throw error("expected end of line after JSON object");
+        return true;
+    }
+
+    /**
+     * Copy a JSON value to the record
+     *
+     * @param c first character of the value
+     * @return false if the value is null
+     * @throws IOException If reading fails
+     */
+    private boolean jsonValue(int c) throws IOException {
+        switch (c) {
+            case '"':
+                jsonString();
+                return true;
+            case '{':
+            case '[':
+                jsonRaw(c);
+                return true;
+            case 'n':
+                jsonLiteral(c, "null");
+                return false;
+            case 't':
+                jsonLiteral(c, "true");
+                return true;
+            case 'f':
+                jsonLiteral(c, "false");
+                return true;
+            default:
+                if (c != '-' && (c < '0' || c > '9'))
+                    throw error("expected a JSON value");
+                append((char) c);
+                for (c = peek() ; c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E' || c >= '0' && c <= '9' ; c = peek()) {
+                    append((char) read());
+                }
+                return true;
+        }
+    }
+
+    /**
+     * Unescape a JSON string (after the opening quote) to the record
+     *
+     * @throws IOException If reading fails
+     */
+    private void jsonString() throws IOException {
+        for (int c = read() ; c != '"' ; c = read()) {
+            if (c < 0 || c == '\n')
+                throw error("unterminated string");
+            if (c == '\\') {
+                c = read();
+                switch (c) {
+                    case 'b':
+                        append('\b');
+                        break;
+                    case 'f':
+                        append('\f');
+                        break;
+                    case 'n':
+                        append('\n');
+                        break;
+                    case 'r':
+                        append('\r');
+                        break;
+                    case 't':
+                        append('\t');
+                        break;
+                    case 'u':
+                        int value = 0;
+                        for (int i = 0 ; i < 4 ; i++) {
+                            int digit = Character.digit(read(), 16);
+                            if (digit < 0)
+                                throw error("invalid unicode escape");
+                            value = value << 4 | digit;
+                        }
+                        append((char) value);
+                        break;
+                    case '"':
+                    case '\\':
+                    case '/':
+                        append((char) c);
+                        break;
+                    default:
+                        throw error("invalid escape");
+                }
+            } else {
+                append((char) c);
+            }
+        }
+    }
+
+    /**
+     * Copy a JSON object or array as is to the record
+     *
+     * @param c the opening character
+     * @throws IOException If reading fails
+     */
+    private void jsonRaw(int c) throws IOException {
+        int depth = 0;
+        boolean inString = false;
+        for (;; c = read()) {
+            if (c < 0 || c == '\n')
+                throw error("unterminated JSON value");
+            append((char) c);
+            if (inString) {
+                if (c == '\\')
+                    append((char) read());
+                else if (c == '"')
+                    inString = false;
+            } else if (c == '"') {
+                inString = true;
+            } else if (c == '{' || c == '[') {
+                depth++;
+            } else if (c == '}' || c == ']') {
+                if (--depth == 0)
+                    return;
+            }
+        }
+    }
+
+    private void jsonLiteral(int c, String literal) throws IOException {
+        append((char) c);
+        for (int i = 1 ; i < literal.length() ; i++) {
+            c = read();
+            if (c != literal.charAt(i))
+                throw error("expected " + literal);
+            append((char) c);
+        }
+    }
+
+    /**
+     * Skip spaces and tabs (not newlines, they end the record)
+     *
+     * @return the next other character or -1
+     * @throws IOException If reading fails
+     */
+    private int skipWhitespace() throws IOException {
+        int c = read();
+        while (c == ' ' || c == '\t') {
+            c = read();
+        }
+        return c;
+    }
+
+    /**
+     * Find the column of a JSON key
+     *
+     * @param key where in the record the key starts (it ends at the end of
+     *            the record)
+     * @return column number or -1 if not a target column
+     */
+    private int columnOf(int key) {
+        for (int column = 0 ; column < columns.size() ; column++) {
+            String name = columns.get(column);
+            if (name.length() == length - key && matches(name, key))
+                return column;
+        }
+        return -1;
+    }
+
+    private boolean matches(String name, int key) {
+        for (int i = 0 ; i < name.length() ; i++) {
+            if (Character.toLowerCase(record[key + i]) != Character.toLowerCase(name.charAt(i)))
+                return false;
+        }
+        return true;
+    }
+
+    private void field(int field, int begin) {
+        if (field < begins.length) {
+            begins[field] = begin;
+            ends[field] = length;
+        }
+    }
+
+    private void checkFieldCount(int count) {
+        if (count != begins.length)
+            throw error("expected " + begins.length + " fields, got " + count);
+    }
+
+    private void append(char c) {
+        if (length == record.length) {
+            record = Arrays.copyOf(record, record.length * 2);
+            text = CharBuffer.wrap(record);
+        }
+        record[length++] = c;
+    }
+
+    private int read() throws IOException {
+        if (position == limit && !fill())
+            return -1;
+        return buffer[position++];
+    }
+
+    private int peek() throws IOException {
+        if (position == limit && !fill())
+            return -1;
+        return buffer[position];
+    }
+
+    private boolean fill() throws IOException {
+        int count = reader.read(buffer);
+        while (count == 0) {
+            count = reader.read(buffer);
+        }
+        if (count < 0)
+            return false;
+        position = 0;
+        limit = count;
+        return true;
+    }
+
+    private IllegalStateException error(String message) {
+        return new IllegalStateException(name + ": record " + recordNumber + ": " + message);
+    }
+}
@@ -0,0 +1,350 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of chunk-insert
+ *
+ * chunk-insert is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * chunk-insert is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.inserts;
+
+import dk.dbc.ExitException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Run a number of statements in one process
+ * <p>
+ * The manifest is a properties file, where each job has a NAME.sql and
+ * optionally NAME.commit, NAME.vacuum, NAME.after (comma separated jobs that
+ * has to complete first) and NAME.options (extra command line options). Jobs
+ * get the command line options as defaults. Options naming a file or
+ * directory (checkpoint, reject file, spool ...) can only be given in
+ * NAME.options, as jobs sharing them would overwrite each other.
+ * <p>
+ * Jobs are started when the jobs they come after are done, no running job
+ * inserts into the same table, and the connections they need are within the
+ * budget. A job that needs more than the budget is run when nothing else is
+ * running. Jobs that come after a failed job are skipped.
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+class JobRunner {
+
+    private static final Logger log = LoggerFactory.getLogger(JobRunner.class);
+
+    enum State {
+        WAITING, RUNNING, DONE, FAILED, SKIPPED
+    }
+
+    static final class Job {
+
+        private final String name;
+        private final Arguments arguments;
+        private final Set<String> after;
+        private final String table;
+        private final int connections;
+        private State state;
+        private long rows;
+        private long nanos;
+        private String error;
+
+        Job(String name, Arguments arguments, Set<String> after) {
+            this.name = name;
+            this.arguments = arguments;
+            this.after = after;
+            this.table = ChunkInsert.targetTable(arguments.getSql());
+            this.connections = connections(arguments);
+            this.state = State.WAITING;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        Arguments getArguments() {
+            return arguments;
+        }
+
+        State getState() {
+            return state;
+        }
+
+        int getConnections() {
+            return connections;
+        }
+
+        /**
+         * Connections to the target database a job uses at most at a time
+         * <p>
+         * While loading, each worker has a connection for inserting and one
+         * for the select (one for both in server mode, and the select is not
+         * counted when it runs in a --source-database), --maintenance checks
+         * on one more, and so does the --max-replica-lag check unless it is
+         * on a --replica. The --skip-existing keys are read before loading.
+         * After loading, the indexes of --defer-indexes or --staging are
+         * rebuilt --parallel at a time, and --staging holds one more
+         * connection while swapping.
+         *
+         * @param arguments options of the job
+         * @return number of connections
+         */
+        static int connections(Arguments arguments) {
+            int parallel = arguments.getParallel();
+            boolean sameDb = arguments.getSourceDb().equals(arguments.getDb());
+            int loading = parallel * (arguments.getMode() == Mode.SERVER || !sameDb ? 1 : 2);
+            if (arguments.getMaintenance() != 0)
+                loading++;
+            if (arguments.getMaxReplicaLag() != 0 && arguments.getReplica() == null)
+                loading++;
+            int before = arguments.getSkipExisting() == null ? 0 : 1;
+            int after = arguments.isStaging() ? parallel + 1 : arguments.isDeferIndexes() ? parallel : 0;
+            return Integer.max(loading, Integer.max(before, after));
+        }
+    }
+
+    private final List<Job> jobs;
+    private final int maxConnections;
+    private int usedConnections;
+    private final Set<String> busyTables;
+
+    JobRunner(List<Job> jobs, int maxConnections) {
+        this.jobs = jobs;
+        this.maxConnections = maxConnections;
+        this.usedConnections = 0;
+        this.busyTables = new HashSet<>();
+    }
+
+    /**
+     * Read a manifest
+     *
+     * @param file     manifest file
+     * @param defaults the command line
+     * @return jobs sorted by name
+     * @throws IOException   If the file cannot be read
+     * @throws ExitException If a job has invalid options
+     */
+    static List<Job> load(Path file, Arguments defaults) throws IOException, ExitException {
+        Properties properties = new Properties();
+        try (InputStream is = Files.newInputStream(file)) {
+            properties.load(is);
+        }
+        return load(properties, defaults);
+    }
+
+    static List<Job> load(Properties properties, Arguments defaults) throws ExitException {
+        TreeSet<String> names = new TreeSet<>();
+        for (String key : properties.stringPropertyNames()) {
+            if (key.endsWith(".sql"))
+                names.add(key.substring(0, key.length() - 4));
+        }
+        if (names.isEmpty())
+            throw defaults.usage("The manifest has no jobs (NAME.sql)");
+        ArrayList<Job> jobs = new ArrayList<>();
+        for (String name : names) {
+            ArrayList<String> args = new ArrayList<>();
+            String options = properties.getProperty(name + ".options", "").trim();
+            if (!options.isEmpty())
+                args.addAll(Arrays.asList(options.split("\\s+")));
+            String commit = properties.getProperty(name + ".commit");
+            if (commit != null)
+                args.addAll(Arrays.asList("--commit", commit.trim()));
+            String vacuum = properties.getProperty(name + ".vacuum");
+            if (vacuum != null)
+                args.addAll(Arrays.asList("--vacuum", vacuum.trim()));
+            // First occurrence of an option wins, so job options go before the defaults
+            args.addAll(defaults.getJobDefaults());
+            args.add(properties.getProperty(name + ".sql"));
+            Arguments arguments = new Arguments(args.toArray(new String[args.size()]));
+            if (ChunkInsert.targetTable(arguments.getSql()) == null)
+                throw defaults.usage("Job " + name + " has an invalid sql statement");
+            Set<String> after = new HashSet<>();
+            String afterList = properties.getProperty(name + ".after", "").trim();
+            if (!afterList.isEmpty())
+                after.addAll(Arrays.asList(afterList.split("\\s*,\\s*")));
+            for (String dependency : after) {
+                if (!names.contains(dependency))
+                    throw defaults.usage("Job " + name + " comes after unknown job " + dependency);
+            }
+            jobs.add(new Job(name, arguments, after));
+        }
+        checkCycles(jobs, defaults);
+        return jobs;
+    }
+
+    private static void checkCycles(List<Job> jobs, Arguments defaults) throws ExitException {
+        Map<String, Job> byName = new HashMap<>();
+        jobs.forEach(job -> byName.put(job.name, job));
+        Set<String> done = new HashSet<>();
+        for (Job job : jobs) {
+            String cycle = findCycle(job, byName, new HashSet<>(), done);
+            if (cycle != null)
+                throw defaults.usage("Jobs cannot come after each other: " + cycle);
+        }
+    }
+
+    private static String findCycle(Job job, Map<String, Job> byName, Set<String> path, Set<String> done) {
+        if (done.contains(job.name))
+            return null;
+        if (!path.add(job.name))
+            return job.name;
+        for (String dependency : job.after) {
+            String cycle = findCycle(byName.get(dependency), byName, path, done);
+            if (cycle != null)
+                return job.name + " -> " + cycle;
+        }
+        path.remove(job.name);
+        done.add(job.name);
+        return null;
+    }
+
+    /**
+     * Run all jobs
+     *
+     * @throws InterruptedException If interrupted while waiting for jobs
+     */
+    void run() throws InterruptedException {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            synchronized (this) {
+                for (;;) {
+                    skipFailedDependencies();
+                    for (Job job = next() ; job != null ; job = next()) {
+                        start(executor, job);
+                    }
+                    if (jobs.stream().noneMatch(job -> job.state == State.WAITING || job.state == State.RUNNING))
+                        break;
+                    wait();
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        summary();
+    }
+
+    /**
+     * Find a job that can be started
+     *
+     * @return job or null if none can start now
+     */
+    synchronized Job next() {
+        for (Job job : jobs) {
+            if (job.state == State.WAITING &&
+                !busyTables.contains(job.table) &&
+                (usedConnections + job.connections <= maxConnections || usedConnections == 0) &&
+                job.after.stream().allMatch(name -> stateOf(name) == State.DONE))
+                return job;
+        }
+        return null;
+    }
+
+    synchronized void started(Job job) {
+        job.state = State.RUNNING;
+        usedConnections += job.connections;
+        busyTables.add(job.table);
+    }
+
+    synchronized void finished(Job job, State state) {
+        job.state = state;
+        usedConnections -= job.connections;
+        busyTables.remove(job.table);
+        notifyAll();
+    }
+
+    synchronized void skipFailedDependencies() {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Job job : jobs) {
+                if (job.state == State.WAITING &&
+                    job.after.stream().map(this::stateOf).anyMatch(state -> state == State.FAILED || state == State.SKIPPED)) {
+                    log.warn("Skipping job {}, it comes after a job that failed", job.name);
+                    job.state = State.SKIPPED;
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    private State stateOf(String name) {
+        for (Job job : jobs) {
+            if (job.name.equals(name))
+                return job.state;
+        }
+        throw new IllegalStateException("Unknown job " + name);
+    }
+
+    private void start(ExecutorService executor, Job job) {
+        log.info("Starting job {} ({} connections)", job.name, job.connections);
+        started(job);
+        executor.execute(() -> {
+            Thread.currentThread().setName("job-" + job.name);
+            ChunkInsert chunkInsert = new ChunkInsert();
+            long start = System.nanoTime();
+            State state = State.FAILED;
+            try {
+                chunkInsert.run(job.arguments);
+                state = State.DONE;
+            } catch (Exception ex) {
+                job.error = ex.getMessage();
+                log.error("Job {} failed: {}", job.name, ex.getMessage());
+                log.debug("Job {} failed", job.name, ex);
+            } finally {
+                job.rows = chunkInsert.getRows();
+                job.nanos = System.nanoTime() - start;
+                finished(job, state);
+            }
+        });
+    }
+
+    private void summary() {
+        int failed = 0;
+        for (Job job : jobs) {
+            if (job.state != State.DONE)
+                failed++;
+            log.info("Job {}: {} - {} rows in {} s{}", job.name, job.state, job.rows, job.nanos / 1_000_000_000L,
+                     job.error == null ? "" : " (" + job.error + ")");
+        }
+        if (failed != 0)
+            throw new IllegalStateException(failed + " of " + jobs.size() + " jobs didn't complete");
+    }
+
+    /**
+     * Run the jobs of a manifest
+     *
+     * @param arguments the command line
+     * @throws Exception If the manifest is invalid or a job failed
+     */
+    static void run(Arguments arguments) throws Exception {
+        List<Job> jobs = load(Paths.get(arguments.getJobs()), arguments);
+        log.info("Running {} jobs using up to {} connections", jobs.size(), arguments.getMaxConnections());
+        new JobRunner(jobs, arguments.getMaxConnections()).run();
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of chunk-insert
+ *
+ * chunk-insert is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * chunk-insert is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.inserts;
+
+/**
+ * Chunks where all rows with the same key are in the same chunk
+ * <p>
+ * A checkpoint resumes after the last committed key, so if a chunk ended in
+ * the middle of rows with the same key, the rest of them would be skipped.
+ * The rows of the last key of a chunk are therefore held back, and put in
+ * front of the next chunk. A key with more rows than a chunk makes one
+ * large chunk.
+ * <p>
+ * Each chunk is marked with the number of rows read for it (see
+ * {@link Chunk#getRequested()}), so sizing chunks is not thrown off by the
+ * rows that are moved.
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+final class KeyGroups {
+
+    /**
+     * Where chunks are taken from
+     */
+    @FunctionalInterface
+    interface Chunks {
+
+        /**
+         * Get the next chunk
+         *
+         * @return chunk or null if no more rows
+         * @throws InterruptedException If interrupted while waiting
+         */
+        Chunk take() throws InterruptedException;
+    }
+
+    private final Chunks chunks;
+    private final int keyIndex;
+    private Chunk held;
+    private int read;
+
+    /**
+     * Align chunks to key groups
+     *
+     * @param chunks   chunks ordered by the key
+     * @param keyIndex column number (0 based) of the key
+     */
+    KeyGroups(Chunks chunks, int keyIndex) {
+        this.chunks = chunks;
+        this.keyIndex = keyIndex;
+        this.held = null;
+        this.read = 0;
+    }
+
+    /**
+     * Get the next chunk
+     *
+     * @return chunk ending with all rows of its last key, or null if no more
+     *         rows
+     * @throws InterruptedException If interrupted while waiting
+     */
+    Chunk take() throws InterruptedException {
+        for (;;) {
+            Chunk chunk = chunks.take();
+            if (chunk == null) {
+                Chunk last = held;
+                held = null;
+                // Rows that were all held back are read for the last chunk
+                if (last != null && read != 0)
+                    last.setRequested(read);
+                read = 0;
+                return last;
+            }
+            read += chunk.getRequested();
+            if (held != null) {
+                chunk = held.concat(chunk);
+                held = null;
+            }
+            int group = chunk.lastGroup(keyIndex);
+            if (group != 0) {
+                held = chunk.slice(group, chunk.size());
+                chunk.truncate(group);
+                chunk.setRequested(read);
+                read = 0;
+                return chunk;
+            }
+            held = chunk;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of chunk-insert
+ *
+ * chunk-insert is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * chunk-insert is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.inserts;
+
+/**
+ * Set of long values stored in an open addressing table
+ * <p>
+ * Values aren't boxed, so a value takes 8 bytes plus the free slots (at
+ * most 3/4 of the slots are used). Not thread safe, but can be read by any
+ * number of threads, when filled.
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+final class LongHashSet {
+
+    private static final int MAX_SLOTS = 1 << 30;
+
+    // 0 marks a free slot, so it is kept outside the table
+    private long[] slots;
+    private boolean hasZero;
+    private int size;
+
+    /**
+     * Create a set
+     *
+     * @param expected number of values expected (for sizing)
+     */
+    LongHashSet(long expected) {
+        int slots = 16;
+        while (slots < MAX_SLOTS && slots / 4 * 3 < expected) {
+            slots <<= 1;
+        }
+        this.slots = new long[slots];
+        this.hasZero = false;
+        this.size = 0;
+    }
+
+    /**
+     * Add a value
+     *
+     * @param value the value
+     * @return if the value wasn't in the set
+     */
+    boolean add(long value) {
+        if (value == 0) {
+            if (hasZero)
+                return false;
+            hasZero = true;
+            size++;
+            return true;
+        }
+        if (size >= slots.length / 4 * 3)
+            grow();
+        if (!insert(slots, value))
+            return false;
+        size++;
+        return true;
+    }
+
+    /**
+     * Look up a value
+     *
+     * @param value the value
+     * @return if the value is in the set
+     */
+    boolean contains(long value) {
+        if (value == 0)
+            return hasZero;
+        int mask = slots.length - 1;
+        for (int slot = slot(value, mask) ; ; slot = (slot + 1) & mask) {
+            long current = slots[slot];
+            if (current == value)
+                return true;
+            if (current == 0)
+                return false;
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Approximate memory used
+     *
+     * @return number of bytes
+     */
+    long bytes() {
+        return (long) slots.length * Long.BYTES;
+    }
+
+    private void grow() {
+        if (slots.length == MAX_SLOTS)
+            throw new IllegalStateException("Too many values for a set (" + size + ")");
+        long[] grown = new long[slots.length * 2];
+        for (long value : slots) {
+            if (value != 0)
+                insert(grown, value);
+        }
+        slots = grown;
+    }
+
+    private static boolean insert(long[] slots, long value) {
+        int mask = slots.length - 1;
+        for (int slot = slot(value, mask) ; ; slot = (slot + 1) & mask) {
+            long current = slots[slot];
+            if (current == value)
+                return false;
+            if (current == 0) {
+                slots[slot] = value;
+                return true;
+            }
+        }
+    }
+
+    private static int slot(long value, int mask) {
+        long hash = value * 0x9e3779b97f4a7c15L;
+        return (int) (hash ^ hash >>> 32) & mask;
+    }
+}
@@ -38,7 +38,10 @@ public class Main {
             Arguments arguments = new Arguments(args);
             log.info("chunk-insert");
             try {
-                new ChunkInsert().run(arguments);
+                if (arguments.getJobs() != null)
+                    JobRunner.run(arguments);
+                else
+                    new ChunkInsert().run(arguments);
             } catch (ReThrowException ex) {
                 ex.throwAs(ExitException.class);
                 ex.throwAs(SQLException.class);
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of chunk-insert
+ *
+ * chunk-insert is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * chunk-insert is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.inserts;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+import javax.sql.DataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Vacuum and analyze the target table while loading
+ * <p>
+ * A thread polls the statistics of the table (pg_stat_user_tables), and when
+ * enough rows are dead or modified since last analyze, runs VACUUM and/or
+ * ANALYZE on its own connection. Only one is run at a time, and loading is
+ * not blocked by it.
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+class MaintenanceScheduler implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(MaintenanceScheduler.class);
+
+    // Autovacuum uses 50, but while loading that triggers for every chunk of
+    // a small table
+    private static final long BASE_THRESHOLD = 1000;
+    private static final double VACUUM_SCALE_FACTOR = 0.2;
+    private static final double ANALYZE_SCALE_FACTOR = 0.1;
+
+    private final DataSource dataSource;
+    private final String table;
+    private final long intervalMs;
+    private final Metrics metrics;
+    private final Thread thread;
+    private volatile Statement current;
+
+    /**
+     * Start polling
+     *
+     * @param dataSource where to connect to
+     * @param table      the target table
+     * @param intervalMs time between polls
+     * @param metrics    where to record maintenance time
+     */
+    MaintenanceScheduler(DataSource dataSource, String table, long intervalMs, Metrics metrics) {
+        this.dataSource = dataSource;
+        this.table = table;
+        this.intervalMs = intervalMs;
+        this.metrics = metrics;
+        this.current = null;
+        this.thread = new Thread(this::schedule, "maintenance");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    @Override
+    public void close() throws InterruptedException, SQLException {
+        thread.interrupt();
+        thread.join(1_000L);
+        if (thread.isAlive()) {
+            log.info("Cancelling maintenance of {}", table);
+            Statement stmt = current;
+            if (stmt != null)
+                stmt.cancel();
+            thread.join();
+        }
+    }
+
+    /**
+     * Decide what maintenance is needed, same formula and scale factors as
+     * autovacuum, with a higher base threshold (1000 rows instead of 50)
+     *
+     * @param live     number of live rows
+     * @param dead     number of dead rows
+     * @param modified number of rows modified since last analyze
+     * @return maintenance statement or null if none is needed
+     */
+    static String maintenance(long live, long dead, long modified) {
+        boolean vacuum = dead > BASE_THRESHOLD + VACUUM_SCALE_FACTOR * live;
+        boolean analyze = modified > BASE_THRESHOLD + ANALYZE_SCALE_FACTOR * live;
+        if (vacuum && analyze)
+            return "VACUUM ANALYZE";
+        if (vacuum)
+            return "VACUUM";
+        if (analyze)
+            return "ANALYZE";
+        return null;
+    }
+
+    private void schedule() {
+        try (Connection connection = dataSource.getConnection()) {
+            connection.setAutoCommit(true);
+            for (;;) {
+                Thread.sleep(intervalMs);
+                try {
+                    poll(connection);
+                } catch (SQLException ex) {
+                    if (Thread.currentThread().isInterrupted())
+                        return;
+                    log.warn("Maintenance of {} failed: {}", table, ex.getMessage());
+                    log.debug("Maintenance of {} failed: ", table, ex);
+                }
+            }
+        } catch (InterruptedException ex) {
+            log.debug("Maintenance stopped");
+        } catch (SQLException ex) {
+            log.warn("Maintenance cannot connect: {}", ex.getMessage());
+        }
+    }
+
+    private void poll(Connection connection) throws SQLException {
+        String action;
+        try (PreparedStatement stmt = connection.prepareStatement("SELECT n_live_tup, n_dead_tup, n_mod_since_analyze FROM pg_stat_user_tables WHERE relid = ?::regclass")) {
+            stmt.setString(1, table);
+            try (ResultSet resultSet = stmt.executeQuery()) {
+                if (!resultSet.next())
+                    return;
+                long live = resultSet.getLong(1);
+                long dead = resultSet.getLong(2);
+                long modified = resultSet.getLong(3);
+                log.debug("Table {}: live = {}, dead = {}, modified since analyze = {}", table, live, dead, modified);
+                action = maintenance(live, dead, modified);
+                if (action == null)
+                    return;
+                log.info("{} {} ({} dead rows, {} modified since analyze)", action, table, dead, modified);
+            }
+        }
+        long start = System.nanoTime();
+        try (Statement stmt = connection.createStatement()) {
+            current = stmt;
+            stmt.execute(action + " " + table);
+        } finally {
+            current = null;
+        }
+        long duration = System.nanoTime() - start;
+        metrics.vacuum.record(duration);
+        log.info("{} {} took {} ms", action, table, TimeUnit.NANOSECONDS.toMillis(duration));
+    }
+}
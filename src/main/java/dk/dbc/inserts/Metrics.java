@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of chunk-insert
+ *
+ * chunk-insert is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * chunk-insert is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.inserts;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Timing of the phases of loading and throughput
+ * <p>
+ * Each phase is a histogram of durations (one per chunk). The metrics can be
+ * written periodically to a file, as JSON if the file name ends in .json
+ * otherwise in Prometheus text format.
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+final class Metrics implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(Metrics.class);
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+    /**
+     * Reading rows from the database
+     */
+    final Histogram fetch = new Histogram("fetch");
+    /**
+     * Converting values from the result set to columns
+     */
+    final Histogram mapping = new Histogram("mapping");
+    /**
+     * Sending rows to the target (executeBatch/COPY/INSERT ... SELECT)
+     */
+    final Histogram write = new Histogram("write");
+    final Histogram commit = new Histogram("commit");
+    final Histogram vacuum = new Histogram("vacuum");
+
+    private final List<Histogram> histograms = List.of(fetch, mapping, write, commit, vacuum);
+    private final AtomicLong rows = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final long start = System.nanoTime();
+    private Path file;
+    private ScheduledExecutorService executor;
+
+    /**
+     * Count rows that are written
+     *
+     * @param rows  number of rows
+     * @param bytes approximate size of the values
+     */
+    void written(long rows, long bytes) {
+        this.rows.addAndGet(rows);
+        this.bytes.addAndGet(bytes);
+    }
+
+    /**
+     * Write metrics to a file every interval, and when closed
+     *
+     * @param file       where to write
+     * @param intervalMs time between writes
+     */
+    void writePeriodically(Path file, long intervalMs) {
+        this.file = file;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleAtFixedRate(this::writeFile, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+            writeFile();
+        }
+    }
+
+    /**
+     * Log the histograms
+     */
+    void log() {
+        double seconds = seconds();
+        log.info("Throughput: {} rows/s, {} bytes/s", rate(rows.get(), seconds), rate(bytes.get(), seconds));
+        for (Histogram histogram : histograms) {
+            Histogram.Snapshot snapshot = histogram.snapshot();
+            if (snapshot.count() != 0)
+                log.info("{}: count = {}, total = {} ms, p50 = {} ms, p90 = {} ms, p99 = {} ms, max = {} ms",
+                         histogram.name, snapshot.count(), ms(snapshot.sum()),
+                         ms(snapshot.quantile(0.5)), ms(snapshot.quantile(0.9)), ms(snapshot.quantile(0.99)), ms(snapshot.max()));
+        }
+    }
+
+    String toJson() {
+        double seconds = seconds();
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"rows\":").append(rows.get())
+                .append(",\"bytes\":").append(bytes.get())
+                .append(",\"seconds\":").append(format(seconds))
+                .append(",\"rows_per_second\":").append(rate(rows.get(), seconds))
+                .append(",\"bytes_per_second\":").append(rate(bytes.get(), seconds))
+                .append(",\"phases\":{");
+        for (int i = 0 ; i < histograms.size() ; i++) {
+            Histogram histogram = histograms.get(i);
+            Histogram.Snapshot snapshot = histogram.snapshot();
+            if (i != 0)
+                sb.append(',');
+            sb.append('"').append(histogram.name).append("\":{\"count\":").append(snapshot.count())
+                    .append(",\"total_ms\":").append(format(ms(snapshot.sum())));
+            for (double quantile : QUANTILES) {
+                sb.append(",\"p").append(Math.round(quantile * 100)).append("_ms\":").append(format(ms(snapshot.quantile(quantile))));
+            }
+            sb.append(",\"max_ms\":").append(format(ms(snapshot.max()))).append('}');
+        }
+        sb.append("}}\n");
+        return sb.toString();
+    }
+
+    String toPrometheus() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("# TYPE chunk_insert_rows_total counter\n")
+                .append("chunk_insert_rows_total ").append(rows.get()).append('\n')
+                .append("# TYPE chunk_insert_bytes_total counter\n")
+                .append("chunk_insert_bytes_total ").append(bytes.get()).append('\n')
+                .append("# TYPE chunk_insert_elapsed_seconds gauge\n")
+                .append("chunk_insert_elapsed_seconds ").append(format(seconds())).append('\n')
+                .append("# TYPE chunk_insert_phase_seconds summary\n");
+        for (Histogram histogram : histograms) {
+            Histogram.Snapshot snapshot = histogram.snapshot();
+            for (double quantile : QUANTILES) {
+                sb.append("chunk_insert_phase_seconds{phase=\"").append(histogram.name)
+                        .append("\",quantile=\"").append(quantile).append("\"} ")
+                        .append(format(snapshot.quantile(quantile) / 1e9)).append('\n');
+            }
+            sb.append("chunk_insert_phase_seconds_sum{phase=\"").append(histogram.name).append("\"} ")
+                    .append(format(snapshot.sum() / 1e9)).append('\n')
+                    .append("chunk_insert_phase_seconds_count{phase=\"").append(histogram.name).append("\"} ")
+                    .append(snapshot.count()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private void writeFile() {
+        try {
+            String content = file.getFileName().toString().endsWith(".json") ? toJson() : toPrometheus();
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.write(tmp, content.getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            log.warn("Cannot write metrics to {}: {}", file, ex.getMessage());
+        }
+    }
+
+    private double seconds() {
+        return Long.max(1, System.nanoTime() - start) / 1e9;
+    }
+
+    private static long rate(long count, double seconds) {
+        return (long) (count / seconds);
+    }
+
+    private static double ms(double nanos) {
+        return nanos / 1e6;
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+
+    /**
+     * Durations of a phase
+     * <p>
+     * All durations are kept, there is one per chunk, so quantiles are exact
+     */
+    static final class Histogram {
+
+        private final String name;
+        private long[] values;
+        private int count;
+        private long sum;
+
+        Histogram(String name) {
+            this.name = name;
+            this.values = new long[64];
+            this.count = 0;
+            this.sum = 0;
+        }
+
+        /**
+         * Add a duration
+         *
+         * @param nanos duration
+         */
+        synchronized void record(long nanos) {
+            if (count == values.length)
+                values = Arrays.copyOf(values, count * 2);
+            values[count++] = nanos;
+            sum += nanos;
+        }
+
+        synchronized Snapshot snapshot() {
+            long[] sorted = Arrays.copyOf(values, count);
+            Arrays.sort(sorted);
+            return new Snapshot(sorted, sum);
+        }
+
+        static final class Snapshot {
+
+            private final long[] sorted;
+            private final long sum;
+
+            private Snapshot(long[] sorted, long sum) {
+                this.sorted = sorted;
+                this.sum = sum;
+            }
+
+            int count() {
+                return sorted.length;
+            }
+
+            long sum() {
+                return sum;
+            }
+
+            long max() {
+                return sorted.length == 0 ? 0 : sorted[sorted.length - 1];
+            }
+
+            /**
+             * Nearest rank quantile
+             *
+             * @param quantile between 0 and 1
+             * @return duration or 0 if no durations are recorded
+             */
+            long quantile(double quantile) {
+                if (sorted.length == 0)
+                    return 0;
+                int rank = (int) Math.ceil(quantile * sorted.length);
+                return sorted[Integer.max(0, rank - 1)];
+            }
+        }
+    }
+}
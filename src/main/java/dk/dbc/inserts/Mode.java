@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of chunk-insert
+ *
+ * chunk-insert is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * chunk-insert is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.inserts;
+
+import java.util.Locale;
+
+/**
+ * How rows are written to the target table
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+public enum Mode {
+
+    /**
+     * Batched prepared statement with one row per statement
+     */
+    INSERT,
+    /**
+     * Batched prepared statement with a number of rows per statement
+     */
+    MULTI_ROW,
+    /**
+     * COPY ... FROM STDIN in binary format
+     */
+    COPY,
+    /**
+     * INSERT ... SELECT run on the server in chunks of key ranges, no rows
+     * are transferred to the client
+     */
+    SERVER;
+
+    /**
+     * Lookup mode from command line name
+     *
+     * @param name name of mode (case insensitive, dash for underscore)
+     * @return mode
+     * @throws IllegalArgumentException if name is not a known mode
+     */
+    public static Mode of(String name) {
+        return valueOf(name.toUpperCase(Locale.ROOT).replace('-', '_'));
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of chunk-insert
+ *
+ * chunk-insert is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * chunk-insert is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.inserts;
+
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * What to do when a row conflicts with an existing row
+ * <p>
+ * Rows are only deduplicated within a chunk, conflicts with rows already in
+ * the target are handled by the ON CONFLICT clause.
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+final class OnConflict {
+
+    enum Action {
+        DO_NOTHING,
+        DO_UPDATE;
+
+        static Action of(String name) {
+            return valueOf(name.toUpperCase(Locale.ROOT).replace('-', '_'));
+        }
+    }
+
+    private final List<String> conflictColumns;
+    private final Action action;
+
+    OnConflict(List<String> conflictColumns, Action action) {
+        this.conflictColumns = conflictColumns;
+        this.action = action;
+    }
+
+    /**
+     * Make the ON CONFLICT clause
+     *
+     * @param columns the columns that are inserted
+     * @return clause (with leading space)
+     */
+    String clause(List<String> columns) {
+        StringBuilder sb = new StringBuilder(" ON CONFLICT (")
+                .append(String.join(", ", conflictColumns))
+                .append(")");
+        boolean first = true;
+        if (action == Action.DO_UPDATE) {
+            for (String column : columns) {
+                if (indexOf(conflictColumns, column) != -1)
+                    continue;
+                sb.append(first ? " DO UPDATE SET " : ", ")
+                        .append(column).append(" = EXCLUDED.").append(column);
+                first = false;
+            }
+        }
+        if (first)
+            sb.append(" DO NOTHING");
+        return sb.toString();
+    }
+
+    /**
+     * Find the conflict columns among the inserted columns
+     *
+     * @param columns the columns that are inserted
+     * @return column number (0 based) of each conflict column
+     * @throws IllegalArgumentException If a conflict column isn't inserted
+     */
+    int[] keyColumns(List<String> columns) {
+        int[] key = new int[conflictColumns.size()];
+        for (int i = 0 ; i < key.length ; i++) {
+            key[i] = indexOf(columns, conflictColumns.get(i));
+            if (key[i] == -1)
+                throw new IllegalArgumentException("Conflict column " + conflictColumns.get(i) + " is not in the column list");
+        }
+        return key;
+    }
+
+    private static int indexOf(List<String> columns, String column) {
+        for (int i = 0 ; i < columns.size() ; i++) {
+            if (columns.get(i).equalsIgnoreCase(column))
+                return i;
+        }
+        return -1;
+    }
+}
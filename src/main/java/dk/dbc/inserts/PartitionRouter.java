@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of chunk-insert
+ *
+ * chunk-insert is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * chunk-insert is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.inserts;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Find the partition of a row on the client
+ * <p>
+ * Supports a table partitioned by RANGE or LIST on a single column. The
+ * bounds of the partitions (as given by pg_get_expr) are parsed into values
+ * of the key column's type, and compared to the key of each row. Rows that
+ * match no partition are routed to the table itself, so the server decides
+ * (it fails when there's no default partition). A partition that is itself
+ * partitioned, routes its rows on the server.
+ * <p>
+ * HASH partitioning needs the server's hash functions, and ranges of text or
+ * uuid would need the server's ordering, so these are not supported.
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+class PartitionRouter {
+
+    private static final Logger log = LoggerFactory.getLogger(PartitionRouter.class);
+
+    private static final Set<ColumnType> RANGE_TYPES = Set.of(ColumnType.INT2, ColumnType.INT4, ColumnType.INT8,
+                                                             ColumnType.FLOAT4, ColumnType.FLOAT8, ColumnType.NUMERIC,
+                                                             ColumnType.DATE, ColumnType.TIME, ColumnType.TIMESTAMP, ColumnType.TIMESTAMPTZ);
+
+    private static final Comparator<Object> ORDER = (a, b) -> {
+        if (a instanceof OffsetDateTime)
+            return ((OffsetDateTime) a).toInstant().compareTo(((OffsetDateTime) b).toInstant());
+        @SuppressWarnings("unchecked")
+        Comparable<Object> comparable = (Comparable<Object>) a;
+        return comparable.compareTo(b);
+    };
+
+    private final List<String> partitions;
+    private final int keyIndex;
+    private final int defaultPartition;
+    private final int nullPartition;
+    private final HashMap<Object, Integer> listValues;
+    private final Object[] lowers;
+    private final Object[] uppers;
+    private final int[] rangePartitions;
+
+    private PartitionRouter(List<String> partitions, int keyIndex, int defaultPartition, int nullPartition,
+                            HashMap<Object, Integer> listValues, Object[] lowers, Object[] uppers, int[] rangePartitions) {
+        this.partitions = partitions;
+        this.keyIndex = keyIndex;
+        this.defaultPartition = defaultPartition;
+        this.nullPartition = nullPartition;
+        this.listValues = listValues;
+        this.lowers = lowers;
+        this.uppers = uppers;
+        this.rangePartitions = rangePartitions;
+    }
+
+    /**
+     * Look up the partitions of a table
+     *
+     * @param connection database connection
+     * @param table      target table
+     * @param columns    target columns
+     * @param types      column types of the rows
+     * @return router or null if the table cannot be routed on the client
+     *         (the reason is logged)
+     * @throws SQLException If the catalog cannot be queried
+     */
+    static PartitionRouter of(Connection connection, String table, List<String> columns, List<ColumnType> types) throws SQLException {
+        String strategy;
+        String keyColumn;
+        String keyType;
+        try (PreparedStatement stmt = connection.prepareStatement(
+                "SELECT p.partstrat::TEXT, p.partnatts, a.attname::TEXT, t.typname::TEXT" +
+                " FROM pg_partitioned_table p" +
+                " LEFT JOIN pg_attribute a ON a.attrelid = p.partrelid AND a.attnum = p.partattrs[0]" +
+                " LEFT JOIN pg_type t ON t.oid = a.atttypid" +
+                " WHERE p.partrelid = ?::regclass")) {
+            stmt.setString(1, table);
+            try (ResultSet resultSet = stmt.executeQuery()) {
+                if (!resultSet.next()) {
+                    log.warn("{} is not partitioned, rows are not routed", table);
+                    return null;
+                }
+                strategy = resultSet.getString(1);
+                if (resultSet.getInt(2) != 1 || resultSet.getString(3) == null) {
+                    log.warn("{} is partitioned by more than a single column, rows are routed by the server", table);
+                    return null;
+                }
+                keyColumn = resultSet.getString(3);
+                keyType = BinaryCopyWriter.canonicalTypeName(resultSet.getString(4));
+            }
+        }
+        int keyIndex = -1;
+        for (int column = 0 ; column < columns.size() ; column++) {
+            if (columns.get(column).equalsIgnoreCase(keyColumn))
+                keyIndex = column;
+        }
+        if (keyIndex < 0) {
+            log.warn("Partition key {} is not in the insert, rows are routed by the server", keyColumn);
+            return null;
+        }
+        ColumnType type = types.get(keyIndex);
+        if (!type.isTypeName(keyType)) {
+            log.warn("Partition key {} is {} but the rows have {}, rows are routed by the server", keyColumn, keyType, type);
+            return null;
+        }
+        if ("h".equals(strategy) || "r".equals(strategy) && !RANGE_TYPES.contains(type)) {
+            log.warn("Cannot route by {} on the client, rows are routed by the server", "h".equals(strategy) ? "hash" : "range of " + type);
+            return null;
+        }
+        List<String> partitions = new ArrayList<>();
+        List<String> bounds = new ArrayList<>();
+        try (PreparedStatement stmt = connection.prepareStatement(
+                "SELECT c.oid::regclass::TEXT, pg_get_expr(c.relpartbound, c.oid)" +
+                " FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid" +
+                " WHERE i.inhparent = ?::regclass" +
+                " ORDER BY 1")) {
+            stmt.setString(1, table);
+            try (ResultSet resultSet = stmt.executeQuery()) {
+                while (resultSet.next()) {
+                    partitions.add(resultSet.getString(1));
+                    bounds.add(resultSet.getString(2));
+                }
+            }
+        }
+        PartitionRouter router = of(partitions, bounds, keyIndex, type);
+        log.info("Routing rows by {} to {} partitions of {}", keyColumn, partitions.size(), table);
+        return router;
+    }
+
+    /**
+     * Make a router from partition bounds
+     *
+     * @param partitions partition names
+     * @param bounds     partition bounds as given by pg_get_expr
+     * @param keyIndex   column number (0 based) of the partition key
+     * @param type       type of the partition key
+     * @return router
+     */
+    static PartitionRouter of(List<String> partitions, List<String> bounds, int keyIndex, ColumnType type) {
+        int defaultPartition = -1;
+        int nullPartition = -1;
+        HashMap<Object, Integer> listValues = new HashMap<>();
+        List<Object[]> ranges = new ArrayList<>();
+        for (int partition = 0 ; partition < partitions.size() ; partition++) {
+            String bound = bounds.get(partition).trim();
+            if (bound.equals("DEFAULT")) {
+                defaultPartition = partition;
+            } else if (bound.startsWith("FOR VALUES IN (")) {
+                for (String literal : literals(bound, "FOR VALUES IN (".length())) {
+                    if (literal == null)
+                        nullPartition = partition;
+                    else
+                        listValues.put(Chunk.keyValue(parse(type, literal)), partition);
+                }
+            } else if (bound.startsWith("FOR VALUES FROM (")) {
+                int to = bound.indexOf(") TO (");
+                List<String> from = literals(bound.substring(0, to + 1), "FOR VALUES FROM (".length());
+                List<String> upper = literals(bound, to + ") TO (".length());
+                ranges.add(new Object[] {bound(type, from.get(0)), bound(type, upper.get(0)), partition});
+            } else {
+                throw new IllegalStateException("Cannot route to partition " + partitions.get(partition) + " " + bound);
+            }
+        }
+        ranges.sort((a, b) -> a[0] == null ? -1 : b[0] == null ? 1 : ORDER.compare(a[0], b[0]));
+        Object[] lowers = new Object[ranges.size()];
+        Object[] uppers = new Object[ranges.size()];
+        int[] rangePartitions = new int[ranges.size()];
+        for (int i = 0 ; i < ranges.size() ; i++) {
+            lowers[i] = ranges.get(i)[0];
+            uppers[i] = ranges.get(i)[1];
+            rangePartitions[i] = (int) ranges.get(i)[2];
+        }
+        return new PartitionRouter(partitions, keyIndex, defaultPartition, nullPartition, listValues, lowers, uppers, rangePartitions);
+    }
+
+    List<String> getPartitions() {
+        return partitions;
+    }
+
+    /**
+     * Find the partition of a row
+     *
+     * @param chunk rows
+     * @param row   the row
+     * @return partition number or -1 for the table itself
+     */
+    int route(Chunk chunk, int row) {
+        Object value = chunk.column(keyIndex).get(row);
+        if (value == null)
+            return nullPartition >= 0 ? nullPartition : defaultPartition;
+        if (!listValues.isEmpty()) {
+            Integer partition = listValues.get(Chunk.keyValue(value));
+            if (partition != null)
+                return partition;
+        }
+        // Last range with lower bound <= value
+        int low = 0;
+        int high = lowers.length - 1;
+        int found = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (lowers[middle] == null || ORDER.compare(lowers[middle], value) <= 0) {
+                found = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        if (found >= 0 && (uppers[found] == null || ORDER.compare(value, uppers[found]) < 0))
+            return rangePartitions[found];
+        return defaultPartition;
+    }
+
+    private static Object bound(ColumnType type, String literal) {
+        if (literal == null || literal.equals("MINVALUE") || literal.equals("MAXVALUE"))
+            return null;
+        return parse(type, literal);
+    }
+
+    private static Object parse(ColumnType type, String literal) {
+        Column column = type.newColumn(1);
+        column.parse(literal, 0, literal.length(), 0);
+        return column.get(0);
+    }
+
+    /**
+     * Split a list of literals as written by pg_get_expr
+     *
+     * @param bound the bound expression
+     * @param pos   position after the opening parenthesis
+     * @return the values (unquoted), null for NULL
+     */
+    static List<String> literals(String bound, int pos) {
+        List<String> values = new ArrayList<>();
+        for (;;) {
+            while (bound.charAt(pos) == ' ') {
+                pos++;
+            }
+            if (bound.charAt(pos) == '\'') {
+                StringBuilder sb = new StringBuilder();
+                for (pos++ ; ; pos++) {
+                    char c = bound.charAt(pos);
+                    if (c == '\'') {
+                        if (pos + 1 < bound.length() && bound.charAt(pos + 1) == '\'')
+                            pos++;
+                        else
+                            break;
+                    }
+                    sb.append(c);
+                }
+                pos++;
+                values.add(sb.toString());
+            } else {
+                int end = pos;
+                while (",)".indexOf(bound.charAt(end)) < 0 && !bound.startsWith("::", end)) {
+                    end++;
+                }
+                String value = bound.substring(pos, end);
+                values.add(value.equals("NULL") ? null : value);
+                pos = end;
+            }
+            if (bound.startsWith("::", pos)) {
+                while (",)".indexOf(bound.charAt(pos)) < 0) {
+                    pos++;
+                }
+            }
+            if (bound.charAt(pos) == ')')
+                return values;
+            pos++;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of chunk-insert
+ *
+ * chunk-insert is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * chunk-insert is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.inserts;
+
+import java.io.IOException;
+import java.sql.SQLException;
+
+/**
+ * Write rows into the partition they belong to
+ * <p>
+ * Each chunk is split by partition, and each part is written with a writer
+ * for that partition (made when first needed). All are in the same
+ * transaction, so a chunk is still committed as a whole.
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+class PartitionWriter implements RowWriter {
+
+    /**
+     * Make a writer for a table
+     */
+    @FunctionalInterface
+    interface Factory {
+
+        RowWriter writer(String table) throws SQLException;
+    }
+
+    private final PartitionRouter router;
+    private final Factory factory;
+    private final String table;
+    private final RowWriter[] writers;
+    private RowWriter tableWriter;
+
+    /**
+     * Create a writer
+     *
+     * @param router  how to find the partition of a row
+     * @param factory make writers for tables
+     * @param table   the partitioned table (for rows without a partition)
+     */
+    PartitionWriter(PartitionRouter router, Factory factory, String table) {
+        this.router = router;
+        this.factory = factory;
+        this.table = table;
+        this.writers = new RowWriter[router.getPartitions().size()];
+        this.tableWriter = null;
+    }
+
+    @Override
+    public void write(Chunk chunk) throws SQLException, IOException {
+        int partitions = writers.length + 1; // The table itself is last
+        int[] partitionOf = new int[chunk.size()];
+        int[] counts = new int[partitions];
+        for (int row = 0 ; row < chunk.size() ; row++) {
+            int partition = router.route(chunk, row);
+            if (partition < 0)
+                partition = writers.length;
+            partitionOf[row] = partition;
+            counts[partition]++;
+        }
+        for (int partition = 0 ; partition < partitions ; partition++) {
+            if (counts[partition] == 0)
+                continue;
+            if (counts[partition] == chunk.size()) {
+                writer(partition).write(chunk);
+                return;
+            }
+            int[] rows = new int[counts[partition]];
+            int count = 0;
+            for (int row = 0 ; row < chunk.size() ; row++) {
+                if (partitionOf[row] == partition)
+                    rows[count++] = row;
+            }
+            writer(partition).write(chunk.subset(rows, count));
+        }
+    }
+
+    @Override
+    public void close() throws SQLException {
+        for (RowWriter writer : writers) {
+            if (writer != null)
+                writer.close();
+        }
+        if (tableWriter != null)
+            tableWriter.close();
+    }
+
+    private RowWriter writer(int partition) throws SQLException {
+        if (partition == writers.length) {
+            if (tableWriter == null)
+                tableWriter = factory.writer(table);
+            return tableWriter;
+        }
+        if (writers[partition] == null)
+            writers[partition] = factory.writer(router.getPartitions().get(partition));
+        return writers[partition];
+    }
+}
@@ -0,0 +1,471 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of chunk-insert
+ *
+ * chunk-insert is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * chunk-insert is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.inserts;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Choose commit size, fetch size and write strategy from the plan of the
+ * select and the catalog entries of the target table
+ * <p>
+ * The plan is taken from EXPLAIN (FORMAT JSON), and the nodes are picked out
+ * by the database (jsonb_path_query), so no JSON parser is needed here.
+ * <p>
+ * Chunks are sized to a number of bytes of row data, so wide rows get
+ * smaller chunks than narrow ones. The estimated time is based on a sample,
+ * that is read before the report is made, see {@link Sample}. Only with
+ * --plan-write are the rows written (and rolled back) too, otherwise the
+ * estimate only covers reading, and is a lower bound.
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+final class Planner {
+
+    private static final Logger log = LoggerFactory.getLogger(Planner.class);
+
+    static final long CHUNK_BYTES = 16L << 20;
+    static final long FETCH_BYTES = 4L << 20;
+    static final int MIN_COMMIT = 1_000;
+    static final int MAX_COMMIT = 100_000;
+    static final int MIN_FETCH = 100;
+    static final int MAX_ROWS_PER_STATEMENT = 1_000;
+
+    // Approximate memory per row besides the data, for sorting and hashing
+    private static final int SORT_OVERHEAD = 24;
+    private static final int HASH_OVERHEAD = 48;
+
+    private static final String NODES = "SELECT node->>'Node Type', COALESCE(node->>'Strategy', ''), (node->>'Plan Rows')::FLOAT8, (node->>'Plan Width')::INT," +
+                                        " (node->>'Startup Cost')::FLOAT8, (node->>'Total Cost')::FLOAT8" +
+                                        " FROM jsonb_path_query(?::JSONB, 'strict $.**') AS node" +
+                                        " WHERE node->>'Node Type' IS NOT NULL";
+
+    private static final String MEMORY = "SELECT pg_size_bytes(current_setting('work_mem'))," +
+                                         " COALESCE(current_setting('hash_mem_multiplier', true)::FLOAT8, 1)";
+
+    private static final String TARGET = "SELECT c.reltuples::FLOAT8," +
+                                         " (SELECT COUNT(*) FROM pg_index i WHERE i.indrelid = c.oid)," +
+                                         " (SELECT COUNT(*) FROM pg_index i WHERE i.indrelid = c.oid AND NOT i.indisunique" +
+                                         " AND NOT EXISTS (SELECT 1 FROM pg_constraint k WHERE k.conindid = i.indexrelid))," +
+                                         " (SELECT COUNT(*) FROM pg_trigger t WHERE t.tgrelid = c.oid AND NOT t.tgisinternal)," +
+                                         " (SELECT COUNT(*) FROM pg_constraint k WHERE k.conrelid = c.oid AND k.contype = 'f')," +
+                                         " (SELECT SUM(s.avg_width) FROM pg_stats s" +
+                                         " WHERE s.schemaname = n.nspname AND s.tablename = c.relname AND s.attname = ANY(?))" +
+                                         " FROM pg_class c JOIN pg_namespace n ON n.oid = c.relnamespace" +
+                                         " WHERE c.oid = ?::regclass";
+
+    /**
+     * A node of the select plan
+     */
+    static final class Node {
+
+        final String type;
+        final String strategy;
+        final double rows;
+        final int width;
+
+        Node(String type, String strategy, double rows, int width) {
+            this.type = type;
+            this.strategy = strategy;
+            this.rows = rows;
+            this.width = width;
+        }
+
+        /**
+         * Memory needed to produce the first row of the node, nodes that
+         * return rows as they read them need none
+         *
+         * @return number of bytes or 0
+         */
+        long blockingBytes() {
+            switch (type) {
+                case "Sort":
+                case "Incremental Sort":
+                    return (long) (rows * (width + SORT_OVERHEAD));
+                case "Hash":
+                    return (long) (rows * (width + HASH_OVERHEAD));
+                case "Aggregate":
+                case "SetOp":
+                    return strategy.equals("Hashed") || strategy.equals("Mixed") ? (long) (rows * (width + HASH_OVERHEAD)) : 0;
+                default:
+                    return 0;
+            }
+        }
+
+        /**
+         * If the node is limited by work_mem multiplied by
+         * hash_mem_multiplier
+         *
+         * @return if hashing
+         */
+        boolean isHash() {
+            return !type.endsWith("Sort");
+        }
+    }
+
+    /**
+     * What the select produces according to EXPLAIN
+     */
+    static final class Select {
+
+        final double rows;
+        final int width;
+        final double startupCost;
+        final double totalCost;
+        final List<Node> nodes;
+        final long workMem;
+        final double hashMemMultiplier;
+        final int columns;
+        final boolean binaryCopy;
+
+        Select(double rows, int width, double startupCost, double totalCost, List<Node> nodes, long workMem, double hashMemMultiplier, int columns, boolean binaryCopy) {
+            this.rows = rows;
+            this.width = width;
+            this.startupCost = startupCost;
+            this.totalCost = totalCost;
+            this.nodes = nodes;
+            this.workMem = workMem;
+            this.hashMemMultiplier = hashMemMultiplier;
+            this.columns = columns;
+            this.binaryCopy = binaryCopy;
+        }
+    }
+
+    /**
+     * The target table according to the catalogs
+     */
+    static final class Target {
+
+        final String table;
+        final double rows;
+        final int width;
+        final int indexes;
+        final int deferrableIndexes;
+        final int triggers;
+        final int foreignKeys;
+
+        Target(String table, double rows, int width, int indexes, int deferrableIndexes, int triggers, int foreignKeys) {
+            this.table = table;
+            this.rows = rows;
+            this.width = width;
+            this.indexes = indexes;
+            this.deferrableIndexes = deferrableIndexes;
+            this.triggers = triggers;
+            this.foreignKeys = foreignKeys;
+        }
+    }
+
+    /**
+     * Timing of reading and writing the first rows of the select
+     * <p>
+     * Rows are written the way the planner chose, and rolled back, as with
+     * --dry-run.
+     */
+    static final class Sample {
+
+        final int rows;
+        final long readNanos;
+        final long writeNanos;
+
+        /**
+         * Timing of the sample
+         *
+         * @param rows       number of rows
+         * @param readNanos  time reading them
+         * @param writeNanos time writing them or -1 if they were not written
+         */
+        Sample(int rows, long readNanos, long writeNanos) {
+            this.rows = rows;
+            this.readNanos = readNanos;
+            this.writeNanos = writeNanos;
+        }
+
+        boolean isWritten() {
+            return writeNanos >= 0;
+        }
+    }
+
+    private final Select select;
+    private final Target target;
+    private final int parallel;
+    private final Mode mode;
+    private final int commit;
+    private final int fetchSize;
+    private final int rowsPerStatement;
+    private final List<String> reasons;
+    private final List<String> warnings;
+
+    /**
+     * Decide how to load
+     *
+     * @param select   the select plan
+     * @param target   the target table
+     * @param parallel number of workers
+     * @param conflict if --on-conflict is given (COPY cannot be used)
+     * @param server   if --mode server is possible (same database and a key)
+     */
+    Planner(Select select, Target target, int parallel, boolean conflict, boolean server) {
+        this.select = select;
+        this.target = target;
+        this.parallel = parallel;
+        this.reasons = new ArrayList<>();
+        this.warnings = new ArrayList<>();
+        if (conflict) {
+            this.mode = Mode.MULTI_ROW;
+            reasons.add("--on-conflict cannot use copy");
+        } else if (server) {
+            this.mode = Mode.SERVER;
+            reasons.add("source and target are the same database, rows need not leave the server");
+        } else if (!select.binaryCopy) {
+            this.mode = Mode.MULTI_ROW;
+            reasons.add("the select has columns that binary copy cannot encode");
+        } else {
+            this.mode = Mode.COPY;
+            reasons.add("copy has the least per row overhead");
+        }
+        int width = Integer.max(1, Integer.max(select.width, target.width));
+        this.commit = round(clamp(CHUNK_BYTES / width, MIN_COMMIT, MAX_COMMIT));
+        this.fetchSize = round(clamp(FETCH_BYTES / Integer.max(1, select.width), MIN_FETCH, commit));
+        this.rowsPerStatement = Integer.max(1, Integer.min(MAX_ROWS_PER_STATEMENT, BatchInsertWriter.MAX_PARAMETERS / Integer.max(1, select.columns)));
+        reasons.add("about " + megabytes((long) commit * width) + " of rows per commit");
+
+        for (Node node : select.nodes) {
+            long bytes = node.blockingBytes();
+            long limit = node.isHash() ? (long) (select.workMem * select.hashMemMultiplier) : select.workMem;
+            if (bytes > limit)
+                warnings.add(String.format(Locale.ROOT, "%s%s of ~%.0f rows (~%s) exceeds %s (%s) and spills to disk before the first row arrives",
+                                           node.strategy.isEmpty() ? "" : node.strategy + " ", node.type, node.rows, megabytes(bytes),
+                                           node.isHash() ? "work_mem * hash_mem_multiplier" : "work_mem", megabytes(limit)));
+        }
+        if (select.totalCost > 0 && select.startupCost >= select.totalCost / 2)
+            warnings.add(String.format(Locale.ROOT, "The select does %.0f%% of its work before the first row arrives", 100 * select.startupCost / select.totalCost));
+        if (target.triggers != 0)
+            warnings.add(target.triggers + " trigger(s) on " + target.table + " fire for every row");
+        if (target.foreignKeys != 0)
+            warnings.add(target.foreignKeys + " foreign key(s) on " + target.table + " are checked for every row");
+        if (!conflict && target.deferrableIndexes != 0 && select.rows >= Double.max(target.rows, 0))
+            warnings.add("The load is at least as large as " + target.table + ", consider --defer-indexes (" + target.deferrableIndexes + " of " + target.indexes + " indexes can be deferred)");
+    }
+
+    /**
+     * Look up the plan of the select and the target table
+     *
+     * @param source   connection to the database the select runs in
+     * @param target   connection to the database of the target table
+     * @param select   the select statement
+     * @param table    the target table
+     * @param columns  the target columns
+     * @param parallel number of workers
+     * @param conflict if --on-conflict is given
+     * @param server   if --mode server is possible
+     * @return planner
+     * @throws SQLException If the select cannot be explained or the table is
+     *                      not found
+     */
+    static Planner of(Connection source, Connection target, String select, String table, List<String> columns, int parallel, boolean conflict, boolean server) throws SQLException {
+        return new Planner(explain(source, select), target(target, table, columns), parallel, conflict, server);
+    }
+
+    private static Select explain(Connection connection, String select) throws SQLException {
+        String plan;
+        try (Statement stmt = connection.createStatement()) {
+            try (ResultSet resultSet = stmt.executeQuery("EXPLAIN (FORMAT JSON) " + select)) {
+                resultSet.next();
+                plan = resultSet.getString(1);
+            }
+            int columns = 0;
+            boolean binaryCopy = true;
+            try (ResultSet resultSet = stmt.executeQuery("SELECT * FROM (" + select + ") AS src LIMIT 0")) {
+                for (ColumnType type : ColumnType.of(resultSet.getMetaData())) {
+                    columns++;
+                    binaryCopy &= type.isBinaryCopy();
+                }
+            }
+            long workMem;
+            double hashMemMultiplier;
+            try (ResultSet resultSet = stmt.executeQuery(MEMORY)) {
+                resultSet.next();
+                workMem = resultSet.getLong(1);
+                hashMemMultiplier = resultSet.getDouble(2);
+            }
+            List<Node> nodes = new ArrayList<>();
+            double rows = 0;
+            int width = 0;
+            double startupCost = 0;
+            double totalCost = 0;
+            try (PreparedStatement pstmt = connection.prepareStatement(NODES)) {
+                pstmt.setString(1, plan);
+                try (ResultSet resultSet = pstmt.executeQuery()) {
+                    while (resultSet.next()) {
+                        Node node = new Node(resultSet.getString(1), resultSet.getString(2), resultSet.getDouble(3), resultSet.getInt(4));
+                        if (nodes.isEmpty()) { // The top node comes first
+                            rows = node.rows;
+                            width = node.width;
+                            startupCost = resultSet.getDouble(5);
+                            totalCost = resultSet.getDouble(6);
+                        }
+                        nodes.add(node);
+                    }
+                }
+            }
+            log.debug("Select plan has {} nodes, ~{} rows of ~{} bytes", nodes.size(), rows, width);
+            return new Select(rows, width, startupCost, totalCost, nodes, workMem, hashMemMultiplier, columns, binaryCopy);
+        }
+    }
+
+    private static Target target(Connection connection, String table, List<String> columns) throws SQLException {
+        try (PreparedStatement stmt = connection.prepareStatement(TARGET)) {
+            stmt.setArray(1, connection.createArrayOf("TEXT", columns.stream()
+                                                      .map(column -> column.toLowerCase(Locale.ROOT))
+                                                      .toArray()));
+            stmt.setString(2, table);
+            try (ResultSet resultSet = stmt.executeQuery()) {
+                resultSet.next();
+                return new Target(table, resultSet.getDouble(1), resultSet.getInt(6),
+                                  resultSet.getInt(2), resultSet.getInt(3), resultSet.getInt(4), resultSet.getInt(5));
+            }
+        }
+    }
+
+    /**
+     * Estimated duration of the load
+     * <p>
+     * Reading and writing overlap, so the slower of them decides the pace,
+     * and workers are assumed to scale. Time spent before the first row
+     * (sorting or hashing) is not included. If the sample was not written,
+     * only reading is included.
+     *
+     * @param sample timing of the first rows
+     * @return nanoseconds or -1 if it cannot be estimated
+     */
+    long eta(Sample sample) {
+        if (sample == null || sample.rows == 0)
+            return -1;
+        double nanosPerRow = (double) Long.max(sample.readNanos, sample.writeNanos) / sample.rows;
+        return (long) (Double.max(select.rows, 0) * nanosPerRow / parallel);
+    }
+
+    /**
+     * The plan in human readable form
+     *
+     * @param sample timing of the first rows or null if not sampled
+     * @return text with a line per item
+     */
+    String report(Sample sample) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.ROOT, "Select:   ~%.0f rows of ~%d bytes, cost %.2f..%.2f%n",
+                                select.rows, select.width, select.startupCost, select.totalCost));
+        sb.append(String.format(Locale.ROOT, "Target:   %s, ~%.0f rows of ~%d bytes, %d index(es), %d trigger(s), %d foreign key(s)%n",
+                                target.table, Double.max(target.rows, 0), target.width, target.indexes, target.triggers, target.foreignKeys));
+        if (sample != null && sample.isWritten())
+            sb.append(String.format(Locale.ROOT, "Sample:   %d rows read in %s, written in %s (rolled back)%n",
+                                    sample.rows, duration(sample.readNanos), duration(sample.writeNanos)));
+        else if (sample != null)
+            sb.append(String.format(Locale.ROOT, "Sample:   %d rows read in %s, not written (use --plan-write to time writing)%n",
+                                    sample.rows, duration(sample.readNanos)));
+        sb.append("Options:  ").append(String.join(" ", options())).append(System.lineSeparator());
+        for (String reason : reasons) {
+            sb.append("          ").append(reason).append(System.lineSeparator());
+        }
+        long eta = eta(sample);
+        sb.append("ETA:      ").append(eta < 0 ? "unknown" : sample.isWritten() ? duration(eta) : "at least " + duration(eta) + " (reading only)")
+                .append(parallel == 1 ? "" : " using " + parallel + " workers").append(System.lineSeparator());
+        for (String warning : warnings) {
+            sb.append("Warning:  ").append(warning).append(System.lineSeparator());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The chosen settings as command line options
+     *
+     * @return list of options
+     */
+    List<String> options() {
+        List<String> options = new ArrayList<>();
+        options.add("--mode " + mode.name().toLowerCase(Locale.ROOT).replace('_', '-'));
+        if (mode != Mode.SERVER) {
+            options.add("--commit " + commit);
+            options.add("--fetch-size " + fetchSize);
+        }
+        if (mode == Mode.MULTI_ROW)
+            options.add("--rows-per-statement " + rowsPerStatement);
+        return options;
+    }
+
+    Mode getMode() {
+        return mode;
+    }
+
+    int getCommit() {
+        return commit;
+    }
+
+    int getFetchSize() {
+        return fetchSize;
+    }
+
+    List<String> getWarnings() {
+        return warnings;
+    }
+
+    private static long clamp(long value, long min, long max) {
+        return Long.max(min, Long.min(value, max));
+    }
+
+    /**
+     * Round down to two significant digits
+     *
+     * @param value positive number
+     * @return rounded number
+     */
+    static int round(long value) {
+        long scale = 1;
+        while (value / scale >= 100) {
+            scale *= 10;
+        }
+        return (int) (value / scale * scale);
+    }
+
+    private static String megabytes(long bytes) {
+        if (bytes < 1L << 20)
+            return String.format(Locale.ROOT, "%d kB", bytes >> 10);
+        return String.format(Locale.ROOT, "%d MB", bytes >> 20);
+    }
+
+    static String duration(long nanos) {
+        long seconds = TimeUnit.NANOSECONDS.toSeconds(nanos);
+        if (seconds == 0)
+            return TimeUnit.NANOSECONDS.toMillis(nanos) + " ms";
+        if (seconds < 60)
+            return seconds + " s";
+        if (seconds < 3600)
+            return seconds / 60 + " min " + seconds % 60 + " s";
+        return seconds / 3600 + " h " + seconds / 60 % 60 + " min";
+    }
+}
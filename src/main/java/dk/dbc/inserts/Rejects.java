@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of chunk-insert
+ *
+ * chunk-insert is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * chunk-insert is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.inserts;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Isolate rows the database rejects, and write them to a file
+ * <p>
+ * When a chunk fails it is rolled back, and written again in halves, each in
+ * a savepoint. A half that fails is split again, until the failing rows are
+ * found one by one. These are written as a JSON line with the row and the
+ * error, and the rest of the chunk is committed as usual.
+ * <p>
+ * The file is appended to, so a resumed load keeps the rejects of the earlier
+ * runs.
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+class Rejects implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(Rejects.class);
+
+    private final Path file;
+    private final int maxRejects;
+    private final List<String> columns;
+    private final BufferedWriter writer;
+    private int count;
+
+    /**
+     * Open the reject file
+     *
+     * @param file       where to write rejected rows
+     * @param maxRejects how many rows can be rejected before loading fails
+     * @param columns    target column names
+     * @throws IOException If the file cannot be opened
+     */
+    Rejects(Path file, int maxRejects, List<String> columns) throws IOException {
+        this.file = file;
+        this.maxRejects = maxRejects;
+        this.columns = columns;
+        this.writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        this.count = 0;
+    }
+
+    /**
+     * Send a chunk to the database, isolating rows that fail
+     *
+     * @param connection connection the chunk is written to (in a transaction
+     *                   of its own)
+     * @param rowWriter  where to write the rows
+     * @param chunk      the rows
+     * @return number of rejected rows
+     * @throws SQLException If the database fails otherwise
+     * @throws IOException  If the rows cannot be encoded or the reject file
+     *                      cannot be written
+     */
+    int write(Connection connection, RowWriter rowWriter, Chunk chunk) throws SQLException, IOException {
+        try {
+            rowWriter.write(chunk);
+            return 0;
+        } catch (SQLException ex) {
+            log.warn("Chunk of {} rows failed: {} - isolating rejected rows", chunk.size(), ex.getMessage());
+            connection.rollback();
+            return split(connection, rowWriter, chunk, ex);
+        }
+    }
+
+    /**
+     * Write a number of rows in a savepoint, splitting them if they fail
+     *
+     * @param connection database connection
+     * @param rowWriter  where to write the rows
+     * @param chunk      the rows
+     * @return number of rejected rows
+     * @throws SQLException If the savepoint cannot be handled
+     * @throws IOException  If the rows cannot be encoded or the reject file
+     *                      cannot be written
+     */
+    private int isolate(Connection connection, RowWriter rowWriter, Chunk chunk) throws SQLException, IOException {
+        Savepoint savepoint = connection.setSavepoint();
+        try {
+            rowWriter.write(chunk);
+            connection.releaseSavepoint(savepoint);
+            return 0;
+        } catch (SQLException ex) {
+            connection.rollback(savepoint);
+            return split(connection, rowWriter, chunk, ex);
+        }
+    }
+
+    /**
+     * Write each half of some failed rows, or reject it if it is a single row
+     *
+     * @param connection database connection
+     * @param rowWriter  where to write the rows
+     * @param chunk      the rows
+     * @param ex         why they failed
+     * @return number of rejected rows
+     * @throws SQLException If the savepoint cannot be handled
+     * @throws IOException  If the rows cannot be encoded or the reject file
+     *                      cannot be written
+     */
+    private int split(Connection connection, RowWriter rowWriter, Chunk chunk, SQLException ex) throws SQLException, IOException {
+        if (chunk.size() == 1) {
+            reject(chunk, ex);
+            return 1;
+        }
+        int middle = chunk.size() / 2;
+        return isolate(connection, rowWriter, chunk.slice(0, middle)) +
+               isolate(connection, rowWriter, chunk.slice(middle, chunk.size()));
+    }
+
+    private synchronized void reject(Chunk chunk, SQLException ex) throws IOException {
+        log.debug("Rejected row: {}", ex.getMessage());
+        writer.write(toJson(columns, chunk, 0, ex));
+        writer.flush();
+        if (++count > maxRejects)
+            throw new IllegalStateException("More than " + maxRejects + " rows rejected, see " + file);
+    }
+
+    synchronized int getCount() {
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (count != 0)
+            log.warn("{} rows rejected, see {}", count, file);
+        writer.close();
+    }
+
+    /**
+     * Format a rejected row
+     *
+     * @param columns target column names
+     * @param chunk   rows
+     * @param row     the rejected row
+     * @param ex      why it was rejected
+     * @return JSON line
+     */
+    static String toJson(List<String> columns, Chunk chunk, int row, SQLException ex) {
+        StringBuilder sb = new StringBuilder("{\"error\":");
+        string(sb, ex.getMessage());
+        sb.append(",\"sqlstate\":");
+        string(sb, ex.getSQLState());
+        sb.append(",\"row\":{");
+        for (int column = 0 ; column < columns.size() ; column++) {
+            if (column != 0)
+                sb.append(',');
+            string(sb, columns.get(column));
+            sb.append(':');
+            value(sb, chunk.column(column).get(row));
+        }
+        return sb.append("}}\n").toString();
+    }
+
+    private static void value(StringBuilder sb, Object value) {
+        if (value == null) {
+            sb.append("null");
+        } else if (value instanceof Boolean || value instanceof Number && isFinite((Number) value)) {
+            sb.append(value);
+        } else if (value instanceof byte[]) {
+            StringBuilder hex = new StringBuilder("\\x");
+            for (byte b : (byte[]) value) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16))
+                        .append(Character.forDigit(b & 0xf, 16));
+            }
+            string(sb, hex.toString());
+        } else {
+            string(sb, value.toString());
+        }
+    }
+
+    private static boolean isFinite(Number value) {
+        if (value instanceof Double)
+            return Double.isFinite(value.doubleValue());
+        if (value instanceof Float)
+            return Float.isFinite(value.floatValue());
+        return true;
+    }
+
+    private static void string(StringBuilder sb, String value) {
+        if (value == null) {
+            sb.append("null");
+            return;
+        }
+        sb.append('"');
+        for (int i = 0 ; i < value.length() ; i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20)
+                        sb.append(String.format("\\u%04x", (int) c));
+                    else
+                        sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+}
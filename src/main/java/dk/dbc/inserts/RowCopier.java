@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of chunk-insert
+ *
+ * chunk-insert is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * chunk-insert is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.inserts;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Read and bind all columns of a row, specialized for a column layout
+ * <p>
+ * Looping over the columns calling {@link Column#read} and
+ * {@link Column#bind} is a call site that sees every column class, so the
+ * JIT cannot inline it. Here the columns are grouped by class, and each
+ * group has a loop of its own, where the call always goes to the same
+ * (final) class and can be inlined.
+ * <p>
+ * Values are read and bound in another order than the columns, which result
+ * sets and prepared statements allow. Binary COPY encodes the values in
+ * column order, so it does not use this.
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+final class RowCopier {
+
+    private static final Map<List<ColumnType>, RowCopier> COPIERS = new ConcurrentHashMap<>();
+
+    private final int[] shorts;
+    private final int[] ints;
+    private final int[] longs;
+    private final int[] floats;
+    private final int[] doubles;
+    private final int[] booleans;
+    private final int[] objects;
+
+    private RowCopier(List<ColumnType> types) {
+        List<Class<?>> classes = new ArrayList<>(types.size());
+        for (ColumnType type : types) {
+            classes.add(type.newColumn(0).getClass());
+        }
+        this.shorts = columns(classes, Column.ShortColumn.class);
+        this.ints = columns(classes, Column.IntColumn.class);
+        this.longs = columns(classes, Column.LongColumn.class);
+        this.floats = columns(classes, Column.FloatColumn.class);
+        this.doubles = columns(classes, Column.DoubleColumn.class);
+        this.booleans = columns(classes, Column.BooleanColumn.class);
+        this.objects = columns(classes, Column.ObjectColumn.class);
+    }
+
+    /**
+     * Get the copier for a column layout (made the first time it is needed)
+     *
+     * @param types column types
+     * @return copier
+     */
+    static RowCopier of(List<ColumnType> types) {
+        return COPIERS.computeIfAbsent(types, RowCopier::new);
+    }
+
+    /**
+     * Store the current row of a result set
+     *
+     * @param resultSet result set positioned at a row
+     * @param chunk     where to store the values
+     * @param row       row number in the chunk
+     * @throws SQLException If a value cannot be read
+     */
+    void read(ResultSet resultSet, Chunk chunk, int row) throws SQLException {
+        for (int column : shorts) {
+            ((Column.ShortColumn) chunk.column(column)).read(resultSet, column + 1, row);
+        }
+        for (int column : ints) {
+            ((Column.IntColumn) chunk.column(column)).read(resultSet, column + 1, row);
+        }
+        for (int column : longs) {
+            ((Column.LongColumn) chunk.column(column)).read(resultSet, column + 1, row);
+        }
+        for (int column : floats) {
+            ((Column.FloatColumn) chunk.column(column)).read(resultSet, column + 1, row);
+        }
+        for (int column : doubles) {
+            ((Column.DoubleColumn) chunk.column(column)).read(resultSet, column + 1, row);
+        }
+        for (int column : booleans) {
+            ((Column.BooleanColumn) chunk.column(column)).read(resultSet, column + 1, row);
+        }
+        for (int column : objects) {
+            ((Column.ObjectColumn<?>) chunk.column(column)).read(resultSet, column + 1, row);
+        }
+    }
+
+    /**
+     * Set the values of a row as statement parameters
+     *
+     * @param stmt      statement
+     * @param parameter parameter index (1 based) of the first column
+     * @param chunk     where to take the values from
+     * @param row       row number in the chunk
+     * @throws SQLException If a value cannot be set
+     */
+    void bind(PreparedStatement stmt, int parameter, Chunk chunk, int row) throws SQLException {
+        for (int column : shorts) {
+            ((Column.ShortColumn) chunk.column(column)).bind(stmt, parameter + column, row);
+        }
+        for (int column : ints) {
+            ((Column.IntColumn) chunk.column(column)).bind(stmt, parameter + column, row);
+        }
+        for (int column : longs) {
+            ((Column.LongColumn) chunk.column(column)).bind(stmt, parameter + column, row);
+        }
+        for (int column : floats) {
+            ((Column.FloatColumn) chunk.column(column)).bind(stmt, parameter + column, row);
+        }
+        for (int column : doubles) {
+            ((Column.DoubleColumn) chunk.column(column)).bind(stmt, parameter + column, row);
+        }
+        for (int column : booleans) {
+            ((Column.BooleanColumn) chunk.column(column)).bind(stmt, parameter + column, row);
+        }
+        for (int column : objects) {
+            ((Column.ObjectColumn<?>) chunk.column(column)).bind(stmt, parameter + column, row);
+        }
+    }
+
+    private static int[] columns(List<Class<?>> classes, Class<?> columnClass) {
+        int count = 0;
+        for (Class<?> clazz : classes) {
+            if (clazz == columnClass)
+                count++;
+        }
+        int[] columns = new int[count];
+        int i = 0;
+        for (int column = 0 ; column < classes.size() ; column++) {
+            if (classes.get(column) == columnClass)
+                columns[i++] = column;
+        }
+        return columns;
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of chunk-insert
+ *
+ * chunk-insert is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * chunk-insert is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.inserts;
+
+import java.io.IOException;
+import java.sql.SQLException;
+
+/**
+ * Destination for rows from the select statement
+ * <p>
+ * The writer sends a whole chunk of extracted values to the database in
+ * {@link #write(Chunk)}, before the chunk is committed
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+interface RowWriter extends AutoCloseable {
+
+    /**
+     * Send all rows of a chunk to the database
+     *
+     * @param chunk rows extracted from the select
+     * @throws SQLException If the database rejects the rows
+     * @throws IOException  If the rows cannot be encoded
+     */
+    void write(Chunk chunk) throws SQLException, IOException;
+
+    @Override
+    void close() throws SQLException;
+}
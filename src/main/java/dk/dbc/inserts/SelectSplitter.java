@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of chunk-insert
+ *
+ * chunk-insert is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * chunk-insert is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.inserts;
+
+import java.math.BigInteger;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Split a select statement into a number of selects covering a range each
+ * <p>
+ * Splitting by a key wraps the select in a sub-query, and restricts the key
+ * to a range between min and max of the key. Rows with null key are a range of
+ * their own.
+ * <p>
+ * Splitting without a key restricts the physical location (ctid) of the rows
+ * to a range of disk blocks. This only works for a select of the type
+ * 'SELECT ... FROM table [alias] [WHERE ...]'.
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+class SelectSplitter {
+
+    private static final Logger log = LoggerFactory.getLogger(SelectSplitter.class);
+
+    private static final Pattern SINGLE_TABLE_SELECT = Pattern.compile("(select\\s+.+?\\s+from\\s+([.0-9a-z_]+)(?:\\s+(?!where\\b)(?:as\\s+)?([0-9a-z_]+))?)(?:\\s+where\\s+(.+?))?\\s*", Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Split by range of key values
+     *
+     * @param connection database connection
+     * @param select     the select statement
+     * @param column     integer column in the select output
+     * @param count      number of ranges wanted
+     * @return list of select statements
+     * @throws SQLException If the min/max cannot be found
+     */
+    static List<String> byKey(Connection connection, String select, String column, int count) throws SQLException {
+        try (Statement stmt = connection.createStatement() ;
+             ResultSet resultSet = stmt.executeQuery("SELECT MIN(" + column + "), MAX(" + column + ") FROM (" + select + ") AS src")) {
+            switch (resultSet.getMetaData().getColumnType(1)) {
+                case Types.SMALLINT:
+                case Types.INTEGER:
+                case Types.BIGINT:
+                    break;
+                default:
+                    throw new IllegalStateException("Cannot split by " + column + ", it is not an integer column");
+            }
+            resultSet.next();
+            long min = resultSet.getLong(1);
+            if (resultSet.wasNull()) {
+                log.info("No rows with a value in {}", column);
+                return keyRanges(select, column, 0, -1, count);
+            }
+            long max = resultSet.getLong(2);
+            log.info("Splitting {} from {} to {}", column, min, max);
+            return keyRanges(select, column, min, max, count);
+        }
+    }
+
+    /**
+     * Split by range of disk blocks in the source table
+     *
+     * @param connection database connection
+     * @param select     the select statement
+     * @param count      number of ranges wanted
+     * @return list of select statements
+     * @throws SQLException If the table size cannot be found
+     */
+    static List<String> byBlocks(Connection connection, String select, int count) throws SQLException {
+        Matcher matcher = SINGLE_TABLE_SELECT.matcher(select);
+        if (!matcher.matches())
+            throw new IllegalStateException("Cannot split select by block, it is not a single table select, use --split-by");
+        String table = matcher.group(2);
+        try (Statement stmt = connection.createStatement() ;
+             ResultSet resultSet = stmt.executeQuery("SELECT pg_relation_size('" + table + "') / current_setting('block_size')::BIGINT")) {
+            resultSet.next();
+            long blocks = resultSet.getLong(1);
+            log.info("Splitting {} blocks of {}", blocks, table);
+            return blockRanges(select, blocks, count);
+        }
+    }
+
+    static List<String> keyRanges(String select, String column, long min, long max, int count) {
+        String prefix = "SELECT * FROM (" + select + ") AS src WHERE ";
+        ArrayList<String> selects = new ArrayList<>(count + 1);
+        if (min <= max) {
+            BigInteger span = BigInteger.valueOf(max).subtract(BigInteger.valueOf(min)).add(BigInteger.ONE);
+            BigInteger[] division = span.divideAndRemainder(BigInteger.valueOf(count));
+            long step = division[0].add(division[1].signum() == 0 ? BigInteger.ZERO : BigInteger.ONE)
+                    .max(BigInteger.ONE)
+                    .min(BigInteger.valueOf(Long.MAX_VALUE))
+                    .longValue();
+            for (long low = min ; ; low += step) {
+                long high = Long.compareUnsigned(max - low, step) < 0 ? max : low + step - 1;
+                selects.add(prefix + column + " BETWEEN " + low + " AND " + high);
+                if (high == max)
+                    break;
+            }
+        }
+        selects.add(prefix + column + " IS NULL");
+        return selects;
+    }
+
+    static List<String> blockRanges(String select, long blocks, int count) {
+        Matcher matcher = SINGLE_TABLE_SELECT.matcher(select);
+        if (!matcher.matches())
+            throw new IllegalStateException("Cannot split select by block, it is not a single table select, use --split-by");
+        String qualifier = matcher.group(3) == null ? matcher.group(2) : matcher.group(3);
+        String where = matcher.group(4);
+        String prefix = matcher.group(1) + " WHERE " + (where == null ? "" : "(" + where + ") AND ");
+        ArrayList<String> selects = new ArrayList<>(count);
+        long step = (blocks + count - 1) / count;
+        if (step == 0)
+            return List.of(select);
+        for (long start = 0 ; start < blocks ; start += step) {
+            String lowerBound = qualifier + ".ctid >= '(" + start + ",0)'::TID";
+            if (start + step >= blocks) // Last range is open, to include rows appended after sizing
+                selects.add(prefix + lowerBound);
+            else
+                selects.add(prefix + lowerBound + " AND " + qualifier + ".ctid < '(" + (start + step) + ",0)'::TID");
+        }
+        return selects;
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of chunk-insert
+ *
+ * chunk-insert is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * chunk-insert is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.inserts;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A directory of chunks from a select, to be loaded later
+ * <p>
+ * Each chunk is a gzip compressed file in the binary COPY format, so it can
+ * be sent to COPY ... FROM STDIN (FORMAT BINARY) as is when replayed. The
+ * manifest (written when all chunks are spooled) holds the column names and
+ * types of the select and the files with their row counts. Chunk files and
+ * the directory are synced to disk before the manifest is written, so a
+ * manifest never refers to a truncated chunk.
+ * <p>
+ * A replayed file gets a .done marker when it is committed, so a replay that
+ * failed can be run again.
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+class Spool {
+
+    static final String MANIFEST = "manifest.properties";
+
+    private final Path dir;
+    private List<String> columnNames;
+    private List<String> typeNames;
+    private final List<String> files;
+    private final List<Long> rows;
+
+    private Spool(Path dir) {
+        this.dir = dir;
+        this.columnNames = null;
+        this.typeNames = null;
+        this.files = new ArrayList<>();
+        this.rows = new ArrayList<>();
+    }
+
+    /**
+     * Start spooling to a directory
+     *
+     * @param dir directory that doesn't exist or is empty
+     * @return spool with no chunks
+     * @throws IOException If the directory cannot be made
+     */
+    static Spool create(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        try (Stream<Path> content = Files.list(dir)) {
+            if (content.findAny().isPresent())
+                throw new IllegalStateException("Spool directory " + dir + " is not empty");
+        }
+        return new Spool(dir);
+    }
+
+    /**
+     * Read the manifest of a spool directory
+     *
+     * @param dir spool directory
+     * @return spool with the chunks of the manifest
+     * @throws IOException If the manifest cannot be read
+     */
+    static Spool load(Path dir) throws IOException {
+        Path file = dir.resolve(MANIFEST);
+        if (!Files.exists(file))
+            throw new IllegalStateException("Spool directory " + dir + " has no " + MANIFEST + " (spooling didn't complete)");
+        Properties properties = new Properties();
+        try (InputStream is = Files.newInputStream(file)) {
+            properties.load(is);
+        }
+        try {
+            Spool spool = new Spool(dir);
+            spool.columnNames = Arrays.asList(properties.getProperty("columns").split(","));
+            spool.typeNames = Arrays.asList(properties.getProperty("types").split(","));
+            int count = Integer.parseUnsignedInt(properties.getProperty("files"));
+            for (int i = 0 ; i < count ; i++) {
+                String name = properties.getProperty("file." + i + ".name");
+                if (name == null)
+                    throw new IllegalStateException("Manifest " + file + " has no name for file " + i);
+                spool.files.add(name);
+                spool.rows.add(Long.parseUnsignedLong(properties.getProperty("file." + i + ".rows")));
+            }
+            return spool;
+        } catch (NumberFormatException | NullPointerException ex) {
+            throw new IllegalStateException("Manifest " + file + " is not valid", ex);
+        }
+    }
+
+    /**
+     * Record the columns of a select, all ranges of a select has the same
+     * columns, so only the first is recorded
+     *
+     * @param metaData select statement column data
+     * @param types    column types
+     * @throws SQLException If the meta data cannot be accessed
+     */
+    synchronized void columns(ResultSetMetaData metaData, List<ColumnType> types) throws SQLException {
+        if (columnNames != null)
+            return;
+        List<String> names = new ArrayList<>();
+        List<String> typeNames = new ArrayList<>();
+        for (int column = 1 ; column <= metaData.getColumnCount() ; column++) {
+            String name = metaData.getColumnLabel(column);
+            String typeName = BinaryCopyWriter.canonicalTypeName(metaData.getColumnTypeName(column));
+            ColumnType type = types.get(column - 1);
+            if (!type.isBinaryCopy() || !type.isTypeName(typeName))
+                throw new IllegalStateException("Column " + name + " of type " + typeName + " cannot be spooled");
+            names.add(name);
+            typeNames.add(typeName);
+        }
+        this.columnNames = names;
+        this.typeNames = typeNames;
+    }
+
+    /**
+     * Write a chunk to a file of its own
+     *
+     * @param chunk the rows
+     * @throws IOException If the file cannot be written
+     */
+    void write(Chunk chunk) throws IOException {
+        String name;
+        synchronized (this) {
+            name = String.format("chunk-%06d.pgcopy.gz", files.size() + 1);
+            files.add(name);
+            rows.add(null);
+        }
+        Path file = dir.resolve(name);
+        Path tmp = dir.resolve(name + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE) ;
+             GZIPOutputStream gzip = new GZIPOutputStream(Channels.newOutputStream(channel), 64 * 1024) ;
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(gzip))) {
+            out.write(BinaryCopyWriter.HEADER);
+            int columnCount = chunk.columnCount();
+            for (int row = 0 ; row < chunk.size() ; row++) {
+                out.writeShort(columnCount);
+                for (int column = 0 ; column < columnCount ; column++) {
+                    chunk.column(column).encode(out, row);
+                }
+            }
+            out.writeShort(-1);
+            out.flush();
+            gzip.finish();
+            // The source may be gone when the spool is replayed
+            channel.force(true);
+        }
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+        synchronized (this) {
+            rows.set(files.indexOf(name), (long) chunk.size());
+        }
+    }
+
+    /**
+     * Write the manifest, this makes the spool directory replayable
+     *
+     * @throws IOException If the manifest cannot be written
+     */
+    synchronized void finish() throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("columns", String.join(",", columnNames == null ? List.of() : columnNames));
+        properties.setProperty("types", String.join(",", typeNames == null ? List.of() : typeNames));
+        properties.setProperty("files", String.valueOf(files.size()));
+        for (int i = 0 ; i < files.size() ; i++) {
+            properties.setProperty("file." + i + ".name", files.get(i));
+            properties.setProperty("file." + i + ".rows", String.valueOf(rows.get(i)));
+        }
+        // The chunk files are renamed into place, make that durable before the
+        // manifest refers to them
+        syncDirectory();
+        Path file = dir.resolve(MANIFEST);
+        Path tmp = dir.resolve(MANIFEST + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            OutputStream os = Channels.newOutputStream(channel);
+            properties.store(os, "chunk-insert spool");
+            os.flush();
+            channel.force(true);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory();
+    }
+
+    private void syncDirectory() throws IOException {
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Ensure the spooled columns can be copied to the target
+     *
+     * @param connection database connection
+     * @param table      target table
+     * @param columns    target columns
+     * @throws SQLException If the target cannot be inspected
+     */
+    void validate(Connection connection, String table, List<String> columns) throws SQLException {
+        if (typeNames.size() != columns.size())
+            throw new IllegalStateException("Spool has " + typeNames.size() + " columns, insert has " + columns.size());
+        try (Statement stmt = connection.createStatement() ;
+             ResultSet resultSet = stmt.executeQuery("SELECT " + String.join(", ", columns) + " FROM " + table + " WHERE false")) {
+            ResultSetMetaData target = resultSet.getMetaData();
+            for (int column = 1 ; column <= columns.size() ; column++) {
+                String typeName = typeNames.get(column - 1);
+                String targetTypeName = BinaryCopyWriter.canonicalTypeName(target.getColumnTypeName(column));
+                if (!typeName.equals(targetTypeName))
+                    throw new IllegalStateException("Column " + columns.get(column - 1) + " is " + targetTypeName + " but spool (" + columnNames.get(column - 1) + ") has " + typeName);
+            }
+        }
+    }
+
+    List<String> getFiles() {
+        return files;
+    }
+
+    long getRows(int file) {
+        return rows.get(file);
+    }
+
+    boolean isDone(String name) {
+        return Files.exists(dir.resolve(name + ".done"));
+    }
+
+    void done(String name) throws IOException {
+        Files.createFile(dir.resolve(name + ".done"));
+    }
+
+    /**
+     * Open a spooled file
+     *
+     * @param name file name from the manifest
+     * @return binary COPY data
+     * @throws IOException If the file cannot be opened
+     */
+    InputStream open(String name) throws IOException {
+        return new GZIPInputStream(Files.newInputStream(dir.resolve(name)), 64 * 1024);
+    }
+}
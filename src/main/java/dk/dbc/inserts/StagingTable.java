@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of chunk-insert
+ *
+ * chunk-insert is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * chunk-insert is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.inserts;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import javax.sql.DataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An UNLOGGED copy of the target table, that is loaded and then swapped in
+ * place of the target
+ * <p>
+ * The staging table is made with LIKE ... INCLUDING ALL, and its secondary
+ * indexes are dropped until loading is done (see {@link DeferredIndexes}, the
+ * definitions are kept in the checkpoint, so they are rebuilt when resuming).
+ * When swapping, the table is set LOGGED, the secondary indexes are built,
+ * and in one transaction the target is dropped and the staging table is
+ * renamed to the target (and attached to the parent if the target is a
+ * partition).
+ * <p>
+ * LIKE does not copy foreign keys, owner, privileges or sequence ownership.
+ * These are carried over when swapping. Tables that are referenced by
+ * foreign keys or views, or have triggers, row level security or column
+ * privileges are refused before loading, since they cannot be carried over.
+ * The current rows of the target are replaced, not kept.
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+class StagingTable {
+
+    private static final Logger log = LoggerFactory.getLogger(StagingTable.class);
+
+    private static final String SUFFIX = "_staging";
+
+    private static final String REFERENCES = "SELECT conrelid::regclass::TEXT FROM pg_constraint WHERE contype = 'f' AND confrelid = ?::regclass";
+    private static final String TRIGGERS = "SELECT tgname::TEXT FROM pg_trigger WHERE tgrelid = ?::regclass AND NOT tgisinternal";
+    private static final String VIEWS = "SELECT DISTINCT r.ev_class::regclass::TEXT FROM pg_depend d JOIN pg_rewrite r ON r.oid = d.objid" +
+                                        " WHERE d.classid = 'pg_rewrite'::regclass AND d.refobjid = ?::regclass AND r.ev_class <> d.refobjid";
+    private static final String ROW_SECURITY = "SELECT c.relname::TEXT FROM pg_class c WHERE c.oid = ?::regclass" +
+                                               " AND (c.relrowsecurity OR EXISTS (SELECT 1 FROM pg_policy p WHERE p.polrelid = c.oid))";
+    private static final String COLUMN_PRIVILEGES = "SELECT attname::TEXT FROM pg_attribute WHERE attrelid = ?::regclass AND attacl IS NOT NULL";
+
+    private static final String FOREIGN_KEYS = "SELECT format('ADD CONSTRAINT %I %s', conname, pg_get_constraintdef(oid))" +
+                                               " FROM pg_constraint WHERE contype = 'f' AND conrelid = ?::regclass";
+    // Sequences owned by a column, 'a' for serial and 'i' for identity
+    private static final String SEQUENCES = "SELECT d.deptype::TEXT, d.objid::regclass::TEXT, a.attname::TEXT, quote_ident(a.attname)" +
+                                            " FROM pg_depend d" +
+                                            " JOIN pg_class s ON s.oid = d.objid AND s.relkind = 'S'" +
+                                            " JOIN pg_attribute a ON a.attrelid = d.refobjid AND a.attnum = d.refobjsubid" +
+                                            " WHERE d.classid = 'pg_class'::regclass AND d.refclassid = 'pg_class'::regclass" +
+                                            " AND d.refobjid = ?::regclass AND d.deptype IN ('a', 'i')";
+    private static final String OWNER = "SELECT quote_ident(pg_get_userbyid(relowner)) FROM pg_class WHERE oid = ?::regclass";
+    private static final String PRIVILEGES = "SELECT format('%s ON %%s TO %s%s', a.privilege_type," +
+                                             " CASE WHEN a.grantee = 0 THEN 'PUBLIC' ELSE quote_ident(pg_get_userbyid(a.grantee)) END," +
+                                             " CASE WHEN a.is_grantable THEN ' WITH GRANT OPTION' ELSE '' END)" +
+                                             " FROM pg_class c, aclexplode(c.relacl) a WHERE c.oid = ?::regclass AND a.grantee <> c.relowner";
+
+    private final DataSource dataSource;
+    private final String target;
+    private final String name;
+    private final DeferredIndexes deferredIndexes;
+
+    private StagingTable(DataSource dataSource, String target, String name, DeferredIndexes deferredIndexes) {
+        this.dataSource = dataSource;
+        this.target = target;
+        this.name = name;
+        this.deferredIndexes = deferredIndexes;
+    }
+
+    /**
+     * Make the staging table for a target
+     *
+     * @param dataSource         where to connect to
+     * @param target             target table
+     * @param reuse              if an existing staging table should be used
+     *                           (when resuming)
+     * @param maintenanceWorkMem maintenance_work_mem for building indexes or
+     *                           null for database default
+     * @param parallel           how many indexes to build at a time
+     * @param checkpoint         where to record the dropped indexes or null
+     * @return staging table
+     * @throws SQLException If the table cannot be made
+     * @throws IOException  If the checkpoint cannot be written
+     */
+    static StagingTable create(DataSource dataSource, String target, boolean reuse, String maintenanceWorkMem, int parallel, Checkpoint checkpoint) throws SQLException, IOException {
+        String name = target + SUFFIX;
+        try (Connection connection = dataSource.getConnection()) {
+            String kind = queryString(connection, "SELECT relkind::TEXT FROM pg_class WHERE oid = ?::regclass", target);
+            if ("p".equals(kind))
+                throw new IllegalStateException("Cannot stage partitioned table " + target + ", stage each partition");
+            check(connection, target);
+            if (exists(connection, name)) {
+                if (!reuse)
+                    throw new IllegalStateException("Staging table " + name + " exists");
+                log.info("Continuing loading into staging table {}", name);
+            } else {
+                log.info("Creating staging table {}", name);
+                try (Statement stmt = connection.createStatement()) {
+                    stmt.execute("CREATE UNLOGGED TABLE " + name + " (LIKE " + target + " INCLUDING ALL)");
+                }
+            }
+        }
+        return new StagingTable(dataSource, target, name, DeferredIndexes.drop(dataSource, name, maintenanceWorkMem, parallel, checkpoint));
+    }
+
+    String getName() {
+        return name;
+    }
+
+    /**
+     * Make the staging table logged, build the indexes, carry over foreign
+     * keys, owner, privileges and sequences and replace the target
+     *
+     * @throws Exception If something fails, the staging table is kept
+     */
+    void swap() throws Exception {
+        try (Connection connection = dataSource.getConnection()) {
+            connection.setAutoCommit(true);
+            log.info("Setting {} logged", name);
+            try (Statement stmt = connection.createStatement()) {
+                stmt.execute("ALTER TABLE " + name + " SET LOGGED");
+            }
+            deferredIndexes.close();
+            addForeignKeys(connection);
+
+            connection.setAutoCommit(false);
+            try (Statement stmt = connection.createStatement()) {
+                String parent = queryString(connection, "SELECT inhparent::regclass::TEXT FROM pg_inherits WHERE inhrelid = ?::regclass", target);
+                String bound = queryString(connection, "SELECT pg_get_expr(relpartbound, oid) FROM pg_class WHERE oid = ?::regclass AND relispartition", target);
+                List<String> indexes = indexes(connection, name);
+                stmt.execute("LOCK TABLE " + target + " IN ACCESS EXCLUSIVE MODE");
+                int targetIndexes = indexes(connection, target).size();
+                if (indexes.size() < targetIndexes)
+                    throw new IllegalStateException("Staging table " + name + " has " + indexes.size() + " indexes, but " + target + " has " + targetIndexes);
+                stmt.execute("ALTER TABLE " + name + " OWNER TO " + queryString(connection, OWNER, target));
+                for (String privileges : queryStrings(connection, PRIVILEGES, target)) {
+                    stmt.execute("GRANT " + privileges.replace("%s", name));
+                }
+                moveSequences(connection);
+                if (parent != null && bound != null)
+                    stmt.execute("ALTER TABLE " + parent + " DETACH PARTITION " + target);
+                stmt.execute("DROP TABLE " + target);
+                stmt.execute("ALTER TABLE " + name + " RENAME TO " + unqualified(target));
+                String from = unqualified(name);
+                String to = unqualified(target);
+                for (String index : indexes) {
+                    String indexName = unqualified(index);
+                    if (indexName.startsWith(from))
+                        stmt.execute("ALTER INDEX " + index + " RENAME TO " + to + indexName.substring(from.length()));
+                }
+                if (parent != null && bound != null)
+                    stmt.execute("ALTER TABLE " + parent + " ATTACH PARTITION " + target + " " + bound);
+                connection.commit();
+                log.info("Swapped {} into place of {}", name, target);
+                connection.setAutoCommit(true);
+                stmt.execute("ANALYZE " + target);
+            } catch (SQLException | RuntimeException ex) {
+                connection.rollback();
+                log.error("Could not swap {} into place of {}, it is kept", name, target);
+                throw ex;
+            }
+        }
+    }
+
+    /**
+     * Refuse a target that has something that cannot be carried over to the
+     * staging table, and would be lost or make the swap fail
+     *
+     * @param connection database connection
+     * @param target     target table
+     * @throws SQLException If the catalog cannot be queried
+     */
+    private static void check(Connection connection, String target) throws SQLException {
+        List<String> problems = new ArrayList<>();
+        problem(problems, "it is referenced by foreign keys from", queryStrings(connection, REFERENCES, target));
+        problem(problems, "it is used by views", queryStrings(connection, VIEWS, target));
+        problem(problems, "it has triggers", queryStrings(connection, TRIGGERS, target));
+        if (queryString(connection, ROW_SECURITY, target) != null)
+            problems.add("it has row level security");
+        problem(problems, "it has privileges on columns", queryStrings(connection, COLUMN_PRIVILEGES, target));
+        if (!problems.isEmpty())
+            throw new IllegalStateException("Cannot stage " + target + ", " + String.join(", ", problems));
+    }
+
+    private static void problem(List<String> problems, String problem, List<String> names) {
+        if (!names.isEmpty())
+            problems.add(problem + " " + String.join(", ", names));
+    }
+
+    /**
+     * Add the foreign keys of the target to the staging table
+     * <p>
+     * This is done before the target is locked, since the rows are checked.
+     * Foreign keys that exist (from an earlier attempt) are skipped.
+     *
+     * @param connection database connection in auto commit mode
+     * @throws SQLException If a foreign key cannot be added
+     */
+    private void addForeignKeys(Connection connection) throws SQLException {
+        List<String> existing = queryStrings(connection, FOREIGN_KEYS, name);
+        try (Statement stmt = connection.createStatement()) {
+            for (String foreignKey : queryStrings(connection, FOREIGN_KEYS, target)) {
+                if (existing.contains(foreignKey))
+                    continue;
+                log.info("Adding to {}: {}", name, foreignKey);
+                stmt.execute("ALTER TABLE " + name + " " + foreignKey);
+            }
+        }
+    }
+
+    /**
+     * Make the sequences of the target continue on the staging table
+     * <p>
+     * A serial sequence is owned by the target column, and is used by the
+     * default of the staging column, so the ownership is moved, or the target
+     * cannot be dropped. An identity column has a sequence of its own in the
+     * staging table, it is set to where the target sequence is. The staging
+     * table has to have the owner of the target already.
+     *
+     * @param connection database connection
+     * @throws SQLException If a sequence cannot be altered
+     */
+    private void moveSequences(Connection connection) throws SQLException {
+        try (PreparedStatement stmt = connection.prepareStatement(SEQUENCES)) {
+            stmt.setString(1, target);
+            try (ResultSet resultSet = stmt.executeQuery() ;
+                 Statement alter = connection.createStatement()) {
+                while (resultSet.next()) {
+                    String sequence = resultSet.getString(2);
+                    if ("a".equals(resultSet.getString(1))) {
+                        alter.execute("ALTER SEQUENCE " + sequence + " OWNED BY " + name + "." + resultSet.getString(4));
+                    } else {
+                        try (PreparedStatement setval = connection.prepareStatement("SELECT setval(pg_get_serial_sequence(?, ?), last_value, is_called) FROM " + sequence)) {
+                            setval.setString(1, name);
+                            setval.setString(2, resultSet.getString(3));
+                            setval.execute();
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static boolean exists(Connection connection, String table) throws SQLException {
+        return queryString(connection, "SELECT to_regclass(?)::TEXT", table) != null;
+    }
+
+    private static List<String> indexes(Connection connection, String table) throws SQLException {
+        return queryStrings(connection, "SELECT indexrelid::regclass::TEXT FROM pg_index WHERE indrelid = ?::regclass", table);
+    }
+
+    private static List<String> queryStrings(Connection connection, String sql, String parameter) throws SQLException {
+        List<String> values = new ArrayList<>();
+        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+            stmt.setString(1, parameter);
+            try (ResultSet resultSet = stmt.executeQuery()) {
+                while (resultSet.next()) {
+                    values.add(resultSet.getString(1));
+                }
+            }
+        }
+        return values;
+    }
+
+    private static String queryString(Connection connection, String sql, String parameter) throws SQLException {
+        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+            stmt.setString(1, parameter);
+            try (ResultSet resultSet = stmt.executeQuery()) {
+                if (resultSet.next())
+                    return resultSet.getString(1);
+                return null;
+            }
+        }
+    }
+
+    static String unqualified(String name) {
+        return name.substring(name.lastIndexOf('.') + 1);
+    }
+}
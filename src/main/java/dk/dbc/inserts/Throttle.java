@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of chunk-insert
+ *
+ * chunk-insert is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * chunk-insert is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.inserts;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+import javax.sql.DataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Slow loading down to a rate, and pause while replicas lag behind
+ * <p>
+ * Rates are token buckets holding one second worth of tokens. Rows and bytes
+ * are taken after a chunk is committed, so a bucket can be in debt, and the
+ * caller sleeps until it is paid off.
+ * <p>
+ * Replica lag is the largest replay_lag in pg_stat_replication on the
+ * primary, or if a replica is given, the time since the last replayed
+ * transaction on the replica (0 if all received WAL is replayed).
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+class Throttle implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(Throttle.class);
+
+    private static final long LAG_POLL_MS = 1_000L;
+
+    private static final String PRIMARY_LAG = "SELECT COALESCE(MAX(EXTRACT(EPOCH FROM replay_lag)), 0) FROM pg_stat_replication";
+    private static final String REPLICA_LAG = "SELECT CASE WHEN pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0" +
+                                              " ELSE COALESCE(EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()), 0) END";
+
+    private final TokenBucket rows;
+    private final TokenBucket bytes;
+    private final double maxLag;
+    private final DataSource lagSource;
+    private final String lagSql;
+    private Connection lagConnection;
+
+    /**
+     * Make a throttle
+     *
+     * @param rowsPerSecond  max rows per second or 0 for no limit
+     * @param bytesPerSecond max bytes per second or 0 for no limit
+     * @param maxLag         max replica lag in seconds or 0 for no check
+     * @param primary        the database that is loaded
+     * @param replica        replica to check or null for checking all
+     *                       replicas on the primary
+     */
+    Throttle(long rowsPerSecond, long bytesPerSecond, int maxLag, DataSource primary, DataSource replica) {
+        this.rows = rowsPerSecond == 0 ? null : new TokenBucket(rowsPerSecond);
+        this.bytes = bytesPerSecond == 0 ? null : new TokenBucket(bytesPerSecond);
+        this.maxLag = maxLag;
+        this.lagSource = replica == null ? primary : replica;
+        this.lagSql = replica == null ? PRIMARY_LAG : REPLICA_LAG;
+        this.lagConnection = null;
+    }
+
+    /**
+     * Account for a committed chunk, and wait if the rate is exceeded or
+     * replicas lag behind
+     *
+     * @param rowCount  number of rows committed
+     * @param byteCount approximate size of rows committed
+     * @throws InterruptedException If interrupted while waiting
+     * @throws SQLException         If replica lag cannot be found
+     */
+    void pace(long rowCount, long byteCount) throws InterruptedException, SQLException {
+        long now = System.nanoTime();
+        long wait = 0;
+        if (rows != null)
+            wait = Long.max(wait, rows.take(rowCount, now));
+        if (bytes != null)
+            wait = Long.max(wait, bytes.take(byteCount, now));
+        if (wait > 0) {
+            log.debug("Throttling for {} ms", TimeUnit.NANOSECONDS.toMillis(wait));
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+        if (maxLag > 0)
+            waitForReplicas();
+    }
+
+    @Override
+    public synchronized void close() throws SQLException {
+        if (lagConnection != null) {
+            lagConnection.close();
+            lagConnection = null;
+        }
+    }
+
+    private synchronized void waitForReplicas() throws InterruptedException, SQLException {
+        boolean paused = false;
+        for (double lag = replicaLag() ; lag > maxLag ; lag = replicaLag()) {
+            if (!paused)
+                log.info("Replica lag is {} seconds, pausing", String.format("%.1f", lag));
+            paused = true;
+            Thread.sleep(LAG_POLL_MS);
+        }
+        if (paused)
+            log.info("Replica lag is below {} seconds, continuing", maxLag);
+    }
+
+    private double replicaLag() throws SQLException {
+        if (lagConnection == null) {
+            lagConnection = lagSource.getConnection();
+            lagConnection.setAutoCommit(true);
+        }
+        try (Statement stmt = lagConnection.createStatement() ;
+             ResultSet resultSet = stmt.executeQuery(lagSql)) {
+            resultSet.next();
+            return resultSet.getDouble(1);
+        }
+    }
+
+    /**
+     * Tokens refill at a rate up to one second worth
+     */
+    static final class TokenBucket {
+
+        private final double rate;
+        private double tokens;
+        private long last;
+
+        TokenBucket(long perSecond) {
+            this.rate = perSecond / 1e9;
+            this.tokens = perSecond;
+            this.last = System.nanoTime();
+        }
+
+        /**
+         * Take a number of tokens
+         *
+         * @param count number of tokens
+         * @param now   current time in nanos
+         * @return nanos to wait until there are no debt
+         */
+        synchronized long take(long count, long now) {
+            tokens = Double.min(rate * 1e9, tokens + Long.max(0, now - last) * rate);
+            last = Long.max(last, now);
+            tokens -= count;
+            if (tokens >= 0)
+                return 0;
+            return (long) (-tokens / rate);
+        }
+    }
+}
@@ -58,4 +58,117 @@ public class ArgumentsTest {
         Arguments arguments = new Arguments("-c", "42", "-d", "db", "sql-statement");
         assertThat(arguments.getCommit(), is(42));
     }
+
+    @Test(timeout = 2_000L)
+    public void testModeDefault() throws Exception {
+        System.out.println("testModeDefault");
+        Arguments arguments = new Arguments("-d", "db", "sql-statement");
+        assertThat(arguments.getMode(), is(Mode.INSERT));
+    }
+
+    @Test(timeout = 2_000L)
+    public void testModeCopy() throws Exception {
+        System.out.println("testModeCopy");
+        Arguments arguments = new Arguments("--mode", "copy", "-d", "db", "sql-statement");
+        assertThat(arguments.getMode(), is(Mode.COPY));
+    }
+
+    @Test(timeout = 2_000L, expected = ExitException.class)
+    public void testModeInvalid() throws Exception {
+        System.out.println("testModeInvalid");
+        new Arguments("--mode", "fast", "-d", "db", "sql-statement");
+    }
+
+    @Test(timeout = 2_000L)
+    public void testModeServer() throws Exception {
+        System.out.println("testModeServer");
+        Arguments arguments = new Arguments("--mode", "server", "--key", "id", "-d", "db", "sql-statement");
+        assertThat(arguments.getMode(), is(Mode.SERVER));
+        assertThat(arguments.getKey(), is("id"));
+    }
+
+    @Test(timeout = 2_000L, expected = ExitException.class)
+    public void testModeServerWithoutKey() throws Exception {
+        System.out.println("testModeServerWithoutKey");
+        new Arguments("--mode", "server", "-d", "db", "sql-statement");
+    }
+
+    @Test(timeout = 2_000L)
+    public void testSourceDbDefault() throws Exception {
+        System.out.println("testSourceDbDefault");
+        Arguments arguments = new Arguments("-d", "db", "sql-statement");
+        assertThat(arguments.getSourceDb(), is("db"));
+    }
+
+    @Test(timeout = 2_000L)
+    public void testSourceDb() throws Exception {
+        System.out.println("testSourceDb");
+        Arguments arguments = new Arguments("--source-database", "other", "-d", "db", "sql-statement");
+        assertThat(arguments.getSourceDb(), is("other"));
+        assertThat(arguments.getDb(), is("db"));
+    }
+
+    @Test(timeout = 2_000L, expected = ExitException.class)
+    public void testSourceDbModeServer() throws Exception {
+        System.out.println("testSourceDbModeServer");
+        new Arguments("--mode", "server", "--key", "id", "--source-database", "other", "-d", "db", "sql-statement");
+    }
+
+    @Test(timeout = 2_000L)
+    public void testMaintenanceWorkMem() throws Exception {
+        System.out.println("testMaintenanceWorkMem");
+        Arguments arguments = new Arguments("--defer-indexes", "--maintenance-work-mem", "2GB", "-d", "db", "sql-statement");
+        assertThat(arguments.isDeferIndexes(), is(true));
+        assertThat(arguments.getMaintenanceWorkMem(), is("2GB"));
+    }
+
+    @Test(timeout = 2_000L, expected = ExitException.class)
+    public void testMaintenanceWorkMemInvalid() throws Exception {
+        System.out.println("testMaintenanceWorkMemInvalid");
+        new Arguments("--maintenance-work-mem", "1'; DROP TABLE x", "-d", "db", "sql-statement");
+    }
+
+    @Test(timeout = 2_000L)
+    public void testFetchSize() throws Exception {
+        System.out.println("testFetchSize");
+        assertThat(new Arguments("-d", "db", "sql-statement").getFetchSize(), is(0));
+        assertThat(new Arguments("--fetch-size", "500", "-d", "db", "sql-statement").getFetchSize(), is(500));
+    }
+
+    @Test(timeout = 2_000L, expected = ExitException.class)
+    public void testPlanFromFile() throws Exception {
+        System.out.println("testPlanFromFile");
+        new Arguments("--plan", "--from-file", "rows.csv", "-d", "db", "sql-statement");
+    }
+
+    @Test(timeout = 2_000L, expected = ExitException.class)
+    public void testPlanWriteWithoutPlan() throws Exception {
+        System.out.println("testPlanWriteWithoutPlan");
+        new Arguments("--plan-write", "-d", "db", "sql-statement");
+    }
+
+    @Test(timeout = 2_000L)
+    public void testMaxRowsPerSec() throws Exception {
+        System.out.println("testMaxRowsPerSec");
+        Arguments arguments = new Arguments("--max-rows-per-sec", "5000000000", "-d", "db", "sql-statement");
+        assertThat(arguments.getMaxRowsPerSec(), is(5_000_000_000L));
+    }
+
+    @Test(timeout = 2_000L, expected = ExitException.class)
+    public void testMaxRowsPerSecZero() throws Exception {
+        System.out.println("testMaxRowsPerSecZero");
+        new Arguments("--max-rows-per-sec", "0", "-d", "db", "sql-statement");
+    }
+
+    @Test(timeout = 2_000L, expected = ExitException.class)
+    public void testJobsSharedCheckpoint() throws Exception {
+        System.out.println("testJobsSharedCheckpoint");
+        new Arguments("--jobs", "jobs.properties", "--key", "id", "--checkpoint", "cp", "-d", "db");
+    }
+
+    @Test(timeout = 2_000L, expected = ExitException.class)
+    public void testJobsSharedRejectFile() throws Exception {
+        System.out.println("testJobsSharedRejectFile");
+        new Arguments("--jobs", "jobs.properties", "--reject-file", "rejects.jsonl", "-d", "db");
+    }
 }
@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of chunk-insert
+ *
+ * chunk-insert is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * chunk-insert is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.inserts;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+public class BatchInsertWriterTest {
+
+    public BatchInsertWriterTest() {
+    }
+
+    @Test(timeout = 2_000L)
+    public void testMakeInsert() throws Exception {
+        System.out.println("testMakeInsert");
+        assertThat(BatchInsertWriter.makeInsert("INSERT INTO t (a, b)", 2, 1, ""),
+                   is("INSERT INTO t (a, b) VALUES(?, ?)"));
+        assertThat(BatchInsertWriter.makeInsert("INSERT INTO t (a, b)", 2, 3, ""),
+                   is("INSERT INTO t (a, b) VALUES(?, ?), (?, ?), (?, ?)"));
+        assertThat(BatchInsertWriter.makeInsert("INSERT INTO t (a, b)", 2, 2, " ON CONFLICT (a) DO NOTHING"),
+                   is("INSERT INTO t (a, b) VALUES(?, ?), (?, ?) ON CONFLICT (a) DO NOTHING"));
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of chunk-insert
+ *
+ * chunk-insert is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * chunk-insert is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.inserts;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+public class BinaryCopyWriterTest {
+
+    public BinaryCopyWriterTest() {
+    }
+
+    @Test(timeout = 2_000L)
+    public void testNumeric() throws Exception {
+        System.out.println("testNumeric");
+        assertThat(numeric("12345.67"), is(shorts(0, 14, 3, 1, 0x0000, 2, 1, 2345, 6700)));
+        assertThat(numeric("-0.5"), is(shorts(0, 10, 1, -1, 0x4000, 1, 5000)));
+        assertThat(numeric("100000000"), is(shorts(0, 10, 1, 2, 0x0000, 0, 1)));
+        assertThat(numeric("0.00"), is(shorts(0, 8, 0, 0, 0x0000, 2)));
+        assertThat(numeric("0.00012"), is(shorts(0, 12, 2, -1, 0x0000, 5, 1, 2000)));
+    }
+
+    @Test(timeout = 2_000L)
+    public void testDateTime() throws Exception {
+        System.out.println("testDateTime");
+        assertThat(BinaryCopyWriter.postgresDate(LocalDate.of(1999, 12, 31)), is(-1));
+        assertThat(BinaryCopyWriter.postgresDate(LocalDate.MAX), is(Integer.MAX_VALUE));
+        assertThat(BinaryCopyWriter.postgresTimestamp(LocalDateTime.of(2000, 1, 1, 0, 0, 1, 2_000)), is(1_000_002L));
+        assertThat(BinaryCopyWriter.postgresTimestamp(OffsetDateTime.of(2000, 1, 1, 1, 0, 0, 0, ZoneOffset.ofHours(1))), is(0L));
+    }
+
+    private static String numeric(String value) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bos)) {
+            BinaryCopyWriter.encodeNumeric(new BigDecimal(value), out);
+        }
+        return hex(bos.toByteArray());
+    }
+
+    private static String shorts(int... values) {
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * 2);
+        for (int value : values) {
+            buffer.putShort((short) value);
+        }
+        return hex(buffer.array());
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of chunk-insert
+ *
+ * chunk-insert is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * chunk-insert is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.inserts;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+public class CheckpointTest {
+
+    @Test(timeout = 2_000L)
+    public void testRoundTrip() throws Exception {
+        System.out.println("testRoundTrip");
+        Path dir = Files.createTempDirectory("checkpoint");
+        Path file = dir.resolve("run.checkpoint");
+        try {
+            List<String> selects = List.of("SELECT a FROM b WHERE x = 'y=z'", "SELECT a FROM b WHERE x IS NULL");
+            Checkpoint checkpoint = Checkpoint.create(file, selects);
+            checkpoint.committed(0, "2020-01-01 10:00:00");
+            checkpoint.committed(1, "42");
+            checkpoint.completed(1);
+
+            Checkpoint loaded = Checkpoint.load(file);
+            assertThat(loaded.getSelects(), is(selects));
+            assertThat(loaded.getKey(0), is("2020-01-01 10:00:00"));
+            assertThat(loaded.isDone(0), is(false));
+            assertThat(loaded.getKey(1), is("42"));
+            assertThat(loaded.isDone(1), is(true));
+            assertThat(Files.exists(dir.resolve("run.checkpoint.tmp")), is(false));
+        } finally {
+            Files.deleteIfExists(file);
+            Files.delete(dir);
+        }
+    }
+
+    @Test(timeout = 2_000L)
+    public void testNoProgress() throws Exception {
+        System.out.println("testNoProgress");
+        Path file = Files.createTempFile("checkpoint", ".properties");
+        try {
+            Checkpoint.create(file, List.of("SELECT 1"));
+            Checkpoint loaded = Checkpoint.load(file);
+            assertThat(loaded.getKey(0), nullValue());
+            assertThat(loaded.isDone(0), is(false));
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of chunk-insert
+ *
+ * chunk-insert is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * chunk-insert is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.inserts;
+
+import dk.dbc.ReThrowException;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+public class ChunkProducerTest {
+
+    public ChunkProducerTest() {
+    }
+
+    @Test(timeout = 2_000L)
+    public void testChunking() throws Exception {
+        System.out.println("testChunking");
+        List<ColumnType> types = Arrays.asList(ColumnType.INT4);
+        List<Integer> sizes = new ArrayList<>();
+        List<Object> values = new ArrayList<>();
+        try (ChunkProducer producer = new ChunkProducer(null, resultSet(5, -1), types, () -> 2, 1, new Metrics())) {
+            for (Chunk chunk = producer.take() ; chunk != null ; chunk = producer.take()) {
+                sizes.add(chunk.size());
+                for (int row = 0 ; row < chunk.size() ; row++) {
+                    values.add(chunk.column(0).get(row));
+                }
+            }
+        }
+        assertThat(sizes, is(Arrays.asList(2, 2, 1)));
+        assertThat(values, is(Arrays.asList(1, 2, 3, 4, 5)));
+    }
+
+    @Test(timeout = 2_000L)
+    public void testChangingChunkSize() throws Exception {
+        System.out.println("testChangingChunkSize");
+        List<ColumnType> types = Arrays.asList(ColumnType.INT4);
+        Iterator<Integer> chunkSizes = Arrays.asList(1, 3, 2, 2, 2).iterator();
+        List<Integer> sizes = new ArrayList<>();
+        try (ChunkProducer producer = new ChunkProducer(null, resultSet(8, -1), types, chunkSizes::next, 1, new Metrics())) {
+            for (Chunk chunk = producer.take() ; chunk != null ; chunk = producer.take()) {
+                sizes.add(chunk.size());
+            }
+        }
+        assertThat(sizes, is(Arrays.asList(1, 3, 2, 2)));
+    }
+
+    @Test(timeout = 2_000L)
+    public void testFailure() throws Exception {
+        System.out.println("testFailure");
+        List<ColumnType> types = Arrays.asList(ColumnType.INT4);
+        try (ChunkProducer producer = new ChunkProducer(null, resultSet(5, 3), types, () -> 2, 1, new Metrics())) {
+            while (producer.take() != null) {
+            }
+            throw new AssertionError("Expected exception");
+        } catch (ReThrowException ex) {
+            assertThat(ex.getMessage(), is("row 3"));
+        }
+    }
+
+    @Test(timeout = 2_000L)
+    public void testError() throws Exception {
+        System.out.println("testError");
+        List<ColumnType> types = Arrays.asList(ColumnType.INT4);
+        ChunkProducer.Source source = new ChunkProducer.Source() {
+            @Override
+            public boolean next() {
+                return true;
+            }
+
+            @Override
+            public void read(Chunk chunk) {
+                throw new OutOfMemoryError("no chunk");
+            }
+        };
+        try (ChunkProducer producer = new ChunkProducer(source, types, () -> 2, 1, new Metrics())) {
+            producer.take();
+            throw new AssertionError("Expected error");
+        } catch (OutOfMemoryError ex) {
+            assertThat(ex.getMessage(), is("no chunk"));
+        }
+    }
+
+    /**
+     * Result set with one int column containing 1..rows
+     *
+     * @param rows    number of rows
+     * @param failure fail on this row
+     * @return result set
+     */
+    private static ResultSet resultSet(int rows, int failure) {
+        int[] row = new int[] {0};
+        return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[] {ResultSet.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "next":
+                    if (++row[0] == failure)
+                        throw new SQLException("row " + failure);
+                    return row[0] <= rows;
+                case "getInt":
+                    return row[0];
+                case "wasNull":
+                    return false;
+                case "setFetchSize":
+                    return null;
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of chunk-insert
+ *
+ * chunk-insert is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * chunk-insert is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.inserts;
+
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+public class ChunkTest {
+
+    @Test(timeout = 2_000L)
+    public void testBind() throws Exception {
+        System.out.println("testBind");
+        Chunk chunk = chunk(new Object[][] {
+            {1, "a"},
+            {null, "b"}
+        });
+        TreeMap<Integer, Object> parameters = new TreeMap<>();
+        PreparedStatement stmt = (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(), new Class<?>[] {PreparedStatement.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "setInt":
+                case "setString":
+                    parameters.put((Integer) args[0], args[1]);
+                    return null;
+                case "setNull":
+                    parameters.put((Integer) args[0], "NULL");
+                    return null;
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+        chunk.bind(stmt, 1, 0);
+        chunk.bind(stmt, 3, 1);
+        assertThat(parameters.toString(), is("{1=1, 2=a, 3=NULL, 4=b}"));
+    }
+
+    @Test(timeout = 2_000L)
+    public void testDeduplicate() throws Exception {
+        System.out.println("testDeduplicate");
+        Chunk chunk = chunk(new Object[][] {
+            {1, "a"},
+            {2, "b"},
+            {1, "c"},
+            {null, "d"},
+            {null, "e"},
+            {2, "f"},
+            {3, "g"}
+        });
+        assertThat(chunk.deduplicate(new int[] {0}), is(2));
+        assertThat(rows(chunk), is(Arrays.asList(
+                   Arrays.asList(1, "c"),
+                   Arrays.asList(null, "d"),
+                   Arrays.asList(null, "e"),
+                   Arrays.asList(2, "f"),
+                   Arrays.asList(3, "g"))));
+    }
+
+    @Test(timeout = 2_000L)
+    public void testDeduplicateNoDuplicates() throws Exception {
+        System.out.println("testDeduplicateNoDuplicates");
+        Chunk chunk = chunk(new Object[][] {
+            {1, "a"},
+            {1, "b"}
+        });
+        assertThat(chunk.deduplicate(new int[] {0, 1}), is(0));
+        assertThat(chunk.size(), is(2));
+    }
+
+    @Test(timeout = 2_000L)
+    public void testSlice() throws Exception {
+        System.out.println("testSlice");
+        Chunk chunk = chunk(new Object[][] {
+            {1, "a"},
+            {null, "b"},
+            {3, null},
+            {4, "d"}
+        });
+        assertThat(rows(chunk.slice(1, 3)), is(Arrays.asList(
+                   Arrays.asList(null, "b"),
+                   Arrays.asList(3, null))));
+    }
+
+    static List<List<Object>> rows(Chunk chunk) {
+        List<List<Object>> rows = new ArrayList<>();
+        for (int row = 0 ; row < chunk.size() ; row++) {
+            List<Object> values = new ArrayList<>();
+            for (int column = 0 ; column < chunk.columnCount() ; column++) {
+                values.add(chunk.column(column).get(row));
+            }
+            rows.add(values);
+        }
+        return rows;
+    }
+
+    /**
+     * Chunk of (int4, text) rows
+     *
+     * @param rows the values
+     * @return chunk
+     * @throws Exception If reading fails
+     */
+    static Chunk chunk(Object[][] rows) throws Exception {
+        int[] row = new int[] {0};
+        boolean[] wasNull = new boolean[] {false};
+        ResultSet resultSet = (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[] {ResultSet.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getInt":
+                    Object value = rows[row[0]][(int) args[0] - 1];
+                    wasNull[0] = value == null;
+                    return value == null ? 0 : value;
+                case "getString":
+                    return rows[row[0]][(int) args[0] - 1];
+                case "wasNull":
+                    return wasNull[0];
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+        Chunk chunk = new Chunk(Arrays.asList(ColumnType.INT4, ColumnType.TEXT), rows.length);
+        for (row[0] = 0 ; row[0] < rows.length ; row[0]++) {
+            chunk.read(resultSet);
+        }
+        return chunk;
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of chunk-insert
+ *
+ * chunk-insert is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * chunk-insert is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.inserts;
+
+import java.lang.reflect.Proxy;
+import java.sql.ResultSetMetaData;
+import java.sql.Types;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+public class ColumnTypeTest {
+
+    public ColumnTypeTest() {
+    }
+
+    @Test(timeout = 2_000L)
+    public void testLookup() throws Exception {
+        System.out.println("testLookup");
+        ResultSetMetaData metaData = metaData(new String[] {"int4", "serial", "timestamptz", "_int4", "interval", "citext"},
+                                              new int[] {Types.INTEGER, Types.INTEGER, Types.TIMESTAMP, Types.ARRAY, Types.OTHER, Types.VARCHAR});
+        assertThat(ColumnType.of(metaData, 1), is(ColumnType.INT4));
+        assertThat(ColumnType.of(metaData, 2), is(ColumnType.INT4));
+        assertThat(ColumnType.of(metaData, 3), is(ColumnType.TIMESTAMPTZ));
+        assertThat(ColumnType.of(metaData, 4), is(ColumnType.ARRAY));
+        assertThat(ColumnType.of(metaData, 5), is(ColumnType.GENERIC));
+        assertThat(ColumnType.of(metaData, 6), is(ColumnType.TEXT));
+    }
+
+    @Test(timeout = 2_000L)
+    public void testBinaryCopyNames() throws Exception {
+        System.out.println("testBinaryCopyNames");
+        assertThat(ColumnType.INT8.isTypeName("bigserial"), is(true));
+        assertThat(ColumnType.TEXT.isTypeName("citext"), is(false));
+        assertThat(ColumnType.ARRAY.isBinaryCopy(), is(false));
+    }
+
+    @Test(timeout = 2_000L)
+    public void testParse() throws Exception {
+        System.out.println("testParse");
+        String text = "x42|t|no|2020-01-02 03:04:05+01|\\x00ff";
+        Chunk chunk = new Chunk(Arrays.asList(ColumnType.INT8, ColumnType.BOOL, ColumnType.BOOL, ColumnType.TIMESTAMPTZ, ColumnType.BYTEA), 1);
+        chunk.parse(text, new int[] {1, 4, 6, 9, 32}, new int[] {3, 5, 8, 31, 38});
+        assertThat(chunk.column(0).get(0), is(42L));
+        assertThat(chunk.column(1).get(0), is(true));
+        assertThat(chunk.column(2).get(0), is(false));
+        assertThat(chunk.column(3).get(0), is(OffsetDateTime.of(2020, 1, 2, 3, 4, 5, 0, ZoneOffset.ofHours(1))));
+        assertThat(Arrays.toString((byte[]) chunk.column(4).get(0)), is("[0, -1]"));
+    }
+
+    @Test(timeout = 2_000L)
+    public void testParseFloatingPoint() throws Exception {
+        System.out.println("testParseFloatingPoint");
+        List<String> texts = new ArrayList<>(Arrays.asList(
+                "0", "-0", "+1", "1.", ".5", "0.1", "-123.456", "1e22", "1e23", "9007199254740993",
+                "1.7976931348623157e308", "4.9e-324", "1e-400", "123456789.123456789", "3.4028235e38",
+                "16777217", "0.000001234", "1E+5", "Infinity", "-NaN", " 7 "));
+        Random random = new Random(42);
+        for (int i = 0 ; i < 10_000 ; i++) {
+            StringBuilder sb = new StringBuilder();
+            if (random.nextBoolean())
+                sb.append('-');
+            int digits = 1 + random.nextInt(18);
+            int point = random.nextInt(digits + 1);
+            for (int j = 0 ; j < digits ; j++) {
+                if (j == point)
+                    sb.append('.');
+                sb.append((char) ('0' + random.nextInt(10)));
+            }
+            if (random.nextBoolean())
+                sb.append('e').append(random.nextInt(60) - 30);
+            texts.add(sb.toString());
+        }
+        for (String text : texts) {
+            String padded = "x" + text + "y";
+            assertThat(text, Double.doubleToRawLongBits(Column.parseDouble(padded, 1, padded.length() - 1)),
+                       is(Double.doubleToRawLongBits(Double.parseDouble(text))));
+            assertThat(text, Float.floatToRawIntBits(Column.parseFloat(padded, 1, padded.length() - 1)),
+                       is(Float.floatToRawIntBits(Float.parseFloat(text))));
+        }
+    }
+
+    @Test(timeout = 2_000L, expected = NumberFormatException.class)
+    public void testParseFloatingPointInvalid() throws Exception {
+        System.out.println("testParseFloatingPointInvalid");
+        Column.parseDouble("1e", 0, 2);
+    }
+
+    @Test(timeout = 2_000L, expected = IllegalArgumentException.class)
+    public void testParseInvalid() throws Exception {
+        System.out.println("testParseInvalid");
+        Chunk chunk = new Chunk(Arrays.asList(ColumnType.INT2), 1);
+        chunk.parse("40000", new int[] {0}, new int[] {5});
+    }
+
+    private static ResultSetMetaData metaData(String[] typeNames, int[] types) {
+        return (ResultSetMetaData) Proxy.newProxyInstance(ResultSetMetaData.class.getClassLoader(), new Class<?>[] {ResultSetMetaData.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getColumnCount":
+                    return types.length;
+                case "getColumnName":
+                    return "c" + args[0];
+                case "getColumnTypeName":
+                    return typeNames[(int) args[0] - 1];
+                case "getColumnType":
+                    return types[(int) args[0] - 1];
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+}
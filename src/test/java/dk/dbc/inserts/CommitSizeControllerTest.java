@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of chunk-insert
+ *
+ * chunk-insert is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * chunk-insert is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.inserts;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+public class CommitSizeControllerTest {
+
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(200);
+
+    @Test(timeout = 2_000L)
+    public void testIncreaseAndDecrease() throws Exception {
+        System.out.println("testIncreaseAndDecrease");
+        CommitSizeController controller = new CommitSizeController(100, 1000, 100, 1150);
+        controller.update(1000, FAST);
+        assertThat(controller.size(), is(1100));
+        controller.update(1100, FAST);
+        assertThat(controller.size(), is(1150));
+        controller.update(1150, FAST);
+        assertThat(controller.size(), is(1150));
+        controller.update(1150, SLOW);
+        assertThat(controller.size(), is(575));
+        controller.update(575, SLOW);
+        controller.update(287, SLOW);
+        controller.update(143, SLOW);
+        assertThat(controller.size(), is(100));
+    }
+
+    @Test(timeout = 2_000L)
+    public void testShortChunkDoesNotIncrease() throws Exception {
+        System.out.println("testShortChunkDoesNotIncrease");
+        CommitSizeController controller = new CommitSizeController(100, 1000, 100, 10000);
+        controller.update(10, FAST);
+        assertThat(controller.size(), is(1000));
+    }
+
+    @Test(timeout = 2_000L)
+    public void testQueuedChunksAfterDecrease() throws Exception {
+        System.out.println("testQueuedChunksAfterDecrease");
+        CommitSizeController controller = new CommitSizeController(100, 1000, 100, 10000);
+        controller.update(1000, SLOW);
+        assertThat(controller.size(), is(500));
+        // Read before the decrease, 150 ms for 1000 rows is 75 ms for 500
+        controller.update(1000, TimeUnit.MILLISECONDS.toNanos(150));
+        controller.update(1000, TimeUnit.MILLISECONDS.toNanos(150));
+        assertThat(controller.size(), is(500));
+        // 400 ms for 1000 rows is still too slow for 500
+        controller.update(1000, TimeUnit.MILLISECONDS.toNanos(400));
+        assertThat(controller.size(), is(250));
+    }
+
+    @Test(timeout = 2_000L)
+    public void testFixed() throws Exception {
+        System.out.println("testFixed");
+        CommitSizeController controller = CommitSizeController.fixed(5000);
+        controller.update(5000, SLOW);
+        controller.update(5000, 0);
+        assertThat(controller.size(), is(5000));
+    }
+}
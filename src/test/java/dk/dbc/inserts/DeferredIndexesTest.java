@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of chunk-insert
+ *
+ * chunk-insert is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * chunk-insert is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.inserts;
+
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.sql.DataSource;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+public class DeferredIndexesTest {
+
+    @Test(timeout = 2_000L)
+    public void testDefinition() throws Exception {
+        System.out.println("testDefinition");
+        assertThat(DeferredIndexes.definition("CREATE INDEX t_a_idx ON ONLY public.t USING btree (a)"), is("CREATE INDEX IF NOT EXISTS t_a_idx ON public.t USING btree (a)"));
+        assertThat(DeferredIndexes.definition("CREATE INDEX t_a_idx ON public.t USING btree (a)"), is("CREATE INDEX IF NOT EXISTS t_a_idx ON public.t USING btree (a)"));
+    }
+
+    @Test(timeout = 2_000L)
+    public void testDropAndRebuild() throws Exception {
+        System.out.println("testDropAndRebuild");
+        Path file = Files.createTempFile("checkpoint", ".properties");
+        try {
+            Checkpoint checkpoint = Checkpoint.create(file, List.of("SELECT 1"));
+            Map<String, String> indexes = new ConcurrentSkipListMap<>();
+            indexes.put("t_a_idx", "CREATE INDEX t_a_idx ON ONLY public.t USING btree (a)");
+            indexes.put("t_b_idx", "CREATE INDEX t_b_idx ON public.t USING btree (b)");
+            List<String> executed = Collections.synchronizedList(new ArrayList<>());
+
+            DeferredIndexes deferredIndexes = DeferredIndexes.drop(dataSource(indexes, executed), "public.t", null, 4, checkpoint);
+            assertThat(executed, is(List.of("DROP INDEX t_a_idx", "DROP INDEX t_b_idx")));
+            assertThat(indexes.isEmpty(), is(true));
+            assertThat(Checkpoint.load(file).getIndexes().values().toString(),
+                       is("[CREATE INDEX IF NOT EXISTS t_a_idx ON public.t USING btree (a), CREATE INDEX IF NOT EXISTS t_b_idx ON public.t USING btree (b)]"));
+
+            executed.clear();
+            deferredIndexes.close();
+            Collections.sort(executed);
+            assertThat(executed, is(List.of("CREATE INDEX IF NOT EXISTS t_a_idx ON public.t USING btree (a)", "CREATE INDEX IF NOT EXISTS t_b_idx ON public.t USING btree (b)")));
+            assertThat(indexes.keySet().toString(), is("[t_a_idx, t_b_idx]"));
+            assertThat(Checkpoint.load(file).getIndexes().isEmpty(), is(true));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test(timeout = 2_000L)
+    public void testRebuildAfterResume() throws Exception {
+        System.out.println("testRebuildAfterResume");
+        Path file = Files.createTempFile("checkpoint", ".properties");
+        try {
+            Checkpoint.create(file, List.of("SELECT 1"))
+                    .indexes(Map.of("t_a_idx", "CREATE INDEX IF NOT EXISTS t_a_idx ON public.t USING btree (a)"));
+            Checkpoint checkpoint = Checkpoint.load(file);
+            List<String> executed = Collections.synchronizedList(new ArrayList<>());
+
+            DeferredIndexes deferredIndexes = DeferredIndexes.drop(dataSource(new ConcurrentSkipListMap<>(), executed), "public.t", "1GB", 4, checkpoint);
+            assertThat(executed.isEmpty(), is(true));
+            assertThat(Checkpoint.load(file).getIndexes().keySet().toString(), is("[t_a_idx]"));
+
+            deferredIndexes.close();
+            assertThat(executed, is(List.of("SET maintenance_work_mem = '1GB'", "CREATE INDEX IF NOT EXISTS t_a_idx ON public.t USING btree (a)")));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test(timeout = 2_000L)
+    public void testResumeAfterPartialRebuild() throws Exception {
+        System.out.println("testResumeAfterPartialRebuild");
+        Path file = Files.createTempFile("checkpoint", ".properties");
+        try {
+            Checkpoint checkpoint = Checkpoint.create(file, List.of("SELECT 1"));
+            Map<String, String> indexes = new ConcurrentSkipListMap<>();
+            indexes.put("t_a_idx", "CREATE INDEX t_a_idx ON public.t USING btree (a)");
+            indexes.put("t_b_idx", "CREATE INDEX t_b_idx ON public.t USING btree (b) WHERE fail");
+            List<String> executed = Collections.synchronizedList(new ArrayList<>());
+
+            DeferredIndexes deferredIndexes = DeferredIndexes.drop(dataSource(indexes, executed), "public.t", null, 1, checkpoint);
+            try {
+                deferredIndexes.close();
+                fail("Expected the rebuild to fail");
+            } catch (SQLException ex) {
+                assertThat(ex.getMessage(), is("failed"));
+            }
+            assertThat(indexes.keySet().toString(), is("[t_a_idx]"));
+            assertThat(Checkpoint.load(file).getIndexes().keySet().toString(), is("[t_b_idx]"));
+
+            executed.clear();
+            indexes.put("t_b_idx", "CREATE INDEX t_b_idx ON public.t USING btree (b)");
+            DeferredIndexes.drop(dataSource(indexes, executed), "public.t", null, 1, Checkpoint.load(file)).close();
+            assertThat(indexes.keySet().toString(), is("[t_a_idx, t_b_idx]"));
+            assertThat(Checkpoint.load(file).getIndexes().isEmpty(), is(true));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    /**
+     * A database that has the given secondary indexes, where DROP INDEX
+     * removes them and CREATE INDEX adds them (and fails if the index exists
+     * or has the condition "fail")
+     *
+     * @param indexes  index name to definition (thread safe, indexes are
+     *                 rebuilt in parallel)
+     * @param executed where to record the executed statements
+     * @return data source
+     */
+    private static DataSource dataSource(Map<String, String> indexes, List<String> executed) {
+        Statement statement = proxy(Statement.class, (method, args) -> {
+            switch (method) {
+                case "execute":
+                    String sql = (String) args[0];
+                    executed.add(sql);
+                    if (sql.startsWith("DROP INDEX ")) {
+                        indexes.remove(sql.substring("DROP INDEX ".length()));
+                    } else if (sql.startsWith("CREATE INDEX ")) {
+                        if (sql.endsWith(" WHERE fail"))
+                            throw new SQLException("failed");
+                        String[] words = sql.split(" ");
+                        boolean ifNotExists = words[2].equals("IF");
+                        String name = words[ifNotExists ? 5 : 2];
+                        if (indexes.containsKey(name)) {
+                            if (!ifNotExists)
+                                throw new SQLException("relation \"" + name + "\" already exists");
+                        } else {
+                            indexes.put(name, sql.replace("IF NOT EXISTS ", ""));
+                        }
+                    }
+                    return false;
+                case "close":
+                    return null;
+                default:
+                    throw new UnsupportedOperationException(method);
+            }
+        });
+        PreparedStatement query = proxy(PreparedStatement.class, (method, args) -> {
+            switch (method) {
+                case "setString":
+                case "close":
+                    return null;
+                case "executeQuery":
+                    return resultSet(new ArrayList<>(indexes.entrySet()).iterator());
+                default:
+                    throw new UnsupportedOperationException(method);
+            }
+        });
+        Connection connection = proxy(Connection.class, (method, args) -> {
+            switch (method) {
+                case "setAutoCommit":
+                case "commit":
+                case "close":
+                    return null;
+                case "createStatement":
+                    return statement;
+                case "prepareStatement":
+                    return query;
+                default:
+                    throw new UnsupportedOperationException(method);
+            }
+        });
+        return proxy(DataSource.class, (method, args) -> {
+            if (method.equals("getConnection"))
+                return connection;
+            throw new UnsupportedOperationException(method);
+        });
+    }
+
+    private static ResultSet resultSet(Iterator<Map.Entry<String, String>> rows) {
+        AtomicReference<Map.Entry<String, String>> row = new AtomicReference<>();
+        return proxy(ResultSet.class, (method, args) -> {
+            switch (method) {
+                case "next":
+                    row.set(rows.hasNext() ? rows.next() : null);
+                    return row.get() != null;
+                case "getString":
+                    return (int) args[0] == 1 ? row.get().getKey() : row.get().getValue();
+                case "close":
+                    return null;
+                default:
+                    throw new UnsupportedOperationException(method);
+            }
+        });
+    }
+
+    private interface Handler {
+
+        Object invoke(String method, Object[] args) throws SQLException;
+    }
+
+    private static <T> T proxy(Class<T> clazz, Handler handler) {
+        return clazz.cast(Proxy.newProxyInstance(clazz.getClassLoader(), new Class<?>[] {clazz}, (proxy, method, args) -> handler.invoke(method.getName(), args)));
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of chunk-insert
+ *
+ * chunk-insert is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * chunk-insert is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.inserts;
+
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+public class ExistingKeysTest {
+
+    @Test(timeout = 2_000L)
+    public void testKeyColumns() throws Exception {
+        System.out.println("testKeyColumns");
+        int[] key = ExistingKeys.keyColumns(Arrays.asList("B", "a"), Arrays.asList("a", "b", "c"));
+        assertThat(Arrays.toString(key), is("[1, 0]"));
+    }
+
+    @Test(timeout = 2_000L, expected = IllegalArgumentException.class)
+    public void testKeyColumnsMissing() throws Exception {
+        System.out.println("testKeyColumnsMissing");
+        ExistingKeys.keyColumns(Arrays.asList("d"), Arrays.asList("a", "b", "c"));
+    }
+
+    @Test(timeout = 2_000L)
+    public void testFingerprint() throws Exception {
+        System.out.println("testFingerprint");
+        Chunk ints = new Chunk(Arrays.asList(ColumnType.INT4, ColumnType.TEXT), 1);
+        ints.parse("7,x", new int[] {0, 2}, new int[] {1, 3});
+        Chunk longs = new Chunk(Arrays.asList(ColumnType.INT8, ColumnType.TEXT), 1);
+        longs.parse("7,x", new int[] {0, 2}, new int[] {1, 3});
+        Chunk other = new Chunk(Arrays.asList(ColumnType.INT8, ColumnType.TEXT), 1);
+        other.parse("7,y", new int[] {0, 2}, new int[] {1, 3});
+        assertThat(ExistingKeys.fingerprint(ints, new int[] {0}, 0), is(7L));
+        assertThat(ExistingKeys.fingerprint(ints, new int[] {0, 1}, 0), is(ExistingKeys.fingerprint(longs, new int[] {0, 1}, 0)));
+        assertThat(ExistingKeys.fingerprint(longs, new int[] {0, 1}, 0) == ExistingKeys.fingerprint(other, new int[] {0, 1}, 0), is(false));
+    }
+
+    @Test(timeout = 2_000L)
+    public void testSkipIntegerKey() throws Exception {
+        System.out.println("testSkipIntegerKey");
+        LongHashSet existing = new LongHashSet(3);
+        existing.add(1);
+        existing.add(3);
+        ExistingKeys keys = new ExistingKeys("t", List.of("a"), new int[] {0}, true, existing);
+        Chunk chunk = ChunkTest.chunk(new Object[][] {
+            {1, "a"},
+            {2, "b"},
+            {null, "c"},
+            {3, "d"},
+            {4, "e"}
+        });
+        assertThat(keys.skip(null, chunk), is(2));
+        assertThat(keys.getSkipped(), is(2L));
+        assertThat(ChunkTest.rows(chunk), is(Arrays.asList(
+                   Arrays.asList(2, "b"),
+                   Arrays.asList(null, "c"),
+                   Arrays.asList(4, "e"))));
+    }
+}
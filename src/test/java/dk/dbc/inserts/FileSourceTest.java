@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of chunk-insert
+ *
+ * chunk-insert is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * chunk-insert is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.inserts;
+
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+public class FileSourceTest {
+
+    private static final List<String> COLUMNS = Arrays.asList("id", "name");
+    private static final List<ColumnType> TYPES = Arrays.asList(ColumnType.INT4, ColumnType.TEXT);
+
+    @Test(timeout = 2_000L)
+    public void testCsv() throws Exception {
+        System.out.println("testCsv");
+        assertThat(read(FileSource.Format.CSV, "1,abc\r\n2,\"a,\"\"b\"\"\nc\"\n,\"\"\n4,\n"), is(Arrays.asList(
+                   Arrays.asList(1, "abc"),
+                   Arrays.asList(2, "a,\"b\"\nc"),
+                   Arrays.asList(null, ""),
+                   Arrays.asList(4, null))));
+    }
+
+    @Test(timeout = 2_000L)
+    public void testTsv() throws Exception {
+        System.out.println("testTsv");
+        assertThat(read(FileSource.Format.TSV, "1\ta\\tb\\\\\n\\N\t\n3\t\\N\r\n"), is(Arrays.asList(
+                   Arrays.asList(1, "a\tb\\"),
+                   Arrays.asList(null, ""),
+                   Arrays.asList(3, null))));
+    }
+
+    @Test(timeout = 2_000L)
+    public void testJsonl() throws Exception {
+        System.out.println("testJsonl");
+        assertThat(read(FileSource.Format.JSONL, "{\"id\": 1, \"name\": \"a\\\"\\u00e6\"}\n\n{\"NAME\": {\"x\": [1, \"}\"]}, \"other\": true}\n{\"id\": null}"), is(Arrays.asList(
+                   Arrays.asList(1, "a\"æ"),
+                   Arrays.asList(null, "{\"x\": [1, \"}\"]}"),
+                   Arrays.asList(null, null))));
+    }
+
+    @Test(timeout = 2_000L)
+    public void testGzipWithHeader() throws Exception {
+        System.out.println("testGzipWithHeader");
+        Path file = Files.createTempFile("source", ".csv.gz");
+        try {
+            try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(file))) {
+                out.write("id,name\n1,a\n".getBytes(StandardCharsets.UTF_8));
+            }
+            try (FileSource source = FileSource.open(file, FileSource.Format.CSV, true, COLUMNS)) {
+                assertThat(ChunkTest.rows(read(source)), is(Arrays.asList(
+                           Arrays.asList(1, "a"))));
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test(timeout = 2_000L)
+    public void testFieldCount() throws Exception {
+        System.out.println("testFieldCount");
+        try {
+            read(FileSource.Format.CSV, "1,a\n2,b,c\n");
+            throw new AssertionError("Expected an exception");
+        } catch (IllegalStateException ex) {
+            assertThat(ex.getMessage(), is("test: record 2: expected 2 fields, got 3"));
+        }
+    }
+
+    @Test(timeout = 2_000L)
+    public void testInvalidValue() throws Exception {
+        System.out.println("testInvalidValue");
+        try {
+            read(FileSource.Format.CSV, "1,a\nx,b\n");
+            throw new AssertionError("Expected an exception");
+        } catch (IllegalStateException ex) {
+            assertThat(ex.getMessage().startsWith("test: record 2: column 1: "), is(true));
+        }
+    }
+
+    private static List<List<Object>> read(FileSource.Format format, String content) throws Exception {
+        return ChunkTest.rows(read(new FileSource("test", new StringReader(content), format, COLUMNS)));
+    }
+
+    private static Chunk read(FileSource source) throws Exception {
+        Chunk chunk = new Chunk(TYPES, 10);
+        while (source.next()) {
+            source.read(chunk);
+        }
+        return chunk;
+    }
+}
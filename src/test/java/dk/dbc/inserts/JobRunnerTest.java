@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of chunk-insert
+ *
+ * chunk-insert is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * chunk-insert is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.inserts;
+
+import dk.dbc.ExitException;
+import java.util.List;
+import java.util.Properties;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+public class JobRunnerTest {
+
+    @Test(timeout = 2_000L)
+    public void testLoad() throws Exception {
+        System.out.println("testLoad");
+        Properties properties = new Properties();
+        properties.setProperty("b.sql", "INSERT INTO t2 (a) SELECT a FROM s");
+        properties.setProperty("b.commit", "42");
+        properties.setProperty("b.after", "a");
+        properties.setProperty("a.sql", "INSERT INTO t1 (a) SELECT a FROM s");
+        properties.setProperty("a.options", "--mode copy -c 7");
+        List<JobRunner.Job> jobs = JobRunner.load(properties, defaults());
+        assertThat(jobs.size(), is(2));
+        assertThat(jobs.get(0).getName(), is("a"));
+        assertThat(jobs.get(0).getArguments().getMode(), is(Mode.COPY));
+        assertThat(jobs.get(0).getArguments().getCommit(), is(7));
+        assertThat(jobs.get(0).getArguments().getDb(), is("db"));
+        assertThat(jobs.get(1).getArguments().getCommit(), is(42));
+        assertThat(jobs.get(1).getArguments().getParallel(), is(2));
+        assertThat(jobs.get(1).getConnections(), is(4));
+    }
+
+    @Test(timeout = 2_000L, expected = ExitException.class)
+    public void testCycle() throws Exception {
+        System.out.println("testCycle");
+        Properties properties = new Properties();
+        properties.setProperty("a.sql", "INSERT INTO t1 (a) SELECT a FROM s");
+        properties.setProperty("a.after", "c");
+        properties.setProperty("b.sql", "INSERT INTO t2 (a) SELECT a FROM s");
+        properties.setProperty("b.after", "a");
+        properties.setProperty("c.sql", "INSERT INTO t3 (a) SELECT a FROM s");
+        properties.setProperty("c.after", "b");
+        JobRunner.load(properties, defaults());
+    }
+
+    @Test(timeout = 2_000L)
+    public void testSchedule() throws Exception {
+        System.out.println("testSchedule");
+        Properties properties = new Properties();
+        properties.setProperty("a.sql", "INSERT INTO t1 (a) SELECT a FROM s");
+        properties.setProperty("b.sql", "INSERT INTO T1 (a) SELECT a FROM s2");
+        properties.setProperty("c.sql", "INSERT INTO t2 (a) SELECT a FROM s");
+        properties.setProperty("d.sql", "INSERT INTO t3 (a) SELECT a FROM s");
+        properties.setProperty("d.after", "c");
+        properties.setProperty("e.sql", "INSERT INTO t4 (a) SELECT a FROM s");
+        List<JobRunner.Job> jobs = JobRunner.load(properties, defaults());
+        JobRunner runner = new JobRunner(jobs, 9);
+        JobRunner.Job a = runner.next();
+        assertThat(a.getName(), is("a"));
+        runner.started(a);
+        JobRunner.Job c = runner.next();
+        assertThat(c.getName(), is("c")); // b has the same table as a
+        runner.started(c);
+        assertThat(runner.next(), nullValue()); // d is after c, e is over budget
+        runner.finished(c, JobRunner.State.FAILED);
+        runner.skipFailedDependencies();
+        assertThat(jobs.get(3).getState(), is(JobRunner.State.SKIPPED));
+        assertThat(runner.next().getName(), is("e"));
+    }
+
+    @Test(timeout = 2_000L)
+    public void testConnections() throws Exception {
+        System.out.println("testConnections");
+        assertThat(JobRunner.Job.connections(new Arguments("--parallel", "3", "-d", "db", "sql")), is(6));
+        assertThat(JobRunner.Job.connections(new Arguments("--parallel", "3", "--mode", "server", "--key", "id", "-d", "db", "sql")), is(3));
+        assertThat(JobRunner.Job.connections(new Arguments("--parallel", "3", "--source-database", "other", "-d", "db", "sql")), is(3));
+        assertThat(JobRunner.Job.connections(new Arguments("--parallel", "3", "--maintenance", "60", "--max-replica-lag", "5", "-d", "db", "sql")), is(8));
+        assertThat(JobRunner.Job.connections(new Arguments("--parallel", "3", "--max-replica-lag", "5", "--replica", "replica", "-d", "db", "sql")), is(6));
+        assertThat(JobRunner.Job.connections(new Arguments("--mode", "server", "--key", "id", "--staging", "--parallel", "3", "-d", "db", "sql")), is(4));
+    }
+
+    private static Arguments defaults() throws Exception {
+        return new Arguments("--jobs", "manifest", "--max-connections", "9", "--parallel", "2", "-d", "db");
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of chunk-insert
+ *
+ * chunk-insert is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * chunk-insert is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.inserts;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+public class KeyGroupsTest {
+
+    @Test(timeout = 2_000L)
+    public void testGroupsAreNotSplit() throws Exception {
+        System.out.println("testGroupsAreNotSplit");
+        List<List<List<Object>>> chunks = take(
+                new Object[][] {{1, "a"}, {2, "b"}, {2, "c"}},
+                new Object[][] {{2, "d"}, {3, "e"}, {4, "f"}},
+                new Object[][] {{5, "g"}, {5, "h"}, {5, "i"}},
+                new Object[][] {{5, "j"}, {6, "k"}, {6, "l"}});
+        assertThat(chunks, is(Arrays.asList(
+                   Arrays.asList(Arrays.asList(1, "a")),
+                   Arrays.asList(Arrays.asList(2, "b"), Arrays.asList(2, "c"), Arrays.asList(2, "d"), Arrays.asList(3, "e")),
+                   Arrays.asList(Arrays.asList(4, "f")),
+                   Arrays.asList(Arrays.asList(5, "g"), Arrays.asList(5, "h"), Arrays.asList(5, "i"), Arrays.asList(5, "j")),
+                   Arrays.asList(Arrays.asList(6, "k"), Arrays.asList(6, "l")))));
+    }
+
+    @Test(timeout = 2_000L)
+    public void testRequested() throws Exception {
+        System.out.println("testRequested");
+        Iterator<Chunk> iterator = Arrays.asList(
+                ChunkTest.chunk(new Object[][] {{1, "a"}, {2, "b"}, {2, "c"}}),
+                ChunkTest.chunk(new Object[][] {{2, "d"}, {2, "e"}, {2, "f"}}),
+                ChunkTest.chunk(new Object[][] {{2, "g"}, {3, "h"}, {4, "i"}}),
+                ChunkTest.chunk(new Object[][] {{4, "j"}, {5, "k"}})).iterator();
+        KeyGroups groups = new KeyGroups(() -> iterator.hasNext() ? iterator.next() : null, 0);
+        List<String> chunks = new ArrayList<>();
+        for (Chunk chunk = groups.take() ; chunk != null ; chunk = groups.take()) {
+            chunks.add(chunk.size() + "/" + chunk.getRequested());
+        }
+        // A chunk of rows moved from the one before is judged as read
+        assertThat(chunks.toString(), is("[1/3, 7/6, 2/2, 1/1]"));
+    }
+
+    @Test(timeout = 2_000L)
+    public void testEmpty() throws Exception {
+        System.out.println("testEmpty");
+        assertThat(take().isEmpty(), is(true));
+    }
+
+    private static List<List<List<Object>>> take(Object[][]... rows) throws Exception {
+        List<Chunk> source = new ArrayList<>();
+        for (Object[][] chunk : rows) {
+            source.add(ChunkTest.chunk(chunk));
+        }
+        Iterator<Chunk> iterator = source.iterator();
+        KeyGroups groups = new KeyGroups(() -> iterator.hasNext() ? iterator.next() : null, 0);
+        List<List<List<Object>>> chunks = new ArrayList<>();
+        for (Chunk chunk = groups.take() ; chunk != null ; chunk = groups.take()) {
+            chunks.add(ChunkTest.rows(chunk));
+        }
+        return chunks;
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of chunk-insert
+ *
+ * chunk-insert is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * chunk-insert is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.inserts;
+
+import java.util.HashSet;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+public class LongHashSetTest {
+
+    @Test(timeout = 2_000L)
+    public void testAddContains() throws Exception {
+        System.out.println("testAddContains");
+        LongHashSet set = new LongHashSet(0);
+        assertThat(set.add(0), is(true));
+        assertThat(set.add(0), is(false));
+        assertThat(set.add(-1), is(true));
+        assertThat(set.add(Long.MIN_VALUE), is(true));
+        assertThat(set.contains(0), is(true));
+        assertThat(set.contains(-1), is(true));
+        assertThat(set.contains(Long.MIN_VALUE), is(true));
+        assertThat(set.contains(1), is(false));
+        assertThat(set.size(), is(3));
+    }
+
+    @Test(timeout = 2_000L)
+    public void testGrow() throws Exception {
+        System.out.println("testGrow");
+        Random random = new Random(42);
+        HashSet<Long> expected = new HashSet<>();
+        LongHashSet set = new LongHashSet(10);
+        for (int i = 0 ; i < 100_000 ; i++) {
+            long value = i % 2 == 0 ? i : random.nextLong();
+            assertThat(set.add(value), is(expected.add(value)));
+        }
+        assertThat(set.size(), is(expected.size()));
+        for (long value : expected) {
+            assertThat(set.contains(value), is(true));
+        }
+        assertThat(set.contains(100_001), is(expected.contains(100_001L)));
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of chunk-insert
+ *
+ * chunk-insert is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * chunk-insert is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.inserts;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+public class MaintenanceSchedulerTest {
+
+    @Test(timeout = 2_000L)
+    public void testMaintenance() throws Exception {
+        System.out.println("testMaintenance");
+        assertThat(MaintenanceScheduler.maintenance(100_000, 100, 5_000), nullValue());
+        assertThat(MaintenanceScheduler.maintenance(100_000, 100, 20_000), is("ANALYZE"));
+        assertThat(MaintenanceScheduler.maintenance(100_000, 30_000, 5_000), is("VACUUM"));
+        assertThat(MaintenanceScheduler.maintenance(100_000, 30_000, 20_000), is("VACUUM ANALYZE"));
+        assertThat(MaintenanceScheduler.maintenance(0, 0, 1_001), is("ANALYZE"));
+    }
+}
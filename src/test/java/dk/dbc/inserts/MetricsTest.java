@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of chunk-insert
+ *
+ * chunk-insert is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * chunk-insert is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.inserts;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+public class MetricsTest {
+
+    @Test(timeout = 2_000L)
+    public void testQuantiles() throws Exception {
+        System.out.println("testQuantiles");
+        Metrics.Histogram histogram = new Metrics.Histogram("test");
+        for (int i = 100 ; i > 0 ; i--) {
+            histogram.record(i);
+        }
+        Metrics.Histogram.Snapshot snapshot = histogram.snapshot();
+        assertThat(snapshot.count(), is(100));
+        assertThat(snapshot.sum(), is(5050L));
+        assertThat(snapshot.quantile(0.5), is(50L));
+        assertThat(snapshot.quantile(0.99), is(99L));
+        assertThat(snapshot.max(), is(100L));
+        assertThat(new Metrics.Histogram("empty").snapshot().quantile(0.5), is(0L));
+    }
+
+    @Test(timeout = 2_000L)
+    public void testFormats() throws Exception {
+        System.out.println("testFormats");
+        Metrics metrics = new Metrics();
+        metrics.written(10, 400);
+        metrics.commit.record(2_000_000L);
+        String json = metrics.toJson();
+        assertThat(json, containsString("\"rows\":10,\"bytes\":400,"));
+        assertThat(json, containsString("\"commit\":{\"count\":1,\"total_ms\":2.000,\"p50_ms\":2.000,\"p90_ms\":2.000,\"p99_ms\":2.000,\"max_ms\":2.000}"));
+        String prometheus = metrics.toPrometheus();
+        assertThat(prometheus, containsString("chunk_insert_rows_total 10\n"));
+        assertThat(prometheus, containsString("chunk_insert_phase_seconds{phase=\"commit\",quantile=\"0.5\"} 0.002\n"));
+        assertThat(prometheus, containsString("chunk_insert_phase_seconds_count{phase=\"commit\"} 1\n"));
+    }
+}
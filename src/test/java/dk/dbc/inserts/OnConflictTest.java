@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of chunk-insert
+ *
+ * chunk-insert is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * chunk-insert is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.inserts;
+
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+public class OnConflictTest {
+
+    private static final List<String> COLUMNS = Arrays.asList("id", "name", "value");
+
+    @Test(timeout = 2_000L)
+    public void testDoNothing() throws Exception {
+        System.out.println("testDoNothing");
+        OnConflict onConflict = new OnConflict(Arrays.asList("id"), OnConflict.Action.of("do-nothing"));
+        assertThat(onConflict.clause(COLUMNS), is(" ON CONFLICT (id) DO NOTHING"));
+    }
+
+    @Test(timeout = 2_000L)
+    public void testDoUpdate() throws Exception {
+        System.out.println("testDoUpdate");
+        OnConflict onConflict = new OnConflict(Arrays.asList("ID", "name"), OnConflict.Action.of("do-update"));
+        assertThat(onConflict.clause(COLUMNS), is(" ON CONFLICT (ID, name) DO UPDATE SET value = EXCLUDED.value"));
+        assertThat(Arrays.toString(onConflict.keyColumns(COLUMNS)), is("[0, 1]"));
+    }
+
+    @Test(timeout = 2_000L)
+    public void testDoUpdateAllKey() throws Exception {
+        System.out.println("testDoUpdateAllKey");
+        OnConflict onConflict = new OnConflict(COLUMNS, OnConflict.Action.DO_UPDATE);
+        assertThat(onConflict.clause(COLUMNS), is(" ON CONFLICT (id, name, value) DO NOTHING"));
+    }
+
+    @Test(timeout = 2_000L, expected = IllegalArgumentException.class)
+    public void testUnknownKeyColumn() throws Exception {
+        System.out.println("testUnknownKeyColumn");
+        new OnConflict(Arrays.asList("other"), OnConflict.Action.DO_NOTHING).keyColumns(COLUMNS);
+    }
+}
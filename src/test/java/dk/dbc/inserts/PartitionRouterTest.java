@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of chunk-insert
+ *
+ * chunk-insert is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * chunk-insert is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.inserts;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+public class PartitionRouterTest {
+
+    @Test(timeout = 2_000L)
+    public void testLiterals() throws Exception {
+        System.out.println("testLiterals");
+        assertThat(PartitionRouter.literals("FOR VALUES IN ('a', 'it''s', NULL, 'b'::bpchar)", 15),
+                   is(Arrays.asList("a", "it's", null, "b")));
+        assertThat(PartitionRouter.literals("FOR VALUES FROM (MINVALUE) TO (100)", 17),
+                   is(Arrays.asList("MINVALUE")));
+    }
+
+    @Test(timeout = 2_000L)
+    public void testRange() throws Exception {
+        System.out.println("testRange");
+        PartitionRouter router = PartitionRouter.of(
+                Arrays.asList("p_high", "p_low", "p_default", "p_mid"),
+                Arrays.asList("FOR VALUES FROM (200) TO (MAXVALUE)",
+                              "FOR VALUES FROM (MINVALUE) TO (100)",
+                              "DEFAULT",
+                              "FOR VALUES FROM (100) TO (150)"),
+                0, ColumnType.INT4);
+        Chunk chunk = ChunkTest.chunk(new Object[][] {{-5, "a"}, {100, "b"}, {149, "c"}, {150, "d"}, {200, "e"}, {null, "f"}});
+        List<String> routed = new ArrayList<>();
+        for (int row = 0 ; row < chunk.size() ; row++) {
+            routed.add(router.getPartitions().get(router.route(chunk, row)));
+        }
+        assertThat(routed, is(Arrays.asList("p_low", "p_mid", "p_mid", "p_default", "p_high", "p_default")));
+    }
+
+    @Test(timeout = 2_000L)
+    public void testList() throws Exception {
+        System.out.println("testList");
+        PartitionRouter router = PartitionRouter.of(
+                Arrays.asList("p_ab", "p_c"),
+                Arrays.asList("FOR VALUES IN ('a', 'b')",
+                              "FOR VALUES IN ('c', NULL)"),
+                1, ColumnType.TEXT);
+        Chunk chunk = ChunkTest.chunk(new Object[][] {{1, "b"}, {2, null}, {3, "x"}});
+        assertThat(router.route(chunk, 0), is(0));
+        assertThat(router.route(chunk, 1), is(1));
+        assertThat(router.route(chunk, 2), is(-1));
+    }
+
+    @Test(timeout = 2_000L)
+    public void testWriter() throws Exception {
+        System.out.println("testWriter");
+        PartitionRouter router = PartitionRouter.of(
+                Arrays.asList("p1", "p2"),
+                Arrays.asList("FOR VALUES FROM (0) TO (10)",
+                              "FOR VALUES FROM (10) TO (20)"),
+                0, ColumnType.INT4);
+        List<String> written = new ArrayList<>();
+        PartitionWriter.Factory factory = table -> new RowWriter() {
+            @Override
+            public void write(Chunk chunk) {
+                written.add(table + ":" + ChunkTest.rows(chunk));
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        try (PartitionWriter writer = new PartitionWriter(router, factory, "t")) {
+            writer.write(ChunkTest.chunk(new Object[][] {{1, "a"}, {12, "b"}, {30, "c"}, {5, "d"}}));
+            writer.write(ChunkTest.chunk(new Object[][] {{15, "e"}}));
+        }
+        assertThat(written, is(Arrays.asList(
+                   "p1:[[1, a], [5, d]]",
+                   "p2:[[12, b]]",
+                   "t:[[30, c]]",
+                   "p2:[[15, e]]")));
+    }
+}
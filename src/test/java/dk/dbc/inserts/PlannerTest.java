@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of chunk-insert
+ *
+ * chunk-insert is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * chunk-insert is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.inserts;
+
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+public class PlannerTest {
+
+    @Test(timeout = 2_000L)
+    public void testNarrowRows() throws Exception {
+        System.out.println("testNarrowRows");
+        Planner planner = new Planner(select(1_000_000, 16, List.of()), target(0, 0), 1, false, false);
+        assertThat(planner.getMode(), is(Mode.COPY));
+        assertThat(planner.getCommit(), is(Planner.MAX_COMMIT));
+        assertThat(planner.getFetchSize(), is(Planner.MAX_COMMIT));
+        assertThat(planner.getWarnings().isEmpty(), is(true));
+    }
+
+    @Test(timeout = 2_000L)
+    public void testWideRows() throws Exception {
+        System.out.println("testWideRows");
+        Planner planner = new Planner(select(1_000_000, 2_000, List.of()), target(0, 3_000), 1, false, false);
+        // 16 MB / 3000 bytes = 5592, 4 MB / 2000 bytes = 2097
+        assertThat(planner.getCommit(), is(5_500));
+        assertThat(planner.getFetchSize(), is(2_000));
+    }
+
+    @Test(timeout = 2_000L)
+    public void testMode() throws Exception {
+        System.out.println("testMode");
+        assertThat(new Planner(select(10, 16, List.of()), target(0, 0), 1, true, true).getMode(), is(Mode.MULTI_ROW));
+        assertThat(new Planner(select(10, 16, List.of()), target(0, 0), 1, false, true).getMode(), is(Mode.SERVER));
+        Planner.Select untyped = new Planner.Select(10, 16, 0, 1, List.of(), 4 << 20, 1, 2, false);
+        Planner planner = new Planner(untyped, target(0, 0), 1, false, false);
+        assertThat(planner.getMode(), is(Mode.MULTI_ROW));
+        assertThat(planner.options().get(0), is("--mode multi-row"));
+        assertThat(planner.options().get(3), is("--rows-per-statement 1000"));
+    }
+
+    @Test(timeout = 2_000L)
+    public void testSpill() throws Exception {
+        System.out.println("testSpill");
+        List<Planner.Node> nodes = Arrays.asList(
+                new Planner.Node("Sort", "", 1_000_000, 40),
+                new Planner.Node("Sort", "", 100, 40),
+                new Planner.Node("Aggregate", "Hashed", 1_000_000, 40),
+                new Planner.Node("Aggregate", "Sorted", 1_000_000, 40),
+                new Planner.Node("Seq Scan", "", 1_000_000, 40));
+        Planner planner = new Planner(select(1_000_000, 40, nodes), target(0, 0), 1, false, false);
+        assertThat(planner.getWarnings().size(), is(2));
+        assertThat(planner.getWarnings().get(0).startsWith("Sort of ~1000000 rows"), is(true));
+        assertThat(planner.getWarnings().get(1).startsWith("Hashed Aggregate of ~1000000 rows"), is(true));
+    }
+
+    @Test(timeout = 2_000L)
+    public void testDeferIndexes() throws Exception {
+        System.out.println("testDeferIndexes");
+        Planner.Target target = new Planner.Target("t", 500, 0, 3, 2, 1, 0);
+        Planner planner = new Planner(select(1_000, 16, List.of()), target, 1, false, false);
+        assertThat(planner.getWarnings().toString(), is("[1 trigger(s) on t fire for every row," +
+                                                        " The load is at least as large as t, consider --defer-indexes (2 of 3 indexes can be deferred)]"));
+    }
+
+    @Test(timeout = 2_000L)
+    public void testEta() throws Exception {
+        System.out.println("testEta");
+        Planner planner = new Planner(select(1_000_000, 16, List.of()), target(0, 0), 2, false, false);
+        assertThat(planner.eta(null), is(-1L));
+        // Writing is slower, 1000 rows in 10 ms, 2 workers
+        assertThat(planner.eta(new Planner.Sample(1_000, 5_000_000L, 10_000_000L)), is(5_000_000_000L));
+        // Not written, only reading counts
+        assertThat(planner.eta(new Planner.Sample(1_000, 5_000_000L, -1)), is(2_500_000_000L));
+        assertThat(planner.report(new Planner.Sample(1_000, 5_000_000L, -1)).contains("ETA:      at least 2 s (reading only) using 2 workers"), is(true));
+        assertThat(Planner.duration(5_000_000_000L), is("5 s"));
+        assertThat(Planner.duration(3_725_000_000_000L), is("1 h 2 min"));
+    }
+
+    @Test(timeout = 2_000L)
+    public void testRound() throws Exception {
+        System.out.println("testRound");
+        assertThat(Planner.round(99), is(99));
+        assertThat(Planner.round(5_592), is(5_500));
+        assertThat(Planner.round(100_000), is(100_000));
+    }
+
+    private static Planner.Select select(double rows, int width, List<Planner.Node> nodes) {
+        return new Planner.Select(rows, width, 0, 1000, nodes, 4 << 20, 2, 2, true);
+    }
+
+    private static Planner.Target target(double rows, int width) {
+        return new Planner.Target("t", rows, width, 0, 0, 0, 0);
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of chunk-insert
+ *
+ * chunk-insert is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * chunk-insert is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.inserts;
+
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+public class RejectsTest {
+
+    @Test(timeout = 2_000L)
+    public void testIsolate() throws Exception {
+        System.out.println("testIsolate");
+        Path file = Files.createTempFile("rejects", ".jsonl");
+        try {
+            Chunk chunk = ChunkTest.chunk(new Object[][] {
+                {1, "a"},
+                {2, "bad"},
+                {3, "c"},
+                {4, "d"},
+                {5, "bad"},
+                {6, "f"},
+                {7, "g"}
+            });
+            List<String> calls = new ArrayList<>();
+            List<Object> written = new ArrayList<>();
+            List<Object> pending = new ArrayList<>();
+            Connection connection = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] {Connection.class}, (proxy, method, args) -> {
+                calls.add(method.getName());
+                switch (method.getName()) {
+                    case "rollback":
+                        pending.clear();
+                        return null;
+                    case "releaseSavepoint":
+                        written.addAll(pending);
+                        pending.clear();
+                        return null;
+                    case "setSavepoint":
+                        return null;
+                    default:
+                        throw new UnsupportedOperationException(method.getName());
+                }
+            });
+            RowWriter rowWriter = new RowWriter() {
+                @Override
+                public void write(Chunk chunk) throws SQLException {
+                    for (int row = 0 ; row < chunk.size() ; row++) {
+                        if ("bad".equals(chunk.column(1).get(row)))
+                            throw new SQLException("bad value", "22000");
+                        pending.add(chunk.column(0).get(row));
+                    }
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+            try (Rejects rejects = new Rejects(file, 10, Arrays.asList("id", "name"))) {
+                assertThat(rejects.write(connection, rowWriter, chunk), is(2));
+                assertThat(rejects.getCount(), is(2));
+            }
+            assertThat(written, is(Arrays.asList(1, 3, 4, 6, 7)));
+            assertThat(calls.get(0), is("rollback"));
+            assertThat(Files.readAllLines(file, StandardCharsets.UTF_8), is(Arrays.asList(
+                       "{\"error\":\"bad value\",\"sqlstate\":\"22000\",\"row\":{\"id\":2,\"name\":\"bad\"}}",
+                       "{\"error\":\"bad value\",\"sqlstate\":\"22000\",\"row\":{\"id\":5,\"name\":\"bad\"}}")));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test(timeout = 2_000L)
+    public void testToJson() throws Exception {
+        System.out.println("testToJson");
+        Chunk chunk = ChunkTest.chunk(new Object[][] {
+            {null, "a\"b\\c\n\u0001"}
+        });
+        assertThat(Rejects.toJson(Arrays.asList("id", "name"), chunk, 0, new SQLException("x")),
+                   is("{\"error\":\"x\",\"sqlstate\":null,\"row\":{\"id\":null,\"name\":\"a\\\"b\\\\c\\n\\u0001\"}}\n"));
+    }
+}
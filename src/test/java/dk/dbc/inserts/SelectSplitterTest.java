@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of chunk-insert
+ *
+ * chunk-insert is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * chunk-insert is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.inserts;
+
+import java.util.Arrays;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+public class SelectSplitterTest {
+
+    public SelectSplitterTest() {
+    }
+
+    @Test(timeout = 2_000L)
+    public void testKeyRanges() throws Exception {
+        System.out.println("testKeyRanges");
+        assertThat(SelectSplitter.keyRanges("SELECT a FROM t", "a", 1, 10, 3), is(Arrays.asList(
+                   "SELECT * FROM (SELECT a FROM t) AS src WHERE a BETWEEN 1 AND 4",
+                   "SELECT * FROM (SELECT a FROM t) AS src WHERE a BETWEEN 5 AND 8",
+                   "SELECT * FROM (SELECT a FROM t) AS src WHERE a BETWEEN 9 AND 10",
+                   "SELECT * FROM (SELECT a FROM t) AS src WHERE a IS NULL")));
+        assertThat(SelectSplitter.keyRanges("SELECT a FROM t", "a", 7, 7, 3), is(Arrays.asList(
+                   "SELECT * FROM (SELECT a FROM t) AS src WHERE a BETWEEN 7 AND 7",
+                   "SELECT * FROM (SELECT a FROM t) AS src WHERE a IS NULL")));
+        assertThat(SelectSplitter.keyRanges("SELECT a FROM t", "a", Long.MIN_VALUE, Long.MAX_VALUE, 2), is(Arrays.asList(
+                   "SELECT * FROM (SELECT a FROM t) AS src WHERE a BETWEEN -9223372036854775808 AND -2",
+                   "SELECT * FROM (SELECT a FROM t) AS src WHERE a BETWEEN -1 AND 9223372036854775805",
+                   "SELECT * FROM (SELECT a FROM t) AS src WHERE a BETWEEN 9223372036854775806 AND 9223372036854775807",
+                   "SELECT * FROM (SELECT a FROM t) AS src WHERE a IS NULL")));
+    }
+
+    @Test(timeout = 2_000L)
+    public void testBlockRanges() throws Exception {
+        System.out.println("testBlockRanges");
+        assertThat(SelectSplitter.blockRanges("SELECT a, b FROM s.t x WHERE a > 5", 10, 2), is(Arrays.asList(
+                   "SELECT a, b FROM s.t x WHERE (a > 5) AND x.ctid >= '(0,0)'::TID AND x.ctid < '(5,0)'::TID",
+                   "SELECT a, b FROM s.t x WHERE (a > 5) AND x.ctid >= '(5,0)'::TID")));
+        assertThat(SelectSplitter.blockRanges("select a from t", 3, 2), is(Arrays.asList(
+                   "select a from t WHERE t.ctid >= '(0,0)'::TID AND t.ctid < '(2,0)'::TID",
+                   "select a from t WHERE t.ctid >= '(2,0)'::TID")));
+        assertThat(SelectSplitter.blockRanges("select a from t", 0, 2), is(Arrays.asList(
+                   "select a from t")));
+    }
+
+    @Test(timeout = 2_000L, expected = IllegalStateException.class)
+    public void testBlockRangesJoin() throws Exception {
+        System.out.println("testBlockRangesJoin");
+        SelectSplitter.blockRanges("SELECT a FROM t JOIN u USING (a)", 10, 2);
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of chunk-insert
+ *
+ * chunk-insert is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * chunk-insert is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.inserts;
+
+import java.io.DataInputStream;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.ResultSetMetaData;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.Stream;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+public class SpoolTest {
+
+    @Test(timeout = 2_000L)
+    public void testSpoolAndLoad() throws Exception {
+        System.out.println("testSpoolAndLoad");
+        Path dir = Files.createTempDirectory("spool");
+        try {
+            Spool spool = Spool.create(dir);
+            spool.columns(metaData(), Arrays.asList(ColumnType.INT4, ColumnType.TEXT));
+            spool.write(ChunkTest.chunk(new Object[][] {{1, "a"}, {2, null}}));
+            spool.write(ChunkTest.chunk(new Object[][] {{3, "c"}}));
+            spool.finish();
+
+            Spool replay = Spool.load(dir);
+            assertThat(replay.getFiles(), is(Arrays.asList("chunk-000001.pgcopy.gz", "chunk-000002.pgcopy.gz")));
+            assertThat(replay.getRows(0), is(2L));
+            assertThat(replay.getRows(1), is(1L));
+            try (DataInputStream in = new DataInputStream(replay.open("chunk-000002.pgcopy.gz"))) {
+                byte[] header = new byte[BinaryCopyWriter.HEADER.length];
+                in.readFully(header);
+                assertThat(Arrays.toString(header), is(Arrays.toString(BinaryCopyWriter.HEADER)));
+                assertThat(in.readShort(), is((short) 2));
+                assertThat(in.readInt(), is(4));
+                assertThat(in.readInt(), is(3));
+                assertThat(in.readInt(), is(1));
+                assertThat(in.readByte(), is((byte) 'c'));
+                assertThat(in.readShort(), is((short) -1));
+                assertThat(in.read(), is(-1));
+            }
+            assertThat(replay.isDone("chunk-000001.pgcopy.gz"), is(false));
+            replay.done("chunk-000001.pgcopy.gz");
+            assertThat(replay.isDone("chunk-000001.pgcopy.gz"), is(true));
+        } finally {
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    @Test(timeout = 2_000L, expected = IllegalStateException.class)
+    public void testLoadIncomplete() throws Exception {
+        System.out.println("testLoadIncomplete");
+        Path dir = Files.createTempDirectory("spool");
+        try {
+            Spool.load(dir);
+        } finally {
+            Files.delete(dir);
+        }
+    }
+
+    private static ResultSetMetaData metaData() {
+        String[] names = {"id", "name"};
+        String[] typeNames = {"int4", "text"};
+        return (ResultSetMetaData) Proxy.newProxyInstance(ResultSetMetaData.class.getClassLoader(), new Class<?>[] {ResultSetMetaData.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getColumnCount":
+                    return names.length;
+                case "getColumnLabel":
+                    return names[(int) args[0] - 1];
+                case "getColumnTypeName":
+                    return typeNames[(int) args[0] - 1];
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2019 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of chunk-insert
+ *
+ * chunk-insert is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * chunk-insert is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.inserts;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ *
+ * @author Morten Bøgeskov (mb@dbc.dk)
+ */
+public class ThrottleTest {
+
+    @Test(timeout = 2_000L)
+    public void testTokenBucket() throws Exception {
+        System.out.println("testTokenBucket");
+        Throttle.TokenBucket bucket = new Throttle.TokenBucket(1000);
+        long now = System.nanoTime();
+        // A full second worth of tokens to start with
+        assertThat(bucket.take(1000, now), is(0L));
+        // 500 tokens in debt takes half a second to pay off
+        assertThat(bucket.take(500, now), is(500_000_000L));
+        // A second later the debt is paid, and 500 tokens are available
+        assertThat(bucket.take(500, now + 1_000_000_000L), is(0L));
+        // Refill never exceeds one second worth
+        assertThat(bucket.take(1500, now + 60_000_000_000L), is(500_000_000L));
+    }
+}